@@ -0,0 +1,99 @@
+package com.example.bytebuddy.benchmarks;
+
+import com.example.bytebuddy.AdvancedMethodInstrumentation;
+import com.example.bytebuddy.MethodInstrumentation;
+import com.example.bytebuddy.StackAwareInstrumentation;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * The advice flavours under test, applied the same way the demos and the agent apply them
+ */
+final class Advices {
+
+    static final String NONE = "none";
+    static final String BASIC = "basic";
+    static final String ADVANCED = "advanced";
+    static final String STACK_AWARE = "stackaware";
+
+    private Advices() {
+    }
+
+    /**
+     * Override the matched methods, as in StackAwareDemo; returns null for no instrumentation
+     */
+    static <T> DynamicType.Builder<T> intercept(String advice, DynamicType.Builder<T> builder,
+                                                ElementMatcher<? super MethodDescription> methods) {
+        switch (advice) {
+            case BASIC:
+                return builder.method(methods).intercept(Advice.to(MethodInstrumentation.MethodAdvice.class));
+            case ADVANCED:
+                return AdvancedMethodInstrumentation.instrument(builder, methods);
+            case STACK_AWARE:
+                return StackAwareInstrumentation.instrument(builder, methods);
+            default:
+                throw new IllegalArgumentException("Unknown advice: " + advice);
+        }
+    }
+
+    /**
+     * Weave the advice into the existing methods, as the agent does for retransformation
+     */
+    static <T> DynamicType.Builder<T> visit(String advice, DynamicType.Builder<T> builder,
+                                            ElementMatcher.Junction<MethodDescription> methods) {
+        switch (advice) {
+            case BASIC:
+                return builder.visit(Advice.to(MethodInstrumentation.MethodAdvice.class).on(methods));
+            case ADVANCED:
+                return AdvancedMethodInstrumentation.visit(builder, methods);
+            case STACK_AWARE:
+                return StackAwareInstrumentation.visit(builder, methods);
+            default:
+                throw new IllegalArgumentException("Unknown advice: " + advice);
+        }
+    }
+
+    /**
+     * Stream discarding everything without taking the PrintStream lock, so that the targets'
+     * println calls neither dominate the measurement nor serialize the benchmark threads.
+     * Installed as System.out before the event sink is first used, so the sink writes here too.
+     */
+    static final PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    }) {
+        @Override
+        public void println(String x) {
+        }
+
+        @Override
+        public void println(Object x) {
+        }
+
+        @Override
+        public void println() {
+        }
+
+        @Override
+        public void print(String s) {
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+        }
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void flush() {
+        }
+    };
+}
@@ -0,0 +1,32 @@
+package com.example.bytebuddy.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark at 1, 4 and 16 threads with the GC profiler, whose gc.alloc.rate.norm
+ * column gives the bytes allocated per call.
+ * An optional argument restricts the run to benchmarks matching that regular expression.
+ */
+public class BenchmarkRunner {
+
+    private static final int[] THREADS = {1, 4, 16};
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "com.example.bytebuddy.benchmarks.*";
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .result("jmh-result-" + threads + "-threads.json")
+                    .resultFormat(ResultFormatType.JSON)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
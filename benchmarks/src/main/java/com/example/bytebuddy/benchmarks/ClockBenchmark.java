@@ -0,0 +1,87 @@
+package com.example.bytebuddy.benchmarks;
+
+import com.example.bytebuddy.clock.TimeSource;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.matcher.ElementMatchers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading the time in each {@link TimeSource} mode, alone and in the advanced advice around a root call
+ * making two nested calls that do next to nothing, where the clock reads are a large part of the overhead
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dinstrumentation.sink.policy=DROP")
+public class ClockBenchmark {
+
+    public static class Tiny {
+        public int outer(int x) {
+            return inner(x) + inner(x + 1);
+        }
+
+        public int inner(int x) {
+            return x * 31;
+        }
+    }
+
+    @Param({"precise", "coarse", "root"})
+    public String clock;
+
+    private Tiny tiny;
+    private int input;
+    private PrintStream originalOut;
+
+    @Setup
+    public void setUp() throws Exception {
+        originalOut = System.out;
+        System.setOut(Advices.NULL_OUT);
+        TimeSource.setMode(TimeSource.Mode.valueOf(clock.toUpperCase()), 1000);
+        tiny = Advices.intercept(Advices.ADVANCED, new ByteBuddy().subclass(Tiny.class),
+                        ElementMatchers.isDeclaredBy(Tiny.class))
+                .make()
+                .load(ClockBenchmark.class.getClassLoader())
+                .getLoaded()
+                .getDeclaredConstructor()
+                .newInstance();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        return TimeSource.get().nanoTime();
+    }
+
+    @Benchmark
+    public long currentTimeMillis() {
+        return TimeSource.get().currentTimeMillis();
+    }
+
+    /**
+     * Three instrumented calls: a root and two nested leaves
+     */
+    @Benchmark
+    public int nestedCalls() {
+        return tiny.outer(input++);
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.bytebuddy.benchmarks;
+
+import com.example.bytebuddy.agent.ContextPropagation;
+import com.example.bytebuddy.context.RequestContext;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.instrument.Instrumentation;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of carrying the {@link RequestContext} across executors.
+ * "off" runs without the agent, "default" with the agent but no context attached, so tasks are not wrapped,
+ * and "attached" with a context attached on every benchmark thread, so every task is wrapped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextPropagationBenchmark {
+
+    public static final String OFF = "off";
+    public static final String DEFAULT = "default";
+    public static final String ATTACHED = "attached";
+
+    @Param({OFF, DEFAULT, ATTACHED})
+    public String mode;
+
+    private Instrumentation instrumentation;
+    private ResettableClassFileTransformer transformer;
+    private ExecutorService executor;
+
+    /**
+     * Attaches the context on each benchmark thread, after the agent has been installed
+     */
+    @State(Scope.Thread)
+    public static class Caller {
+
+        private final Runnable task = () -> { };
+
+        @Setup
+        public void setUp(ContextPropagationBenchmark benchmark) {
+            if (ATTACHED.equals(benchmark.mode)) {
+                RequestContext.attach(RequestContext.of("user-42", "checkout"));
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        if (!OFF.equals(mode)) {
+            // Before anything loads RequestContext, so that it is served from the bootstrap class loader
+            instrumentation = ByteBuddyAgent.install();
+            transformer = ContextPropagation.install(instrumentation);
+        }
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+        if (transformer != null) {
+            transformer.reset(instrumentation, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+        }
+    }
+
+    /**
+     * Capture and restore alone, on the calling thread
+     */
+    @Benchmark
+    public void wrapAndRun(Caller caller) {
+        RequestContext.wrap(caller.task).run();
+    }
+
+    /**
+     * Hand a task to a pool thread and wait for it
+     */
+    @Benchmark
+    public Object executeAndAwait() {
+        CompletableFuture<Object> done = new CompletableFuture<>();
+        executor.execute(() -> done.complete(RequestContext.current()));
+        return done.join();
+    }
+
+    /**
+     * Two async stages, each one wrapped when a context is attached
+     */
+    @Benchmark
+    public Object completableFutureChain() {
+        return CompletableFuture.supplyAsync(RequestContext::current, executor)
+                .thenApplyAsync(context -> context.flow, executor)
+                .join();
+    }
+}
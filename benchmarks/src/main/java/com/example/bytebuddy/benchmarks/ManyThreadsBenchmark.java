@@ -0,0 +1,102 @@
+package com.example.bytebuddy.benchmarks;
+
+import com.example.bytebuddy.NestedTargetClass;
+import com.example.bytebuddy.StackAwareInstrumentation;
+import com.example.bytebuddy.storage.ContextStorage;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.matcher.ElementMatchers;
+
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory and throughput of the stack-aware advice with very many threads. Each thread makes one instrumented
+ * {@link NestedTargetClass#processData} call and then stays alive until all threads have made theirs, like
+ * virtual threads blocked on I/O between requests.
+ *
+ * Runs on virtual threads when the JDK has them (21+) and on platform threads otherwise, of which far fewer
+ * can be alive at once. The storage mode is fixed when the advice classes initialize, so compare the modes in
+ * separate runs:
+ * <pre>
+ * java -Dinstrumentation.storage=thread -cp benchmarks.jar com.example.bytebuddy.benchmarks.ManyThreadsBenchmark 1000000
+ * java -Dinstrumentation.storage=pooled -cp benchmarks.jar com.example.bytebuddy.benchmarks.ManyThreadsBenchmark 1000000
+ * </pre>
+ */
+public class ManyThreadsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : virtualThreads != null ? 1_000_000 : 10_000;
+        // Tasks never wait for an idle thread, since every thread stays busy until the end
+        ExecutorService executor = virtualThreads != null ? virtualThreads : Executors.newCachedThreadPool();
+
+        if (System.getProperty("instrumentation.sink.policy") == null) {
+            System.setProperty("instrumentation.sink.policy", "DROP");
+        }
+        PrintStream out = System.out;
+        System.setOut(Advices.NULL_OUT);
+        NestedTargetClass target = (NestedTargetClass) Advices.intercept(Advices.STACK_AWARE,
+                        new ByteBuddy().subclass(NestedTargetClass.class), ElementMatchers.isDeclaredBy(NestedTargetClass.class))
+                .make()
+                .load(ManyThreadsBenchmark.class.getClassLoader())
+                .getLoaded()
+                .getDeclaredConstructor()
+                .newInstance();
+        // Warm up the advice and the target on one thread
+        for (int i = 0; i < 10_000; i++) {
+            target.processData("data123");
+        }
+
+        CountDownLatch called = new CountDownLatch(threads);
+        CountDownLatch done = new CountDownLatch(1);
+        long heapBefore = usedHeapAfterGc();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                target.processData("data123");
+                called.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        called.await();
+        long elapsed = System.nanoTime() - start;
+        long heapAlive = usedHeapAfterGc();
+        done.countDown();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        System.setOut(out);
+
+        out.printf("%s threads: %d | storage: %s | Calls/s: %d | Heap per live thread: %d B | Call stacks created: %d%n",
+                virtualThreads != null ? "Virtual" : "Platform", threads, ContextStorage.getMode(),
+                threads * TimeUnit.SECONDS.toNanos(1) / elapsed,
+                (heapAlive - heapBefore) / threads,
+                StackAwareInstrumentation.callStack.getCreatedCount());
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() where available, looked up reflectively since the project targets Java 8
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
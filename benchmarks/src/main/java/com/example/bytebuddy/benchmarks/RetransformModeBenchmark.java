@@ -0,0 +1,106 @@
+package com.example.bytebuddy.benchmarks;
+
+import com.example.bytebuddy.NestedTargetClass;
+import com.example.bytebuddy.SampleTargetClass;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.matcher.ElementMatchers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintStream;
+import java.lang.instrument.Instrumentation;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of each advice flavour woven into the target classes themselves by an
+ * {@link AgentBuilder} with retransformation, as in JavaAgentDemo and the agent's premain.
+ * "none" calls the untransformed target classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dinstrumentation.sink.policy=DROP")
+public class RetransformModeBenchmark {
+
+    @Param({Advices.NONE, Advices.BASIC, Advices.ADVANCED, Advices.STACK_AWARE})
+    public String advice;
+
+    private SampleTargetClass sample;
+    private NestedTargetClass nested;
+    private PrintStream originalOut;
+    private Instrumentation instrumentation;
+    private ResettableClassFileTransformer transformer;
+
+    @Setup
+    public void setUp() {
+        originalOut = System.out;
+        System.setOut(Advices.NULL_OUT);
+        if (!Advices.NONE.equals(advice)) {
+            instrumentation = ByteBuddyAgent.install();
+            transformer = new AgentBuilder.Default()
+                    .disableClassFormatChanges()
+                    .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                    .type(ElementMatchers.named(SampleTargetClass.class.getName())
+                            .or(ElementMatchers.named(NestedTargetClass.class.getName())))
+                    .transform((builder, typeDescription, classLoader, module, protectionDomain) ->
+                            Advices.visit(advice, builder, ElementMatchers.isMethod()))
+                    .installOn(instrumentation);
+        }
+        sample = new SampleTargetClass();
+        nested = new NestedTargetClass();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (transformer != null) {
+            transformer.reset(instrumentation, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+        }
+        System.setOut(originalOut);
+    }
+
+    /**
+     * Leaf call with primitive arguments and return value
+     */
+    @Benchmark
+    public int calculateSum() {
+        return sample.calculateSum(1, 2);
+    }
+
+    /**
+     * Leaf call with an object argument and return value
+     */
+    @Benchmark
+    public String simpleMethod() {
+        return sample.simpleMethod("input");
+    }
+
+    /**
+     * Static methods can only be instrumented in this mode
+     */
+    @Benchmark
+    public String staticMethod() {
+        return SampleTargetClass.staticMethod("input");
+    }
+
+    /**
+     * Four nested instrumented calls: processData, validateData, performDeepValidation, checkDataFormat
+     */
+    @Benchmark
+    public void processData() {
+        nested.processData("data123");
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.bytebuddy.benchmarks;
+
+import com.example.bytebuddy.NestedTargetClass;
+import com.example.bytebuddy.SampleTargetClass;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.matcher.ElementMatchers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of each advice flavour on ByteBuddy subclasses of the targets, as built in StackAwareDemo.
+ * "none" calls the plain target classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dinstrumentation.sink.policy=DROP")
+public class SubclassModeBenchmark {
+
+    @Param({Advices.NONE, Advices.BASIC, Advices.ADVANCED, Advices.STACK_AWARE})
+    public String advice;
+
+    private SampleTargetClass sample;
+    private NestedTargetClass nested;
+    private PrintStream originalOut;
+
+    @Setup
+    public void setUp() throws Exception {
+        originalOut = System.out;
+        System.setOut(Advices.NULL_OUT);
+        if (Advices.NONE.equals(advice)) {
+            sample = new SampleTargetClass();
+            nested = new NestedTargetClass();
+            return;
+        }
+        sample = Advices.intercept(advice, new ByteBuddy().subclass(SampleTargetClass.class),
+                        ElementMatchers.isDeclaredBy(SampleTargetClass.class))
+                .make()
+                .load(SubclassModeBenchmark.class.getClassLoader())
+                .getLoaded()
+                .getDeclaredConstructor()
+                .newInstance();
+        nested = Advices.intercept(advice, new ByteBuddy().subclass(NestedTargetClass.class),
+                        ElementMatchers.isDeclaredBy(NestedTargetClass.class))
+                .make()
+                .load(SubclassModeBenchmark.class.getClassLoader())
+                .getLoaded()
+                .getDeclaredConstructor()
+                .newInstance();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    /**
+     * Leaf call with primitive arguments and return value
+     */
+    @Benchmark
+    public int calculateSum() {
+        return sample.calculateSum(1, 2);
+    }
+
+    /**
+     * Leaf call with an object argument and return value
+     */
+    @Benchmark
+    public String simpleMethod() {
+        return sample.simpleMethod("input");
+    }
+
+    /**
+     * Four nested instrumented calls: processData, validateData, performDeepValidation, checkDataFormat
+     */
+    @Benchmark
+    public void processData() {
+        nested.processData("data123");
+    }
+}
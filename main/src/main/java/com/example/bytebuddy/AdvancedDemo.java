@@ -1,7 +1,6 @@
 package com.example.bytebuddy;
 
 import net.bytebuddy.ByteBuddy;
-import net.bytebuddy.asm.Advice;
 import net.bytebuddy.matcher.ElementMatchers;
 
 /**
@@ -13,10 +12,8 @@ public class AdvancedDemo {
         System.out.println("=== Advanced ByteBuddy Instrumentation Demo ===\n");
 
         // Create instrumented class using advanced advice
-        Class<?> instrumentedClass = new ByteBuddy()
-                .subclass(SampleTargetClass.class)
-                .method(ElementMatchers.any())
-                .intercept(Advice.to(AdvancedMethodInstrumentation.class))
+        Class<?> instrumentedClass = AdvancedMethodInstrumentation.instrument(
+                        new ByteBuddy().subclass(SampleTargetClass.class), ElementMatchers.any())
                 .make()
                 .load(AdvancedDemo.class.getClassLoader())
                 .getLoaded();
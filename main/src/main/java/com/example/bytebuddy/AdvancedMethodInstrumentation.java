@@ -1,102 +1,437 @@
 package com.example.bytebuddy;
 
+import com.example.bytebuddy.capture.CapturePolicy;
+import com.example.bytebuddy.capture.CapturedArguments;
+import com.example.bytebuddy.capture.ValueFormatter;
+import com.example.bytebuddy.clock.TimeSource;
+import com.example.bytebuddy.registry.MethodId;
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.sampling.Sampler;
+import com.example.bytebuddy.sink.EventSink;
+import com.example.bytebuddy.sink.TraceEvent;
+import com.example.bytebuddy.stats.MethodStats;
+import com.example.bytebuddy.stats.MethodStatsStore;
 import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.implementation.bytecode.assign.Assigner;
-
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.ElementMatchers;
 
 /**
- * Advanced ByteBuddy instrumentation example with timing and custom logic
+ * Advanced ByteBuddy instrumentation example with timing and custom logic.
+ * Use {@link #instrument} or {@link MethodRegistry#advice} to apply it, so that the method ID gets bound.
  */
 public class AdvancedMethodInstrumentation {
 
-    // Thread-local storage for method entry timestamps
-    public static final ThreadLocal<Long> methodStartTime = new ThreadLocal<>();
-    
-    // Statistics tracking
-    public static final ConcurrentHashMap<String, AtomicLong> methodCallCount = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<String, AtomicLong> methodTotalTime = new ConcurrentHashMap<>();
+    // Statistics tracking, indexed by method ID
+    public static final MethodStatsStore statistics = MethodStatsStore.create("advanced");
+
+    static {
+        // A released ID may be handed to another method, which starts without statistics
+        MethodRegistry.addReleaseListener(statistics::remove);
+    }
+
+    // Start time handed to the exit advice for calls outside a sampled tree
+    static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    /**
+     * Apply the advice to the matched methods, capturing arguments only where
+     * {@link MethodRegistry#argumentCapture()} asks for it and keeping only statistics where
+     * {@link MethodRegistry#timingOnly()} does
+     */
+    public static <T> DynamicType.Builder<T> instrument(DynamicType.Builder<T> builder,
+                                                        ElementMatcher<? super MethodDescription> methods) {
+        return instrument(builder, methods, null);
+    }
+
+    /**
+     * Same as {@link #instrument(DynamicType.Builder, ElementMatcher)}, with method IDs of the given loader
+     */
+    public static <T> DynamicType.Builder<T> instrument(DynamicType.Builder<T> builder,
+                                                        ElementMatcher<? super MethodDescription> methods,
+                                                        ClassLoader classLoader) {
+        ElementMatcher.Junction<MethodDescription> capture = MethodRegistry.argumentCapture();
+        return MethodRegistry.interceptByReturnType(builder, methods, classLoader, AdvancedMethodInstrumentation.class,
+                        ReturnsInt.class, ReturnsLong.class, ReturnsDouble.class, ReturnsBoolean.class)
+                .method(MethodRegistry.timingOnly().and(ElementMatchers.not(capture)).and(methods))
+                .intercept(MethodRegistry.advice(TimingOnly.class, classLoader))
+                .method(capture.and(methods))
+                .intercept(MethodRegistry.advice(WithArguments.class, classLoader));
+    }
+
+    /**
+     * Same as {@link #instrument}, but weaving the advice into the existing method bodies instead of
+     * overriding them, as needed by an agent that retransforms already loaded classes
+     */
+    public static <T> DynamicType.Builder<T> visit(DynamicType.Builder<T> builder,
+                                                   ElementMatcher<? super MethodDescription> methods) {
+        return visit(builder, methods, null);
+    }
+
+    /**
+     * Same as {@link #visit(DynamicType.Builder, ElementMatcher)}, with method IDs of the loader defining the class
+     */
+    public static <T> DynamicType.Builder<T> visit(DynamicType.Builder<T> builder,
+                                                   ElementMatcher<? super MethodDescription> methods,
+                                                   ClassLoader classLoader) {
+        ElementMatcher.Junction<MethodDescription> capture = MethodRegistry.argumentCapture();
+        ElementMatcher.Junction<MethodDescription> timing = MethodRegistry.timingOnly().and(ElementMatchers.not(capture));
+        return MethodRegistry.visitByReturnType(builder,
+                        ElementMatchers.not(capture).and(ElementMatchers.not(timing)).and(methods), classLoader,
+                        AdvancedMethodInstrumentation.class,
+                        ReturnsInt.class, ReturnsLong.class, ReturnsDouble.class, ReturnsBoolean.class)
+                .visit(MethodRegistry.advice(TimingOnly.class, classLoader).on(timing.and(methods)))
+                .visit(MethodRegistry.advice(WithArguments.class, classLoader).on(capture.and(methods)));
+    }
 
     /**
-     * Advanced method entry advice with timing and statistics
+     * Advanced method entry advice with timing and statistics.
+     * The start time is handed to the exit advice through {@link Advice.Enter}.
      */
     @Advice.OnMethodEnter
-    public static void onMethodEnter(
-            @Advice.Origin String method,
-            @Advice.Origin Class<?> clazz,
-            @Advice.AllArguments Object[] arguments) {
-        
+    public static long onMethodEnter(@MethodId int methodId) {
+        return enter(methodId, null);
+    }
+
+    /**
+     * Advanced method exit advice with timing and statistics.
+     * Also runs when the method throws, so that every call gets counted.
+     * Only applied to methods returning a reference or void, see {@link ReturnsInt} for primitives.
+     */
+    @Advice.OnMethodExit(onThrowable = Throwable.class)
+    public static void onMethodExit(
+            @MethodId int methodId,
+            @Advice.Enter long startTime,
+            @Advice.Return(typing = Assigner.Typing.DYNAMIC) Object returnValue,
+            @Advice.Thrown Throwable thrown) {
+        exit(methodId, startTime, returnValue, thrown);
+    }
+
+    /**
+     * Variant of the advice for methods returning int, short or byte, handing the value on unboxed,
+     * so that the call allocates nothing unless the value gets reported
+     */
+    public static class ReturnsInt {
+
+        @Advice.OnMethodEnter
+        public static long onMethodEnter(@MethodId int methodId) {
+            return enter(methodId, null);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Enter long startTime,
+                @Advice.Return int returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, startTime, TraceEvent.INT, returnValue, thrown);
+        }
+    }
+
+    /**
+     * Variant of the advice for methods returning long
+     */
+    public static class ReturnsLong {
+
+        @Advice.OnMethodEnter
+        public static long onMethodEnter(@MethodId int methodId) {
+            return enter(methodId, null);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Enter long startTime,
+                @Advice.Return long returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, startTime, TraceEvent.LONG, returnValue, thrown);
+        }
+    }
+
+    /**
+     * Variant of the advice for methods returning double
+     */
+    public static class ReturnsDouble {
+
+        @Advice.OnMethodEnter
+        public static long onMethodEnter(@MethodId int methodId) {
+            return enter(methodId, null);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Enter long startTime,
+                @Advice.Return double returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, startTime, TraceEvent.DOUBLE, Double.doubleToRawLongBits(returnValue), thrown);
+        }
+    }
+
+    /**
+     * Variant of the advice for methods returning boolean
+     */
+    public static class ReturnsBoolean {
+
+        @Advice.OnMethodEnter
+        public static long onMethodEnter(@MethodId int methodId) {
+            return enter(methodId, null);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Enter long startTime,
+                @Advice.Return boolean returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, startTime, TraceEvent.BOOLEAN, returnValue ? 1 : 0, thrown);
+        }
+    }
+
+    /**
+     * Variant of the advice that also captures the method arguments.
+     * The argument array is only referenced from {@link CapturedArguments} until the exit,
+     * where {@link CapturePolicy} decides whether it gets reported.
+     */
+    public static class WithArguments {
+
+        @Advice.OnMethodEnter
+        public static long onMethodEnter(
+                @MethodId int methodId,
+                @Advice.AllArguments Object[] arguments) {
+            CapturedArguments.push(arguments);
+            return enter(methodId, arguments);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Enter long startTime,
+                @Advice.Return(typing = Assigner.Typing.DYNAMIC) Object returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, startTime, returnValue, thrown, CapturedArguments.pop());
+        }
+    }
+
+    /**
+     * Variant of the advice that only keeps statistics, without entry and exit events,
+     * so neither the return value nor the arguments are needed
+     */
+    public static class TimingOnly {
+
+        @Advice.OnMethodEnter
+        public static long onMethodEnter(@MethodId int methodId) {
+            return enterQuietly(methodId);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Enter long startTime,
+                @Advice.Thrown Throwable thrown) {
+            exitQuietly(methodId, startTime, thrown);
+        }
+    }
+
+    /**
+     * Record a method entry, returning its start time, {@link #NOT_SAMPLED} when the installed {@link Sampler}
+     * skips the current call tree, or {@link TimeSource#NOT_TIMED} when the {@link TimeSource} only times roots
+     */
+    public static long enter(int methodId, Object[] arguments) {
+        return enter(methodId, arguments, true);
+    }
+
+    /**
+     * Same as {@link #enter}, without an entry event
+     */
+    public static long enterQuietly(int methodId) {
+        return enter(methodId, null, false);
+    }
+
+    private static long enter(int methodId, Object[] arguments, boolean publish) {
+        TimeSource clock = TimeSource.get();
+        boolean timed = clock.enterCall();
+        Sampler sampler = Sampler.current();
+        if (sampler != null && !Sampler.scope().enter(sampler, methodId)) {
+            return NOT_SAMPLED;
+        }
+
         // Record start time
-        long startTime = System.nanoTime();
-        methodStartTime.set(startTime);
-        
-        // Update call count (simplified)
-        String methodKey = clazz.getSimpleName() + "." + method;
-        AtomicLong count = methodCallCount.get(methodKey);
-        if (count == null) {
-            count = new AtomicLong(0);
-            methodCallCount.put(methodKey, count);
-        }
-        count.incrementAndGet();
+        long startTime = timed ? clock.nanoTime() : TimeSource.NOT_TIMED;
+        if (!publish) {
+            return startTime;
+        }
         
+        // Without a threshold arguments are reported on entry, otherwise only with a slow or failing exit.
+        // Copied before claiming a slot: copying may run instrumented code, which must not wait for this slot.
+        Object[] captured = CapturePolicy.isEager()
+                ? ValueFormatter.captureArguments(arguments, CapturePolicy.limitsFor(methodId)) : null;
         // Log method entry with thread info
-        System.out.println("🔵 ENTRY | " + 
-                Thread.currentThread().getName() + " | " +
-                clazz.getSimpleName() + "." + method + 
-                " | Args: " + formatArguments(arguments));
+        EventSink sink = EventSink.get();
+        TraceEvent event = sink.claim();
+        if (event != null) {
+            event.formatter = FORMATTER;
+            event.kind = TraceEvent.ENTRY;
+            event.methodId = methodId;
+            event.thread = Thread.currentThread();
+            event.value = captured;
+            sink.publish(event);
+        }
+        return startTime;
     }
 
-            /**
-         * Advanced method exit advice with timing and statistics
-         */
-        @Advice.OnMethodExit
-        public static void onMethodExit(
-                @Advice.Origin String method,
-                @Advice.Origin Class<?> clazz,
-                @Advice.Return(typing = Assigner.Typing.DYNAMIC) Object returnValue) {
-        
+    /**
+     * Record a method exit
+     */
+    public static void exit(int methodId, long startTime, Object returnValue, Throwable thrown) {
+        exit(methodId, startTime, returnValue, TraceEvent.REFERENCE, 0, thrown, null, true);
+    }
+
+    /**
+     * Record a method exit along with the arguments kept since its entry
+     */
+    public static void exit(int methodId, long startTime, Object returnValue, Throwable thrown, Object[] arguments) {
+        exit(methodId, startTime, returnValue, TraceEvent.REFERENCE, 0, thrown, arguments, true);
+    }
+
+    /**
+     * Record the exit of a method returning a primitive, given as {@link TraceEvent#primitiveValue} of the type
+     */
+    public static void exit(int methodId, long startTime, byte valueType, long primitiveValue, Throwable thrown) {
+        exit(methodId, startTime, null, valueType, primitiveValue, thrown, null, true);
+    }
+
+    /**
+     * Record a method exit in the statistics only, without an exit event
+     */
+    public static void exitQuietly(int methodId, long startTime, Throwable thrown) {
+        exit(methodId, startTime, null, TraceEvent.REFERENCE, 0, thrown, null, false);
+    }
+
+    private static void exit(int methodId, long startTime, Object returnValue, byte valueType, long primitiveValue,
+                             Throwable thrown, Object[] arguments, boolean publish) {
+        TimeSource clock = TimeSource.get();
+        clock.exitCall();
+        Sampler sampler = Sampler.current();
+        if (sampler != null) {
+            Sampler.Scope scope = Sampler.scope();
+            scope.exit();
+            boolean rootExit = scope.isRootExit();
+            long rootStart = scope.getRootStart();
+            if (rootExit) {
+                Sampler.releaseScope();
+            }
+            if (startTime == NOT_SAMPLED) {
+                // Only counted, unless it is an unsampled root that turned out to be slow
+                statistics.recordUnsampled(methodId);
+                if (rootExit && publish && sampler.keepsSlowCalls()) {
+                    long duration = clock.nanoTime() - rootStart;
+                    if (duration >= sampler.getSlowThresholdNanos()) {
+                        publishExit(methodId, duration, returnValue, valueType, primitiveValue, thrown, arguments);
+                    }
+                }
+                return;
+            }
+        }
+
+        if (startTime == TimeSource.NOT_TIMED) {
+            // Nested call when only roots are timed: counted, and reported without a duration
+            statistics.recordUnsampled(methodId);
+            if (publish) {
+                publishExit(methodId, -1, returnValue, valueType, primitiveValue, thrown, arguments);
+            }
+            return;
+        }
+
         // Calculate execution time
-        Long startTime = methodStartTime.get();
-        long endTime = System.nanoTime();
-        long duration = startTime != null ? endTime - startTime : 0;
-        
-        // Update total time (simplified)
-        String methodKey = clazz.getSimpleName() + "." + method;
-        AtomicLong totalTime = methodTotalTime.get(methodKey);
-        if (totalTime == null) {
-            totalTime = new AtomicLong(0);
-            methodTotalTime.put(methodKey, totalTime);
-        }
-        totalTime.addAndGet(duration);
+        long duration = clock.nanoTime() - startTime;
         
-        // Clear thread local
-        methodStartTime.remove();
-        
-        // Format return value
-        String returnInfo = "✅ Return: " + formatReturnValue(returnValue);
+        // Update count and total time
+        statistics.record(methodId, duration);
         
+        if (publish) {
+            publishExit(methodId, duration, returnValue, valueType, primitiveValue, thrown, arguments);
+        }
+    }
+
+    private static void publishExit(int methodId, long duration, Object returnValue, byte valueType,
+                                    long primitiveValue, Throwable thrown, Object[] arguments) {
+        // Values are copied here, as the application may change them before the sink thread formats them,
+        // and before claiming a slot, as copying may run instrumented code
+        boolean report = CapturePolicy.shouldReport(duration, thrown);
+        Object value = null;
+        Object[] capturedArguments = null;
+        if (report) {
+            CapturePolicy.Limits limits = CapturePolicy.limitsFor(methodId);
+            value = ValueFormatter.capture(returnValue, limits);
+            capturedArguments = CapturePolicy.isEager() ? null : ValueFormatter.captureArguments(arguments, limits);
+        }
         // Log method exit with timing
-        System.out.println("🔴 EXIT  | " + 
-                Thread.currentThread().getName() + " | " +
-                clazz.getSimpleName() + "." + method + 
-                " | " + returnInfo + 
-                " | Duration: " + formatDuration(duration));
+        EventSink sink = EventSink.get();
+        TraceEvent event = sink.claim();
+        if (event != null) {
+            event.formatter = FORMATTER;
+            event.kind = TraceEvent.EXIT;
+            event.methodId = methodId;
+            event.thread = Thread.currentThread();
+            if (report) {
+                event.value = value;
+                event.valueType = valueType;
+                event.primitiveValue = primitiveValue;
+                event.valueCaptured = true;
+                event.arguments = capturedArguments;
+            }
+            event.thrown = thrown;
+            event.durationNanos = duration;
+            sink.publish(event);
+        }
     }
 
+    /**
+     * Formats entry and exit events in the sink thread
+     */
+    public static final EventSink.Formatter FORMATTER = (event, out) -> {
+        CapturePolicy.Limits limits = CapturePolicy.limitsFor(event.methodId);
+        if (event.kind == TraceEvent.ENTRY) {
+            out.append("🔵 ENTRY | ")
+                    .append(event.thread.getName()).append(" | ")
+                    .append(MethodRegistry.displayName(event.methodId));
+            if (event.value != null) {
+                out.append(" | Args: ");
+                ValueFormatter.appendArguments(out, (Object[]) event.value, limits);
+            }
+        } else {
+            out.append("🔴 EXIT  | ")
+                    .append(event.thread.getName()).append(" | ")
+                    .append(MethodRegistry.displayName(event.methodId))
+                    .append(" | ");
+            // Format return value or exception
+            if (event.thrown != null) {
+                out.append("❌ Exception: ").append(event.thrown.getClass().getSimpleName());
+            } else if (event.valueCaptured) {
+                out.append("✅ Return: ");
+                ValueFormatter.appendValue(out, event.returnValue(), limits);
+            } else {
+                out.append("✅ Return");
+            }
+            if (event.durationNanos >= 0) {
+                out.append(" | Duration: ");
+                ValueFormatter.appendDuration(out, event.durationNanos);
+            }
+            if (event.arguments != null) {
+                out.append(" | Args: ");
+                ValueFormatter.appendArguments(out, event.arguments, limits);
+            }
+        }
+    };
+
     /**
      * Utility method to format method arguments
      */
     public static String formatArguments(Object[] arguments) {
-        if (arguments == null || arguments.length == 0) {
-            return "none";
-        }
-        
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < arguments.length; i++) {
-            if (i > 0) sb.append(", ");
-            sb.append(formatValue(arguments[i]));
-        }
+        ValueFormatter.appendArguments(sb, arguments, CapturePolicy.defaultLimits());
         return sb.toString();
     }
 
@@ -104,62 +439,45 @@ public class AdvancedMethodInstrumentation {
      * Utility method to format return value
      */
     public static String formatReturnValue(Object value) {
-        if (value == null) {
-            return "null";
-        }
         return formatValue(value);
     }
 
     /**
-     * Utility method to format any value
+     * Utility method to format any value, within the default capture limits
      */
     public static String formatValue(Object value) {
-        if (value == null) {
-            return "null";
-        }
-        
-        if (value instanceof String) {
-            return "\"" + value + "\"";
-        }
-        
-        if (value instanceof Number || value instanceof Boolean) {
-            return value.toString();
-        }
-        
-        // For complex objects, show class name and hash code
-        return value.getClass().getSimpleName() + "@" + Integer.toHexString(value.hashCode());
+        StringBuilder sb = new StringBuilder();
+        ValueFormatter.appendValue(sb, value, CapturePolicy.defaultLimits());
+        return sb.toString();
     }
 
     /**
      * Utility method to format duration in nanoseconds
      */
     public static String formatDuration(long nanoseconds) {
-        if (nanoseconds < 1000) {
-            return nanoseconds + " ns";
-        } else if (nanoseconds < 1_000_000) {
-            return String.format("%.2f μs", nanoseconds / 1000.0);
-        } else if (nanoseconds < 1_000_000_000) {
-            return String.format("%.2f ms", nanoseconds / 1_000_000.0);
-        } else {
-            return String.format("%.2f s", nanoseconds / 1_000_000_000.0);
-        }
+        StringBuilder sb = new StringBuilder(16);
+        ValueFormatter.appendDuration(sb, nanoseconds);
+        return sb.toString();
     }
 
     /**
      * Print method statistics
      */
     public static void printStatistics() {
+        // Let queued entry/exit lines come out first
+        EventSink.get().flush();
         System.out.println("\n📊 METHOD STATISTICS:");
         System.out.println("=====================");
         
-        for (java.util.Map.Entry<String, AtomicLong> entry : methodCallCount.entrySet()) {
-            String method = entry.getKey();
-            AtomicLong count = entry.getValue();
-            AtomicLong totalTime = methodTotalTime.get(method);
-            long avgTime = totalTime != null ? totalTime.get() / count.get() : 0;
-            
-            System.out.printf("%s | Calls: %d | Avg Time: %s%n", 
-                    method, count.get(), formatDuration(avgTime));
+        for (MethodStats.Snapshot snapshot : statistics.snapshot()) {
+            System.out.printf("%s | Calls: %d | Avg Time: %s | p50: %s | p90: %s | p99: %s | p99.9: %s | Max: %s%n", 
+                    MethodRegistry.displayName(snapshot.methodId), snapshot.count,
+                    formatDuration(snapshot.getAverageNanos()),
+                    formatDuration(snapshot.percentile(50)),
+                    formatDuration(snapshot.percentile(90)),
+                    formatDuration(snapshot.percentile(99)),
+                    formatDuration(snapshot.percentile(99.9)),
+                    formatDuration(snapshot.maxNanos));
         }
     }
 }
@@ -1,8 +1,9 @@
 package com.example.bytebuddy;
 
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.sink.EventSink;
 import net.bytebuddy.agent.ByteBuddyAgent;
 import net.bytebuddy.agent.builder.AgentBuilder;
-import net.bytebuddy.asm.Advice;
 import net.bytebuddy.matcher.ElementMatchers;
 
 import java.io.ByteArrayOutputStream;
@@ -100,8 +101,7 @@ public class JavaAgentCustomClassLoaderDemo {
                 .transform((builder, typeDescription, classLoader, module, protectionDomain) -> {
                     System.out.println("🔄 Transforming class: " + typeDescription.getName() + 
                                      " in class loader: " + classLoader);
-                    return builder.method(ElementMatchers.any())
-                            .intercept(Advice.to(AdvancedMethodInstrumentation.class));
+                    return AdvancedMethodInstrumentation.instrument(builder, ElementMatchers.any(), classLoader);
                 })
                 .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
         
@@ -149,6 +149,19 @@ public class JavaAgentCustomClassLoaderDemo {
         testMethodsViaReflection(customObj2, customClass2, "Custom ClassLoader #2");
         System.out.println();
 
+        // Test 4: Load the class in a class loader that is dropped again, as on redeployment
+        System.out.println("=== Test 4: Collecting a Custom Class Loader ===");
+        runInTemporaryLoader(urls);
+        EventSink.get().flush();
+        int released = 0;
+        for (int i = 0; i < 20 && released == 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+            released = MethodRegistry.expungeCollectedLoaders();
+        }
+        System.out.println("♻️ Released method IDs of collected class loaders: " + released);
+        System.out.println();
+
         // Print final statistics
         System.out.println("=== Final Statistics ===");
         AdvancedMethodInstrumentation.printStatistics();
@@ -156,6 +169,20 @@ public class JavaAgentCustomClassLoaderDemo {
         System.out.println("\n=== Demo Complete ===");
         System.out.println("Note: Classes loaded in different class loaders are separate instances,");
         System.out.println("but AgentBuilder successfully instruments all of them!");
+        System.out.println("Each loader has its own statistics unless -Dinstrumentation.registry.aggregateLoaders=true,");
+        System.out.println("and those of a collected loader are dropped.");
+    }
+
+    /**
+     * Instrument and call the class in a class loader that is unreachable once this method returns
+     */
+    private static void runInTemporaryLoader(URL[] urls) throws Exception {
+        CustomClassLoader temporaryLoader = new CustomClassLoader("CustomLoader-3", urls,
+                Thread.currentThread().getContextClassLoader());
+        Class<?> temporaryClass = temporaryLoader.loadClass("com.example.bytebuddy.SampleTargetClass");
+        testMethodsViaReflection(temporaryClass.getDeclaredConstructor().newInstance(), temporaryClass,
+                "Custom ClassLoader #3");
+        temporaryLoader.close();
     }
 
     /**
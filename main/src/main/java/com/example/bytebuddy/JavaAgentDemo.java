@@ -2,7 +2,6 @@ package com.example.bytebuddy;
 
 import net.bytebuddy.agent.ByteBuddyAgent;
 import net.bytebuddy.agent.builder.AgentBuilder;
-import net.bytebuddy.asm.Advice;
 import net.bytebuddy.matcher.ElementMatchers;
 
 import java.lang.instrument.Instrumentation;
@@ -25,8 +24,7 @@ public class JavaAgentDemo {
                 .type(ElementMatchers.named("com.example.bytebuddy.SampleTargetClass"))
                 .transform((builder, typeDescription, classLoader, module, protectionDomain) -> {
                     System.out.println("🔄 Transforming class: " + typeDescription.getName());
-                    return builder.method(ElementMatchers.any())
-                            .intercept(Advice.to(AdvancedMethodInstrumentation.class));
+                    return AdvancedMethodInstrumentation.instrument(builder, ElementMatchers.any());
                 })
                 .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
                 .installOn(instrumentation);
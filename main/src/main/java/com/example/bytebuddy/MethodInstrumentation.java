@@ -1,14 +1,46 @@
 package com.example.bytebuddy;
 
+import com.example.bytebuddy.agent.AgentOptions;
+import com.example.bytebuddy.agent.CachingTransformer;
+import com.example.bytebuddy.agent.ContextPropagation;
+import com.example.bytebuddy.agent.OverheadGovernor;
+import com.example.bytebuddy.agent.PacedRetransformation;
+import com.example.bytebuddy.agent.SharedTypePoolCache;
+import com.example.bytebuddy.agent.TransformCache;
+import com.example.bytebuddy.callpath.CallPathTree;
+import com.example.bytebuddy.capture.CapturePolicy;
+import com.example.bytebuddy.capture.ValueFormatter;
+import com.example.bytebuddy.clock.TimeSource;
+import com.example.bytebuddy.flight.FlightRecorder;
+import com.example.bytebuddy.metrics.PrometheusEndpoint;
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.rules.InstrumentationRules;
+import com.example.bytebuddy.rules.RulesWatcher;
+import com.example.bytebuddy.sampling.Sampler;
+import com.example.bytebuddy.sink.EventSink;
+import com.example.bytebuddy.sink.TraceEvent;
+import com.example.bytebuddy.stats.IntervalReport;
+import com.example.bytebuddy.stats.MethodStatsStore;
+import com.example.bytebuddy.stats.StatsArena;
+import com.example.bytebuddy.storage.ContextStorage;
+import com.example.bytebuddy.throwsite.ThrowSiteAdvice;
+import com.example.bytebuddy.throwsite.ThrowSiteTable;
 import net.bytebuddy.agent.builder.AgentBuilder;
 import net.bytebuddy.asm.Advice;
-import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.matcher.ElementMatcher;
 import net.bytebuddy.matcher.ElementMatchers;
 import net.bytebuddy.utility.JavaModule;
 
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ByteBuddy instrumentation example demonstrating method entry and exit instrumentation
@@ -16,22 +48,324 @@ import java.lang.instrument.Instrumentation;
  */
 public class MethodInstrumentation {
 
+    // The agent's own classes; instrumenting them would make the advice call itself
+    private static final String[] INFRASTRUCTURE_PREFIXES = {
+            "com.example.bytebuddy.agent.",
+            "com.example.bytebuddy.callpath.",
+            "com.example.bytebuddy.clock.",
+            "com.example.bytebuddy.capture.",
+            "com.example.bytebuddy.context.",
+            "com.example.bytebuddy.flight.",
+            "com.example.bytebuddy.metrics.",
+            "com.example.bytebuddy.registry.",
+            "com.example.bytebuddy.rules.",
+            "com.example.bytebuddy.sampling.",
+            "com.example.bytebuddy.sink.",
+            "com.example.bytebuddy.stacks.",
+            "com.example.bytebuddy.stats.",
+            "com.example.bytebuddy.storage.",
+            "com.example.bytebuddy.throwsite.",
+            "com.example.bytebuddy.trace.",
+            MethodInstrumentation.class.getName(),
+            AdvancedMethodInstrumentation.class.getName(),
+            StackAwareInstrumentation.class.getName()
+    };
+
+    /**
+     * Whether the agent may instrument the class with the given internal name, e.g. com/example/Foo
+     */
+    static boolean isCandidate(String internalName) {
+        return InstrumentationRules.current().matchesType(internalName.replace('/', '.'));
+    }
+
+    /**
+     * Trace every class of the examples, as when no rules file is given
+     */
+    static InstrumentationRules defaultRules() {
+        return new InstrumentationRules(Collections.singletonList(new InstrumentationRules.Rule(
+                true, "com.example.bytebuddy", true, null, InstrumentationRules.Mode.TRACE)), INFRASTRUCTURE_PREFIXES);
+    }
+
     /**
-     * Premain method for Java agent
+     * Premain method for Java agent.
+     * Options: advice=basic|advanced|stackaware (default basic), and for advanced and stackaware
+     * sampling=all|fixed|rate|slow with sampling.n, sampling.perSecond and sampling.slowMillis,
+     * e.g. {@code -javaagent:agent.jar=advice=stackaware,sampling=fixed,sampling.n=100,sampling.slowMillis=50}.
+     * governor=true additionally removes the advice from hot, trivial methods, see {@link OverheadGovernor}.
+     * cache.dir=path keeps transformed classes on disk across restarts, see {@link TransformCache}.
+     * storage=thread|pooled chooses how per-thread state is kept, see {@link ContextStorage}.
+     * clock=precise|coarse|root with clock.tickMicros chooses how the advice reads the time, see {@link TimeSource}.
+     * metrics.port=9464 serves the statistics for Prometheus with advice=advanced or stackaware, see {@link PrometheusEndpoint}.
+     * stats.intervalSeconds=60 also prints the latencies of each interval with advice=advanced or stackaware, see {@link IntervalReport}.
+     * exceptions=true counts exceptions by throw site with any advice, see {@link ThrowSiteTable}.
+     * registry.aggregateLoaders=true gives a method one set of statistics across class loaders, see {@link MethodRegistry}.
+     * context=true carries the request context over to executor threads, see {@link ContextPropagation}.
+     * callpaths.dir=path writes a folded-stack file and an HTML flame graph there at exit, with advice=stackaware.
+     * flight.thresholdMillis keeps only the call trees of slow root calls with advice=stackaware, see {@link FlightRecorder}.
+     * retransform.batchSize, retransform.maxPauseMillis and retransform.pausePercent pace the retransformation of
+     * classes already loaded, see {@link PacedRetransformation}.
+     * pool.cache=false parses the types needed for every transformation anew instead of caching them across classes
+     * and class loaders, see {@link SharedTypePoolCache}.
+     * rules.file=path picks the methods to instrument and how, reloading it on change unless rules.watch=false,
+     * see {@link InstrumentationRules}.
+     * stats=heap|direct|mapped keeps the statistics of advanced and stackaware off the heap with direct or mapped,
+     * mapped writing them to stats.dir as they are recorded, see {@link StatsArena}.
      */
     public static void premain(String agentArgs, Instrumentation inst) {
         System.out.println("ByteBuddy Method Instrumentation Agent Starting...");
+        install(agentArgs, inst, false);
+    }
+
+    /**
+     * Agentmain method, for attaching the agent to a running JVM, e.g. with the Attach API.
+     * Takes the same options as premain. Classes already loaded are retransformed in paced batches,
+     * on a background thread so that the attaching tool does not wait for them.
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) {
+        System.out.println("ByteBuddy Method Instrumentation Agent Attaching...");
+        Thread installer = new Thread(() -> install(agentArgs, inst, true), "instrumentation-attach");
+        installer.setDaemon(true);
+        installer.start();
+    }
+
+    private static void install(String agentArgs, Instrumentation inst, boolean attached) {
+        AgentOptions options = new AgentOptions(agentArgs);
+        // First, before the instrumentation classes load the request context
+        if (options.getBoolean("context", false)) {
+            ContextPropagation.install(inst);
+        }
+        // Also before the advice classes initialize and create their storage
+        ContextStorage.setMode(ContextStorage.Mode.valueOf(options.get("storage", "thread").toUpperCase()));
+        MethodRegistry.setAggregateLoaders(options.getBoolean("registry.aggregateLoaders", false));
+        String advice = options.get("advice", "basic");
+        // Already in use when chosen by the system properties
+        String stats = options.get("stats", null);
+        if (stats != null) {
+            MethodStatsStore.Backing backing = MethodStatsStore.Backing.valueOf(stats.toUpperCase());
+            if (backing != MethodStatsStore.Backing.HEAP && "basic".equals(advice)) {
+                throw new IllegalArgumentException("stats=" + stats + " needs advice=advanced or advice=stackaware");
+            }
+            MethodStatsStore.setBacking(backing, Paths.get(options.get("stats.dir", ".")),
+                    (int) options.getLong("stats.slotsPerChunk", 1024));
+        }
+        TimeSource.Mode clock = TimeSource.Mode.valueOf(options.get("clock", "precise").toUpperCase());
+        if (clock == TimeSource.Mode.ROOT && "basic".equals(advice)) {
+            throw new IllegalArgumentException("clock=root needs advice=advanced or advice=stackaware");
+        }
+        // Already in use when chosen by the system property
+        if (clock != TimeSource.get().getMode()) {
+            TimeSource.setMode(clock, options.getLong("clock.tickMicros", 1000));
+        }
+        Sampler sampler = Sampler.fromOptions(options);
+        if (sampler != null) {
+            if ("basic".equals(advice)) {
+                throw new IllegalArgumentException("Sampling needs advice=advanced or advice=stackaware");
+            }
+            Sampler.install(sampler);
+        }
+        String callPathDirectory = options.get("callpaths.dir", null);
+        if (callPathDirectory != null) {
+            if (!"stackaware".equals(advice)) {
+                throw new IllegalArgumentException("Call paths need advice=stackaware");
+            }
+            // Already enabled from the system property when the class was initialized
+            if (StackAwareInstrumentation.getCallPaths() == null) {
+                CallPathTree tree = new CallPathTree();
+                tree.exportOnShutdown(Paths.get(callPathDirectory));
+                StackAwareInstrumentation.enableCallPaths(tree);
+            }
+        }
+        if (options.get("flight.thresholdMillis", null) != null) {
+            if (!"stackaware".equals(advice)) {
+                throw new IllegalArgumentException("The flight recorder needs advice=stackaware");
+            }
+            // Already enabled from the system property when the class was initialized
+            if (StackAwareInstrumentation.getFlightRecorder() == null) {
+                StackAwareInstrumentation.enableFlightRecorder(FlightRecorder.fromOptions(options));
+            }
+        }
         
-        new AgentBuilder.Default()
-                .type(ElementMatchers.nameStartsWith("com.example.bytebuddy"))
-                .transform((builder, typeDescription, classLoader, module, protectionDomain) ->
-                        builder.method(ElementMatchers.any())
-                                .intercept(Advice.to(MethodAdvice.class)))
+        // The advice is woven into the existing method bodies, so classes can be retransformed later on
+        ElementMatcher.Junction<MethodDescription> methods = ElementMatchers.isMethod();
+        OverheadGovernor governor = null;
+        if (options.getBoolean("governor", false)) {
+            governor = OverheadGovernor.fromOptions(options, inst, statistics(advice, "The governor"));
+            methods = methods.and(ElementMatchers.not(governor.excludedMethods()));
+        }
+        RulesWatcher rulesWatcher = null;
+        String rulesFile = options.get("rules.file", null);
+        if (rulesFile != null) {
+            rulesWatcher = new RulesWatcher(Paths.get(rulesFile), inst, PacedRetransformation.fromOptions(options),
+                    "basic".equals(advice)
+                    ? EnumSet.of(InstrumentationRules.Mode.TRACE)
+                    : EnumSet.allOf(InstrumentationRules.Mode.class), INFRASTRUCTURE_PREFIXES);
+            try {
+                rulesWatcher.load();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read the rules file " + rulesFile, e);
+            }
+            methods = methods.and(InstrumentationRules.methods(InstrumentationRules.Mode.values()));
+            MethodRegistry.captureArgumentsFor(MethodRegistry.argumentCapture()
+                    .or(InstrumentationRules.methods(InstrumentationRules.Mode.ARGS)));
+            MethodRegistry.timeOnlyFor(InstrumentationRules.methods(InstrumentationRules.Mode.TIMING));
+            if (!options.getBoolean("rules.watch", true)) {
+                rulesWatcher = null;
+            } else if (options.get("cache.dir", null) != null) {
+                // The cache would hand back the classes as transformed under the previous rules
+                throw new IllegalArgumentException("rules.watch cannot be combined with cache.dir");
+            }
+        } else {
+            InstrumentationRules.install(defaultRules());
+        }
+        
+        AgentBuilder.TransformerDecorator decorator = AgentBuilder.TransformerDecorator.NoOp.INSTANCE;
+        String cacheDirectory = options.get("cache.dir", null);
+        if (cacheDirectory != null) {
+            decorator = cachingDecorator(options, Paths.get(cacheDirectory),
+                    TransformCache.settings(options, InstrumentationRules.current().getRules()));
+        }
+        
+        AgentBuilder agentBuilder = new AgentBuilder.Default().disableClassFormatChanges();
+        if (attached || governor != null || rulesWatcher != null) {
+            // Loaded classes are retransformed a few at a time, so that the application keeps running meanwhile
+            PacedRetransformation pacing = PacedRetransformation.fromOptions(options);
+            agentBuilder = agentBuilder.with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                    .with((AgentBuilder.RedefinitionStrategy.BatchAllocator) pacing)
+                    .with((AgentBuilder.RedefinitionStrategy.Listener) pacing);
+        }
+        if (options.getBoolean("pool.cache", true)) {
+            agentBuilder = withTypePoolCache(agentBuilder, SharedTypePoolCache.fromOptions(options));
+        }
+        agentBuilder
+                .with(decorator)
+                .type(InstrumentationRules.types())
+                .transform(options.getBoolean("exceptions", false)
+                        ? withThrowSites(options, transformer(advice, methods), methods)
+                        : transformer(advice, methods))
                 .installOn(inst);
+        
+        if (options.get("metrics.port", null) != null) {
+            startMetricsEndpoint(options, statistics(advice, "The metrics endpoint"));
+        }
+        if (rulesWatcher != null) {
+            try {
+                rulesWatcher.start();
+            } catch (IOException e) {
+                System.err.println("⚠️ Rules file not watched: " + e);
+            }
+        }
+        if (options.get("stats.intervalSeconds", null) != null) {
+            IntervalReport report = new IntervalReport(statistics(advice, "The interval report"),
+                    (int) options.getLong("stats.intervalLimit", 20));
+            report.start(TimeUnit.SECONDS.toMillis(options.getLong("stats.intervalSeconds", 60)));
+        }
+        if (governor != null) {
+            governor.start(TimeUnit.SECONDS.toMillis(options.getLong("governor.intervalSeconds", 10)));
+        }
     }
 
     /**
-     * Advice class containing the method entry and exit logic
+     * Also count exceptions by throw site, see {@link ThrowSiteTable}, and print the hottest sites at exit
+     */
+    private static AgentBuilder.Transformer withThrowSites(AgentOptions options, AgentBuilder.Transformer transformer,
+                                                           ElementMatcher.Junction<MethodDescription> methods) {
+        ThrowSiteTable throwSites = ThrowSiteTable.fromOptions(options);
+        ThrowSiteAdvice.install(throwSites);
+        throwSites.register();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            StringBuilder report = new StringBuilder();
+            throwSites.appendReport(report, 20, 5);
+            report.append(throwSites.getTraces().report()).append('\n');
+            System.out.print(report);
+        }, "instrumentation-throw-site-report"));
+        return (builder, typeDescription, classLoader, module, protectionDomain) -> ThrowSiteAdvice.visit(
+                transformer.transform(builder, typeDescription, classLoader, module, protectionDomain),
+                methods, classLoader);
+    }
+
+    /**
+     * Keep the type descriptions parsed for matching and transforming across classes and class loaders,
+     * see {@link SharedTypePoolCache}, and print its statistics at exit
+     */
+    private static AgentBuilder withTypePoolCache(AgentBuilder agentBuilder, SharedTypePoolCache typePools) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(typePools.report()),
+                "instrumentation-type-pool-report"));
+        // The cached descriptions must not keep their class loaders alive
+        return agentBuilder.with(typePools).with(AgentBuilder.LocationStrategy.ForClassLoader.WEAK);
+    }
+
+    /**
+     * Serve the statistics in Prometheus format on metrics.port, see {@link PrometheusEndpoint}
+     */
+    private static void startMetricsEndpoint(AgentOptions options, MethodStatsStore statistics) {
+        try {
+            PrometheusEndpoint endpoint = PrometheusEndpoint.fromOptions(options, statistics);
+            endpoint.start();
+            System.out.printf("📈 Metrics endpoint listening on %s/metrics%n", endpoint.getAddress());
+        } catch (IOException e) {
+            System.err.println("⚠️ Metrics endpoint not started: " + e);
+        }
+    }
+
+    /**
+     * Serve transformed classes from a {@link TransformCache}, invalidated by cache.invalidate=true
+     * and capped at cache.maxMegabytes (default 256)
+     */
+    private static AgentBuilder.TransformerDecorator cachingDecorator(AgentOptions options, Path directory,
+                                                                      String settings) {
+        long start = System.nanoTime();
+        TransformCache cache;
+        try {
+            if (options.getBoolean("cache.invalidate", false)) {
+                TransformCache.invalidate(directory);
+            }
+            cache = new TransformCache(directory,
+                    TransformCache.configHash(settings, MethodInstrumentation.class),
+                    options.getLong("cache.maxMegabytes", 256) * 1024 * 1024);
+        } catch (IOException e) {
+            System.err.println("⚠️ Transform cache disabled: " + e);
+            return AgentBuilder.TransformerDecorator.NoOp.INSTANCE;
+        }
+        System.out.printf("🗄️ Transform cache opened in %d ms with %d entries%n",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), cache.getEntryCount());
+        return transformer -> {
+            CachingTransformer caching = new CachingTransformer(transformer, cache, MethodInstrumentation::isCandidate);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(caching.report()),
+                    "instrumentation-cache-report"));
+            return caching;
+        };
+    }
+
+    private static AgentBuilder.Transformer transformer(String advice, ElementMatcher.Junction<MethodDescription> methods) {
+        switch (advice) {
+            case "basic":
+                return (builder, typeDescription, classLoader, module, protectionDomain) ->
+                        builder.visit(Advice.to(MethodAdvice.class).on(methods));
+            case "advanced":
+                return (builder, typeDescription, classLoader, module, protectionDomain) ->
+                        AdvancedMethodInstrumentation.visit(builder, methods, classLoader);
+            case "stackaware":
+                return (builder, typeDescription, classLoader, module, protectionDomain) ->
+                        StackAwareInstrumentation.visit(builder, methods, classLoader);
+            default:
+                throw new IllegalArgumentException("Unknown advice: " + advice);
+        }
+    }
+
+    private static MethodStatsStore statistics(String advice, String feature) {
+        switch (advice) {
+            case "advanced":
+                return AdvancedMethodInstrumentation.statistics;
+            case "stackaware":
+                return StackAwareInstrumentation.statistics;
+            default:
+                throw new IllegalArgumentException(feature + " needs advice=advanced or advice=stackaware");
+        }
+    }
+
+    /**
+     * Advice class containing the method entry and exit logic.
+     * Events are handed to the {@link EventSink} and printed by its background thread.
      */
     public static class MethodAdvice {
 
@@ -43,13 +377,7 @@ public class MethodInstrumentation {
                 @Advice.Origin String method,
                 @Advice.Origin Class<?> clazz,
                 @Advice.AllArguments Object[] arguments) {
-            
-            System.out.println("=== METHOD ENTRY ===");
-            System.out.println("Class: " + clazz.getSimpleName());
-            System.out.println("Method: " + method);
-            System.out.println("Arguments: " + java.util.Arrays.toString(arguments));
-            System.out.println("Timestamp: " + System.currentTimeMillis());
-            System.out.println("===================");
+            publish(TraceEvent.ENTRY, method, clazz, arguments);
         }
 
         /**
@@ -60,13 +388,56 @@ public class MethodInstrumentation {
                 @Advice.Origin String method,
                 @Advice.Origin Class<?> clazz,
                 @Advice.Return(typing = Assigner.Typing.DYNAMIC) Object returnValue) {
-            
-            System.out.println("=== METHOD EXIT ===");
-            System.out.println("Class: " + clazz.getSimpleName());
-            System.out.println("Method: " + method);
-            System.out.println("Return Value: " + returnValue);
-            System.out.println("Timestamp: " + System.currentTimeMillis());
-            System.out.println("==================");
+            publish(TraceEvent.EXIT, method, clazz, returnValue);
+        }
+    }
+
+    /**
+     * Hand an entry or exit event to the event sink
+     */
+    public static void publish(int kind, String method, Class<?> clazz, Object value) {
+        // Values are copied here, as the application may change them before the sink thread formats them,
+        // and before claiming a slot, as copying may run instrumented code
+        CapturePolicy.Limits limits = CapturePolicy.defaultLimits();
+        Object captured = kind == TraceEvent.ENTRY
+                ? ValueFormatter.captureArguments((Object[]) value, limits) : ValueFormatter.capture(value, limits);
+        long timestamp = TimeSource.get().currentTimeMillis();
+        EventSink sink = EventSink.get();
+        TraceEvent event = sink.claim();
+        if (event == null) {
+            return;
         }
+        event.formatter = FORMATTER;
+        event.kind = kind;
+        event.method = method;
+        event.origin = clazz;
+        event.value = captured;
+        event.timestamp = timestamp;
+        sink.publish(event);
     }
+
+    /**
+     * Formats events in the sink thread, in the same layout the advice used to print directly
+     */
+    public static final EventSink.Formatter FORMATTER = (event, out) -> {
+        boolean entry = event.kind == TraceEvent.ENTRY;
+        out.append(entry ? "=== METHOD ENTRY ===" : "=== METHOD EXIT ===").append('\n');
+        out.append("Class: ").append(((Class<?>) event.origin).getSimpleName()).append('\n');
+        out.append("Method: ").append(event.method).append('\n');
+        CapturePolicy.Limits limits = CapturePolicy.defaultLimits();
+        if (entry) {
+            Object[] arguments = (Object[]) event.value;
+            out.append("Arguments: [");
+            if (arguments != null && arguments.length > 0) {
+                ValueFormatter.appendArguments(out, arguments, limits);
+            }
+            out.append(']').append('\n');
+        } else {
+            out.append("Return Value: ");
+            ValueFormatter.appendValue(out, event.value, limits);
+            out.append('\n');
+        }
+        out.append("Timestamp: ").append(event.timestamp).append('\n');
+        out.append(entry ? "===================" : "==================");
+    };
 }
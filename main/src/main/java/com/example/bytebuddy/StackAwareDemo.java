@@ -1,7 +1,6 @@
 package com.example.bytebuddy;
 
 import net.bytebuddy.ByteBuddy;
-import net.bytebuddy.asm.Advice;
 import net.bytebuddy.matcher.ElementMatchers;
 
 /**
@@ -13,10 +12,8 @@ public class StackAwareDemo {
         System.out.println("=== Stack-Aware ByteBuddy Instrumentation Demo ===\n");
 
         // Create instrumented class using stack-aware advice
-        Class<?> instrumentedClass = new ByteBuddy()
-                .subclass(NestedTargetClass.class)
-                .method(ElementMatchers.any())
-                .intercept(Advice.to(StackAwareInstrumentation.class))
+        Class<?> instrumentedClass = StackAwareInstrumentation.instrument(
+                        new ByteBuddy().subclass(NestedTargetClass.class), ElementMatchers.any())
                 .make()
                 .load(StackAwareDemo.class.getClassLoader())
                 .getLoaded();
@@ -28,6 +25,11 @@ public class StackAwareDemo {
         
         // Test simple nested method calls
         target.processData("methodargument123");
+
+        // With -Dinstrumentation.flight.thresholdMillis the calls were recorded instead of printed
+        if (StackAwareInstrumentation.getFlightRecorder() != null) {
+            System.out.print(StackAwareInstrumentation.getFlightRecorder().dump());
+        }
         
         // System.out.println("\n=== Testing Complex Workflow ===\n");
         
@@ -1,195 +1,646 @@
 package com.example.bytebuddy;
 
+import com.example.bytebuddy.agent.AgentOptions;
+import com.example.bytebuddy.callpath.CallPathTree;
+import com.example.bytebuddy.capture.CapturePolicy;
+import com.example.bytebuddy.capture.ValueFormatter;
+import com.example.bytebuddy.clock.TimeSource;
+import com.example.bytebuddy.context.RequestContext;
+import com.example.bytebuddy.flight.CallTree;
+import com.example.bytebuddy.flight.FlightRecorder;
+import com.example.bytebuddy.registry.MethodId;
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.sampling.Sampler;
+import com.example.bytebuddy.sink.EventSink;
+import com.example.bytebuddy.sink.TraceEvent;
+import com.example.bytebuddy.stats.MethodStats;
+import com.example.bytebuddy.stats.MethodStatsStore;
+import com.example.bytebuddy.storage.ContextStorage;
+import com.example.bytebuddy.trace.BinaryTraceWriter;
 import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.ElementMatchers;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.Stack;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
- * Advanced ByteBuddy instrumentation with call stack tracking
+ * Advanced ByteBuddy instrumentation with call stack tracking.
+ * Use {@link #instrument} or {@link MethodRegistry#advice} to apply it, so that the method ID gets bound.
  */
 public class StackAwareInstrumentation {
 
-    // Thread-local storage for call stack
-    public static final ThreadLocal<Stack<MethodCallInfo>> callStack = new ThreadLocal<>();
+    // Call stack of each thread, kept for the thread's lifetime or pooled between root calls, see ContextStorage
+    public static final ContextStorage<CallStack> callStack = ContextStorage.create(CallStack::new, CallStack::discard);
     
-    
-    // Thread-local storage for method entry timestamps
-    public static final ThreadLocal<Long> methodStartTime = new ThreadLocal<>();
-    
-    // Statistics tracking
-    public static final ConcurrentHashMap<String, AtomicLong> methodCallCount = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<String, AtomicLong> methodTotalTime = new ConcurrentHashMap<>();
+    // Statistics tracking, indexed by method ID
+    public static final MethodStatsStore statistics = MethodStatsStore.create("stackaware");
+
+    static {
+        // A released ID may be handed to another method, which starts without statistics
+        MethodRegistry.addReleaseListener(statistics::remove);
+    }
 
-    // Hardcoded, but can be set at entry points
-    public static final ThreadLocal<String> requestStack = ThreadLocal.withInitial(() -> "FK Plus User");
-    public static final ThreadLocal<String> flowStack = ThreadLocal.withInitial(() -> "Flow1");
+    // Binary trace output replacing the text events when set, see enableBinaryTrace
+    private static volatile BinaryTraceWriter traceWriter;
 
+    // Keeps only the trees of slow root calls, replacing the events when set, see enableFlightRecorder
+    private static volatile FlightRecorder flightRecorder;
+
+    // Aggregates time by call path in addition to the other outputs when set, see enableCallPaths
+    private static volatile CallPathTree callPaths;
 
     /**
-     * Method call information
+     * Call stack held in parallel primitive arrays, indexed by depth.
+     * Grows as needed and is never shrunk, so pushing and popping allocate nothing.
      */
-    public static class MethodCallInfo {
-        public final String className;
-        public final String methodName;
-        public final String fullMethodSignature;
-        public final long startTime;
-        public final int depth;
+    public static class CallStack {
+        private int[] methodIds = new int[16];
+        private long[] startNanos = new long[16];
+        // Time spent in completed child calls of each frame
+        private long[] childNanos = new long[16];
+        private int size;
+        // Sampling decision of the current root; calls of unsampled trees are not pushed
+        final Sampler.Scope sampling = new Sampler.Scope();
+        // Tree of the current root, created once the flight recorder is in use
+        CallTree tree;
+        // This thread's call paths, created once call paths are aggregated
+        CallPathTree.ThreadPaths paths;
+
+        /**
+         * Push a frame, returning its depth
+         */
+        public int push(int methodId, long start) {
+            if (size == methodIds.length) {
+                methodIds = Arrays.copyOf(methodIds, size * 2);
+                startNanos = Arrays.copyOf(startNanos, size * 2);
+                childNanos = Arrays.copyOf(childNanos, size * 2);
+            }
+            methodIds[size] = methodId;
+            startNanos[size] = start;
+            childNanos[size] = 0;
+            return size++;
+        }
+
+        /**
+         * Pop the top frame, crediting its total time to the parent's child time
+         */
+        public void pop(long durationNanos) {
+            size--;
+            if (size > 0) {
+                childNanos[size - 1] += durationNanos;
+            }
+        }
+
+        public int size() {
+            return size;
+        }
 
-        public MethodCallInfo(String className, String methodName, String fullMethodSignature, long startTime, int depth) {
-            this.className = className;
-            this.methodName = methodName;
-            this.fullMethodSignature = fullMethodSignature;
-            this.startTime = startTime;
-            this.depth = depth;
+        public boolean isEmpty() {
+            return size == 0;
         }
 
-        public MethodCallInfo(String className, String methodName) {
-            this.className = className;
-            this.methodName = methodName;
-            this.fullMethodSignature = "";
-            this.startTime = 0;
-            this.depth = 0;
+        public int methodIdAt(int depth) {
+            return methodIds[depth];
         }
 
-        public String getDisplayName() {
-            return className + "." + methodName;
+        public long startNanosAt(int depth) {
+            return startNanos[depth];
         }
 
-        public String getIndentation() {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < depth; i++) {
-                sb.append("  ");
+        public long childNanosAt(int depth) {
+            return childNanos[depth];
+        }
+
+        /**
+         * Whether no call of this thread is in progress, sampled or not, so the stack may be released
+         */
+        boolean isIdle() {
+            return size == 0 && sampling.isRootExit();
+        }
+
+        /**
+         * Called when the stack is dropped instead of pooled
+         */
+        void discard() {
+            if (paths != null) {
+                paths.retire();
+            }
+        }
+    }
+
+    static {
+        String traceDirectory = System.getProperty("instrumentation.trace.dir");
+        if (traceDirectory != null) {
+            try {
+                enableBinaryTrace(new BinaryTraceWriter(Paths.get(traceDirectory)));
+            } catch (IOException e) {
+                System.err.println("⚠️ Binary trace disabled: " + e);
             }
-            return sb.toString();
         }
+        if (System.getProperty("instrumentation.flight.thresholdMillis") != null) {
+            enableFlightRecorder(FlightRecorder.fromOptions(new AgentOptions(null)));
+        }
+        String callPathDirectory = System.getProperty("instrumentation.callpaths.dir");
+        if (callPathDirectory != null) {
+            CallPathTree tree = new CallPathTree();
+            tree.exportOnShutdown(Paths.get(callPathDirectory));
+            enableCallPaths(tree);
+        }
+    }
+
+    /**
+     * Write enter/exit records to the given binary trace instead of printing them.
+     * Decode the segments with {@link com.example.bytebuddy.trace.TraceDecoder}.
+     */
+    public static void enableBinaryTrace(BinaryTraceWriter writer) {
+        requireEveryCallTimed("Binary traces");
+        traceWriter = writer;
+        Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "instrumentation-trace-close"));
+    }
+
+    /**
+     * Record call trees instead of printing events, keeping only those of root calls slower than the
+     * recorder's threshold. Statistics are still collected for every call.
+     */
+    public static void enableFlightRecorder(FlightRecorder recorder) {
+        requireEveryCallTimed("The flight recorder");
+        recorder.register();
+        flightRecorder = recorder;
+    }
+
+    private static void requireEveryCallTimed(String feature) {
+        if (!TimeSource.get().timesNestedCalls()) {
+            throw new IllegalStateException(feature + " needs every call timed, not clock=root");
+        }
+    }
+
+    public static FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    /**
+     * Aggregate the time of every call by call path, merging the per-thread paths every second.
+     * Export with {@link CallPathTree#writeFolded} or {@link CallPathTree#writeHtml}.
+     */
+    public static void enableCallPaths(CallPathTree tree) {
+        tree.start(1000);
+        callPaths = tree;
+    }
+
+    public static CallPathTree getCallPaths() {
+        return callPaths;
+    }
+
+    /**
+     * Apply the advice to the matched methods, capturing arguments only where
+     * {@link MethodRegistry#argumentCapture()} asks for it and keeping only statistics where
+     * {@link MethodRegistry#timingOnly()} does
+     */
+    public static <T> DynamicType.Builder<T> instrument(DynamicType.Builder<T> builder,
+                                                        ElementMatcher<? super MethodDescription> methods) {
+        return instrument(builder, methods, null);
+    }
+
+    /**
+     * Same as {@link #instrument(DynamicType.Builder, ElementMatcher)}, with method IDs of the given loader
+     */
+    public static <T> DynamicType.Builder<T> instrument(DynamicType.Builder<T> builder,
+                                                        ElementMatcher<? super MethodDescription> methods,
+                                                        ClassLoader classLoader) {
+        ElementMatcher.Junction<MethodDescription> capture = MethodRegistry.argumentCapture();
+        return MethodRegistry.interceptByReturnType(builder, methods, classLoader, StackAwareInstrumentation.class,
+                        ReturnsInt.class, ReturnsLong.class, ReturnsDouble.class, ReturnsBoolean.class)
+                .method(MethodRegistry.timingOnly().and(ElementMatchers.not(capture)).and(methods))
+                .intercept(MethodRegistry.advice(TimingOnly.class, classLoader))
+                .method(capture.and(methods))
+                .intercept(MethodRegistry.advice(WithArguments.class, classLoader));
+    }
+
+    /**
+     * Same as {@link #instrument}, but weaving the advice into the existing method bodies instead of
+     * overriding them, as needed by an agent that retransforms already loaded classes
+     */
+    public static <T> DynamicType.Builder<T> visit(DynamicType.Builder<T> builder,
+                                                   ElementMatcher<? super MethodDescription> methods) {
+        return visit(builder, methods, null);
+    }
+
+    /**
+     * Same as {@link #visit(DynamicType.Builder, ElementMatcher)}, with method IDs of the loader defining the class
+     */
+    public static <T> DynamicType.Builder<T> visit(DynamicType.Builder<T> builder,
+                                                   ElementMatcher<? super MethodDescription> methods,
+                                                   ClassLoader classLoader) {
+        ElementMatcher.Junction<MethodDescription> capture = MethodRegistry.argumentCapture();
+        ElementMatcher.Junction<MethodDescription> timing = MethodRegistry.timingOnly().and(ElementMatchers.not(capture));
+        return MethodRegistry.visitByReturnType(builder,
+                        ElementMatchers.not(capture).and(ElementMatchers.not(timing)).and(methods), classLoader,
+                        StackAwareInstrumentation.class,
+                        ReturnsInt.class, ReturnsLong.class, ReturnsDouble.class, ReturnsBoolean.class)
+                .visit(MethodRegistry.advice(TimingOnly.class, classLoader).on(timing.and(methods)))
+                .visit(MethodRegistry.advice(WithArguments.class, classLoader).on(capture.and(methods)));
     }
 
     /**
      * Advanced method entry advice with call stack tracking
      */
     @Advice.OnMethodEnter
-    public static void onMethodEnter(
-            @Advice.Origin String method,
-            @Advice.Origin Class<?> clazz,
-            @Advice.AllArguments Object[] arguments) {
-        
-        // Initialize call stack if needed
-        Stack<MethodCallInfo> stack = callStack.get();
-        if (stack == null) {
-            stack = new Stack<>();
-            callStack.set(stack);
+    public static void onMethodEnter(@MethodId int methodId) {
+        enter(methodId, null);
+    }
+
+    /**
+     * Advanced method exit advice with call stack tracking.
+     * Also runs when the method throws, so that the call stack stays balanced.
+     * Only applied to methods returning a reference or void, see {@link ReturnsInt} for primitives.
+     */
+    @Advice.OnMethodExit(onThrowable = Throwable.class)
+    public static void onMethodExit(
+            @MethodId int methodId,
+            @Advice.Return(typing = Assigner.Typing.DYNAMIC) Object returnValue,
+            @Advice.Thrown Throwable thrown) {
+        exit(methodId, returnValue, thrown);
+    }
+
+    /**
+     * Variant of the advice for methods returning int, short or byte, handing the value on unboxed,
+     * so that the call allocates nothing unless the value gets printed
+     */
+    public static class ReturnsInt {
+
+        @Advice.OnMethodEnter
+        public static void onMethodEnter(@MethodId int methodId) {
+            enter(methodId, null);
         }
 
-        // Record start time
-        long startTime = System.nanoTime();
-        methodStartTime.set(startTime);
-        
-        // Create method call info
-        int depth = stack.size();
-        String className = clazz.getSimpleName();
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Return int returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, TraceEvent.INT, returnValue, thrown);
+        }
+    }
 
-        // System.out.println("ClassName is " + className);
-        
-        // Clean up ByteBuddy-generated class names
-        // if (className.contains("$ByteBuddy$")) {
-            // className = className.substring(0, className.indexOf("$ByteBuddy$"));
-        // }
-        
-        // MethodCallInfo callInfo = new MethodCallInfo(
-        //         className,
-        //         extractMethodName(method),
-        //         method,
-        //         startTime,
-        //         depth
-        // );
-
-        MethodCallInfo callInfo = new MethodCallInfo(className, method);
+    /**
+     * Variant of the advice for methods returning long
+     */
+    public static class ReturnsLong {
+
+        @Advice.OnMethodEnter
+        public static void onMethodEnter(@MethodId int methodId) {
+            enter(methodId, null);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Return long returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, TraceEvent.LONG, returnValue, thrown);
+        }
+    }
+
+    /**
+     * Variant of the advice for methods returning double
+     */
+    public static class ReturnsDouble {
+
+        @Advice.OnMethodEnter
+        public static void onMethodEnter(@MethodId int methodId) {
+            enter(methodId, null);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Return double returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, TraceEvent.DOUBLE, Double.doubleToRawLongBits(returnValue), thrown);
+        }
+    }
+
+    /**
+     * Variant of the advice for methods returning boolean
+     */
+    public static class ReturnsBoolean {
+
+        @Advice.OnMethodEnter
+        public static void onMethodEnter(@MethodId int methodId) {
+            enter(methodId, null);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Return boolean returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, TraceEvent.BOOLEAN, returnValue ? 1 : 0, thrown);
+        }
+    }
+
+    /**
+     * Variant of the advice that also captures the method arguments
+     */
+    public static class WithArguments {
+
+        @Advice.OnMethodEnter
+        public static void onMethodEnter(
+                @MethodId int methodId,
+                @Advice.AllArguments Object[] arguments) {
+            enter(methodId, arguments);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Return(typing = Assigner.Typing.DYNAMIC) Object returnValue,
+                @Advice.Thrown Throwable thrown) {
+            exit(methodId, returnValue, thrown);
+        }
+    }
+
+    /**
+     * Variant of the advice that keeps the call on the stack, in the statistics, call paths and flight recorder,
+     * but publishes no entry and exit events and writes no binary trace records
+     */
+    public static class TimingOnly {
+
+        @Advice.OnMethodEnter
+        public static void onMethodEnter(@MethodId int methodId) {
+            enterQuietly(methodId);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void onMethodExit(
+                @MethodId int methodId,
+                @Advice.Thrown Throwable thrown) {
+            exitQuietly(methodId, thrown);
+        }
+    }
+
+    /**
+     * Push a method call onto the current thread's call stack
+     */
+    public static void enter(int methodId, Object[] arguments) {
+        enter(methodId, arguments, true);
+    }
+
+    /**
+     * Same as {@link #enter}, without an entry event or binary trace record
+     */
+    public static void enterQuietly(int methodId) {
+        enter(methodId, null, false);
+    }
+
+    private static void enter(int methodId, Object[] arguments, boolean publish) {
+        CallStack stack = callStack.get();
+        Sampler sampler = Sampler.current();
+        if (sampler != null && !stack.sampling.enter(sampler, methodId)) {
+            return;
+        }
+        // Nested calls are not timed when only roots are
+        TimeSource clock = TimeSource.get();
+        long startTime = clock.timesNestedCalls() || stack.isEmpty() ? clock.nanoTime() : TimeSource.NOT_TIMED;
+        int depth = stack.push(methodId, startTime);
         
-        // Push to call stack
-        stack.push(callInfo);
+        CallPathTree paths = callPaths;
+        if (paths != null) {
+            if (stack.paths == null) {
+                // Pooled stacks move between threads, so their paths cannot be dropped when a thread ends
+                stack.paths = callStack.isPooled() ? paths.newPooledPaths() : paths.newThreadPaths();
+            }
+            stack.paths.enter(depth, methodId);
+        }
         
-        // Update call count
-        String methodKey = callInfo.getDisplayName();
-        // AtomicLong count = methodCallCount.get(methodKey);
-        // if (count == null) {
-            // count = new AtomicLong(0);
-            // methodCallCount.put(methodKey, count);
-        // }
-        // count.incrementAndGet();
+        FlightRecorder recorder = flightRecorder;
+        if (recorder != null) {
+            if (stack.tree == null) {
+                stack.tree = recorder.newTree();
+            }
+            stack.tree.enter(depth, methodId, startTime);
+            return;
+        }
+        if (!publish) {
+            return;
+        }
         
-        // Get parent method info
-        String parentInfo = "";
-        if (depth > 0) {
-            MethodCallInfo parent = stack.get(depth - 1);
-            parentInfo = " ← " + parent.getDisplayName();
+        BinaryTraceWriter writer = traceWriter;
+        if (writer != null) {
+            writer.enter(methodId, startTime);
+            return;
         }
         
+        // Arguments are copied here, as the application may change them before the sink thread formats them,
+        // and like the context read before claiming a slot, as this may run instrumented code or fail
+        Object[] captured = ValueFormatter.captureArguments(arguments, CapturePolicy.limitsFor(methodId));
+        RequestContext context = RequestContext.current();
         // Log method entry with call stack info
-        System.out.println("🔵 ENTRY | " + 
-                callInfo.getIndentation() + callInfo.getDisplayName() + parentInfo +
-                " | Request Object : " + requestStack.get() + 
-                " | Flow Object : " + flowStack.get()
-                // " | Args: " + formatArguments(arguments) +
-                // " | Depth: " + depth
-                );
-        
-        // Show current call stack
-        // if (depth > 0) {
-            // System.out.println("    📍 Call Stack: " + getCurrentCallStack());
-        // }
+        EventSink sink = EventSink.get();
+        TraceEvent event = sink.claim();
+        if (event != null) {
+            event.formatter = FORMATTER;
+            event.kind = TraceEvent.ENTRY;
+            event.methodId = methodId;
+            event.parentMethodId = depth > 0 ? stack.methodIdAt(depth - 1) : -1;
+            event.depth = depth;
+            event.value = captured;
+            event.request = context.request;
+            event.flow = context.flow;
+            sink.publish(event);
+        }
     }
 
     /**
-     * Advanced method exit advice with call stack tracking
+     * Pop the current method call from the current thread's call stack
      */
-    @Advice.OnMethodExit
-    public static void onMethodExit(
-            @Advice.Origin String method,
-            @Advice.Origin Class<?> clazz,
-            @Advice.Return(typing = Assigner.Typing.DYNAMIC) Object returnValue) {
-        
-        // Get call stack
-        Stack<MethodCallInfo> stack = callStack.get();
-        if (stack == null || stack.isEmpty()) {
+    public static void exit(int methodId, Object returnValue, Throwable thrown) {
+        exit(methodId, returnValue, TraceEvent.REFERENCE, 0, thrown, true);
+    }
+
+    /**
+     * Pop the call of a method returning a primitive, given as {@link TraceEvent#primitiveValue} of the type
+     */
+    public static void exit(int methodId, byte valueType, long primitiveValue, Throwable thrown) {
+        exit(methodId, null, valueType, primitiveValue, thrown, true);
+    }
+
+    /**
+     * Same as {@link #exit(int, Object, Throwable)}, without an exit event or binary trace record
+     */
+    public static void exitQuietly(int methodId, Throwable thrown) {
+        exit(methodId, null, TraceEvent.REFERENCE, 0, thrown, false);
+    }
+
+    private static void exit(int methodId, Object returnValue, byte valueType, long primitiveValue,
+                             Throwable thrown, boolean publish) {
+        CallStack stack = callStack.get();
+        Sampler sampler = Sampler.current();
+        if (sampler != null && !stack.sampling.exit()) {
+            exitUnsampled(sampler, stack, methodId, returnValue, valueType, primitiveValue, thrown, publish);
+            return;
+        }
+        if (stack.isEmpty()) {
+            callStack.release();
             return;
         }
         
-        // Pop current method from stack
-        MethodCallInfo callInfo = stack.pop();
-        
-        // Calculate execution time
-        // Long startTime = methodStartTime.get();
-        // long endTime = System.nanoTime();
-        // long duration = startTime != null ? endTime - startTime : 0;
+        // Pop current method from stack, splitting its time into self and child time
+        int depth = stack.size() - 1;
+        int poppedId = stack.methodIdAt(depth);
+        long startTime = stack.startNanosAt(depth);
+        if (startTime == TimeSource.NOT_TIMED) {
+            exitUntimed(stack, depth, poppedId, returnValue, valueType, primitiveValue, thrown, publish);
+            return;
+        }
+        long endTime = TimeSource.get().nanoTime();
+        long duration = endTime - startTime;
+        long selfTime = duration - stack.childNanosAt(depth);
+        stack.pop(duration);
         
-        // Update total time
-        String methodKey = callInfo.getDisplayName();
-        // AtomicLong totalTime = methodTotalTime.get(methodKey);
-        // if (totalTime == null) {
-            // totalTime = new AtomicLong(0);
-            // methodTotalTime.put(methodKey, totalTime);
-        // }
-        // totalTime.addAndGet(duration);
+        // Update count, total and self time
+        statistics.record(poppedId, duration, selfTime);
+        if (stack.paths != null && callPaths != null) {
+            stack.paths.exit(depth, duration, selfTime);
+        }
         
-        // Clear thread local if stack is empty
-        if (stack.isEmpty()) {
-            callStack.remove();
-            methodStartTime.remove();
+        FlightRecorder recorder = flightRecorder;
+        boolean recorded = recorder != null && stack.tree != null;
+        if (recorded) {
+            stack.tree.exit(depth, duration, thrown != null);
+            if (depth == 0) {
+                recorder.rootExit(stack.tree, duration);
+            }
+        }
+        // The stack is not used past this point
+        if (stack.isIdle()) {
+            callStack.release();
+        }
+        if (recorded || !publish) {
+            return;
         }
         
-        // Format return value
-        String returnInfo = "✅ Return: " + formatReturnValue(returnValue);
+        BinaryTraceWriter writer = traceWriter;
+        if (writer != null) {
+            writer.exit(poppedId, endTime, thrown != null);
+            return;
+        }
         
+        publishExit(poppedId, depth, duration, returnValue, valueType, primitiveValue, thrown);
+    }
+
+    /**
+     * Pop a nested call that was not timed, as only roots are: counted, and reported without a duration.
+     * The flight recorder and binary traces need every call timed, so they are not used with such a clock.
+     */
+    private static void exitUntimed(CallStack stack, int depth, int methodId, Object returnValue, byte valueType,
+                                    long primitiveValue, Throwable thrown, boolean publish) {
+        stack.pop(0);
+        statistics.recordUnsampled(methodId);
+        if (stack.paths != null && callPaths != null) {
+            stack.paths.exit(depth, 0, 0);
+        }
+        if (publish) {
+            publishExit(methodId, depth, -1, returnValue, valueType, primitiveValue, thrown);
+        }
+    }
+
+    /**
+     * Count a call of an unsampled tree, reporting the root anyway if it was slower than the threshold
+     */
+    private static void exitUnsampled(Sampler sampler, CallStack stack, int methodId,
+                                      Object returnValue, byte valueType, long primitiveValue,
+                                      Throwable thrown, boolean publish) {
+        statistics.recordUnsampled(methodId);
+        if (!stack.sampling.isRootExit()) {
+            return;
+        }
+        long rootStart = stack.sampling.getRootStart();
+        callStack.release();
+        if (!publish || !sampler.keepsSlowCalls()) {
+            return;
+        }
+        long endTime = TimeSource.get().nanoTime();
+        long duration = endTime - rootStart;
+        if (duration < sampler.getSlowThresholdNanos()) {
+            return;
+        }
+        BinaryTraceWriter writer = traceWriter;
+        if (writer != null) {
+            writer.enter(methodId, rootStart);
+            writer.exit(methodId, endTime, thrown != null);
+            return;
+        }
+        publishExit(methodId, 0, duration, returnValue, valueType, primitiveValue, thrown);
+    }
+
+    private static void publishExit(int methodId, int depth, long duration, Object returnValue, byte valueType,
+                                    long primitiveValue, Throwable thrown) {
+        // Copied before claiming a slot, like the arguments on entry
+        Object value = thrown == null ? ValueFormatter.capture(returnValue, CapturePolicy.limitsFor(methodId)) : null;
         // Log method exit with call stack info
-        System.out.println("🔴 EXIT  | " + 
-                Thread.currentThread().getName() + " | " +
-                callInfo.getIndentation() + callInfo.getDisplayName() +
-                " | " + returnInfo + 
-                // " | Duration: " + formatDuration(duration) +
-                " | Depth: " + callInfo.depth);
+        EventSink sink = EventSink.get();
+        TraceEvent event = sink.claim();
+        if (event != null) {
+            event.formatter = FORMATTER;
+            event.kind = TraceEvent.EXIT;
+            event.methodId = methodId;
+            event.depth = depth;
+            event.thread = Thread.currentThread();
+            event.value = value;
+            event.valueType = valueType;
+            event.primitiveValue = primitiveValue;
+            event.thrown = thrown;
+            event.durationNanos = duration;
+            sink.publish(event);
+        }
+    }
+
+    /**
+     * Formats entry and exit events in the sink thread
+     */
+    public static final EventSink.Formatter FORMATTER = (event, out) -> {
+        CapturePolicy.Limits limits = CapturePolicy.limitsFor(event.methodId);
+        if (event.kind == TraceEvent.ENTRY) {
+            out.append("🔵 ENTRY | ");
+            appendIndentation(out, event.depth);
+            out.append(MethodRegistry.displayName(event.methodId));
+            if (event.parentMethodId >= 0) {
+                out.append(" ← ").append(MethodRegistry.displayName(event.parentMethodId));
+            }
+            out.append(" | Request Object : ").append(event.request)
+                    .append(" | Flow Object : ").append(event.flow);
+            if (event.value != null) {
+                out.append(" | Args: ");
+                ValueFormatter.appendArguments(out, (Object[]) event.value, limits);
+            }
+        } else {
+            out.append("🔴 EXIT  | ").append(event.thread.getName()).append(" | ");
+            appendIndentation(out, event.depth);
+            out.append(MethodRegistry.displayName(event.methodId)).append(" | ");
+            // Format return value or exception
+            if (event.thrown != null) {
+                out.append("❌ Exception: ").append(event.thrown.getClass().getSimpleName());
+            } else {
+                out.append("✅ Return: ");
+                ValueFormatter.appendValue(out, event.returnValue(), limits);
+            }
+            if (event.durationNanos >= 0) {
+                out.append(" | Duration: ").append(formatDuration(event.durationNanos));
+            }
+            out.append(" | Depth: ").append(event.depth);
+        }
+    };
+
+    private static void appendIndentation(StringBuilder out, int depth) {
+        for (int i = 0; i < depth; i++) {
+            out.append("  ");
+        }
     }
 
     /**
@@ -285,17 +736,21 @@ public class StackAwareInstrumentation {
      * Print method statistics with call hierarchy information
      */
     public static void printStatistics() {
+        // Let queued entry/exit lines come out first
+        EventSink.get().flush();
         System.out.println("\n📊 METHOD STATISTICS WITH CALL HIERARCHY:");
         System.out.println("=========================================");
         
-        for (java.util.Map.Entry<String, AtomicLong> entry : methodCallCount.entrySet()) {
-            String method = entry.getKey();
-            AtomicLong count = entry.getValue();
-            AtomicLong totalTime = methodTotalTime.get(method);
-            long avgTime = totalTime != null ? totalTime.get() / count.get() : 0;
-            
-            System.out.printf("%s | Calls: %d | Avg Time: %s%n", 
-                    method, count.get(), formatDuration(avgTime));
+        for (MethodStats.Snapshot snapshot : statistics.snapshot()) {
+            System.out.printf("%s | Calls: %d | Avg Time: %s | Avg Self: %s | p50: %s | p90: %s | p99: %s | p99.9: %s | Max: %s%n", 
+                    MethodRegistry.displayName(snapshot.methodId), snapshot.count,
+                    formatDuration(snapshot.getAverageNanos()),
+                    formatDuration(snapshot.getAverageSelfNanos()),
+                    formatDuration(snapshot.percentile(50)),
+                    formatDuration(snapshot.percentile(90)),
+                    formatDuration(snapshot.percentile(99)),
+                    formatDuration(snapshot.percentile(99.9)),
+                    formatDuration(snapshot.maxNanos));
         }
     }
 
@@ -303,23 +758,30 @@ public class StackAwareInstrumentation {
      * Get current call stack depth for a thread
      */
     public static int getCurrentStackDepth() {
-        Stack<MethodCallInfo> stack = callStack.get();
-        return stack != null ? stack.size() : 0;
+        CallStack stack = callStack.get();
+        int depth = stack.size();
+        if (stack.isIdle()) {
+            callStack.release();
+        }
+        return depth;
     }
 
     /**
      * Get current call stack as a string
      */
     public static String getCurrentCallStack() {
-        Stack<MethodCallInfo> stack = callStack.get();
-        if (stack == null || stack.isEmpty()) {
+        CallStack stack = callStack.get();
+        if (stack.isEmpty()) {
+            if (stack.isIdle()) {
+                callStack.release();
+            }
             return "Empty call stack";
         }
         
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < stack.size(); i++) {
-            MethodCallInfo info = stack.get(i);
-            sb.append(info.getIndentation()).append(info.getDisplayName());
+            appendIndentation(sb, i);
+            sb.append(MethodRegistry.displayName(stack.methodIdAt(i)));
             if (i < stack.size() - 1) {
                 sb.append(" → ");
             }
@@ -0,0 +1,60 @@
+package com.example.bytebuddy.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options passed to the agent as {@code -javaagent:agent.jar=key=value,key=value}.
+ * A system property {@code instrumentation.<key>} is used when the key is not in the agent arguments.
+ */
+public class AgentOptions {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    public AgentOptions(String agentArgs) {
+        if (agentArgs == null) {
+            return;
+        }
+        for (String pair : agentArgs.split(",")) {
+            if (pair.trim().isEmpty()) {
+                continue;
+            }
+            int separator = pair.indexOf('=');
+            if (separator < 0) {
+                values.put(pair.trim(), "true");
+            } else {
+                values.put(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim());
+            }
+        }
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            value = System.getProperty("instrumentation." + key);
+        }
+        return value != null ? value : defaultValue;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Agent option " + key + " must be a number: " + value, e);
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.bytebuddy.agent;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Wraps the agent's transformer with a {@link TransformCache}.
+ * On a hit the cached bytes are returned without ByteBuddy parsing or weaving the class;
+ * on a miss the class is transformed as usual and the result stored.
+ *
+ * A hit is only used if registering its methods yields the IDs inlined into the cached bytes,
+ * which holds as long as classes load in the same order as when the entry was written.
+ * A class loaded by several non-shared class loaders gets other IDs in each, so only one of them hits.
+ * Otherwise the class is transformed again and the entry replaced.
+ * Retransformations always bypass the cache, since they may apply a different matcher.
+ */
+public class CachingTransformer extends ResettableClassFileTransformer.WithDelegation {
+
+    private final TransformCache cache;
+    // Internal class names that may be instrumented; all others skip hashing entirely
+    private final Predicate<String> candidates;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder hitNanos = new LongAdder();
+    private final LongAdder missNanos = new LongAdder();
+    // Original transformation time of the classes served from the cache
+    private final LongAdder savedNanos = new LongAdder();
+
+    public CachingTransformer(ResettableClassFileTransformer delegate, TransformCache cache,
+                              Predicate<String> candidates) {
+        super(delegate);
+        this.cache = cache;
+        this.candidates = candidates;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer)
+            throws IllegalClassFormatException {
+        if (classBeingRedefined != null || className == null || !candidates.test(className)) {
+            return classFileTransformer.transform(loader, className, classBeingRedefined, protectionDomain,
+                    classfileBuffer);
+        }
+        long start = System.nanoTime();
+        String key = TransformCache.hash(classfileBuffer);
+        TransformCache.Entry entry = cache.load(key);
+        if (entry != null) {
+            if (register(loader, entry.methods)) {
+                hits.increment();
+                hitNanos.add(System.nanoTime() - start);
+                savedNanos.add(entry.transformNanos);
+                return entry.bytes;
+            }
+            conflicts.increment();
+        }
+
+        long transformStart = System.nanoTime();
+        byte[] transformed = classFileTransformer.transform(loader, className, null, protectionDomain,
+                classfileBuffer);
+        long transformNanos = System.nanoTime() - transformStart;
+        cache.store(key, new TransformCache.Entry(transformed,
+                MethodRegistry.methodsOf(loader, className.replace('/', '.')), transformNanos));
+        misses.increment();
+        missNanos.add(System.nanoTime() - start);
+        return transformed;
+    }
+
+    private static boolean register(ClassLoader loader, List<MethodRegistry.MethodInfo> methods) {
+        for (MethodRegistry.MethodInfo info : methods) {
+            if (MethodRegistry.register(loader, info.typeName, info.className, info.methodName, info.descriptor)
+                    != info.id) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * One-line summary of the time spent and saved, e.g. for printing at shutdown
+     */
+    public String report() {
+        long saved = savedNanos.sum() - hitNanos.sum();
+        return String.format("🗄️ Transform cache | Hits: %d (%d ms) | Misses: %d (%d ms) | ID conflicts: %d"
+                        + " | Entries: %d (%d KB) | Evicted: %d | Saved: ~%d ms",
+                hits.sum(), TimeUnit.NANOSECONDS.toMillis(hitNanos.sum()),
+                misses.sum(), TimeUnit.NANOSECONDS.toMillis(missNanos.sum()),
+                conflicts.sum(), cache.getEntryCount(), cache.getTotalBytes() / 1024, cache.getEvictionCount(),
+                TimeUnit.NANOSECONDS.toMillis(Math.max(0, saved)));
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.bytebuddy.agent;
+
+import com.example.bytebuddy.context.RequestContext;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.loading.ClassInjector;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static net.bytebuddy.matcher.ElementMatchers.is;
+import static net.bytebuddy.matcher.ElementMatchers.isAbstract;
+import static net.bytebuddy.matcher.ElementMatchers.isConstructor;
+import static net.bytebuddy.matcher.ElementMatchers.isDeclaredBy;
+import static net.bytebuddy.matcher.ElementMatchers.isInterface;
+import static net.bytebuddy.matcher.ElementMatchers.isSubTypeOf;
+import static net.bytebuddy.matcher.ElementMatchers.isSynthetic;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+/**
+ * Carries the {@link RequestContext} of the submitting thread over to the thread that runs the task.
+ * Tasks passed to {@code execute(Runnable)} of any {@link Executor}, including ThreadPoolExecutor,
+ * ForkJoinPool and Netty event loops, and to {@code ForkJoinPool.submit}, are wrapped in place.
+ *
+ * Executors must see some tasks as they are: {@code submit} hands a FutureTask to {@code execute} and expects it
+ * back from {@code remove} and {@code shutdownNow}, and ForkJoinPool runs a ForkJoinTask as such. These are never
+ * wrapped. A FutureTask captures the context when it is created instead, wrapping its callable, and a ForkJoinTask
+ * has its context kept aside when submitted and attached when it runs, from ForkJoinPool or any other executor.
+ * CompletableFuture's async stages are such ForkJoinTasks and are covered as well. ThreadPoolExecutor's
+ * {@code remove} and {@code shutdownNow} unwrap the other tasks, so callers get back what they passed to
+ * {@code execute}; its {@code getQueue()} still holds the wrappers.
+ *
+ * The context classes are injected into the bootstrap class loader first, so that the advice woven into
+ * JDK classes can refer to them; this has to happen before anything else loads them.
+ * ForkJoinTasks passed to the ForkJoinTask overloads, e.g. {@code ForkJoinPool.invoke}, or forked, are not covered.
+ */
+public final class ContextPropagation {
+
+    private static final String[] CONTEXT_CLASSES = {
+            "com.example.bytebuddy.context.RequestContext",
+            "com.example.bytebuddy.context.RequestContext$SubmittedTask",
+            "com.example.bytebuddy.context.ContextRunnable",
+            "com.example.bytebuddy.context.ContextCallable"
+    };
+
+    private ContextPropagation() {
+    }
+
+    /**
+     * Wrap submitted tasks from now on, retransforming the executors already loaded
+     */
+    public static ResettableClassFileTransformer install(Instrumentation instrumentation) {
+        Collection<Class<?>> injected = injectIntoBootstrap(instrumentation);
+        // Built up front: a class first loaded while a transformation runs is not transformed itself
+        AsmVisitorWrapper.ForDeclaredMethods execute = Advice.to(WrapRunnable.class).on(named("execute")
+                .and(takesArguments(Runnable.class)).and(not(isAbstract())));
+        AsmVisitorWrapper.ForDeclaredMethods submitRunnable = Advice.to(WrapRunnable.class).on(
+                isDeclaredBy(ForkJoinPool.class).and(named("submit")).and(takesArgument(0, Runnable.class)));
+        AsmVisitorWrapper.ForDeclaredMethods submitCallable = Advice.to(WrapCallable.class).on(
+                isDeclaredBy(ForkJoinPool.class).and(named("submit")).and(takesArguments(Callable.class)));
+        AsmVisitorWrapper.ForDeclaredMethods removeWrapped = Advice.to(RemoveWrapped.class).on(
+                isDeclaredBy(ThreadPoolExecutor.class).and(named("remove")).and(takesArguments(Runnable.class)));
+        AsmVisitorWrapper.ForDeclaredMethods unwrapDrained = Advice.to(UnwrapDrained.class).on(
+                isDeclaredBy(ThreadPoolExecutor.class).and(named("shutdownNow")).and(takesArguments(0)));
+        AsmVisitorWrapper.ForDeclaredMethods futureTaskCallable = Advice.to(WrapCallable.class).on(
+                isConstructor().and(takesArguments(Callable.class)));
+        AsmVisitorWrapper.ForDeclaredMethods futureTaskRunnable = Advice.to(WrapTask.class).on(
+                isConstructor().and(takesArgument(0, Runnable.class)));
+        AsmVisitorWrapper.ForDeclaredMethods forkJoinTaskRun = Advice.to(AttachSubmitted.class).on(
+                named("doExec").and(isDeclaredBy(ForkJoinTask.class))
+                        .or(named("run").and(takesArguments(0)).and(not(isAbstract()))
+                                .and(isDeclaredBy(isSubTypeOf(Runnable.class)))));
+        return new AgentBuilder.Default()
+                .disableClassFormatChanges()
+                .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                .assureReadEdgeTo(instrumentation, injected.toArray(new Class<?>[0]))
+                // Unlike the default, JDK classes are not ignored
+                .ignore(nameStartsWith("net.bytebuddy.")
+                        .or(nameStartsWith("com.example.bytebuddy.context."))
+                        .or(isSynthetic()))
+                .type(isSubTypeOf(Executor.class).and(not(isInterface())))
+                .transform((builder, typeDescription, classLoader, module, protectionDomain) -> builder
+                        .visit(execute)
+                        .visit(submitRunnable)
+                        .visit(submitCallable)
+                        .visit(removeWrapped)
+                        .visit(unwrapDrained))
+                .type(is(FutureTask.class))
+                .transform((builder, typeDescription, classLoader, module, protectionDomain) -> builder
+                        .visit(futureTaskCallable)
+                        .visit(futureTaskRunnable))
+                .type(isSubTypeOf(ForkJoinTask.class))
+                .transform((builder, typeDescription, classLoader, module, protectionDomain) -> builder
+                        .visit(forkJoinTaskRun))
+                .installOn(instrumentation);
+    }
+
+    private static Collection<Class<?>> injectIntoBootstrap(Instrumentation instrumentation) {
+        for (Class<?> type : instrumentation.getAllLoadedClasses()) {
+            if (type.getName().equals(CONTEXT_CLASSES[0]) && type.getClassLoader() != null) {
+                throw new IllegalStateException("RequestContext was loaded before context propagation was installed");
+            }
+        }
+        ClassFileLocator locator = ClassFileLocator.ForClassLoader.of(ContextPropagation.class.getClassLoader());
+        try {
+            Map<String, byte[]> classes = new HashMap<>();
+            for (String name : CONTEXT_CLASSES) {
+                classes.put(name, locator.locate(name).resolve());
+            }
+            return ClassInjector.UsingInstrumentation.of(
+                    Files.createTempDirectory("instrumentation-context").toFile(),
+                    ClassInjector.UsingInstrumentation.Target.BOOTSTRAP,
+                    instrumentation).injectRaw(classes).values();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot inject the context classes", e);
+        }
+    }
+
+    static class WrapRunnable {
+
+        @Advice.OnMethodEnter
+        static void onEnter(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+            task = RequestContext.wrapSubmitted(task);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        static void onExit(@Advice.Argument(0) Runnable task, @Advice.Thrown Throwable thrown) {
+            if (thrown != null) {
+                RequestContext.forgetSubmitted(task);
+            }
+        }
+    }
+
+    static class RemoveWrapped {
+
+        @Advice.OnMethodExit
+        static void onExit(@Advice.This ThreadPoolExecutor executor, @Advice.Argument(0) Runnable task,
+                           @Advice.Return(readOnly = false) boolean removed) {
+            if (!removed) {
+                removed = RequestContext.removeWrapped(executor.getQueue(), task);
+            }
+        }
+    }
+
+    static class UnwrapDrained {
+
+        @Advice.OnMethodExit
+        static void onExit(@Advice.Return List<Runnable> drained) {
+            RequestContext.unwrapAll(drained);
+        }
+    }
+
+    static class WrapTask {
+
+        @Advice.OnMethodEnter
+        static void onEnter(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+            task = RequestContext.wrap(task);
+        }
+    }
+
+    static class AttachSubmitted {
+
+        @Advice.OnMethodEnter
+        static RequestContext onEnter(@Advice.This ForkJoinTask<?> task) {
+            return RequestContext.attachSubmitted(task);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        static void onExit(@Advice.Enter RequestContext previous) {
+            if (previous != null) {
+                RequestContext.detach(previous);
+            }
+        }
+    }
+
+    static class WrapCallable {
+
+        @Advice.OnMethodEnter
+        static void onEnter(@Advice.Argument(value = 0, readOnly = false) Callable<?> task) {
+            task = RequestContext.wrap(task);
+        }
+    }
+}
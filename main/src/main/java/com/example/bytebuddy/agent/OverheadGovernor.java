@@ -0,0 +1,222 @@
+package com.example.bytebuddy.agent;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.stats.MethodStats;
+import com.example.bytebuddy.stats.MethodStatsStore;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import javax.management.ObjectName;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes instrumentation from methods whose advice costs more than the method itself.
+ * Every interval it compares the statistics with the previous interval; a method that was called
+ * at least minCallsPerSecond times with an average duration of at most maxAverageNanos is excluded,
+ * and its class is retransformed without the advice.
+ *
+ * Exclusions are reported on stdout and can be undone through {@link OverheadGovernorMXBean};
+ * a method re-included by an operator is never excluded again.
+ * The agent must be installed with retransformation enabled, see {@link #excludedMethods()}; classes are
+ * retransformed in paced batches, see {@link PacedRetransformation}.
+ */
+public class OverheadGovernor implements OverheadGovernorMXBean {
+
+    private final Instrumentation instrumentation;
+    private final PacedRetransformation pacing;
+    private final MethodStatsStore statistics;
+    private final long minCallsPerSecond;
+    private final long maxAverageNanos;
+
+    // Registry keys of excluded methods, read by the transformer
+    private final Set<String> excluded = ConcurrentHashMap.newKeySet();
+    // Registry keys re-included by an operator
+    private final Set<String> pinned = ConcurrentHashMap.newKeySet();
+
+    // Totals at the previous check, by method ID, guarded by this
+    private long[] lastCounts = new long[0];
+    private long[] lastTimedCounts = new long[0];
+    private long[] lastTotalNanos = new long[0];
+    private long lastCheck = System.nanoTime();
+
+    public OverheadGovernor(Instrumentation instrumentation, PacedRetransformation pacing, MethodStatsStore statistics,
+                            long minCallsPerSecond, long maxAverageNanos) {
+        this.instrumentation = instrumentation;
+        this.pacing = pacing;
+        this.statistics = statistics;
+        this.minCallsPerSecond = minCallsPerSecond;
+        this.maxAverageNanos = maxAverageNanos;
+    }
+
+    /**
+     * Build a governor from the agent options governor.minCallsPerSecond (default 10000)
+     * and governor.maxAvgNanos (default 500), pacing retransformations by the retransform options
+     */
+    public static OverheadGovernor fromOptions(AgentOptions options, Instrumentation instrumentation,
+                                               MethodStatsStore statistics) {
+        return new OverheadGovernor(instrumentation, PacedRetransformation.fromOptions(options), statistics,
+                options.getLong("governor.minCallsPerSecond", 10_000),
+                options.getLong("governor.maxAvgNanos", 500));
+    }
+
+    /**
+     * Matches excluded methods; the agent's transformer must apply the advice only to methods
+     * not matched here, so that a retransformation drops it
+     */
+    public ElementMatcher.Junction<MethodDescription> excludedMethods() {
+        return new ElementMatcher.Junction.AbstractBase<MethodDescription>() {
+            @Override
+            public boolean matches(MethodDescription target) {
+                return !excluded.isEmpty() && excluded.contains(MethodRegistry.key(
+                        target.getDeclaringType().asErasure().getName(),
+                        target.getInternalName(),
+                        target.getDescriptor()));
+            }
+        };
+    }
+
+    /**
+     * Check the statistics every interval on a daemon thread and expose the MXBean
+     */
+    public void start(long intervalMillis) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("com.example.bytebuddy:type=OverheadGovernor"));
+        } catch (Exception e) {
+            System.err.println("⚠️ Overhead governor MXBean not registered: " + e);
+        }
+        Thread checker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                check();
+            }
+        }, "instrumentation-overhead-governor");
+        checker.setDaemon(true);
+        checker.start();
+    }
+
+    /**
+     * Exclude the methods that were hot and trivial since the previous check
+     */
+    public void check() {
+        List<MethodRegistry.MethodInfo> newlyExcluded = evaluate(statistics.snapshot(), System.nanoTime());
+        if (newlyExcluded.isEmpty()) {
+            return;
+        }
+        Set<String> typeNames = new HashSet<>();
+        for (MethodRegistry.MethodInfo info : newlyExcluded) {
+            typeNames.add(info.typeName);
+        }
+        retransform(typeNames);
+    }
+
+    /**
+     * Compare the snapshots with the previous ones and mark the hot, trivial methods as excluded
+     */
+    synchronized List<MethodRegistry.MethodInfo> evaluate(Collection<MethodStats.Snapshot> snapshots, long now) {
+        long elapsedNanos = Math.max(1, now - lastCheck);
+        lastCheck = now;
+        List<MethodRegistry.MethodInfo> newlyExcluded = new ArrayList<>();
+        for (MethodStats.Snapshot snapshot : snapshots) {
+            int id = snapshot.methodId;
+            if (id >= lastCounts.length) {
+                int length = Math.max(id + 1, lastCounts.length * 2);
+                lastCounts = Arrays.copyOf(lastCounts, length);
+                lastTimedCounts = Arrays.copyOf(lastTimedCounts, length);
+                lastTotalNanos = Arrays.copyOf(lastTotalNanos, length);
+            }
+            long calls = snapshot.count - lastCounts[id];
+            long timedCalls = snapshot.timedCount - lastTimedCounts[id];
+            long totalNanos = snapshot.totalNanos - lastTotalNanos[id];
+            lastCounts[id] = snapshot.count;
+            lastTimedCounts[id] = snapshot.timedCount;
+            lastTotalNanos[id] = snapshot.totalNanos;
+
+            if (timedCalls == 0 || calls * TimeUnit.SECONDS.toNanos(1) / elapsedNanos < minCallsPerSecond
+                    || totalNanos / timedCalls > maxAverageNanos) {
+                continue;
+            }
+            MethodRegistry.MethodInfo info = MethodRegistry.get(id);
+            if (info == null || pinned.contains(info.getKey()) || !excluded.add(info.getKey())) {
+                continue;
+            }
+            newlyExcluded.add(info);
+            System.out.printf("⚙️ Governor excluded %s | Calls/s: %d | Avg Time: %d ns%n",
+                    info.getKey(), calls * TimeUnit.SECONDS.toNanos(1) / elapsedNanos, totalNanos / timedCalls);
+        }
+        return newlyExcluded;
+    }
+
+    @Override
+    public String[] getExcludedMethods() {
+        String[] methods = excluded.toArray(new String[0]);
+        Arrays.sort(methods);
+        return methods;
+    }
+
+    @Override
+    public boolean include(String methodKey) {
+        pinned.add(methodKey);
+        if (!excluded.remove(methodKey)) {
+            return false;
+        }
+        System.out.println("⚙️ Governor re-included " + methodKey);
+        retransform(typeNamesOf(methodKey));
+        return true;
+    }
+
+    @Override
+    public void includeAll() {
+        Set<String> typeNames = new HashSet<>();
+        for (String methodKey : getExcludedMethods()) {
+            pinned.add(methodKey);
+            if (excluded.remove(methodKey)) {
+                System.out.println("⚙️ Governor re-included " + methodKey);
+                typeNames.addAll(typeNamesOf(methodKey));
+            }
+        }
+        retransform(typeNames);
+    }
+
+    private static Set<String> typeNamesOf(String methodKey) {
+        Set<String> typeNames = new HashSet<>();
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            MethodRegistry.MethodInfo info = MethodRegistry.get(id);
+            if (info != null && info.getKey().equals(methodKey)) {
+                typeNames.add(info.typeName);
+            }
+        }
+        return typeNames;
+    }
+
+    /**
+     * Retransform every loaded class with one of the given names, in any class loader
+     */
+    private void retransform(Set<String> typeNames) {
+        if (typeNames.isEmpty()) {
+            return;
+        }
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> type : instrumentation.getAllLoadedClasses()) {
+            if (typeNames.contains(type.getName()) && instrumentation.isModifiableClass(type)) {
+                classes.add(type);
+            }
+        }
+        if (!classes.isEmpty() && pacing.retransform(instrumentation, classes) > 0) {
+            System.err.println("⚠️ Governor could not retransform all of " + typeNames);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.bytebuddy.agent;
+
+/**
+ * Operator view of the {@link OverheadGovernor}, registered as
+ * {@code com.example.bytebuddy:type=OverheadGovernor} and reachable from jconsole or any JMX client
+ */
+public interface OverheadGovernorMXBean {
+
+    /**
+     * Methods currently excluded from instrumentation, as registry keys
+     */
+    String[] getExcludedMethods();
+
+    /**
+     * Re-instrument an excluded method and keep the governor from excluding it again.
+     * Returns false if the method was not excluded.
+     */
+    boolean include(String methodKey);
+
+    /**
+     * Re-instrument every excluded method
+     */
+    void includeAll();
+}
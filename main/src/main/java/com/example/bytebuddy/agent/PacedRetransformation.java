@@ -0,0 +1,247 @@
+package com.example.bytebuddy.agent;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransforms already loaded classes in small batches spaced out in time, so that attaching the agent to a running
+ * service does not stall it. The application is stopped while a batch is redefined, so retransforming thousands of
+ * classes at once shows as one long pause. Installed as both the batch allocator and the redefinition listener of
+ * an {@link AgentBuilder} with retransformation:
+ * <ul>
+ * <li>The first batch has batchSize classes. Every following batch is sized so that it should take about maxPause,
+ * in proportion to how long the previous batch took per class, growing at most twofold and never beyond
+ * batchSize.</li>
+ * <li>Before each batch after the first, it waits so that retransformation takes at most pausePercent of the
+ * time: with 10%, a batch that took 5 ms is followed by 45 ms without any.</li>
+ * <li>Each batch is reported to a {@link BatchListener} with its duration, which covers transforming the classes
+ * as well as redefining them and so is an upper bound of the pause.</li>
+ * </ul>
+ * Batches are sized and measured on the thread installing the agent. Classes the agent retransforms later on,
+ * e.g. after the rules changed, go through {@link #retransform} with the same pacing, each call starting afresh.
+ */
+public class PacedRetransformation implements AgentBuilder.RedefinitionStrategy.BatchAllocator,
+        AgentBuilder.RedefinitionStrategy.Listener {
+
+    /**
+     * Receives the outcome of every batch and of the whole retransformation
+     */
+    public interface BatchListener {
+
+        void onBatch(int index, int classes, long durationNanos);
+
+        default void onComplete(PacedRetransformation pacing) {
+        }
+    }
+
+    /**
+     * Prints a line per batch and a summary on stdout, if anything was retransformed
+     */
+    public static final BatchListener CONSOLE = new BatchListener() {
+        @Override
+        public void onBatch(int index, int classes, long durationNanos) {
+            System.out.printf("🔁 Retransformed batch %d | %d classes | %.2f ms%n",
+                    index, classes, durationNanos / 1e6);
+        }
+
+        @Override
+        public void onComplete(PacedRetransformation pacing) {
+            if (pacing.getBatchCount() == 0) {
+                return;
+            }
+            System.out.printf("🔁 Retransformation done | %d classes in %d batches | Max batch: %.2f ms | "
+                            + "Total: %.2f ms | Failed: %d%n",
+                    pacing.getClassCount(), pacing.getBatchCount(), pacing.getMaxBatchNanos() / 1e6,
+                    pacing.getTotalBatchNanos() / 1e6, pacing.getFailedCount());
+        }
+    };
+
+    private final int maxBatchSize;
+    private final long maxPauseNanos;
+    private final int pausePercent;
+    private final BatchListener listener;
+
+    private int batchSize;
+    // Batch being retransformed, started at batchStart (0 if none)
+    private int batchIndex;
+    private int batchClasses;
+    private long batchStart;
+    private long lastBatchNanos;
+    private int lastBatchClasses;
+
+    private int batchCount;
+    private int classCount;
+    private int failedCount;
+    private long maxBatchNanos;
+    private long totalBatchNanos;
+
+    public PacedRetransformation(int batchSize, long maxPause, TimeUnit unit, int pausePercent,
+                                 BatchListener listener) {
+        if (batchSize < 1 || pausePercent < 1 || pausePercent > 100) {
+            throw new IllegalArgumentException("Batch size must be positive and the pause percentage 1 to 100");
+        }
+        this.maxBatchSize = batchSize;
+        this.batchSize = batchSize;
+        this.maxPauseNanos = unit.toNanos(maxPause);
+        this.pausePercent = pausePercent;
+        this.listener = listener;
+    }
+
+    /**
+     * Pace by retransform.batchSize (default 50), retransform.maxPauseMillis (default 10) and
+     * retransform.pausePercent (default 10), reporting to the console
+     */
+    public static PacedRetransformation fromOptions(AgentOptions options) {
+        return new PacedRetransformation((int) options.getLong("retransform.batchSize", 50),
+                options.getLong("retransform.maxPauseMillis", 10), TimeUnit.MILLISECONDS,
+                (int) options.getLong("retransform.pausePercent", 10), CONSOLE);
+    }
+
+    @Override
+    public Iterable<? extends List<Class<?>>> batch(List<Class<?>> types) {
+        // Batches are taken one at a time, each after the previous one was applied, so each is sized on demand
+        return () -> new Iterator<List<Class<?>>>() {
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                return position < types.size();
+            }
+
+            @Override
+            public List<Class<?>> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                finishBatch();
+                int size = Math.min(nextBatchSize(), types.size() - position);
+                List<Class<?>> batch = types.subList(position, position + size);
+                position += size;
+                return batch;
+            }
+        };
+    }
+
+    /**
+     * Retransform the given classes in paced batches, reporting to the listener as when installing the agent;
+     * returns how many classes could not be retransformed. A batch that fails is not retried.
+     */
+    public synchronized int retransform(Instrumentation instrumentation, List<Class<?>> types) {
+        batchSize = maxBatchSize;
+        batchStart = 0;
+        lastBatchNanos = 0;
+        lastBatchClasses = 0;
+        batchCount = 0;
+        classCount = 0;
+        failedCount = 0;
+        maxBatchNanos = 0;
+        totalBatchNanos = 0;
+        int index = 0;
+        for (List<Class<?>> batch : batch(types)) {
+            onBatch(index, batch, types);
+            try {
+                instrumentation.retransformClasses(batch.toArray(new Class<?>[0]));
+            } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+                onError(index, batch, e, types);
+            }
+            index++;
+        }
+        onComplete(index, types, Collections.emptyMap());
+        return failedCount;
+    }
+
+    /**
+     * Size of the next batch, from the duration per class of the previous one
+     */
+    int nextBatchSize() {
+        if (lastBatchNanos > 0 && lastBatchClasses > 0) {
+            long fitting = maxPauseNanos * lastBatchClasses / lastBatchNanos;
+            batchSize = (int) Math.max(1, Math.min(Math.min(fitting, 2L * batchSize), maxBatchSize));
+        }
+        return batchSize;
+    }
+
+    /**
+     * Time to wait before the next batch, to keep within the pause percentage
+     */
+    long waitNanos() {
+        return lastBatchNanos * (100 - pausePercent) / pausePercent;
+    }
+
+    @Override
+    public void onBatch(int index, List<Class<?>> batch, List<Class<?>> types) {
+        finishBatch();
+        long wait = waitNanos();
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        batchIndex = index;
+        batchClasses = batch.size();
+        batchStart = System.nanoTime();
+    }
+
+    /**
+     * Account for the batch in progress, if any, which has been applied by now
+     */
+    private void finishBatch() {
+        if (batchStart == 0) {
+            return;
+        }
+        long duration = System.nanoTime() - batchStart;
+        batchStart = 0;
+        lastBatchNanos = duration;
+        lastBatchClasses = batchClasses;
+        batchCount++;
+        classCount += batchClasses;
+        totalBatchNanos += duration;
+        maxBatchNanos = Math.max(maxBatchNanos, duration);
+        listener.onBatch(batchIndex, batchClasses, duration);
+    }
+
+    @Override
+    public Iterable<? extends List<Class<?>>> onError(int index, List<Class<?>> batch, Throwable throwable,
+                                                     List<Class<?>> types) {
+        failedCount += batch.size();
+        System.err.println("⚠️ Could not retransform batch " + index + " of " + batch.size() + " classes: " + throwable);
+        // Not retried: a class that cannot be retransformed keeps its original code
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void onComplete(int amount, List<Class<?>> types, Map<List<Class<?>>, Throwable> failures) {
+        finishBatch();
+        listener.onComplete(this);
+    }
+
+    public int getBatchCount() {
+        return batchCount;
+    }
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public long getMaxBatchNanos() {
+        return maxBatchNanos;
+    }
+
+    public long getTotalBatchNanos() {
+        return totalBatchNanos;
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.bytebuddy.agent;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.matcher.ElementMatchers;
+import net.bytebuddy.pool.TypePool;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Type pool strategy keeping the type descriptions ByteBuddy parses while matching and transforming classes, so
+ * that the same super types and interfaces are not parsed again for every class and every class loader.
+ * <ul>
+ * <li>Descriptions are cached per class loader, and the pools are chained like the loaders: a type is first looked
+ * up in the parent loader's cache. Library classes of a shared parent are thus parsed once for all the plugin or
+ * custom loaders below it. The class being transformed is always described from its own bytes.</li>
+ * <li>Only loaders known to delegate parent-first are chained: those whose class overrides no loadClass method
+ * outside the JDK. Any other loader may be child-first, e.g. a plugin loader, so its pool reads every type through
+ * its own class file locator and caches it separately, rather than seeing the parent's copy of a type it has its
+ * own version of.</li>
+ * <li>Each loader keeps at most maxTypesPerLoader descriptions, evicting the least recently used.</li>
+ * <li>Loaders are weakly referenced, so a collected loader's cache goes with it. The cached descriptions refer to
+ * their loader through the class file locator, so the agent must use
+ * {@link AgentBuilder.LocationStrategy.ForClassLoader#WEAK}.</li>
+ * </ul>
+ */
+public class SharedTypePoolCache extends AgentBuilder.PoolStrategy.WithTypePoolCache {
+
+    // Whether a class loader type keeps the parent-first delegation of ClassLoader
+    private static final ClassValue<Boolean> PARENT_FIRST = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> current = type; current != ClassLoader.class; current = current.getSuperclass()) {
+                if (!isJdkClass(current) && declaresLoadClass(current)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
+    private final int maxTypesPerLoader;
+    private final Map<ClassLoader, LoaderCache> caches = Collections.synchronizedMap(new WeakHashMap<>());
+    private final LoaderCache bootCache = new LoaderCache();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SharedTypePoolCache(int maxTypesPerLoader) {
+        super(TypePool.Default.ReaderMode.FAST);
+        if (maxTypesPerLoader < 1) {
+            throw new IllegalArgumentException("maxTypesPerLoader must be at least 1: " + maxTypesPerLoader);
+        }
+        this.maxTypesPerLoader = maxTypesPerLoader;
+    }
+
+    /**
+     * Cache pool.maxTypesPerLoader descriptions per class loader (default 2000)
+     */
+    public static SharedTypePoolCache fromOptions(AgentOptions options) {
+        return new SharedTypePoolCache((int) options.getLong("pool.maxTypesPerLoader", 2000));
+    }
+
+    /**
+     * Descriptions of the types of one class loader, least recently used first
+     */
+    private final class LoaderCache extends LinkedHashMap<String, TypePool.Resolution>
+            implements TypePool.CacheProvider {
+
+        LoaderCache() {
+            super(64, 0.75f, true);
+        }
+
+        @Override
+        public synchronized TypePool.Resolution find(String name) {
+            TypePool.Resolution resolution = get(name);
+            if (resolution != null) {
+                hits.increment();
+            }
+            return resolution;
+        }
+
+        @Override
+        public synchronized TypePool.Resolution register(String name, TypePool.Resolution resolution) {
+            TypePool.Resolution cached = putIfAbsent(name, resolution);
+            if (cached != null) {
+                return cached;
+            }
+            // Only resolved descriptions are registered, so this is a class file that had to be parsed
+            misses.increment();
+            return resolution;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TypePool.Resolution> eldest) {
+            if (size() > maxTypesPerLoader) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
+
+        synchronized int typeCount() {
+            return size();
+        }
+    }
+
+    @Override
+    protected TypePool.CacheProvider locate(ClassLoader classLoader) {
+        return classLoader == null ? bootCache : caches.computeIfAbsent(classLoader, loader -> new LoaderCache());
+    }
+
+    @Override
+    public TypePool typePool(ClassFileLocator classFileLocator, ClassLoader classLoader) {
+        return new TypePool.Default.WithLazyResolution(locate(classLoader), classFileLocator, readerMode,
+                parentPool(classLoader));
+    }
+
+    @Override
+    public TypePool typePool(ClassFileLocator classFileLocator, ClassLoader classLoader, String name) {
+        // The type being transformed is described from the bytes at hand, never from a cache or a parent
+        TypePool parentPool = parentPool(classLoader);
+        return new TypePool.Default.WithLazyResolution(new TypePool.CacheProvider.Discriminating(
+                ElementMatchers.is(name), new TypePool.CacheProvider.Simple(), locate(classLoader)),
+                classFileLocator, readerMode,
+                parentPool == TypePool.Empty.INSTANCE ? parentPool : new Excluding(parentPool, name));
+    }
+
+    /**
+     * Pool of the loaders the given one delegates to, or an empty one if it may not delegate to them first
+     */
+    private TypePool parentPool(ClassLoader classLoader) {
+        if (classLoader == null || !isParentFirst(classLoader)) {
+            return TypePool.Empty.INSTANCE;
+        }
+        ClassLoader parent = classLoader.getParent();
+        if (parent == null) {
+            return new TypePool.Default.WithLazyResolution(bootCache, ClassFileLocator.ForClassLoader.ofBootLoader(),
+                    readerMode);
+        }
+        return new TypePool.Default.WithLazyResolution(locate(parent),
+                ClassFileLocator.ForClassLoader.WeaklyReferenced.of(parent), readerMode, parentPool(parent));
+    }
+
+    /**
+     * Whether the loader looks types up in its parent first: the boot loader, and loaders whose class overrides
+     * no loadClass method outside the JDK
+     */
+    static boolean isParentFirst(ClassLoader classLoader) {
+        return classLoader == null || PARENT_FIRST.get(classLoader.getClass());
+    }
+
+    private static boolean isJdkClass(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("jdk.") || name.startsWith("sun.");
+    }
+
+    private static boolean declaresLoadClass(Class<?> type) {
+        try {
+            for (Method method : type.getDeclaredMethods()) {
+                if (method.getName().equals("loadClass")) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (SecurityException | LinkageError e) {
+            // Cannot tell, so assume the worst
+            return true;
+        }
+    }
+
+    /**
+     * Parent pool that does not know one type, so that it is described by the child
+     */
+    private static final class Excluding implements TypePool {
+        private final TypePool parent;
+        private final String name;
+
+        Excluding(TypePool parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        @Override
+        public Resolution describe(String name) {
+            return this.name.equals(name) ? new Resolution.Illegal(name) : parent.describe(name);
+        }
+
+        @Override
+        public void clear() {
+            // The parent's cache is shared
+        }
+    }
+
+    /**
+     * Lookups answered from a cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Class files parsed, as they were not cached
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictedCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Class loaders with a cache, the boot loader included
+     */
+    public int getLoaderCount() {
+        return caches.size() + 1;
+    }
+
+    public int getTypeCount() {
+        List<LoaderCache> loaderCaches;
+        synchronized (caches) {
+            loaderCaches = new ArrayList<>(caches.values());
+        }
+        int count = bootCache.typeCount();
+        for (LoaderCache cache : loaderCaches) {
+            count += cache.typeCount();
+        }
+        return count;
+    }
+
+    /**
+     * One-line summary, e.g. for printing at shutdown
+     */
+    public String report() {
+        long hitCount = getHitCount();
+        long lookups = hitCount + getMissCount();
+        return String.format("🗃️ Type pool cache | Hits: %d | Misses: %d | Hit rate: %.1f%% | Evicted: %d | "
+                        + "Loaders: %d | Types: %d",
+                hitCount, getMissCount(), lookups > 0 ? 100.0 * hitCount / lookups : 0.0, getEvictedCount(),
+                getLoaderCount(), getTypeCount());
+    }
+}
@@ -0,0 +1,318 @@
+package com.example.bytebuddy.agent;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of transformed class bytes.
+ * Entries live in {@code <root>/<config hash>/<class bytes hash>.bin}, so a change of agent code or
+ * options starts a fresh directory; directories of other configurations are deleted when the cache opens.
+ * The total size is capped, evicting the least recently used entries; file modification times
+ * record the last use, so the order survives restarts.
+ *
+ * An entry also holds the {@link MethodRegistry} entries whose IDs were inlined into the bytes,
+ * since those IDs must be registered again before the cached bytes can be used.
+ */
+public class TransformCache {
+
+    private static final int MAGIC = 0x42424343;
+    private static final int VERSION = 1;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // File sizes by key in access order, guarded by this
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Transformation result of one class
+     */
+    public static class Entry {
+        // Null if the transformer left the class unchanged
+        public final byte[] bytes;
+        public final List<MethodRegistry.MethodInfo> methods;
+        // Time the original transformation took, i.e. what a hit saves
+        public final long transformNanos;
+
+        public Entry(byte[] bytes, List<MethodRegistry.MethodInfo> methods, long transformNanos) {
+            this.bytes = bytes;
+            this.methods = methods;
+            this.transformNanos = transformNanos;
+        }
+    }
+
+    public TransformCache(Path root, String configHash, long maxBytes) throws IOException {
+        this.directory = root.resolve(configHash);
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        // Invalidate everything written for another configuration
+        try (DirectoryStream<Path> configurations = Files.newDirectoryStream(root)) {
+            for (Path configuration : configurations) {
+                if (!configuration.equals(directory) && Files.isDirectory(configuration)) {
+                    delete(configuration);
+                }
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.bin")) {
+            for (Path file : entries) {
+                files.add(file);
+            }
+        }
+        Map<Path, FileTime> lastUse = new LinkedHashMap<>();
+        for (Path file : files) {
+            lastUse.put(file, Files.getLastModifiedTime(file));
+        }
+        files.sort((a, b) -> lastUse.get(a).compareTo(lastUse.get(b)));
+        synchronized (this) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long size = Files.size(file);
+                index.put(name.substring(0, name.length() - 4), size);
+                totalBytes += size;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Delete every cached entry of every configuration
+     */
+    public static void invalidate(Path root) throws IOException {
+        if (Files.isDirectory(root)) {
+            try (DirectoryStream<Path> configurations = Files.newDirectoryStream(root)) {
+                for (Path configuration : configurations) {
+                    delete(configuration);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load an entry, or return null if there is none or it cannot be read
+     */
+    public Entry load(String key) {
+        synchronized (this) {
+            if (index.get(key) == null) {
+                return null;
+            }
+        }
+        Path file = directory.resolve(key + ".bin");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a cache entry");
+            }
+            long transformNanos = in.readLong();
+            int methodCount = in.readInt();
+            List<MethodRegistry.MethodInfo> methods = new ArrayList<>(methodCount);
+            for (int i = 0; i < methodCount; i++) {
+                methods.add(new MethodRegistry.MethodInfo(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF(),
+                        in.readUTF()));
+            }
+            int length = in.readInt();
+            byte[] bytes = null;
+            if (length >= 0) {
+                bytes = new byte[length];
+                in.readFully(bytes);
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Entry(bytes, methods, transformNanos);
+        } catch (IOException e) {
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store an entry, evicting the least recently used ones beyond the size cap
+     */
+    public void store(String key, Entry entry) {
+        Path file = directory.resolve(key + ".bin");
+        try {
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(entry.transformNanos);
+                out.writeInt(entry.methods.size());
+                for (MethodRegistry.MethodInfo info : entry.methods) {
+                    out.writeInt(info.id);
+                    out.writeUTF(info.typeName);
+                    out.writeUTF(info.className);
+                    out.writeUTF(info.methodName);
+                    out.writeUTF(info.descriptor);
+                }
+                if (entry.bytes != null) {
+                    out.writeInt(entry.bytes.length);
+                    out.write(entry.bytes);
+                } else {
+                    out.writeInt(-1);
+                }
+            }
+            // Readers never see a partially written entry
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            long size = Files.size(file);
+            synchronized (this) {
+                Long previous = index.put(key, size);
+                totalBytes += size - (previous != null ? previous : 0);
+                evict();
+            }
+        } catch (IOException e) {
+            // Caching is best effort, the class was transformed anyway
+            System.err.println("⚠️ Cannot write transform cache entry " + file + ": " + e);
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Long size = index.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        try {
+            Files.deleteIfExists(directory.resolve(key + ".bin"));
+        } catch (IOException e) {
+            // Left for the next eviction
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            totalBytes -= entry.getValue();
+            evictions.incrementAndGet();
+            try {
+                Files.deleteIfExists(directory.resolve(entry.getKey() + ".bin"));
+            } catch (IOException e) {
+                // Not indexed anymore, so it is overwritten if the class shows up again
+            }
+        }
+    }
+
+    public synchronized int getEntryCount() {
+        return index.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Hex SHA-256 of the given bytes
+     */
+    public static String hash(byte[] bytes) {
+        return hex(digest().digest(bytes));
+    }
+
+    /**
+     * The agent options that change the woven bytes, plus the rules picking the methods, as settings to hash
+     * with {@link #configHash}. Any option that changes what is woven must be listed here, or the cache would
+     * serve classes woven under another setting.
+     */
+    public static String settings(AgentOptions options, Object rules) {
+        return "advice=" + options.get("advice", "basic")
+                + ",exceptions=" + options.getBoolean("exceptions", false)
+                + ",registry.aggregateLoaders=" + options.getBoolean("registry.aggregateLoaders", false)
+                + ",rules=" + rules;
+    }
+
+    /**
+     * Hash of an agent configuration: the given settings plus the agent's own code,
+     * so that rebuilding the agent invalidates entries woven with the old advice
+     */
+    public static String configHash(String settings, Class<?> agentClass) {
+        MessageDigest digest = digest();
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        try {
+            Path location = Paths.get(agentClass.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (Files.isRegularFile(location)) {
+                try (InputStream in = Files.newInputStream(location)) {
+                    update(digest, in);
+                }
+            } else {
+                // Exploded classes, e.g. target/classes: fall back to the agent class itself
+                try (InputStream in = agentClass.getResourceAsStream(agentClass.getSimpleName() + ".class")) {
+                    update(digest, in);
+                }
+            }
+        } catch (Exception e) {
+            // Without a code fingerprint the settings alone key the cache
+        }
+        return hex(digest.digest()).substring(0, 16);
+    }
+
+    private static void update(MessageDigest digest, InputStream in) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, read);
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required on every Java platform", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) {
+                    children.add(child);
+                }
+            }
+            Collections.sort(children);
+            for (Path child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.bytebuddy.callpath;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Aggregates calls by call path: each node is a method ID under its parent node, holding the call count
+ * and the total and self nanos of all calls along that path.
+ *
+ * Threads record into their own {@link ThreadPaths}, whose lock is uncontended except while a merge runs.
+ * {@link #merge()} adds the per-thread counters into the shared tree and zeroes them, remembering
+ * which shared node each per-thread node maps to, so repeated merges only walk and add.
+ * Merges run on demand before every export, and periodically once {@link #start(long)} is called.
+ */
+public class CallPathTree {
+
+    /**
+     * Nodes held in parallel arrays; node 0 is the root above all root calls.
+     * A parent always has a lower index than its children.
+     */
+    static final class Nodes {
+        int[] parents = new int[64];
+        int[] methodIds = new int[64];
+        int[] firstChildren = new int[64];
+        int[] nextSiblings = new int[64];
+        long[] counts = new long[64];
+        long[] totalNanos = new long[64];
+        long[] selfNanos = new long[64];
+        int size;
+
+        Nodes() {
+            methodIds[0] = -1;
+            parents[0] = -1;
+            firstChildren[0] = -1;
+            nextSiblings[0] = -1;
+            size = 1;
+        }
+
+        /**
+         * The node for the method under the given parent, added if there is none yet
+         */
+        int child(int parent, int methodId) {
+            for (int node = firstChildren[parent]; node >= 0; node = nextSiblings[node]) {
+                if (methodIds[node] == methodId) {
+                    return node;
+                }
+            }
+            if (size == parents.length) {
+                int capacity = size * 2;
+                parents = Arrays.copyOf(parents, capacity);
+                methodIds = Arrays.copyOf(methodIds, capacity);
+                firstChildren = Arrays.copyOf(firstChildren, capacity);
+                nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                totalNanos = Arrays.copyOf(totalNanos, capacity);
+                selfNanos = Arrays.copyOf(selfNanos, capacity);
+            }
+            int node = size++;
+            parents[node] = parent;
+            methodIds[node] = methodId;
+            firstChildren[node] = -1;
+            nextSiblings[node] = firstChildren[parent];
+            firstChildren[parent] = node;
+            return node;
+        }
+
+        /**
+         * The node following the given one in depth-first order, or 0 when the walk is done
+         */
+        int next(int node) {
+            if (firstChildren[node] >= 0) {
+                return firstChildren[node];
+            }
+            while (node > 0 && nextSiblings[node] < 0) {
+                node = parents[node];
+            }
+            return node > 0 ? nextSiblings[node] : 0;
+        }
+    }
+
+    /**
+     * The call paths of one thread since the last merge
+     */
+    public static final class ThreadPaths {
+        // Owning thread, or null for paths that are dropped once retired
+        final Thread thread;
+        private volatile boolean retired;
+        final Nodes nodes = new Nodes();
+        // Node of the open call at each depth
+        private int[] path = new int[16];
+        // Shared node each node maps to, 0 while not merged yet
+        int[] merged = new int[64];
+        // Whether the current root was entered, i.e. recording did not start mid-tree
+        private boolean recording;
+
+        ThreadPaths(Thread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * No more calls will be recorded; the paths are dropped after the next merge
+         */
+        public void retire() {
+            retired = true;
+        }
+
+        boolean isDone() {
+            return retired || thread != null && !thread.isAlive();
+        }
+
+        /**
+         * Record the entry of a call at the given stack depth
+         */
+        public synchronized void enter(int depth, int methodId) {
+            if (depth == 0) {
+                recording = true;
+            } else if (!recording) {
+                return;
+            }
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth] = nodes.child(depth > 0 ? path[depth - 1] : 0, methodId);
+        }
+
+        /**
+         * Record the exit of the open call at the given stack depth
+         */
+        public synchronized void exit(int depth, long durationNanos, long selfNanos) {
+            if (!recording) {
+                return;
+            }
+            int node = path[depth];
+            nodes.counts[node]++;
+            nodes.totalNanos[node] += durationNanos;
+            nodes.selfNanos[node] += selfNanos;
+        }
+    }
+
+    private final Nodes nodes = new Nodes();
+    private final ConcurrentLinkedQueue<ThreadPaths> threads = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Per-thread paths for the calling thread to record into, dropped once the thread has ended
+     */
+    public ThreadPaths newThreadPaths() {
+        ThreadPaths paths = new ThreadPaths(Thread.currentThread());
+        threads.add(paths);
+        return paths;
+    }
+
+    /**
+     * Paths not tied to a thread, e.g. of state handed from thread to thread, kept until {@link ThreadPaths#retire()}
+     */
+    public ThreadPaths newPooledPaths() {
+        ThreadPaths paths = new ThreadPaths(null);
+        threads.add(paths);
+        return paths;
+    }
+
+    /**
+     * Add the counters of all threads into the shared tree. Paths of ended threads and retired paths are dropped.
+     */
+    public synchronized void merge() {
+        for (Iterator<ThreadPaths> it = threads.iterator(); it.hasNext(); ) {
+            ThreadPaths paths = it.next();
+            // Checked before merging, so paths finishing meanwhile are merged once more next time
+            boolean done = paths.isDone();
+            synchronized (paths) {
+                mergeFrom(paths);
+            }
+            if (done) {
+                it.remove();
+            }
+        }
+    }
+
+    private void mergeFrom(ThreadPaths paths) {
+        Nodes local = paths.nodes;
+        if (paths.merged.length < local.size) {
+            paths.merged = Arrays.copyOf(paths.merged, Math.max(local.size, paths.merged.length * 2));
+        }
+        int[] merged = paths.merged;
+        for (int node = 1; node < local.size; node++) {
+            if (merged[node] == 0) {
+                merged[node] = nodes.child(merged[local.parents[node]], local.methodIds[node]);
+            }
+            if (local.counts[node] != 0) {
+                int target = merged[node];
+                nodes.counts[target] += local.counts[node];
+                nodes.totalNanos[target] += local.totalNanos[node];
+                nodes.selfNanos[target] += local.selfNanos[node];
+                local.counts[node] = 0;
+                local.totalNanos[node] = 0;
+                local.selfNanos[node] = 0;
+            }
+        }
+    }
+
+    /**
+     * Merge every interval on a daemon thread, so per-thread counters of finished threads get released
+     */
+    public void start(long intervalMillis) {
+        Thread merger = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                merge();
+            }
+        }, "instrumentation-callpath-merger");
+        merger.setDaemon(true);
+        merger.start();
+    }
+
+    /**
+     * Number of distinct call paths merged so far
+     */
+    public synchronized int getPathCount() {
+        return nodes.size - 1;
+    }
+
+    /**
+     * Write one line per call path with self time, in the collapsed format read by flamegraph.pl and
+     * speedscope: the method names from the root down separated by ';', a space and the self nanos
+     */
+    public synchronized void writeFolded(Appendable out) throws IOException {
+        merge();
+        FlameGraph.writeFolded(nodes, out);
+    }
+
+    /**
+     * Write a self-contained HTML page with an SVG flame graph of the total time of each call path
+     */
+    public synchronized void writeHtml(Appendable out, String title) throws IOException {
+        merge();
+        FlameGraph.writeHtml(nodes, out, title);
+    }
+
+    /**
+     * Write callpaths.folded and flamegraph.html into the directory when the JVM exits
+     */
+    public void exportOnShutdown(Path directory) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.createDirectories(directory);
+                try (Writer folded = Files.newBufferedWriter(directory.resolve("callpaths.folded"), StandardCharsets.UTF_8);
+                     Writer html = Files.newBufferedWriter(directory.resolve("flamegraph.html"), StandardCharsets.UTF_8)) {
+                    writeFolded(folded);
+                    writeHtml(html, "Call paths");
+                }
+                System.out.println("🔥 Call paths written to " + directory);
+            } catch (IOException e) {
+                System.err.println("⚠️ Call paths not written: " + e);
+            }
+        }, "instrumentation-callpath-export"));
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.bytebuddy.callpath;
+
+import com.example.bytebuddy.capture.ValueFormatter;
+import com.example.bytebuddy.registry.MethodRegistry;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Renders a {@link CallPathTree} as folded stacks or as an HTML page holding an SVG flame graph.
+ * The page needs no script or external resource; hovering a frame shows its calls, total and self time.
+ */
+final class FlameGraph {
+
+    private static final int WIDTH = 1200;
+    private static final int FRAME_HEIGHT = 17;
+    // Frames narrower than this are left out, together with their children
+    private static final double MIN_FRAME_WIDTH = 0.3;
+
+    private FlameGraph() {
+    }
+
+    private static int[] depths(CallPathTree.Nodes nodes) {
+        int[] depths = new int[nodes.size];
+        for (int node = 1; node < nodes.size; node++) {
+            depths[node] = depths[nodes.parents[node]] + 1;
+        }
+        return depths;
+    }
+
+    static void writeFolded(CallPathTree.Nodes nodes, Appendable out) throws IOException {
+        int[] depths = depths(nodes);
+        // Length of the path prefix up to each depth
+        int[] lengths = new int[16];
+        StringBuilder path = new StringBuilder();
+        for (int node = nodes.next(0); node > 0; node = nodes.next(node)) {
+            int depth = depths[node];
+            if (depth >= lengths.length) {
+                lengths = Arrays.copyOf(lengths, depth * 2);
+            }
+            path.setLength(depth > 1 ? lengths[depth - 1] : 0);
+            if (depth > 1) {
+                path.append(';');
+            }
+            appendFrameName(path, nodes.methodIds[node]);
+            lengths[depth] = path.length();
+            if (nodes.selfNanos[node] > 0) {
+                out.append(path).append(' ').append(Long.toString(nodes.selfNanos[node])).append('\n');
+            }
+        }
+    }
+
+    private static void appendFrameName(StringBuilder out, int methodId) {
+        String name = MethodRegistry.displayName(methodId);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            // Separators of the folded format
+            out.append(c == ';' || c == ' ' ? '_' : c);
+        }
+    }
+
+    static void writeHtml(CallPathTree.Nodes nodes, Appendable out, String title) throws IOException {
+        int[] depths = depths(nodes);
+        long rootTotal = 0;
+        int maxDepth = 0;
+        for (int node = 1; node < nodes.size; node++) {
+            if (depths[node] == 1) {
+                rootTotal += nodes.totalNanos[node];
+            }
+            maxDepth = Math.max(maxDepth, depths[node]);
+        }
+        // Frames start where their previous sibling ends, the first child where its parent starts
+        long[] starts = new long[nodes.size];
+        long[] cursors = new long[nodes.size];
+        for (int node = 1; node < nodes.size; node++) {
+            int parent = nodes.parents[node];
+            starts[node] = cursors[parent];
+            cursors[parent] += nodes.totalNanos[node];
+            cursors[node] = starts[node];
+        }
+
+        int height = Math.max(maxDepth, 1) * FRAME_HEIGHT;
+        out.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>");
+        appendEscaped(out, title);
+        out.append("</title>\n<style>body{font-family:monospace;margin:16px}text{font-size:11px;pointer-events:none}"
+                + "rect{stroke:#fff;stroke-width:0.5}g:hover rect{stroke:#000}</style></head><body>\n<h3>");
+        appendEscaped(out, title);
+        StringBuilder total = new StringBuilder();
+        ValueFormatter.appendDuration(total, rootTotal);
+        out.append(" — ").append(total).append(" total</h3>\n");
+        out.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(Integer.toString(WIDTH))
+                .append("\" height=\"").append(Integer.toString(height)).append("\">\n");
+        double scale = rootTotal > 0 ? (double) WIDTH / rootTotal : 0;
+        StringBuilder label = new StringBuilder();
+        for (int node = 1; node < nodes.size; node++) {
+            double width = nodes.totalNanos[node] * scale;
+            if (width < MIN_FRAME_WIDTH) {
+                continue;
+            }
+            double x = starts[node] * scale;
+            int y = height - depths[node] * FRAME_HEIGHT;
+            String name = MethodRegistry.displayName(nodes.methodIds[node]);
+            label.setLength(0);
+            label.append(name).append(" | Calls: ").append(nodes.counts[node]).append(" | Total: ");
+            ValueFormatter.appendDuration(label, nodes.totalNanos[node]);
+            label.append(" | Self: ");
+            ValueFormatter.appendDuration(label, nodes.selfNanos[node]);
+
+            out.append("<g><title>");
+            appendEscaped(out, label);
+            out.append("</title><rect x=\"").append(format(x)).append("\" y=\"").append(Integer.toString(y))
+                    .append("\" width=\"").append(format(width)).append("\" height=\"")
+                    .append(Integer.toString(FRAME_HEIGHT)).append("\" fill=\"").append(color(nodes.methodIds[node]))
+                    .append("\"/>");
+            // Roughly 7 pixels per character at this font size
+            int chars = (int) (width / 7);
+            if (chars >= 3) {
+                out.append("<text x=\"").append(format(x + 3)).append("\" y=\"")
+                        .append(Integer.toString(y + FRAME_HEIGHT - 5)).append("\">");
+                appendEscaped(out, name.length() <= chars ? name : name.substring(0, chars - 2) + "..");
+                out.append("</text>");
+            }
+            out.append("</g>\n");
+        }
+        out.append("</svg>\n</body></html>\n");
+    }
+
+    private static String format(double value) {
+        return Long.toString(Math.round(value * 10) / 10) + "." + Math.round(value * 10) % 10;
+    }
+
+    /**
+     * A warm color that stays the same for a method across graphs
+     */
+    private static String color(int methodId) {
+        int hash = methodId * 0x9E3779B1;
+        return "hsl(" + ((hash >>> 8) % 50) + ",80%," + (55 + (hash >>> 16) % 15) + "%)";
+    }
+
+    private static void appendEscaped(Appendable out, CharSequence text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.bytebuddy.capture;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when captured arguments and return values are reported, and how much of them.
+ *
+ * By default values are reported for every call. Once a latency threshold is set, the advice only
+ * keeps references until the call exits, and values are formatted only for calls that took at least
+ * the threshold or threw; all other calls are reported without them.
+ *
+ * Configured with system properties instrumentation.capture.thresholdMillis (unset: every call),
+ * instrumentation.capture.maxStringLength (default 64) and instrumentation.capture.maxCollectionSize
+ * (default 8), or at runtime through the static setters.
+ */
+public final class CapturePolicy {
+
+    /**
+     * Bounds on how much of a value gets formatted
+     */
+    public static final class Limits {
+        public final int maxStringLength;
+        public final int maxCollectionSize;
+
+        public Limits(int maxStringLength, int maxCollectionSize) {
+            this.maxStringLength = maxStringLength;
+            this.maxCollectionSize = maxCollectionSize;
+        }
+    }
+
+    private static final class Rule {
+        final String prefix;
+        final Limits limits;
+
+        Rule(String prefix, Limits limits) {
+            this.prefix = prefix;
+            this.limits = limits;
+        }
+    }
+
+    // Negative while every call is reported
+    private static volatile long thresholdNanos = readThreshold();
+
+    private static volatile Limits defaultLimits = new Limits(
+            Integer.getInteger("instrumentation.capture.maxStringLength", 64),
+            Integer.getInteger("instrumentation.capture.maxCollectionSize", 8));
+
+    private static final CopyOnWriteArrayList<Rule> rules = new CopyOnWriteArrayList<>();
+    // Resolved limits by method ID, written under the class lock and dropped whenever the rules change
+    private static volatile Limits[] resolved = new Limits[0];
+
+    private CapturePolicy() {
+    }
+
+    static {
+        // A released ID may be handed to a method with other limits
+        MethodRegistry.addReleaseListener(CapturePolicy::forget);
+    }
+
+    private static long readThreshold() {
+        String millis = System.getProperty("instrumentation.capture.thresholdMillis");
+        return millis != null ? TimeUnit.MILLISECONDS.toNanos(Long.parseLong(millis)) : -1;
+    }
+
+    /**
+     * Report values only for calls taking at least the given time, or throwing
+     */
+    public static void setThreshold(long threshold, TimeUnit unit) {
+        thresholdNanos = unit.toNanos(threshold);
+    }
+
+    /**
+     * Report values for every call again
+     */
+    public static void captureAlways() {
+        thresholdNanos = -1;
+    }
+
+    /**
+     * Whether values are reported for every call, i.e. there is no threshold
+     */
+    public static boolean isEager() {
+        return thresholdNanos < 0;
+    }
+
+    /**
+     * Whether the values of a finished call should be reported
+     */
+    public static boolean shouldReport(long durationNanos, Throwable thrown) {
+        long threshold = thresholdNanos;
+        return threshold < 0 || thrown != null || durationNanos >= threshold;
+    }
+
+    public static Limits defaultLimits() {
+        return defaultLimits;
+    }
+
+    public static synchronized void setDefaultLimits(int maxStringLength, int maxCollectionSize) {
+        defaultLimits = new Limits(maxStringLength, maxCollectionSize);
+        resolved = new Limits[0];
+    }
+
+    /**
+     * Set the limits for methods whose fully qualified or display name ("Class.method") starts with
+     * the given prefix; the longest matching prefix wins
+     */
+    public static synchronized void setLimits(String methodPrefix, int maxStringLength, int maxCollectionSize) {
+        rules.add(new Rule(methodPrefix, new Limits(maxStringLength, maxCollectionSize)));
+        resolved = new Limits[0];
+    }
+
+    /**
+     * Limits that apply to the given method
+     */
+    public static Limits limitsFor(int methodId) {
+        Limits[] current = resolved;
+        if (methodId >= 0 && methodId < current.length && current[methodId] != null) {
+            return current[methodId];
+        }
+        return resolve(methodId);
+    }
+
+    private static synchronized void forget(int methodId) {
+        if (methodId < resolved.length) {
+            Limits[] current = resolved.clone();
+            current[methodId] = null;
+            resolved = current;
+        }
+    }
+
+    private static synchronized Limits resolve(int methodId) {
+        Limits limits = lookup(methodId);
+        if (methodId >= 0) {
+            Limits[] current = resolved;
+            if (methodId >= current.length) {
+                current = Arrays.copyOf(current, Math.max(methodId + 1, current.length * 2));
+            }
+            current[methodId] = limits;
+            resolved = current;
+        }
+        return limits;
+    }
+
+    private static Limits lookup(int methodId) {
+        MethodRegistry.MethodInfo info = MethodRegistry.get(methodId);
+        Limits limits = defaultLimits;
+        if (info == null) {
+            return limits;
+        }
+        String qualifiedName = info.typeName + "." + info.methodName;
+        int longest = -1;
+        for (Rule rule : rules) {
+            if (rule.prefix.length() > longest
+                    && (qualifiedName.startsWith(rule.prefix) || info.displayName.startsWith(rule.prefix))) {
+                longest = rule.prefix.length();
+                limits = rule.limits;
+            }
+        }
+        return limits;
+    }
+}
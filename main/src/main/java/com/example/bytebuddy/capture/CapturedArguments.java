@@ -0,0 +1,47 @@
+package com.example.bytebuddy.capture;
+
+import com.example.bytebuddy.storage.ContextStorage;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread stack holding the argument arrays of the calls in progress, so that the exit advice can
+ * report them without the enter advice formatting or copying anything.
+ * The slots are cleared on pop, so no reference outlives its call, and the stack is released once empty.
+ */
+public final class CapturedArguments {
+
+    private static final ContextStorage<CapturedArguments> stacks =
+            ContextStorage.create(CapturedArguments::new, stack -> { });
+
+    private Object[][] frames = new Object[16][];
+    private int size;
+
+    /**
+     * Keep the arguments of a call that is being entered
+     */
+    public static void push(Object[] arguments) {
+        CapturedArguments stack = stacks.get();
+        if (stack.size == stack.frames.length) {
+            stack.frames = Arrays.copyOf(stack.frames, stack.size * 2);
+        }
+        stack.frames[stack.size++] = arguments;
+    }
+
+    /**
+     * Take back the arguments of the call that is exiting
+     */
+    public static Object[] pop() {
+        CapturedArguments stack = stacks.get();
+        if (stack.size == 0) {
+            stacks.release();
+            return null;
+        }
+        Object[] arguments = stack.frames[--stack.size];
+        stack.frames[stack.size] = null;
+        if (stack.size == 0) {
+            stacks.release();
+        }
+        return arguments;
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.bytebuddy.capture;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Appends captured values to a StringBuilder within {@link CapturePolicy.Limits}.
+ * Never calls hashCode() of arbitrary objects, which may be expensive on domain types;
+ * objects without a cheap representation are shown as SimpleName@identityHash.
+ *
+ * Values formatted on another thread than the one that captured them go through {@link #capture} first:
+ * the application may still be changing its collections, arrays and builders when the sink thread gets to them.
+ */
+public final class ValueFormatter {
+
+    // Nested values deeper than this are shown by identity, also bounding the copy of a self-containing collection
+    private static final int MAX_CAPTURE_DEPTH = 4;
+
+    private ValueFormatter() {
+    }
+
+    /**
+     * Bounded copy of a mutable value, formatted as the value itself would have been when it was captured
+     */
+    private static final class Copy {
+        static final byte TEXT = 0;
+        static final byte ELEMENTS = 1;
+        static final byte ARRAY = 2;
+        static final byte ENTRY = 3;
+        static final byte IDENTITY = 4;
+
+        final byte kind;
+        // Text, type name of the collection or array elements, or SimpleName@identityHash
+        final String text;
+        final int size;
+        final Object[] elements;
+
+        Copy(byte kind, String text, int size, Object[] elements) {
+            this.kind = kind;
+            this.text = text;
+            this.size = size;
+            this.elements = elements;
+        }
+    }
+
+    /**
+     * A value that can be formatted later on another thread, as it is now: strings, boxed primitives, enums and
+     * objects shown by identity as they are, anything else copied within the limits
+     */
+    public static Object capture(Object value, CapturePolicy.Limits limits) {
+        return capture(value, limits, 0);
+    }
+
+    /**
+     * The arguments captured as by {@link #capture}, the same array if none of them needs copying
+     */
+    public static Object[] captureArguments(Object[] arguments, CapturePolicy.Limits limits) {
+        if (arguments == null) {
+            return null;
+        }
+        Object[] captured = arguments;
+        for (int i = 0; i < arguments.length; i++) {
+            Object value = capture(arguments[i], limits, 0);
+            if (value != arguments[i]) {
+                if (captured == arguments) {
+                    captured = arguments.clone();
+                }
+                captured[i] = value;
+            }
+        }
+        return captured;
+    }
+
+    private static Object capture(Object value, CapturePolicy.Limits limits, int depth) {
+        if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+                || value instanceof Character || value instanceof Enum || value instanceof Copy) {
+            return value;
+        }
+        if (value instanceof CharSequence) {
+            CharSequence text = (CharSequence) value;
+            int length = text.length();
+            return new Copy(Copy.TEXT, text.subSequence(0, Math.min(length, limits.maxStringLength)).toString(),
+                    length, null);
+        }
+        boolean array = value.getClass().isArray();
+        if (depth >= MAX_CAPTURE_DEPTH || !(array || value instanceof Collection || value instanceof Map
+                || value instanceof Map.Entry)) {
+            // Formatted by identity, which is safe on any thread, but a collection would be formatted by content
+            return array || value instanceof Collection || value instanceof Map || value instanceof Map.Entry
+                    ? new Copy(Copy.IDENTITY, identity(value), 0, null) : value;
+        }
+        try {
+            if (array) {
+                int length = Array.getLength(value);
+                Object[] elements = new Object[Math.min(length, limits.maxCollectionSize)];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = capture(Array.get(value, i), limits, depth + 1);
+                }
+                return new Copy(Copy.ARRAY, value.getClass().getComponentType().getSimpleName(), length, elements);
+            }
+            if (value instanceof Map.Entry) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) value;
+                return new Copy(Copy.ENTRY, null, 2, new Object[]{
+                        capture(entry.getKey(), limits, depth + 1), capture(entry.getValue(), limits, depth + 1)});
+            }
+            Iterator<?> iterator;
+            int size;
+            if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>) value;
+                size = collection.size();
+                iterator = collection.iterator();
+            } else {
+                Map<?, ?> map = (Map<?, ?>) value;
+                size = map.size();
+                iterator = map.entrySet().iterator();
+            }
+            Object[] elements = new Object[Math.min(size, limits.maxCollectionSize)];
+            int shown = 0;
+            while (shown < elements.length && iterator.hasNext()) {
+                elements[shown++] = capture(iterator.next(), limits, depth + 1);
+            }
+            return new Copy(Copy.ELEMENTS, value.getClass().getSimpleName(), size,
+                    shown < elements.length ? Arrays.copyOf(elements, shown) : elements);
+        } catch (RuntimeException e) {
+            // E.g. changed meanwhile by another thread: the calling thread must not fail for a report
+            return new Copy(Copy.IDENTITY, identity(value), 0, null);
+        }
+    }
+
+    /**
+     * Append an argument list, "none" if there are no arguments
+     */
+    public static void appendArguments(StringBuilder out, Object[] arguments, CapturePolicy.Limits limits) {
+        if (arguments == null || arguments.length == 0) {
+            out.append("none");
+            return;
+        }
+        for (int i = 0; i < arguments.length; i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            appendValue(out, arguments[i], limits);
+        }
+    }
+
+    /**
+     * Append a single value
+     */
+    public static void appendValue(StringBuilder out, Object value, CapturePolicy.Limits limits) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Copy) {
+            appendCopy(out, (Copy) value, limits);
+        } else if (value instanceof CharSequence) {
+            CharSequence text = (CharSequence) value;
+            out.append('"');
+            if (text.length() > limits.maxStringLength) {
+                out.append(text, 0, limits.maxStringLength).append("…\" (").append(text.length()).append(" chars)");
+            } else {
+                out.append(text).append('"');
+            }
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            out.append(value);
+        } else if (value instanceof Enum) {
+            out.append(((Enum<?>) value).name());
+        } else if (value.getClass().isArray()) {
+            appendArray(out, value, limits);
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            out.append(value.getClass().getSimpleName());
+            appendElements(out, collection.iterator(), collection.size(), limits);
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.append(value.getClass().getSimpleName());
+            appendElements(out, map.entrySet().iterator(), map.size(), limits);
+        } else if (value instanceof Map.Entry) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) value;
+            appendValue(out, entry.getKey(), limits);
+            out.append('=');
+            appendValue(out, entry.getValue(), limits);
+        } else {
+            appendIdentity(out, value);
+        }
+    }
+
+    private static void appendArray(StringBuilder out, Object array, CapturePolicy.Limits limits) {
+        int length = Array.getLength(array);
+        out.append(array.getClass().getComponentType().getSimpleName()).append('[').append(length).append("]{");
+        int shown = Math.min(length, limits.maxCollectionSize);
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            appendValue(out, Array.get(array, i), limits);
+        }
+        if (shown < length) {
+            out.append(shown > 0 ? ", …" : "…");
+        }
+        out.append('}');
+    }
+
+    private static void appendElements(StringBuilder out, Iterator<?> elements, int size, CapturePolicy.Limits limits) {
+        out.append('[').append(size).append("]{");
+        int shown = 0;
+        while (shown < limits.maxCollectionSize && elements.hasNext()) {
+            if (shown++ > 0) {
+                out.append(", ");
+            }
+            appendValue(out, elements.next(), limits);
+        }
+        if (elements.hasNext()) {
+            out.append(shown > 0 ? ", …" : "…");
+        }
+        out.append('}');
+    }
+
+    private static void appendCopy(StringBuilder out, Copy copy, CapturePolicy.Limits limits) {
+        switch (copy.kind) {
+            case Copy.TEXT:
+                out.append('"').append(copy.text);
+                out.append(copy.size > copy.text.length() ? "…\" (" + copy.size + " chars)" : "\"");
+                break;
+            case Copy.ENTRY:
+                appendValue(out, copy.elements[0], limits);
+                out.append('=');
+                appendValue(out, copy.elements[1], limits);
+                break;
+            case Copy.IDENTITY:
+                out.append(copy.text);
+                break;
+            default:
+                out.append(copy.text).append('[').append(copy.size).append("]{");
+                for (int i = 0; i < copy.elements.length; i++) {
+                    if (i > 0) {
+                        out.append(", ");
+                    }
+                    appendValue(out, copy.elements[i], limits);
+                }
+                if (copy.elements.length < copy.size) {
+                    out.append(copy.elements.length > 0 ? ", …" : "…");
+                }
+                out.append('}');
+        }
+    }
+
+    private static void appendIdentity(StringBuilder out, Object value) {
+        out.append(value.getClass().getSimpleName()).append('@')
+                .append(Integer.toHexString(System.identityHashCode(value)));
+    }
+
+    private static String identity(Object value) {
+        return value.getClass().getSimpleName() + '@' + Integer.toHexString(System.identityHashCode(value));
+    }
+
+    /**
+     * Append a duration in the largest fitting unit with two decimals, e.g. "1.25 ms", without String.format
+     */
+    public static void appendDuration(StringBuilder out, long nanoseconds) {
+        if (nanoseconds < 1000) {
+            out.append(nanoseconds).append(" ns");
+        } else if (nanoseconds < 1_000_000) {
+            appendScaled(out, nanoseconds, 1000).append(" μs");
+        } else if (nanoseconds < 1_000_000_000) {
+            appendScaled(out, nanoseconds, 1_000_000).append(" ms");
+        } else {
+            appendScaled(out, nanoseconds, 1_000_000_000).append(" s");
+        }
+    }
+
+    private static StringBuilder appendScaled(StringBuilder out, long value, long unit) {
+        long hundredths = (value * 100 + unit / 2) / unit;
+        out.append(hundredths / 100).append('.');
+        long fraction = hundredths % 100;
+        if (fraction < 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.bytebuddy.clock;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Clock read from fields that a daemon ticker thread refreshes every tick
+ */
+final class CoarseTimeSource extends TimeSource implements Runnable {
+
+    // The ticker writes every tick, so the fields are padded onto a cache line of their own, keeping the writes
+    // from invalidating whatever else the readers have next to them. Padding by inheritance, as the JVM keeps
+    // superclass fields first but may reorder the fields of a single class.
+    static class LeftPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    static class Time extends LeftPadding {
+        volatile long nanos;
+        volatile long millis;
+    }
+
+    static final class PaddedTime extends Time {
+        long p11, p12, p13, p14, p15, p16, p17;
+    }
+
+    private final PaddedTime time = new PaddedTime();
+    private final long tickNanos;
+    private final Thread ticker;
+    private volatile boolean running = true;
+
+    CoarseTimeSource(long tickNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickNanos + " ns");
+        }
+        this.tickNanos = tickNanos;
+        time.nanos = System.nanoTime();
+        time.millis = System.currentTimeMillis();
+        ticker = new Thread(this, "instrumentation-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            LockSupport.parkNanos(tickNanos);
+            time.nanos = System.nanoTime();
+            time.millis = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public Mode getMode() {
+        return Mode.COARSE;
+    }
+
+    @Override
+    public long nanoTime() {
+        return time.nanos;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return time.millis;
+    }
+
+    @Override
+    void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.bytebuddy.clock;
+
+/**
+ * Reads the system clocks on every call
+ */
+final class PreciseTimeSource extends TimeSource {
+
+    @Override
+    public Mode getMode() {
+        return Mode.PRECISE;
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.bytebuddy.clock;
+
+import com.example.bytebuddy.storage.ContextStorage;
+
+/**
+ * Precise clock that only times each thread's outermost call, tracking the call depth for advice that does not
+ * track it itself. The depth is kept in a {@link ContextStorage} and released when it returns to 0.
+ */
+final class RootOnlyTimeSource extends TimeSource {
+
+    final ContextStorage<int[]> depth = ContextStorage.create(() -> new int[1], counter -> { });
+
+    @Override
+    public Mode getMode() {
+        return Mode.ROOT;
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public boolean timesNestedCalls() {
+        return false;
+    }
+
+    @Override
+    public boolean enterCall() {
+        return depth.get()[0]++ == 0;
+    }
+
+    @Override
+    public void exitCall() {
+        int[] current = depth.get();
+        // Calls entered before this time source was installed were not counted
+        if (current[0] > 0) {
+            current[0]--;
+        }
+        if (current[0] == 0) {
+            depth.release();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.bytebuddy.clock;
+
+/**
+ * Clock read by the advice, in one of three modes:
+ * <ul>
+ * <li>{@link Mode#PRECISE} reads {@code System.nanoTime()} and {@code System.currentTimeMillis()} on every call.</li>
+ * <li>{@link Mode#COARSE} reads a volatile field a background ticker thread refreshes every tick, by default every
+ * millisecond. A read costs about as much as a field access, at the price of durations only being accurate to
+ * the tick: calls shorter than a tick mostly measure 0. Meant for hosts where reading the clock is slow, e.g.
+ * virtual machines without a usable TSC, and for methods called so often that the clock reads dominate.</li>
+ * <li>{@link Mode#ROOT} only times the outermost instrumented call of each thread, precisely. Nested calls are
+ * counted but neither timed nor given a duration, so a call tree costs two clock reads however deep it is.</li>
+ * </ul>
+ * The mode is read from {@code -Dinstrumentation.clock=precise|coarse|root} (with
+ * {@code -Dinstrumentation.clock.tickMicros}) or set with {@link #setMode}; as calls in progress keep the start
+ * time of the previous mode, it should be chosen before instrumented code runs.
+ */
+public abstract class TimeSource {
+
+    public enum Mode {
+        PRECISE, COARSE, ROOT
+    }
+
+    /**
+     * Start time of a call that is not timed, e.g. a nested call in {@link Mode#ROOT}
+     */
+    public static final long NOT_TIMED = Long.MIN_VALUE + 1;
+
+    private static volatile TimeSource current = create(
+            Mode.valueOf(System.getProperty("instrumentation.clock", "precise").toUpperCase()),
+            Long.getLong("instrumentation.clock.tickMicros", 1000));
+
+    /**
+     * The time source in use
+     */
+    public static TimeSource get() {
+        return current;
+    }
+
+    /**
+     * Switch to the given mode, with the ticker of {@link Mode#COARSE} refreshing every tickMicros
+     */
+    public static synchronized void setMode(Mode mode, long tickMicros) {
+        TimeSource previous = current;
+        current = create(mode, tickMicros);
+        previous.close();
+    }
+
+    private static TimeSource create(Mode mode, long tickMicros) {
+        switch (mode) {
+            case COARSE:
+                return new CoarseTimeSource(tickMicros * 1000);
+            case ROOT:
+                return new RootOnlyTimeSource();
+            default:
+                return new PreciseTimeSource();
+        }
+    }
+
+    public abstract Mode getMode();
+
+    /**
+     * Monotonic time in nanoseconds, as {@code System.nanoTime()}
+     */
+    public abstract long nanoTime();
+
+    /**
+     * Wall clock time in milliseconds, as {@code System.currentTimeMillis()}
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * Whether calls nested in another instrumented call of the same thread are timed
+     */
+    public boolean timesNestedCalls() {
+        return true;
+    }
+
+    /**
+     * Called on every instrumented entry by advice that does not track call depth itself, returning whether
+     * the call is to be timed; every call has to be followed by {@link #exitCall()}, also when the method throws
+     */
+    public boolean enterCall() {
+        return true;
+    }
+
+    /**
+     * Called on every instrumented exit paired with {@link #enterCall()}
+     */
+    public void exitCall() {
+    }
+
+    /**
+     * Release what the time source holds, such as a ticker thread, once it is no longer in use
+     */
+    void close() {
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.bytebuddy.context;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Calls a task with the context captured when it was submitted, restoring the worker's own context afterwards
+ */
+final class ContextCallable<T> implements Callable<T> {
+
+    private final Callable<T> task;
+    private final RequestContext context;
+
+    ContextCallable(Callable<T> task, RequestContext context) {
+        this.task = task;
+        this.context = context;
+    }
+
+    @Override
+    public T call() throws Exception {
+        RequestContext previous = RequestContext.attach(context);
+        try {
+            return task.call();
+        } finally {
+            RequestContext.detach(previous);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return task.toString();
+    }
+}
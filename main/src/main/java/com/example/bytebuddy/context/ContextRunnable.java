@@ -0,0 +1,34 @@
+package com.example.bytebuddy.context;
+
+/**
+ * Runs a task with the context captured when it was submitted, restoring the worker's own context afterwards
+ */
+final class ContextRunnable implements Runnable {
+
+    private final Runnable task;
+    private final RequestContext context;
+
+    ContextRunnable(Runnable task, RequestContext context) {
+        this.task = task;
+        this.context = context;
+    }
+
+    @Override
+    public void run() {
+        RequestContext previous = RequestContext.attach(context);
+        try {
+            task.run();
+        } finally {
+            RequestContext.detach(previous);
+        }
+    }
+
+    Runnable task() {
+        return task;
+    }
+
+    @Override
+    public String toString() {
+        return task.toString();
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.bytebuddy.context;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Request and flow attributes of the work a thread is doing, reported with every stack-aware event.
+ * Instances are immutable, so capturing the current context is a single read and restoring it a single write;
+ * {@link #wrap(Runnable)} carries it over to the thread that runs a task, allocating one wrapper and only when
+ * there is something to carry.
+ *
+ * Set it at the entry points of a request:
+ * <pre>
+ * RequestContext previous = RequestContext.attach(RequestContext.of(user, "checkout"));
+ * try { ... } finally { RequestContext.detach(previous); }
+ * </pre>
+ *
+ * This package only depends on the JDK, since the agent loads it into the bootstrap class loader
+ * for the advice woven into JDK executors.
+ */
+public final class RequestContext {
+
+    // Until set at an entry point
+    public static final RequestContext DEFAULT = new RequestContext("FK Plus User", "Flow1");
+
+    private static final ThreadLocal<RequestContext> current = ThreadLocal.withInitial(() -> DEFAULT);
+    // Contexts of submitted ForkJoinTasks, until they run; weakly keyed, so that a task cancelled or dropped
+    // before it runs does not stay here
+    private static final ConcurrentHashMap<SubmittedTask, RequestContext> submittedTasks = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<ForkJoinTask<?>> collectedTasks = new ReferenceQueue<>();
+
+    public final Object request;
+    public final Object flow;
+
+    private RequestContext(Object request, Object flow) {
+        this.request = request;
+        this.flow = flow;
+    }
+
+    public static RequestContext of(Object request, Object flow) {
+        return new RequestContext(request, flow);
+    }
+
+    /**
+     * The context of the current thread
+     */
+    public static RequestContext current() {
+        return current.get();
+    }
+
+    /**
+     * Make the context current, returning the previous one to pass to {@link #detach}
+     */
+    public static RequestContext attach(RequestContext context) {
+        RequestContext previous = current.get();
+        current.set(context);
+        return previous;
+    }
+
+    /**
+     * Restore the context that was current before {@link #attach}
+     */
+    public static void detach(RequestContext previous) {
+        current.set(previous);
+    }
+
+    /**
+     * A task running with the current context, or the task itself if the context is the default
+     * or the task already carries one
+     */
+    public static Runnable wrap(Runnable task) {
+        RequestContext context = current.get();
+        if (context == DEFAULT || task == null || task instanceof ContextRunnable) {
+            return task;
+        }
+        return new ContextRunnable(task, context);
+    }
+
+    /**
+     * A task running with the current context, or the task itself if the context is the default
+     * or the task already carries one
+     */
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        RequestContext context = current.get();
+        if (context == DEFAULT || task == null || task instanceof ContextCallable) {
+            return task;
+        }
+        return new ContextCallable<>(task, context);
+    }
+
+    /**
+     * The task to hand to an executor, which may have to see it as it is, e.g. to return it from remove or
+     * shutdownNow, or to run a ForkJoinTask as such. FutureTasks are left alone, as they carry the context of their
+     * creation (see ContextPropagation); the context of a ForkJoinTask is kept aside, see {@link #attachSubmitted}.
+     * Other tasks are wrapped.
+     */
+    public static Runnable wrapSubmitted(Runnable task) {
+        if (task instanceof FutureTask) {
+            return task;
+        }
+        if (task instanceof ForkJoinTask) {
+            RequestContext context = current.get();
+            if (context != DEFAULT) {
+                expungeCollectedTasks();
+                submittedTasks.put(new SubmittedTask((ForkJoinTask<?>) task, collectedTasks), context);
+            }
+            return task;
+        }
+        return wrap(task);
+    }
+
+    /**
+     * Attach the context a ForkJoinTask was submitted with as it starts running, returning the previous context
+     * to pass to {@link #detach}, or null if the task carries none
+     */
+    public static RequestContext attachSubmitted(ForkJoinTask<?> task) {
+        if (submittedTasks.isEmpty()) {
+            return null;
+        }
+        RequestContext context = submittedTasks.remove(new SubmittedTask(task, null));
+        return context != null ? attach(context) : null;
+    }
+
+    /**
+     * Drop the context kept for a task that will not run, e.g. because the executor rejected it
+     */
+    public static void forgetSubmitted(Runnable task) {
+        if (task instanceof ForkJoinTask && !submittedTasks.isEmpty()) {
+            submittedTasks.remove(new SubmittedTask((ForkJoinTask<?>) task, null));
+        }
+    }
+
+    /**
+     * Replace the wrapped tasks in a list of tasks taken from an executor's queue, e.g. by shutdownNow,
+     * with the tasks as they were submitted
+     */
+    public static void unwrapAll(List<Runnable> tasks) {
+        for (int i = 0; i < tasks.size(); i++) {
+            Runnable task = tasks.get(i);
+            if (task instanceof ContextRunnable) {
+                tasks.set(i, ((ContextRunnable) task).task());
+            }
+        }
+    }
+
+    /**
+     * Remove the wrapper of a submitted task from an executor's queue, returning whether it was queued
+     */
+    public static boolean removeWrapped(Collection<Runnable> queue, Runnable task) {
+        for (Runnable queued : queue) {
+            if (queued instanceof ContextRunnable && ((ContextRunnable) queued).task() == task) {
+                return queue.remove(queued);
+            }
+        }
+        return false;
+    }
+
+    private static void expungeCollectedTasks() {
+        for (Object collected; (collected = collectedTasks.poll()) != null; ) {
+            submittedTasks.remove(collected);
+        }
+    }
+
+    /**
+     * Identity key of a submitted task that does not keep it alive; registered with the queue when stored,
+     * not when only used to look up
+     */
+    private static final class SubmittedTask extends WeakReference<ForkJoinTask<?>> {
+
+        private final int hash;
+
+        SubmittedTask(ForkJoinTask<?> task, ReferenceQueue<ForkJoinTask<?>> queue) {
+            super(task, queue);
+            this.hash = System.identityHashCode(task);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof SubmittedTask)) {
+                return false;
+            }
+            ForkJoinTask<?> task = get();
+            return task != null && task == ((SubmittedTask) other).get();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RequestContext[request=" + request + ", flow=" + flow + "]";
+    }
+}
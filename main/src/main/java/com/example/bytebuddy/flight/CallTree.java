@@ -0,0 +1,110 @@
+package com.example.bytebuddy.flight;
+
+import com.example.bytebuddy.stacks.StackTraceStore;
+
+import java.util.Arrays;
+
+/**
+ * The calls of the current root on one thread, in the order they were entered, held in parallel
+ * primitive arrays that are reused from one root to the next.
+ * Nodes beyond the size limit are counted but not recorded, so one huge tree cannot exhaust the heap.
+ */
+public class CallTree {
+
+    private final int maxNodes;
+
+    private int[] methodIds = new int[64];
+    private int[] depths = new int[64];
+    private long[] startNanos = new long[64];
+    private long[] durationNanos = new long[64];
+    private boolean[] thrown = new boolean[64];
+    private int size;
+    // Node index of the open call at each depth, -1 if that call was not recorded
+    private int[] open = new int[16];
+    private int dropped;
+    // Whether the root of the current tree was recorded, i.e. recording did not start mid-tree
+    private boolean recording;
+
+    public CallTree(int maxNodes) {
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Record the entry of a call at the given stack depth
+     */
+    public void enter(int depth, int methodId, long start) {
+        if (depth == 0) {
+            reset();
+            recording = true;
+        } else if (!recording) {
+            return;
+        }
+        if (depth == open.length) {
+            open = Arrays.copyOf(open, depth * 2);
+        }
+        if (size == maxNodes) {
+            open[depth] = -1;
+            dropped++;
+            return;
+        }
+        if (size == methodIds.length) {
+            int capacity = Math.min(size * 2, maxNodes);
+            methodIds = Arrays.copyOf(methodIds, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+            startNanos = Arrays.copyOf(startNanos, capacity);
+            durationNanos = Arrays.copyOf(durationNanos, capacity);
+            thrown = Arrays.copyOf(thrown, capacity);
+        }
+        methodIds[size] = methodId;
+        depths[size] = depth;
+        startNanos[size] = start;
+        durationNanos[size] = 0;
+        thrown[size] = false;
+        open[depth] = size++;
+    }
+
+    /**
+     * Record the exit of the open call at the given stack depth
+     */
+    public void exit(int depth, long duration, boolean threw) {
+        if (!recording) {
+            return;
+        }
+        int node = open[depth];
+        if (node >= 0) {
+            durationNanos[node] = duration;
+            thrown[node] = threw;
+        }
+    }
+
+    /**
+     * Copy the finished tree into an immutable trace
+     */
+    SlowTrace toTrace(long sequence, String threadName, long endMillis, StackTraceStore callerStacks,
+                      int callerTraceId) {
+        return new SlowTrace(sequence, threadName, endMillis, Arrays.copyOf(methodIds, size),
+                Arrays.copyOf(depths, size), Arrays.copyOf(startNanos, size), Arrays.copyOf(durationNanos, size),
+                Arrays.copyOf(thrown, size), dropped, callerStacks, callerTraceId);
+    }
+
+    /**
+     * Forget the recorded calls, keeping the arrays for the next root
+     */
+    public void reset() {
+        size = 0;
+        dropped = 0;
+        recording = false;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDroppedCount() {
+        return dropped;
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.bytebuddy.flight;
+
+import com.example.bytebuddy.agent.AgentOptions;
+import com.example.bytebuddy.stacks.StackTraceStore;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tail-based capture of call trees. Each thread records its current root call into a reused
+ * {@link CallTree}; when the root returns, the tree is dropped by resetting it, or copied into
+ * a bounded ring of {@link SlowTrace}s if the root took at least the threshold.
+ * The ring keeps the most recent slow traces (capacity rounded up to a power of two), older ones are overwritten.
+ *
+ * Options: flight.thresholdMillis, flight.capacity (traces kept, default 64) and
+ * flight.maxNodes (calls recorded per tree, default 4096). With flight.callerStack=true a promoted trace also
+ * keeps the stack its root was called from, interned into the shared {@link StackTraceStore}.
+ */
+public class FlightRecorder implements FlightRecorderMXBean {
+
+    private volatile long thresholdNanos;
+    private final int maxNodes;
+    private final AtomicReferenceArray<SlowTrace> ring;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder discarded = new LongAdder();
+    // Where to intern the caller stacks of promoted roots, null to not take them
+    private volatile StackTraceStore callerStacks;
+
+    public FlightRecorder(long threshold, TimeUnit unit, int capacity, int maxNodes) {
+        if (capacity <= 0 || maxNodes <= 0) {
+            throw new IllegalArgumentException("Capacity and node limit must be positive");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.maxNodes = maxNodes;
+        this.ring = new AtomicReferenceArray<>(Math.max(size, 1));
+        this.mask = ring.length() - 1;
+    }
+
+    public static FlightRecorder fromOptions(AgentOptions options) {
+        FlightRecorder recorder = new FlightRecorder(options.getLong("flight.thresholdMillis", 100),
+                TimeUnit.MILLISECONDS, (int) options.getLong("flight.capacity", 64),
+                (int) options.getLong("flight.maxNodes", 4096));
+        if (options.getBoolean("flight.callerStack", false)) {
+            recorder.recordCallerStacks(StackTraceStore.get());
+        }
+        return recorder;
+    }
+
+    /**
+     * Keep the caller stack of each promoted root in the given store from now on, or stop with null
+     */
+    public void recordCallerStacks(StackTraceStore store) {
+        callerStacks = store;
+    }
+
+    /**
+     * A tree for a thread to record its root calls into
+     */
+    public CallTree newTree() {
+        return new CallTree(maxNodes);
+    }
+
+    /**
+     * Called when the root call recorded in the tree has returned; promotes the tree if it was slow
+     * and resets it either way
+     */
+    public void rootExit(CallTree tree, long durationNanos) {
+        if (!tree.isRecording()) {
+            return;
+        }
+        if (durationNanos < thresholdNanos) {
+            discarded.increment();
+        } else {
+            long next = sequence.incrementAndGet();
+            StackTraceStore store = callerStacks;
+            int callerTraceId = store != null ? internCallerStack(store) : StackTraceStore.NONE;
+            ring.set((int) next & mask, tree.toTrace(next, Thread.currentThread().getName(),
+                    System.currentTimeMillis(), store, callerTraceId));
+        }
+        tree.reset();
+    }
+
+    /**
+     * Intern the current stack, starting at the root method by skipping the recorder and advice frames
+     */
+    private static int internCallerStack(StackTraceStore store) {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        int offset = 0;
+        while (offset < stack.length && isRecorderFrame(stack[offset].getClassName())) {
+            offset++;
+        }
+        return store.intern(stack, offset, Integer.MAX_VALUE);
+    }
+
+    private static boolean isRecorderFrame(String className) {
+        return className.startsWith("com.example.bytebuddy.flight.")
+                || className.equals("com.example.bytebuddy.StackAwareInstrumentation");
+    }
+
+    /**
+     * The slow traces in the ring, oldest first
+     */
+    public List<SlowTrace> getTraces() {
+        List<SlowTrace> traces = new ArrayList<>(ring.length());
+        for (int i = 0; i < ring.length(); i++) {
+            SlowTrace trace = ring.get(i);
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        traces.sort(Comparator.comparingLong(trace -> trace.sequence));
+        return traces;
+    }
+
+    /**
+     * Register the MXBean, so the traces can be retrieved with a JMX client
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("com.example.bytebuddy:type=FlightRecorder"));
+        } catch (Exception e) {
+            System.err.println("⚠️ Flight recorder MXBean not registered: " + e);
+        }
+    }
+
+    @Override
+    public long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    @Override
+    public void setThresholdMillis(long thresholdMillis) {
+        thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    @Override
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    @Override
+    public long getPromotedCount() {
+        return sequence.get();
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (SlowTrace trace : getTraces()) {
+            trace.appendTo(sb);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+    }
+}
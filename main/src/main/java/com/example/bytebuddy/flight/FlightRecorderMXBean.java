@@ -0,0 +1,29 @@
+package com.example.bytebuddy.flight;
+
+/**
+ * Operator view of the {@link FlightRecorder}, registered as
+ * {@code com.example.bytebuddy:type=FlightRecorder} and reachable from jconsole or any JMX client
+ */
+public interface FlightRecorderMXBean {
+
+    long getThresholdMillis();
+
+    void setThresholdMillis(long thresholdMillis);
+
+    /**
+     * Root calls that finished under the threshold and were discarded
+     */
+    long getDiscardedCount();
+
+    /**
+     * Root calls promoted to the ring, including those since overwritten
+     */
+    long getPromotedCount();
+
+    /**
+     * The slow traces still in the ring, oldest first, formatted as text
+     */
+    String dump();
+
+    void clear();
+}
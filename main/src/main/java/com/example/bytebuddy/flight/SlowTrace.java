@@ -0,0 +1,119 @@
+package com.example.bytebuddy.flight;
+
+import com.example.bytebuddy.capture.ValueFormatter;
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.stacks.StackTraceStore;
+
+import java.time.Instant;
+
+/**
+ * A promoted call tree: a root call that took at least the {@link FlightRecorder} threshold,
+ * with every call it made in entry order. Node 0 is the root.
+ */
+public final class SlowTrace {
+
+    public final long sequence;
+    public final String threadName;
+    // Wall clock time the root call returned
+    public final long endMillis;
+    private final int[] methodIds;
+    private final int[] depths;
+    private final long[] startNanos;
+    private final long[] durationNanos;
+    private final boolean[] thrown;
+    // Calls made beyond the node limit, not part of the trace
+    public final int droppedNodes;
+    // Stack the root was called from in callerStacks, StackTraceStore.NONE if not taken
+    public final int callerTraceId;
+    private final StackTraceStore callerStacks;
+
+    SlowTrace(long sequence, String threadName, long endMillis, int[] methodIds, int[] depths,
+              long[] startNanos, long[] durationNanos, boolean[] thrown, int droppedNodes,
+              StackTraceStore callerStacks, int callerTraceId) {
+        this.sequence = sequence;
+        this.threadName = threadName;
+        this.endMillis = endMillis;
+        this.methodIds = methodIds;
+        this.depths = depths;
+        this.startNanos = startNanos;
+        this.durationNanos = durationNanos;
+        this.thrown = thrown;
+        this.droppedNodes = droppedNodes;
+        this.callerStacks = callerStacks;
+        this.callerTraceId = callerTraceId;
+    }
+
+    public int size() {
+        return methodIds.length;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos[0];
+    }
+
+    public int methodIdAt(int node) {
+        return methodIds[node];
+    }
+
+    public int depthAt(int node) {
+        return depths[node];
+    }
+
+    /**
+     * Start of the call relative to the start of the root
+     */
+    public long offsetNanosAt(int node) {
+        return startNanos[node] - startNanos[0];
+    }
+
+    public long durationNanosAt(int node) {
+        return durationNanos[node];
+    }
+
+    public boolean threwAt(int node) {
+        return thrown[node];
+    }
+
+    /**
+     * Stack the root was called from, starting at the root method, or null if not taken or evicted
+     */
+    public StackTraceElement[] getCallerStack() {
+        return callerTraceId != StackTraceStore.NONE ? callerStacks.lookup(callerTraceId) : null;
+    }
+
+    /**
+     * Append the tree, indented by depth like the stack-aware output
+     */
+    public void appendTo(StringBuilder out) {
+        out.append("🐢 SLOW TRACE #").append(sequence).append(" | ").append(threadName).append(" | ");
+        ValueFormatter.appendDuration(out, getDurationNanos());
+        out.append(" | Ended: ").append(Instant.ofEpochMilli(endMillis)).append('\n');
+        for (int node = 0; node < methodIds.length; node++) {
+            for (int i = 0; i <= depths[node]; i++) {
+                out.append("  ");
+            }
+            out.append(MethodRegistry.displayName(methodIds[node])).append(" | +");
+            ValueFormatter.appendDuration(out, offsetNanosAt(node));
+            out.append(" | ");
+            ValueFormatter.appendDuration(out, durationNanos[node]);
+            if (thrown[node]) {
+                out.append(" | ❌");
+            }
+            out.append('\n');
+        }
+        if (droppedNodes > 0) {
+            out.append("  … ").append(droppedNodes).append(" more calls not recorded\n");
+        }
+        if (callerTraceId != StackTraceStore.NONE) {
+            out.append("  Called from:\n");
+            callerStacks.appendTo(out, callerTraceId, 16, "    ");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+}
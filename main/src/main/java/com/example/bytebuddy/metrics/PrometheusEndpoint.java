@@ -0,0 +1,94 @@
+package com.example.bytebuddy.metrics;
+
+import com.example.bytebuddy.agent.AgentOptions;
+import com.example.bytebuddy.stats.MethodStatsStore;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Serves {@link PrometheusRenderer} output at /metrics from the JDK's built-in HTTP server.
+ *
+ * Scrapes are handled one at a time on the server's own thread and only read the lock-free statistics
+ * counters, so instrumented threads never wait for a scrape.
+ */
+public class PrometheusEndpoint {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final PrometheusRenderer renderer;
+
+    public PrometheusEndpoint(InetSocketAddress address, MethodStatsStore statistics, int topN) throws IOException {
+        this.renderer = new PrometheusRenderer(statistics, topN);
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+    }
+
+    /**
+     * Create an endpoint on metrics.port, bound to metrics.host (default loopback),
+     * rendering the metrics.topN methods with the most total time (default 500).
+     * Binding to all interfaces, e.g. metrics.host=0.0.0.0, exposes the method names to the network
+     * and also needs metrics.allInterfaces=true.
+     */
+    public static PrometheusEndpoint fromOptions(AgentOptions options, MethodStatsStore statistics) throws IOException {
+        String host = options.get("metrics.host", null);
+        int port = (int) options.getLong("metrics.port", 9464);
+        InetSocketAddress address = host != null
+                ? new InetSocketAddress(host, port)
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        if (address.getAddress() != null && address.getAddress().isAnyLocalAddress()
+                && !options.getBoolean("metrics.allInterfaces", false)) {
+            throw new IllegalArgumentException("metrics.host=" + host
+                    + " binds to all interfaces, which also needs metrics.allInterfaces=true");
+        }
+        return new PrometheusEndpoint(address, statistics, (int) options.getLong("metrics.topN", 500));
+    }
+
+    /**
+     * Start serving. The server's dispatcher thread inherits the daemon flag of the thread starting it,
+     * so it is started from a daemon thread to not keep the JVM alive.
+     */
+    public void start() {
+        Thread starter = new Thread(server::start, "instrumentation-metrics-start");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            // Only one scrape at a time uses the renderer's buffer
+            synchronized (renderer) {
+                int length = renderer.render();
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(renderer.buffer(), 0, length);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
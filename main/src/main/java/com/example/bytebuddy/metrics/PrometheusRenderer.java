@@ -0,0 +1,400 @@
+package com.example.bytebuddy.metrics;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.stats.LatencyHistogram;
+import com.example.bytebuddy.stats.MethodStats;
+import com.example.bytebuddy.stats.MethodStatsStore;
+
+import java.util.Arrays;
+
+/**
+ * Renders method statistics in the Prometheus text exposition format (version 0.0.4).
+ *
+ * Values are read straight from the live {@link MethodStats} counters into a byte buffer reused across scrapes,
+ * so once the buffer has grown to size a scrape allocates nothing. Only the topN methods with the most total
+ * time are rendered, which bounds the output with tens of thousands of methods; the others are counted in
+ * instrumentation_methods_omitted. With sampling only some calls are timed, so total and self time are
+ * scaled up to all calls, except in the histogram, whose sum has to match its buckets.
+ * Not thread-safe, {@link PrometheusEndpoint} renders one scrape at a time.
+ */
+public class PrometheusRenderer {
+
+    // Histogram bucket bounds, 1 and 5 per decade from 1 µs to 10 s, with their le labels
+    private static final long[] BOUNDS_NANOS = {
+            1_000L, 5_000L, 10_000L, 50_000L, 100_000L, 500_000L, 1_000_000L, 5_000_000L, 10_000_000L,
+            50_000_000L, 100_000_000L, 500_000_000L, 1_000_000_000L, 5_000_000_000L, 10_000_000_000L};
+    private static final String[] BOUND_LABELS = {
+            "1e-06", "5e-06", "1e-05", "5e-05", "0.0001", "0.0005", "0.001", "0.005", "0.01",
+            "0.05", "0.1", "0.5", "1", "5", "10"};
+
+    // Bound index for each LatencyHistogram bucket: the first bound at or above the bucket's upper end,
+    // BOUNDS_NANOS.length for +Inf
+    private static final int[] BOUND_OF_BUCKET = boundOfBucket();
+
+    private final MethodStatsStore statistics;
+    private final int topN;
+
+    // Reused between scrapes
+    private int[] selectedIds = new int[64];
+    private long[] selectedNanos = new long[64];
+    private int selectedCount;
+    // Resolved once per scrape, so a method released meanwhile is still rendered consistently
+    private MethodStats[] selectedStats = new MethodStats[64];
+    private MethodRegistry.MethodInfo[] selectedInfos = new MethodRegistry.MethodInfo[64];
+    private int omitted;
+    private final long[] cumulative = new long[BOUNDS_NANOS.length + 1];
+    private byte[] buffer = new byte[16 * 1024];
+    private int length;
+
+    public PrometheusRenderer(MethodStatsStore statistics, int topN) {
+        if (topN < 1) {
+            throw new IllegalArgumentException("topN must be at least 1: " + topN);
+        }
+        this.statistics = statistics;
+        this.topN = topN;
+    }
+
+    private static int[] boundOfBucket() {
+        int[] bounds = new int[LatencyHistogram.BUCKET_COUNT];
+        for (int bucket = 0; bucket < bounds.length; bucket++) {
+            long upper = LatencyHistogram.bucketUpperBound(bucket);
+            int bound = 0;
+            while (bound < BOUNDS_NANOS.length && BOUNDS_NANOS[bound] < upper) {
+                bound++;
+            }
+            bounds[bucket] = bound;
+        }
+        // The last bucket holds everything above its nominal range
+        bounds[bounds.length - 1] = BOUNDS_NANOS.length;
+        return bounds;
+    }
+
+    /**
+     * Render the current statistics, replacing the previous output; returns the length in bytes
+     */
+    public int render() {
+        length = 0;
+        selectTop();
+
+        family("instrumentation_method_calls_total", "counter", "Completed calls, including those not timed due to sampling");
+        for (int i = 0; i < selectedCount; i++) {
+            series("instrumentation_method_calls_total", selectedInfos[i]);
+            number(selectedStats[i].getCount());
+            newline();
+        }
+
+        family("instrumentation_method_duration_seconds", "histogram", "Duration of timed calls");
+        for (int i = 0; i < selectedCount; i++) {
+            histogram(selectedInfos[i], selectedStats[i]);
+        }
+
+        family("instrumentation_method_self_seconds_total", "counter", "Time spent outside instrumented child calls, estimated for all calls");
+        for (int i = 0; i < selectedCount; i++) {
+            MethodStats stats = selectedStats[i];
+            long selfNanos = estimatedNanos(stats.getSelfNanos(), stats.getCount(), stats.getTimedCount());
+            // Only the stack-aware advice knows the self time
+            if (selfNanos > 0) {
+                series("instrumentation_method_self_seconds_total", selectedInfos[i]);
+                seconds(selfNanos);
+                newline();
+            }
+        }
+
+        family("instrumentation_methods_omitted", "gauge", "Methods with statistics left out beyond the top N by total time");
+        text("instrumentation_methods_omitted ");
+        number(omitted);
+        newline();
+        Arrays.fill(selectedStats, 0, selectedCount, null);
+        Arrays.fill(selectedInfos, 0, selectedCount, null);
+        return length;
+    }
+
+    /**
+     * Output of the last {@link #render()}, valid up to its length
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Keep the topN methods by total time in a bounded min-heap, then sort them hottest first
+     */
+    private void selectTop() {
+        int count = 0;
+        omitted = 0;
+        int registered = MethodRegistry.size();
+        for (int id = 0; id < registered; id++) {
+            MethodStats stats = statistics.get(id);
+            if (stats == null || MethodRegistry.get(id) == null) {
+                continue;
+            }
+            // Ranked by the time of all calls, not just the timed ones, so sampling doesn't skew the ranking
+            long nanos = estimatedNanos(stats.getTotalNanos(), stats.getCount(), stats.getTimedCount());
+            if (count < topN) {
+                if (count == selectedIds.length) {
+                    int capacity = (int) Math.min(topN, count * 2L);
+                    selectedIds = Arrays.copyOf(selectedIds, capacity);
+                    selectedNanos = Arrays.copyOf(selectedNanos, capacity);
+                }
+                selectedIds[count] = id;
+                selectedNanos[count] = nanos;
+                siftUp(count++);
+            } else {
+                omitted++;
+                if (nanos > selectedNanos[0]) {
+                    selectedIds[0] = id;
+                    selectedNanos[0] = nanos;
+                    siftDown(0, count);
+                }
+            }
+        }
+        // Moving the minimum to the end of the shrinking heap leaves the hottest methods first
+        for (int end = count - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        if (selectedStats.length < selectedIds.length) {
+            selectedStats = new MethodStats[selectedIds.length];
+            selectedInfos = new MethodRegistry.MethodInfo[selectedIds.length];
+        }
+        selectedCount = 0;
+        for (int i = 0; i < count; i++) {
+            MethodStats stats = statistics.get(selectedIds[i]);
+            MethodRegistry.MethodInfo info = MethodRegistry.get(selectedIds[i]);
+            if (stats != null && info != null) {
+                selectedStats[selectedCount] = stats;
+                selectedInfos[selectedCount++] = info;
+            }
+        }
+    }
+
+    /**
+     * Time of the timed calls scaled up to all calls; in double, as nanos * count may overflow a long
+     */
+    static long estimatedNanos(long timedNanos, long count, long timedCount) {
+        if (timedCount <= 0 || count <= timedCount) {
+            return timedNanos;
+        }
+        return (long) ((double) timedNanos * count / timedCount);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (selectedNanos[parent] <= selectedNanos[index]) {
+                return;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index, int size) {
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            if (left < size && selectedNanos[left] < selectedNanos[smallest]) {
+                smallest = left;
+            }
+            if (left + 1 < size && selectedNanos[left + 1] < selectedNanos[smallest]) {
+                smallest = left + 1;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = selectedIds[a];
+        selectedIds[a] = selectedIds[b];
+        selectedIds[b] = id;
+        long nanos = selectedNanos[a];
+        selectedNanos[a] = selectedNanos[b];
+        selectedNanos[b] = nanos;
+    }
+
+    private void histogram(MethodRegistry.MethodInfo info, MethodStats stats) {
+        Arrays.fill(cumulative, 0);
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long count = stats.getBucketCount(bucket);
+            if (count != 0) {
+                cumulative[BOUND_OF_BUCKET[bucket]] += count;
+            }
+        }
+        long total = 0;
+        for (int bound = 0; bound <= BOUNDS_NANOS.length; bound++) {
+            total += cumulative[bound];
+            series("instrumentation_method_duration_seconds_bucket", info, bound);
+            number(total);
+            newline();
+        }
+        series("instrumentation_method_duration_seconds_sum", info);
+        seconds(stats.getTotalNanos());
+        newline();
+        // Taken from the buckets, so that it always equals the +Inf bucket
+        series("instrumentation_method_duration_seconds_count", info);
+        number(total);
+        newline();
+    }
+
+    private void family(String name, String type, String help) {
+        text("# HELP ");
+        text(name);
+        text(" ");
+        text(help);
+        text("\n# TYPE ");
+        text(name);
+        text(" ");
+        text(type);
+        newline();
+    }
+
+    private void series(String name, MethodRegistry.MethodInfo info) {
+        series(name, info, -1);
+    }
+
+    /**
+     * Metric name and labels up to the value, with an le label unless bound is negative
+     */
+    private void series(String name, MethodRegistry.MethodInfo info, int bound) {
+        text(name);
+        text("{class=\"");
+        labelValue(info.typeName);
+        text("\",method=\"");
+        labelValue(info.methodName);
+        text("\",descriptor=\"");
+        labelValue(info.descriptor);
+        if (info.loaderName != null) {
+            text("\",loader=\"");
+            labelValue(info.loaderName);
+        }
+        if (bound >= 0) {
+            text("\",le=\"");
+            text(bound < BOUND_LABELS.length ? BOUND_LABELS[bound] : "+Inf");
+        }
+        text("\"} ");
+    }
+
+    private void labelValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                put('\\');
+                put(c);
+            } else if (c == '\n') {
+                put('\\');
+                put('n');
+            } else {
+                character(value, i, c);
+                if (Character.isHighSurrogate(c) && i + 1 < value.length()) {
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Append as UTF-8 without going through a String encoder
+     */
+    private void text(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            character(value, i, c);
+            if (Character.isHighSurrogate(c) && i + 1 < value.length()) {
+                i++;
+            }
+        }
+    }
+
+    private void character(String value, int index, char c) {
+        if (c < 0x80) {
+            put(c);
+        } else if (c < 0x800) {
+            ensure(2);
+            buffer[length++] = (byte) (0xC0 | (c >> 6));
+            buffer[length++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()) {
+            int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            ensure(4);
+            buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            ensure(3);
+            buffer[length++] = (byte) (0xE0 | (c >> 12));
+            buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[length++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void number(long value) {
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        ensure(19);
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // Digits were written least significant first
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+    }
+
+    /**
+     * Append nanoseconds as decimal seconds, e.g. 0.001234
+     */
+    private void seconds(long nanos) {
+        number(nanos / 1_000_000_000L);
+        long fraction = nanos % 1_000_000_000L;
+        if (fraction == 0) {
+            return;
+        }
+        put('.');
+        int digits = 9;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        for (long scale = pow10(digits - 1); scale > fraction; scale /= 10) {
+            put('0');
+        }
+        number(fraction);
+    }
+
+    private static long pow10(int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+
+    private void newline() {
+        put('\n');
+    }
+
+    private void put(char c) {
+        ensure(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensure(int bytes) {
+        if (length + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+        }
+    }
+}
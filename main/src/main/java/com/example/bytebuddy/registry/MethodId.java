@@ -0,0 +1,16 @@
+package com.example.bytebuddy.registry;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds the registry ID of the instrumented method to an {@code int} advice parameter.
+ * The ID is assigned when the method is transformed and inlined into the advice as a constant,
+ * so reading it at runtime costs nothing.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface MethodId {
+}
@@ -0,0 +1,477 @@
+package com.example.bytebuddy.registry;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.ElementMatchers;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntConsumer;
+
+/**
+ * Registry assigning a stable int ID to every instrumented method.
+ * IDs are handed out at transformation time and inlined into the advice through {@link MethodId},
+ * so the enter/exit hot path only ever deals with an int and never builds a method key.
+ *
+ * Classes of the system class loader and its parents share one set of IDs. Any other class loader,
+ * e.g. of a plugin or a redeployed application, gets its own IDs for the same methods, unless loaders
+ * are aggregated. Such loaders are only held weakly: once one is collected, the IDs only it used are
+ * released, their listeners drop the state kept for them, and the IDs are handed out again.
+ */
+public class MethodRegistry {
+
+    // Method key (type name + method signature, prefixed by the loader scope unless shared) to ID,
+    // only consulted at transformation time
+    private static final ConcurrentHashMap<String, Integer> idsByKey = new ConcurrentHashMap<>();
+
+    // ID to method info, replaced on growth so that readers never need a lock
+    private static volatile MethodInfo[] methods = new MethodInfo[256];
+    private static int size;
+
+    // Loaders sharing scope 0: the bootstrap (null), system and platform class loaders
+    private static final ClassLoader[] sharedLoaders = sharedLoaders();
+    // Scopes of all other loaders, written under the class lock
+    private static final Map<ClassLoader, LoaderScope> scopes = new WeakHashMap<>();
+    private static final ReferenceQueue<ClassLoader> collectedLoaders = new ReferenceQueue<>();
+    private static int scopeCount;
+
+    // Released IDs, handed out again before new ones
+    private static int[] freeIds = new int[16];
+    private static int freeCount;
+    private static volatile long releasedCount;
+    private static final CopyOnWriteArrayList<IntConsumer> releaseListeners = new CopyOnWriteArrayList<>();
+
+    // Whether the same method gets one ID in every class loader; only affects methods registered afterwards
+    private static volatile boolean aggregateLoaders = Boolean.getBoolean("instrumentation.registry.aggregateLoaders");
+
+    // Methods for which the advice should also capture the argument array
+    private static volatile ElementMatcher.Junction<MethodDescription> argumentCapture = ElementMatchers.none();
+
+    // Methods for which the advice should only keep statistics
+    private static volatile ElementMatcher.Junction<MethodDescription> timingOnly = ElementMatchers.none();
+
+    // Return types with a primitive-typed exit advice, in the order the advice variants are passed in
+    private static final Class<?>[] PRIMITIVE_RETURNS = {int.class, long.class, double.class, boolean.class};
+
+    /**
+     * Information about a registered method
+     */
+    public static class MethodInfo {
+        public final int id;
+        public final String typeName;
+        public final String className;
+        public final String methodName;
+        public final String descriptor;
+        // Class loader the ID belongs to, null when shared by the system class loader or aggregated
+        public final String loaderName;
+        public final String displayName;
+
+        // Registry bookkeeping, guarded by the class lock
+        private String registeredKey;
+        private int loaderReferences;
+        private boolean pinned;
+
+        public MethodInfo(int id, String typeName, String className, String methodName, String descriptor) {
+            this(id, typeName, className, methodName, descriptor, null);
+        }
+
+        public MethodInfo(int id, String typeName, String className, String methodName, String descriptor,
+                          String loaderName) {
+            this.id = id;
+            this.typeName = typeName;
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.loaderName = loaderName;
+            this.displayName = loaderName != null
+                    ? className + "." + methodName + " [" + loaderName + "]"
+                    : className + "." + methodName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public String getKey() {
+            return key(typeName, methodName, descriptor);
+        }
+
+        @Override
+        public String toString() {
+            return id + ":" + typeName + "." + methodName + descriptor;
+        }
+    }
+
+    /**
+     * Class loader holding its own method IDs
+     */
+    private static final class LoaderScope extends WeakReference<ClassLoader> {
+        final int id;
+        final String name;
+        // IDs this loader's classes were instrumented with
+        final BitSet methodIds = new BitSet();
+
+        LoaderScope(int id, ClassLoader loader) {
+            super(loader, collectedLoaders);
+            this.id = id;
+            this.name = String.valueOf(loader);
+        }
+    }
+
+    /**
+     * Register a method in the shared scope, returning the existing ID if it was registered before
+     */
+    public static int register(String typeName, String className, String methodName, String descriptor) {
+        String key = key(typeName, methodName, descriptor);
+        Integer id = idsByKey.get(key);
+        if (id != null) {
+            MethodInfo info = get(id);
+            // Already pinned unless only aggregated loaders registered it so far
+            if (info != null && info.pinned) {
+                return id;
+            }
+        }
+        synchronized (MethodRegistry.class) {
+            id = idsByKey.get(key);
+            MethodInfo info = id == null ? allocate(key, typeName, className, methodName, descriptor, null) : methods[id];
+            info.pinned = true;
+            return info.id;
+        }
+    }
+
+    /**
+     * Register a method of a class defined by the given loader, returning the existing ID if the method
+     * was registered for that loader before
+     */
+    public static int register(ClassLoader loader, String typeName, String className, String methodName,
+                               String descriptor) {
+        if (isShared(loader)) {
+            return register(typeName, className, methodName, descriptor);
+        }
+        synchronized (MethodRegistry.class) {
+            expungeCollectedLoaders();
+            LoaderScope scope = scopes.get(loader);
+            if (scope == null) {
+                scope = new LoaderScope(++scopeCount, loader);
+                scopes.put(loader, scope);
+            }
+            boolean aggregate = aggregateLoaders;
+            String key = aggregate
+                    ? key(typeName, methodName, descriptor)
+                    : scope.id + "@" + key(typeName, methodName, descriptor);
+            Integer id = idsByKey.get(key);
+            MethodInfo info = id != null ? methods[id]
+                    : allocate(key, typeName, className, methodName, descriptor, aggregate ? null : scope.name);
+            if (!scope.methodIds.get(info.id)) {
+                scope.methodIds.set(info.id);
+                info.loaderReferences++;
+            }
+            return info.id;
+        }
+    }
+
+    private static MethodInfo allocate(String key, String typeName, String className, String methodName,
+                                       String descriptor, String loaderName) {
+        int id = freeCount > 0 ? freeIds[--freeCount] : size++;
+        MethodInfo[] current = methods;
+        if (id == current.length) {
+            current = Arrays.copyOf(current, id * 2);
+        }
+        MethodInfo info = new MethodInfo(id, typeName, className, methodName, descriptor, loaderName);
+        info.registeredKey = key;
+        current[id] = info;
+        // Volatile write publishes the new slot to lock-free readers
+        methods = current;
+        idsByKey.put(key, id);
+        return info;
+    }
+
+    private static boolean isShared(ClassLoader loader) {
+        for (ClassLoader shared : sharedLoaders) {
+            if (shared == loader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ClassLoader[] sharedLoaders() {
+        List<ClassLoader> loaders = new ArrayList<>();
+        loaders.add(null);
+        for (ClassLoader loader = ClassLoader.getSystemClassLoader(); loader != null; loader = loader.getParent()) {
+            loaders.add(loader);
+        }
+        return loaders.toArray(new ClassLoader[0]);
+    }
+
+    /**
+     * Release the IDs that were only used by class loaders which have been garbage collected since,
+     * returning how many were released. Also runs whenever a method of a non-shared loader is registered.
+     */
+    public static synchronized int expungeCollectedLoaders() {
+        int released = 0;
+        Reference<? extends ClassLoader> collected;
+        while ((collected = collectedLoaders.poll()) != null) {
+            BitSet ids = ((LoaderScope) collected).methodIds;
+            for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                MethodInfo info = methods[id];
+                if (--info.loaderReferences == 0 && !info.pinned) {
+                    release(info);
+                    released++;
+                }
+            }
+        }
+        return released;
+    }
+
+    private static void release(MethodInfo info) {
+        idsByKey.remove(info.registeredKey);
+        MethodInfo[] current = methods;
+        current[info.id] = null;
+        methods = current;
+        // Listeners drop their state before the ID can be handed out again
+        for (IntConsumer listener : releaseListeners) {
+            listener.accept(info.id);
+        }
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = info.id;
+        releasedCount++;
+    }
+
+    /**
+     * Call the listener with every ID released from now on, before the ID is handed out again
+     */
+    public static void addReleaseListener(IntConsumer listener) {
+        releaseListeners.add(listener);
+    }
+
+    /**
+     * Number of IDs released so far; when it changes, IDs seen before may name other methods
+     */
+    public static long getReleasedCount() {
+        return releasedCount;
+    }
+
+    /**
+     * Give the same method one ID in every class loader, so that its statistics are aggregated across loaders.
+     * Such an ID is only released once all loaders using it have been collected.
+     */
+    public static void setAggregateLoaders(boolean aggregate) {
+        aggregateLoaders = aggregate;
+    }
+
+    public static boolean isAggregateLoaders() {
+        return aggregateLoaders;
+    }
+
+    /**
+     * Name that identifies a method across class loads, e.g. {@code com.example.Foo.bar(I)Ljava/lang/String;}
+     */
+    public static String key(String typeName, String methodName, String descriptor) {
+        return typeName + "." + methodName + descriptor;
+    }
+
+    /**
+     * Register the given instrumented method in the shared scope
+     */
+    public static int register(TypeDescription instrumentedType, MethodDescription instrumentedMethod) {
+        return register(null, instrumentedType, instrumentedMethod);
+    }
+
+    /**
+     * Register the given instrumented method of a class defined by the given loader
+     */
+    public static int register(ClassLoader loader, TypeDescription instrumentedType,
+                               MethodDescription instrumentedMethod) {
+        return register(loader, instrumentedType.getName(),
+                instrumentedType.getSimpleName(),
+                instrumentedMethod.getInternalName(),
+                instrumentedMethod.getDescriptor());
+    }
+
+    /**
+     * Look up a registered method by ID, null if the ID was released
+     */
+    public static MethodInfo get(int id) {
+        MethodInfo[] current = methods;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    /**
+     * Methods registered for the given type name, in ID order
+     */
+    public static List<MethodInfo> methodsOf(String typeName) {
+        List<MethodInfo> result = new ArrayList<>();
+        int registered = size();
+        MethodInfo[] current = methods;
+        for (int id = 0; id < registered; id++) {
+            if (current[id] != null && current[id].typeName.equals(typeName)) {
+                result.add(current[id]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Methods registered for the given type name in the given loader's scope, in ID order
+     */
+    public static synchronized List<MethodInfo> methodsOf(ClassLoader loader, String typeName) {
+        LoaderScope scope = isShared(loader) ? null : scopes.get(loader);
+        List<MethodInfo> result = new ArrayList<>();
+        for (int id = 0; id < size; id++) {
+            MethodInfo info = methods[id];
+            if (info != null && info.typeName.equals(typeName)
+                    && (scope != null ? scope.methodIds.get(id) : info.pinned)) {
+                result.add(info);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Display name of a registered method, "Class.method"
+     */
+    public static String displayName(int id) {
+        MethodInfo info = get(id);
+        return info != null ? info.displayName : "unknown#" + id;
+    }
+
+    /**
+     * Number of IDs handed out; valid IDs are 0 (inclusive) to size (exclusive), except released ones
+     */
+    public static int size() {
+        synchronized (MethodRegistry.class) {
+            return size;
+        }
+    }
+
+    /**
+     * Enable argument capture for the matched methods. Only affects methods transformed afterwards.
+     */
+    public static void captureArgumentsFor(ElementMatcher.Junction<MethodDescription> matcher) {
+        argumentCapture = matcher;
+    }
+
+    /**
+     * Methods for which argument capture is turned on
+     */
+    public static ElementMatcher.Junction<MethodDescription> argumentCapture() {
+        return argumentCapture;
+    }
+
+    /**
+     * Only keep statistics for the matched methods, without entry and exit events, unless their arguments are
+     * captured. Only affects methods transformed afterwards.
+     */
+    public static void timeOnlyFor(ElementMatcher.Junction<MethodDescription> matcher) {
+        timingOnly = matcher;
+    }
+
+    /**
+     * Methods for which only statistics are kept
+     */
+    public static ElementMatcher.Junction<MethodDescription> timingOnly() {
+        return timingOnly;
+    }
+
+    /**
+     * Methods whose return value an exit advice parameter of the given primitive type takes without boxing;
+     * an int parameter also takes short and byte
+     */
+    public static ElementMatcher.Junction<MethodDescription> returnsPrimitive(Class<?> type) {
+        ElementMatcher.Junction<MethodDescription> matcher = ElementMatchers.returns(type);
+        return type == int.class
+                ? matcher.or(ElementMatchers.returns(short.class)).or(ElementMatchers.returns(byte.class))
+                : matcher;
+    }
+
+    /**
+     * Apply advice to the matched methods by return type: the variants with an int, long, double and boolean
+     * typed exit advice, in that order, to the methods returning them and the advice class to all others,
+     * whose return value is a reference or void and so never boxed. Method IDs are those of the given loader.
+     */
+    public static <T> DynamicType.Builder<T> interceptByReturnType(DynamicType.Builder<T> builder,
+                                                                   ElementMatcher<? super MethodDescription> methods,
+                                                                   ClassLoader classLoader,
+                                                                   Class<?> adviceClass,
+                                                                   Class<?>... primitiveVariants) {
+        builder = builder.method(methods).intercept(advice(adviceClass, classLoader));
+        for (int i = 0; i < primitiveVariants.length; i++) {
+            builder = builder.method(returnsPrimitive(PRIMITIVE_RETURNS[i]).and(methods))
+                    .intercept(advice(primitiveVariants[i], classLoader));
+        }
+        return builder;
+    }
+
+    /**
+     * Same as {@link #interceptByReturnType}, but weaving the advice into the existing method bodies
+     */
+    public static <T> DynamicType.Builder<T> visitByReturnType(DynamicType.Builder<T> builder,
+                                                               ElementMatcher<? super MethodDescription> methods,
+                                                               ClassLoader classLoader,
+                                                               Class<?> adviceClass,
+                                                               Class<?>... primitiveVariants) {
+        ElementMatcher.Junction<MethodDescription> others = ElementMatchers.any();
+        for (int i = 0; i < primitiveVariants.length; i++) {
+            ElementMatcher.Junction<MethodDescription> returns = returnsPrimitive(PRIMITIVE_RETURNS[i]);
+            builder = builder.visit(advice(primitiveVariants[i], classLoader).on(returns.and(methods)));
+            others = others.and(ElementMatchers.not(returns));
+        }
+        return builder.visit(advice(adviceClass, classLoader).on(others.and(methods)));
+    }
+
+    /**
+     * Create advice from the given class with {@link MethodId} bound to the registry's shared scope
+     */
+    public static Advice advice(Class<?> adviceClass) {
+        return advice(adviceClass, null);
+    }
+
+    /**
+     * Create advice from the given class with {@link MethodId} bound to the scope of the loader
+     * defining the instrumented classes
+     */
+    public static Advice advice(Class<?> adviceClass, ClassLoader classLoader) {
+        return Advice.withCustomMapping()
+                .bind(MethodId.class, new MethodIdOffsetMapping(classLoader))
+                .to(adviceClass);
+    }
+
+    /**
+     * Registers the instrumented method and pushes its ID as an int constant
+     */
+    static class MethodIdOffsetMapping implements Advice.OffsetMapping {
+
+        private final ClassLoader classLoader;
+
+        MethodIdOffsetMapping(ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public Target resolve(TypeDescription instrumentedType,
+                              MethodDescription instrumentedMethod,
+                              Assigner assigner,
+                              Advice.ArgumentHandler argumentHandler,
+                              Sort sort) {
+            int id = register(classLoader, instrumentedType, instrumentedMethod);
+            return new Target.ForStackManipulation(IntegerConstant.forValue(id));
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.example.bytebuddy.rules;
+
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Include and exclude rules deciding which methods are instrumented and how, compiled into a trie of type name
+ * prefixes so that matching a type takes one pass over its name, whatever the number of rules. Rules are read
+ * from a file with one rule per line:
+ * <pre>
+ * # Comment
+ * include com.example.shop.                  a package and its subpackages, traced
+ * include com.example.shop.Cart#add* args    methods of a class by name, also capturing their arguments
+ * exclude com.example.shop.internal.
+ * include com.example.shop.Pricing* timing   classes by name prefix, statistics only
+ * </pre>
+ * A type pattern ending in "." or "*" matches names starting with it, any other names one class. A method pattern
+ * after "#" may use "*" as a wildcard. For a method, the matching rule with the longest type pattern wins; at the
+ * same length, one naming methods wins over one that does not, and then the one further down the file.
+ * Blocked prefixes are never instrumented, whatever the rules.
+ *
+ * The rules in use are {@link #current()}, which the matchers of this class read on every match, so that
+ * {@link #install installing} other rules takes effect for classes transformed from then on.
+ */
+public final class InstrumentationRules {
+
+    /**
+     * What the advice records for a method
+     */
+    public enum Mode {
+        // Statistics only, no entry and exit events
+        TIMING,
+        // Statistics and entry and exit events
+        TRACE,
+        // Same as TRACE, also capturing the arguments
+        ARGS
+    }
+
+    /**
+     * One line of the rules file
+     */
+    public static final class Rule {
+        public final boolean include;
+        // Without the trailing "*" of a prefix
+        public final String typePattern;
+        public final boolean typePrefix;
+        // Null for all methods
+        public final String methodPattern;
+        // Null for an exclude rule
+        public final Mode mode;
+
+        public Rule(boolean include, String typePattern, boolean typePrefix, String methodPattern, Mode mode) {
+            this.include = include;
+            this.typePattern = typePattern;
+            this.typePrefix = typePrefix;
+            this.methodPattern = methodPattern;
+            this.mode = include ? mode : null;
+        }
+
+        boolean matchesMethod(String methodName) {
+            return methodPattern == null || glob(methodPattern, 0, methodName, 0);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Rule)) {
+                return false;
+            }
+            Rule rule = (Rule) other;
+            return include == rule.include && typePrefix == rule.typePrefix && mode == rule.mode
+                    && typePattern.equals(rule.typePattern) && Objects.equals(methodPattern, rule.methodPattern);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(include, typePattern, typePrefix, methodPattern, mode);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(include ? "include " : "exclude ").append(typePattern);
+            if (typePrefix && !typePattern.endsWith(".")) {
+                text.append('*');
+            }
+            if (methodPattern != null) {
+                text.append('#').append(methodPattern);
+            }
+            if (include) {
+                text.append(' ').append(mode.name().toLowerCase(Locale.ROOT));
+            }
+            return text.toString();
+        }
+    }
+
+    private static final Rule[] NO_RULES = new Rule[0];
+
+    /**
+     * Trie node for the type names starting with the characters leading to it
+     */
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        // Rules applying from here on, and rules for exactly this name, lowest precedence first
+        Rule[] prefixRules = NO_RULES;
+        Rule[] exactRules = NO_RULES;
+        boolean blocked;
+
+        Node child(char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char key) {
+            Node child = child(key);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = key;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    private static volatile InstrumentationRules current = new InstrumentationRules(Collections.emptyList());
+
+    private final List<Rule> rules;
+    private final Node root = new Node();
+
+    public InstrumentationRules(List<Rule> rules, String... blockedPrefixes) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        for (Rule rule : rules) {
+            Node node = insert(rule.typePattern);
+            if (rule.typePrefix) {
+                node.prefixRules = add(node.prefixRules, rule);
+            } else {
+                node.exactRules = add(node.exactRules, rule);
+            }
+        }
+        for (String prefix : blockedPrefixes) {
+            insert(prefix).blocked = true;
+        }
+    }
+
+    private Node insert(String pattern) {
+        Node node = root;
+        for (int i = 0; i < pattern.length(); i++) {
+            node = node.addChild(pattern.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Add a rule in precedence order: after the rules for all methods, or after all rules if it names methods
+     */
+    private static Rule[] add(Rule[] rules, Rule rule) {
+        Rule[] result = Arrays.copyOf(rules, rules.length + 1);
+        int position = rules.length;
+        if (rule.methodPattern == null) {
+            while (position > 0 && result[position - 1].methodPattern != null) {
+                result[position] = result[position - 1];
+                position--;
+            }
+        }
+        result[position] = rule;
+        return result;
+    }
+
+    /**
+     * Parse rule lines, see the class description
+     *
+     * @throws IllegalArgumentException for a malformed line
+     */
+    public static List<Rule> parse(List<String> lines) {
+        List<Rule> rules = new ArrayList<>();
+        for (int index = 0; index < lines.size(); index++) {
+            String line = lines.get(index).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            boolean include = "include".equals(parts[0]);
+            if (!include && !"exclude".equals(parts[0]) || parts.length < 2 || parts.length > (include ? 3 : 2)) {
+                throw new IllegalArgumentException("Rule " + (index + 1) + " is not "
+                        + "'include <type>[#<method>] [timing|trace|args]' or 'exclude <type>[#<method>]': " + line);
+            }
+            String pattern = parts[1];
+            String methodPattern = null;
+            int hash = pattern.indexOf('#');
+            if (hash >= 0) {
+                methodPattern = pattern.substring(hash + 1);
+                pattern = pattern.substring(0, hash);
+            }
+            boolean prefix = pattern.endsWith("*") || pattern.endsWith(".");
+            if (pattern.endsWith("*")) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            if (pattern.indexOf('*') >= 0 || methodPattern != null && methodPattern.isEmpty()) {
+                throw new IllegalArgumentException("Rule " + (index + 1)
+                        + " may only use * at the end of the type and within the method: " + line);
+            }
+            Mode mode = Mode.TRACE;
+            if (parts.length == 3) {
+                try {
+                    mode = Mode.valueOf(parts[2].toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Rule " + (index + 1) + " has an unknown mode: " + line);
+                }
+            }
+            rules.add(new Rule(include, pattern, prefix, methodPattern, mode));
+        }
+        return rules;
+    }
+
+    /**
+     * Read and parse a rules file
+     */
+    public static List<Rule> read(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The rules in use
+     */
+    public static InstrumentationRules current() {
+        return current;
+    }
+
+    /**
+     * Use the given rules for the classes transformed from now on
+     */
+    public static void install(InstrumentationRules rules) {
+        current = rules;
+    }
+
+    /**
+     * Whether any method of the type may be instrumented, without allocating
+     */
+    public boolean matchesType(String typeName) {
+        boolean matches = false;
+        Node node = root;
+        for (int i = 0; ; i++) {
+            if (node.blocked) {
+                return false;
+            }
+            for (Rule rule : node.prefixRules) {
+                matches = apply(matches, rule);
+            }
+            if (i == typeName.length()) {
+                break;
+            }
+            node = node.child(typeName.charAt(i));
+            if (node == null) {
+                return matches;
+            }
+        }
+        for (Rule rule : node.exactRules) {
+            matches = apply(matches, rule);
+        }
+        return matches;
+    }
+
+    private static boolean apply(boolean matches, Rule rule) {
+        // A rule for some methods may include a type, but only a rule for all methods excludes it
+        return rule.methodPattern == null ? rule.include : matches || rule.include;
+    }
+
+    /**
+     * How a method is instrumented, null if it is not
+     */
+    public Mode modeFor(String typeName, String methodName) {
+        Rule winner = null;
+        Node node = root;
+        for (int i = 0; ; i++) {
+            if (node.blocked) {
+                return null;
+            }
+            winner = match(winner, node.prefixRules, methodName);
+            if (i == typeName.length()) {
+                winner = match(winner, node.exactRules, methodName);
+                break;
+            }
+            node = node.child(typeName.charAt(i));
+            if (node == null) {
+                break;
+            }
+        }
+        return winner != null ? winner.mode : null;
+    }
+
+    private static Rule match(Rule winner, Rule[] rules, String methodName) {
+        for (Rule rule : rules) {
+            if (rule.matchesMethod(methodName)) {
+                winner = rule;
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * The rules that apply to a type, lowest precedence first, or null if it is blocked.
+     * Types with equal rules are instrumented the same way.
+     */
+    public List<Rule> rulesFor(String typeName) {
+        List<Rule> matched = new ArrayList<>();
+        Node node = root;
+        for (int i = 0; ; i++) {
+            if (node.blocked) {
+                return null;
+            }
+            matched.addAll(Arrays.asList(node.prefixRules));
+            if (i == typeName.length()) {
+                matched.addAll(Arrays.asList(node.exactRules));
+                return matched;
+            }
+            node = node.child(typeName.charAt(i));
+            if (node == null) {
+                return matched;
+            }
+        }
+    }
+
+    /**
+     * Fail if a rule uses a mode not in the given set
+     *
+     * @throws IllegalArgumentException naming the first such rule
+     */
+    public void requireModes(Set<Mode> supported) {
+        for (Rule rule : rules) {
+            if (rule.include && !supported.contains(rule.mode)) {
+                throw new IllegalArgumentException("Mode " + rule.mode.name().toLowerCase(Locale.ROOT)
+                        + " is not supported with this advice: " + rule);
+            }
+        }
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Types the current rules may instrument
+     */
+    public static ElementMatcher.Junction<TypeDescription> types() {
+        return new ElementMatcher.Junction.AbstractBase<TypeDescription>() {
+            @Override
+            public boolean matches(TypeDescription target) {
+                return current.matchesType(target.getName());
+            }
+        };
+    }
+
+    /**
+     * Methods the current rules instrument in one of the given modes
+     */
+    public static ElementMatcher.Junction<MethodDescription> methods(Mode... modes) {
+        List<Mode> accepted = Arrays.asList(modes);
+        return new ElementMatcher.Junction.AbstractBase<MethodDescription>() {
+            @Override
+            public boolean matches(MethodDescription target) {
+                Mode mode = current.modeFor(target.getDeclaringType().asErasure().getName(), target.getInternalName());
+                return mode != null && accepted.contains(mode);
+            }
+        };
+    }
+
+    /**
+     * Whether a name matches a pattern where * stands for any characters
+     */
+    private static boolean glob(String pattern, int p, String name, int n) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                for (int rest = n; rest <= name.length(); rest++) {
+                    if (glob(pattern, p + 1, name, rest)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (n == name.length() || name.charAt(n) != c) {
+                return false;
+            }
+            p++;
+            n++;
+        }
+        return n == name.length();
+    }
+}
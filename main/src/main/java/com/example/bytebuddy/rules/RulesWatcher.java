@@ -0,0 +1,140 @@
+package com.example.bytebuddy.rules;
+
+import com.example.bytebuddy.agent.PacedRetransformation;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the {@link InstrumentationRules} when their file changes and retransforms the loaded classes whose
+ * rules differ, and only those. A file that does not parse, or uses a mode the advice does not support, leaves
+ * the rules in use unchanged. Classes are retransformed in paced batches, see {@link PacedRetransformation}.
+ */
+public class RulesWatcher {
+
+    private final Path file;
+    private final Instrumentation instrumentation;
+    private final PacedRetransformation pacing;
+    private final Set<InstrumentationRules.Mode> supportedModes;
+    private final String[] blockedPrefixes;
+
+    public RulesWatcher(Path file, Instrumentation instrumentation, PacedRetransformation pacing,
+                        Set<InstrumentationRules.Mode> supportedModes, String... blockedPrefixes) {
+        this.file = file.toAbsolutePath();
+        this.instrumentation = instrumentation;
+        this.pacing = pacing;
+        this.supportedModes = supportedModes;
+        this.blockedPrefixes = blockedPrefixes;
+    }
+
+    /**
+     * Read the file and install its rules, without retransforming anything, as before the classes load
+     *
+     * @throws IllegalArgumentException if the file does not parse or uses an unsupported mode
+     */
+    public InstrumentationRules load() throws IOException {
+        InstrumentationRules rules = new InstrumentationRules(InstrumentationRules.read(file), blockedPrefixes);
+        rules.requireModes(supportedModes);
+        InstrumentationRules.install(rules);
+        return rules;
+    }
+
+    /**
+     * Watch the file's directory from a daemon thread, reloading shortly after the file was written
+     */
+    public void start() throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        // Editors often replace the file rather than write to it
+        file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    boolean changed = changed(key);
+                    // A save may take several events: wait for them to settle
+                    WatchKey more;
+                    while ((more = watcher.poll(100, TimeUnit.MILLISECONDS)) != null) {
+                        changed |= changed(more);
+                    }
+                    if (changed) {
+                        reload();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Stopped
+            }
+        }, "instrumentation-rules");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Install the rules from the file and retransform the loaded classes they affect, returning how many
+     */
+    public int reload() {
+        long start = System.nanoTime();
+        InstrumentationRules previous = InstrumentationRules.current();
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("⚠️ Rules not reloaded from " + file + ": " + e.getMessage());
+            return 0;
+        }
+        List<Class<?>> changed = new ArrayList<>();
+        for (Class<?> type : changedTypes(previous, InstrumentationRules.current(),
+                instrumentation.getAllLoadedClasses())) {
+            if (instrumentation.isModifiableClass(type)) {
+                changed.add(type);
+            }
+        }
+        int failed = changed.isEmpty() ? 0 : pacing.retransform(instrumentation, changed);
+        if (failed > 0) {
+            System.err.println("⚠️ Rules reloaded, but " + failed + " classes could not be retransformed");
+        }
+        System.out.printf("📜 Rules reloaded | %d rules | Retransformed %d classes in %d ms%n",
+                InstrumentationRules.current().getRules().size(), changed.size() - failed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return changed.size() - failed;
+    }
+
+    /**
+     * The types whose rules differ between two rule sets
+     */
+    public static List<Class<?>> changedTypes(InstrumentationRules before, InstrumentationRules after,
+                                              Class<?>[] types) {
+        List<Class<?>> changed = new ArrayList<>();
+        for (Class<?> type : types) {
+            if (type.isArray() || type.isPrimitive()) {
+                continue;
+            }
+            String name = type.getName();
+            // Checking the trie first keeps the lists for the few types any rule mentions
+            if ((before.matchesType(name) || after.matchesType(name))
+                    && !Objects.equals(before.rulesFor(name), after.rulesFor(name))) {
+                changed.add(type);
+            }
+        }
+        return changed;
+    }
+}
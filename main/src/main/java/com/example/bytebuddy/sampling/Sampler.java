@@ -0,0 +1,240 @@
+package com.example.bytebuddy.sampling;
+
+import com.example.bytebuddy.agent.AgentOptions;
+import com.example.bytebuddy.clock.TimeSource;
+
+import com.example.bytebuddy.storage.ContextStorage;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which root calls get fully captured.
+ * The decision is taken once when a thread enters its outermost instrumented call and applies to
+ * every nested call until that root exits, so captured call trees are always complete.
+ * Calls of unsampled trees are only counted; durations and percentiles are estimated from the
+ * sampled calls, while call counts stay exact.
+ *
+ * When a slow-call threshold is set, unsampled roots are still timed and any root slower than
+ * the threshold is recorded and reported regardless of the sampling decision.
+ */
+public abstract class Sampler {
+
+    // Null means every call is captured, which keeps the advice on its unsampled fast path
+    private static volatile Sampler current;
+
+    private static final ContextStorage<Scope> scopes = ContextStorage.create(Scope::new, scope -> { });
+
+    private final long slowThresholdNanos;
+
+    protected Sampler(long slowThresholdNanos) {
+        this.slowThresholdNanos = slowThresholdNanos;
+    }
+
+    /**
+     * Installed sampler, or null when every call is captured
+     */
+    public static Sampler current() {
+        return current;
+    }
+
+    /**
+     * Install a sampler; should happen before instrumented code runs so that no call is entered
+     * under one sampler and exited under another
+     */
+    public static void install(Sampler sampler) {
+        current = sampler;
+    }
+
+    /**
+     * Sampling scope of the current thread, for advice that keeps no per-thread state of its own
+     */
+    public static Scope scope() {
+        return scopes.get();
+    }
+
+    /**
+     * Called once the root call of the current thread's scope has exited
+     */
+    public static void releaseScope() {
+        scopes.release();
+    }
+
+    /**
+     * Build the sampler described by the agent options:
+     * sampling=all|fixed|rate|slow, sampling.n (fixed: 1 in n), sampling.perSecond (rate: per method),
+     * sampling.slowMillis (keep roots slower than this; required for slow)
+     */
+    public static Sampler fromOptions(AgentOptions options) {
+        String mode = options.get("sampling", "all");
+        long slowNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong("sampling.slowMillis", -1));
+        switch (mode) {
+            case "all":
+                return null;
+            case "fixed":
+                return new OneInN((int) options.getLong("sampling.n", 100), slowNanos);
+            case "rate":
+                return new RateLimited((int) options.getLong("sampling.perSecond", 10), slowNanos);
+            case "slow":
+                if (slowNanos < 0) {
+                    throw new IllegalArgumentException("sampling=slow needs sampling.slowMillis");
+                }
+                return new SlowOnly(slowNanos);
+            default:
+                throw new IllegalArgumentException("Unknown sampling mode: " + mode);
+        }
+    }
+
+    /**
+     * Whether a new root call of the given method should be captured
+     */
+    protected abstract boolean sampleRoot(int methodId);
+
+    public boolean keepsSlowCalls() {
+        return slowThresholdNanos >= 0;
+    }
+
+    public long getSlowThresholdNanos() {
+        return slowThresholdNanos;
+    }
+
+    /**
+     * Per-thread sampling state: open call depth and the decision for the current root
+     */
+    public static final class Scope {
+        private int depth;
+        private boolean sampled;
+        private long rootStart;
+
+        /**
+         * Enter a call, returning whether it belongs to a sampled tree
+         */
+        public boolean enter(Sampler sampler, int methodId) {
+            if (depth++ == 0) {
+                sampled = sampler.sampleRoot(methodId);
+                if (!sampled && sampler.keepsSlowCalls()) {
+                    rootStart = TimeSource.get().nanoTime();
+                }
+            }
+            return sampled;
+        }
+
+        /**
+         * Exit a call, returning whether it belonged to a sampled tree
+         */
+        public boolean exit() {
+            if (depth > 0) {
+                depth--;
+            }
+            return sampled;
+        }
+
+        /**
+         * Whether the last exit closed the root call
+         */
+        public boolean isRootExit() {
+            return depth == 0;
+        }
+
+        /**
+         * Start time of the current unsampled root, when slow calls are kept
+         */
+        public long getRootStart() {
+            return rootStart;
+        }
+    }
+
+    /**
+     * Captures a random one in n root calls
+     */
+    public static class OneInN extends Sampler {
+        private final int n;
+
+        public OneInN(int n, long slowThresholdNanos) {
+            super(slowThresholdNanos);
+            if (n < 1) {
+                throw new IllegalArgumentException("n must be positive: " + n);
+            }
+            this.n = n;
+        }
+
+        @Override
+        protected boolean sampleRoot(int methodId) {
+            return n == 1 || ThreadLocalRandom.current().nextInt(n) == 0;
+        }
+    }
+
+    /**
+     * Captures at most a fixed number of root calls per second for each root method
+     */
+    public static class RateLimited extends Sampler {
+        private static final int COUNT_BITS = 20;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+        private final int perSecond;
+        // Per method ID: current second in the high bits, samples taken in it in the low bits
+        private volatile AtomicLongArray windows = new AtomicLongArray(1024);
+
+        public RateLimited(int perSecond, long slowThresholdNanos) {
+            super(slowThresholdNanos);
+            if (perSecond < 1 || perSecond > COUNT_MASK) {
+                throw new IllegalArgumentException("perSecond out of range: " + perSecond);
+            }
+            this.perSecond = perSecond;
+        }
+
+        @Override
+        protected boolean sampleRoot(int methodId) {
+            return sampleRootAt(methodId, TimeSource.get().nanoTime());
+        }
+
+        boolean sampleRootAt(int methodId, long nanoTime) {
+            AtomicLongArray current = windows;
+            if (methodId >= current.length()) {
+                current = grow(methodId);
+            }
+            // nanoTime() may be negative: round down and compare with a signed shift, so negative seconds match too
+            long second = Math.floorDiv(nanoTime, 1_000_000_000L);
+            while (true) {
+                long window = current.get(methodId);
+                long count = (window >> COUNT_BITS) == second ? window & COUNT_MASK : 0;
+                if (count >= perSecond) {
+                    return false;
+                }
+                if (current.compareAndSet(methodId, window, (second << COUNT_BITS) | (count + 1))) {
+                    return true;
+                }
+            }
+        }
+
+        private synchronized AtomicLongArray grow(int methodId) {
+            AtomicLongArray current = windows;
+            if (methodId < current.length()) {
+                return current;
+            }
+            // Windows that change during the copy only lose part of their current second's budget
+            AtomicLongArray grown = new AtomicLongArray(Math.max(current.length() * 2, methodId + 1));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            windows = grown;
+            return grown;
+        }
+    }
+
+    /**
+     * Captures no trees, only root calls slower than the threshold
+     */
+    public static class SlowOnly extends Sampler {
+
+        public SlowOnly(long slowThresholdNanos) {
+            super(slowThresholdNanos);
+        }
+
+        @Override
+        protected boolean sampleRoot(int methodId) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.bytebuddy.sink;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous sink for enter/exit events.
+ * Application threads claim a preallocated {@link TraceEvent} in a multi-producer ring buffer,
+ * fill it in and publish it; a single background thread drains the ring, formats the events
+ * and writes them out. The application thread never formats, allocates or takes the PrintStream lock.
+ *
+ * Configured with system properties, read when the shared sink is first used:
+ * instrumentation.sink.capacity (default 65536) and instrumentation.sink.policy (BLOCK or DROP).
+ * Events the sink thread itself produces while the ring is full, e.g. from instrumented code called by a
+ * formatter, are always dropped, as only that thread could make room for them.
+ * A slot claimed but still not published after instrumentation.sink.abandonMillis (default 1000) is skipped and
+ * counted as abandoned, so that a producer that died in between, e.g. of a StackOverflowError, cannot stall the
+ * sink and every other producer with it. Producers therefore do nothing between claim and publish that could
+ * fail or take long.
+ */
+public class EventSink {
+
+    /**
+     * What a producer does when the ring is full
+     */
+    public enum OverflowPolicy {
+        // Wait for the sink thread to free a slot
+        BLOCK,
+        // Discard the event and count it as dropped
+        DROP
+    }
+
+    /**
+     * Turns an event into text on the sink thread
+     */
+    public interface Formatter {
+        void format(TraceEvent event, StringBuilder out);
+    }
+
+    private static final long MIN_PARK_NANOS = 50_000;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private static volatile EventSink shared;
+
+    private final TraceEvent[] events;
+    // Sequence published in each slot, -1 while the slot has not been published yet
+    private final AtomicLongArray published;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final PrintStream out;
+    private final Thread drainer;
+    private final long abandonNanos;
+
+    // Next sequence to hand out to producers
+    private final AtomicLong claimCursor = new AtomicLong();
+    // Next sequence the sink thread will consume
+    private final AtomicLong consumeCursor = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    public EventSink(int capacity, OverflowPolicy policy, PrintStream out) {
+        this(capacity, policy, out, TimeUnit.SECONDS.toMillis(1));
+    }
+
+    public EventSink(int capacity, OverflowPolicy policy, PrintStream out, long abandonMillis) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.events = new TraceEvent[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            events[i] = new TraceEvent();
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+        this.policy = policy;
+        this.out = out;
+        this.abandonNanos = TimeUnit.MILLISECONDS.toNanos(abandonMillis);
+        this.drainer = new Thread(this::drain, "instrumentation-event-sink");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * The sink shared by the advice classes, created on first use
+     */
+    public static EventSink get() {
+        EventSink sink = shared;
+        if (sink == null) {
+            synchronized (EventSink.class) {
+                sink = shared;
+                if (sink == null) {
+                    sink = new EventSink(
+                            Integer.getInteger("instrumentation.sink.capacity", 65536),
+                            OverflowPolicy.valueOf(System.getProperty("instrumentation.sink.policy", "BLOCK")),
+                            System.out,
+                            Long.getLong("instrumentation.sink.abandonMillis", 1000));
+                    Runtime.getRuntime().addShutdownHook(new Thread(sink::flush, "instrumentation-event-sink-flush"));
+                    shared = sink;
+                }
+            }
+        }
+        return sink;
+    }
+
+    /**
+     * Claim the next slot, or return null if the ring is full and the policy is DROP or this is the sink thread.
+     * The returned event must be handed back through {@link #publish(TraceEvent)}.
+     */
+    public TraceEvent claim() {
+        int spins = 0;
+        while (true) {
+            long sequence = claimCursor.get();
+            if (sequence - consumeCursor.get() >= events.length) {
+                if (policy == OverflowPolicy.DROP || Thread.currentThread() == drainer) {
+                    dropped.increment();
+                    return null;
+                }
+                if (++spins > 100) {
+                    LockSupport.parkNanos(1_000);
+                }
+                continue;
+            }
+            if (claimCursor.compareAndSet(sequence, sequence + 1)) {
+                TraceEvent event = events[(int) sequence & mask];
+                event.sequence = sequence;
+                return event;
+            }
+        }
+    }
+
+    /**
+     * Make a claimed event visible to the sink thread
+     */
+    public void publish(TraceEvent event) {
+        published.lazySet((int) event.sequence & mask, event.sequence);
+    }
+
+    /**
+     * Number of events discarded because the ring was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Number of claimed slots skipped because they were not published in time
+     */
+    public long getAbandonedCount() {
+        return abandoned.sum();
+    }
+
+    /**
+     * Number of events accepted into the ring so far
+     */
+    public long getPublishedCount() {
+        return claimCursor.get();
+    }
+
+    /**
+     * Wait until every event claimed before this call has been written, for at most a second
+     */
+    public void flush() {
+        long target = claimCursor.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (consumeCursor.get() < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(100_000);
+        }
+        out.flush();
+    }
+
+    private void drain() {
+        StringBuilder sb = new StringBuilder(256);
+        long sequence = consumeCursor.get();
+        int idle = 0;
+        long parkNanos = MIN_PARK_NANOS;
+        // When the drainer started waiting for a slot that is claimed but not published, 0 if it is not
+        long waitingSince = 0;
+        while (true) {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence) {
+                if (claimCursor.get() > sequence) {
+                    long now = System.nanoTime();
+                    if (waitingSince == 0) {
+                        waitingSince = now | 1;
+                    } else if (now - waitingSince > abandonNanos) {
+                        // Its producer died or is stuck: skip the slot rather than stall every other producer
+                        if (abandoned.sum() == 0) {
+                            out.println("⚠️ Skipping events that were claimed but never published, "
+                                    + "their producers may have failed");
+                        }
+                        abandoned.increment();
+                        events[slot].clear();
+                        waitingSince = 0;
+                        sequence++;
+                        consumeCursor.lazySet(sequence);
+                        continue;
+                    }
+                }
+                // Spin briefly, then park for longer and longer, so that an idle sink hardly ever wakes up
+                if (++idle > 100) {
+                    LockSupport.parkNanos(parkNanos);
+                    parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+                }
+                continue;
+            }
+            waitingSince = 0;
+            idle = 0;
+            parkNanos = MIN_PARK_NANOS;
+            TraceEvent event = events[slot];
+            try {
+                sb.setLength(0);
+                event.formatter.format(event, sb);
+                out.println(sb);
+            } catch (Throwable e) {
+                // A failing toString() of a captured value must not stop the sink, or producers would block forever,
+                // not even when it overflows the stack or misses a class
+                try {
+                    out.println("⚠️ Failed to format event: " + e);
+                } catch (Throwable ignored) {
+                    // Keep draining
+                }
+            }
+            event.clear();
+            sequence++;
+            consumeCursor.lazySet(sequence);
+        }
+    }
+}
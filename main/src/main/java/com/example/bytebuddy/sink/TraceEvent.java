@@ -0,0 +1,78 @@
+package com.example.bytebuddy.sink;
+
+/**
+ * Mutable enter/exit record living in a slot of the {@link EventSink} ring buffer.
+ * Producers fill in the fields between {@link EventSink#claim()} and {@link EventSink#publish(TraceEvent)};
+ * values are only referenced here and formatted later on the sink thread.
+ */
+public class TraceEvent {
+
+    public static final int ENTRY = 1;
+    public static final int EXIT = 2;
+
+    // Types of a return value: a reference in value, or a primitive kept unboxed in primitiveValue
+    public static final byte REFERENCE = 0;
+    public static final byte INT = 1;
+    public static final byte LONG = 2;
+    public static final byte DOUBLE = 3;
+    public static final byte BOOLEAN = 4;
+
+    // Ring sequence this slot was claimed for
+    long sequence;
+
+    public EventSink.Formatter formatter;
+    public int kind;
+    public int methodId;
+    public int parentMethodId;
+    public int depth;
+    public long timestamp;
+    public long durationNanos;
+    public Thread thread;
+    // Arguments on entry, return value on exit
+    public Object value;
+    public byte valueType;
+    // int or long value, raw bits of a double, or 1 for true
+    public long primitiveValue;
+    // Arguments kept for an exit, when they are only reported for slow or failing calls
+    public Object[] arguments;
+    // Whether value holds a reported return value, rather than being left out for a fast call
+    public boolean valueCaptured;
+    public Throwable thrown;
+    // Origin of the event when there is no method ID, e.g. the instrumented class and method
+    public Object origin;
+    public String method;
+    public Object request;
+    public Object flow;
+
+    /**
+     * The return value of an exit, boxing a primitive one; meant for formatting on the sink thread
+     */
+    public Object returnValue() {
+        switch (valueType) {
+            case INT:
+                return (int) primitiveValue;
+            case LONG:
+                return primitiveValue;
+            case DOUBLE:
+                return Double.longBitsToDouble(primitiveValue);
+            case BOOLEAN:
+                return primitiveValue != 0;
+            default:
+                return value;
+        }
+    }
+
+    void clear() {
+        formatter = null;
+        thread = null;
+        value = null;
+        valueType = REFERENCE;
+        arguments = null;
+        valueCaptured = false;
+        thrown = null;
+        origin = null;
+        method = null;
+        request = null;
+        flow = null;
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.bytebuddy.stacks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Content-addressed store of stack traces. Each distinct frame is kept once in a frame table and each distinct
+ * trace once as an array of frame indices, so events only need to keep the int ID that {@link #intern} returns.
+ * Interning a trace seen before allocates nothing.
+ *
+ * At most maxTraces traces are kept; beyond that the trace interned least recently is evicted, along with the
+ * frames no other trace uses. IDs are never reused, so {@link #lookup} of an evicted ID returns null.
+ * All methods synchronize on the store, which is meant for sampled paths, not for every call.
+ */
+public class StackTraceStore {
+
+    public static final int NONE = -1;
+
+    private static final StackTraceStore DEFAULT = new StackTraceStore(
+            Integer.getInteger("instrumentation.stacks.maxTraces", 4096));
+
+    /**
+     * Store shared by the agent's reporting paths, holding instrumentation.stacks.maxTraces traces (default 4096)
+     */
+    public static StackTraceStore get() {
+        return DEFAULT;
+    }
+
+    /**
+     * Interned trace; also used as the lookup probe, with frames only valid up to length
+     */
+    private static final class Trace {
+        int id;
+        int[] frames;
+        int length;
+        int hash;
+        long hits;
+
+        void set(int[] frames, int length) {
+            this.frames = frames;
+            this.length = length;
+            int h = 1;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + frames[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Trace)) {
+                return false;
+            }
+            Trace trace = (Trace) other;
+            if (trace.length != length || trace.hash != hash) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (trace.frames[i] != frames[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final int maxTraces;
+
+    // Frame table: distinct frames by index, with the number of stored trace positions using each
+    private final HashMap<StackTraceElement, Integer> frameIndex = new HashMap<>();
+    private StackTraceElement[] frames = new StackTraceElement[1024];
+    private int[] frameReferences = new int[1024];
+    private int frameCount;
+    private int[] freeFrames = new int[64];
+    private int freeFrameCount;
+
+    // Traces by content, least recently interned first, and by ID
+    private final LinkedHashMap<Trace, Trace> byContent = new LinkedHashMap<>(64, 0.75f, true);
+    private final HashMap<Integer, Trace> byId = new HashMap<>();
+    private int nextId;
+
+    // Reused to look up a trace without allocating
+    private final Trace probe = new Trace();
+    private int[] probeFrames = new int[64];
+
+    private long internCount;
+    private long hitCount;
+    private long evictedCount;
+
+    public StackTraceStore(int maxTraces) {
+        if (maxTraces < 1) {
+            throw new IllegalArgumentException("maxTraces must be at least 1: " + maxTraces);
+        }
+        this.maxTraces = maxTraces;
+    }
+
+    /**
+     * Intern a whole trace, returning its ID
+     */
+    public int intern(StackTraceElement[] trace) {
+        return intern(trace, 0, trace.length);
+    }
+
+    /**
+     * Intern up to maxDepth frames of a trace starting at the given frame, returning the trace's ID
+     */
+    public synchronized int intern(StackTraceElement[] trace, int offset, int maxDepth) {
+        int length = Math.max(0, Math.min(trace.length - offset, maxDepth));
+        internCount++;
+        if (probeFrames.length < length) {
+            probeFrames = new int[Math.max(length, probeFrames.length * 2)];
+        }
+        boolean known = true;
+        for (int i = 0; i < length && known; i++) {
+            Integer frame = frameIndex.get(trace[offset + i]);
+            if (frame == null) {
+                known = false;
+            } else {
+                probeFrames[i] = frame;
+            }
+        }
+        if (known) {
+            probe.set(probeFrames, length);
+            Trace found = byContent.get(probe);
+            probe.frames = null;
+            if (found != null) {
+                found.hits++;
+                hitCount++;
+                return found.id;
+            }
+        }
+
+        int[] traceFrames = new int[length];
+        for (int i = 0; i < length; i++) {
+            traceFrames[i] = internFrame(trace[offset + i]);
+        }
+        Trace interned = new Trace();
+        interned.id = nextId++;
+        interned.set(traceFrames, length);
+        interned.hits = 1;
+        byContent.put(interned, interned);
+        byId.put(interned.id, interned);
+        if (byContent.size() > maxTraces) {
+            evictEldest();
+        }
+        return interned.id;
+    }
+
+    private int internFrame(StackTraceElement frame) {
+        Integer existing = frameIndex.get(frame);
+        int index;
+        if (existing != null) {
+            index = existing;
+        } else {
+            if (freeFrameCount > 0) {
+                index = freeFrames[--freeFrameCount];
+            } else {
+                index = frameCount++;
+                if (index == frames.length) {
+                    frames = Arrays.copyOf(frames, index * 2);
+                    frameReferences = Arrays.copyOf(frameReferences, index * 2);
+                }
+            }
+            frames[index] = frame;
+            frameIndex.put(frame, index);
+        }
+        frameReferences[index]++;
+        return index;
+    }
+
+    private void evictEldest() {
+        Iterator<Trace> eldest = byContent.keySet().iterator();
+        Trace trace = eldest.next();
+        eldest.remove();
+        byId.remove(trace.id);
+        for (int i = 0; i < trace.length; i++) {
+            int index = trace.frames[i];
+            if (--frameReferences[index] == 0) {
+                frameIndex.remove(frames[index]);
+                frames[index] = null;
+                if (freeFrameCount == freeFrames.length) {
+                    freeFrames = Arrays.copyOf(freeFrames, freeFrameCount * 2);
+                }
+                freeFrames[freeFrameCount++] = index;
+            }
+        }
+        evictedCount++;
+    }
+
+    /**
+     * The frames of a trace, or null if the ID is unknown or was evicted
+     */
+    public synchronized StackTraceElement[] lookup(int id) {
+        Trace trace = id >= 0 ? byId.get(id) : null;
+        if (trace == null) {
+            return null;
+        }
+        StackTraceElement[] result = new StackTraceElement[trace.length];
+        for (int i = 0; i < trace.length; i++) {
+            result[i] = frames[trace.frames[i]];
+        }
+        return result;
+    }
+
+    /**
+     * How often a trace was interned, 0 if the ID is unknown or was evicted
+     */
+    public synchronized long getHitCount(int id) {
+        Trace trace = id >= 0 ? byId.get(id) : null;
+        return trace != null ? trace.hits : 0;
+    }
+
+    /**
+     * Append up to maxFrames frames of a trace as "at ..." lines with the given indent
+     */
+    public void appendTo(StringBuilder out, int id, int maxFrames, String indent) {
+        StackTraceElement[] trace = lookup(id);
+        if (trace == null) {
+            out.append(indent).append("(stack trace #").append(id).append(" evicted)\n");
+            return;
+        }
+        int shown = Math.min(trace.length, maxFrames);
+        for (int i = 0; i < shown; i++) {
+            out.append(indent).append("at ").append(trace[i]).append('\n');
+        }
+        if (shown < trace.length) {
+            out.append(indent).append("... ").append(trace.length - shown).append(" more\n");
+        }
+    }
+
+    /**
+     * Write the frame table and then every trace, most interned first, as
+     * "frame &lt;index&gt; &lt;frame&gt;" and "trace &lt;id&gt; &lt;hits&gt; &lt;frame index&gt;..." lines
+     */
+    public void export(Appendable out) throws IOException {
+        StackTraceElement[] frameTable;
+        List<Trace> traces;
+        synchronized (this) {
+            frameTable = Arrays.copyOf(frames, frameCount);
+            traces = new ArrayList<>(byContent.size());
+            for (Trace trace : byContent.keySet()) {
+                Trace copy = new Trace();
+                copy.id = trace.id;
+                copy.frames = trace.frames;
+                copy.length = trace.length;
+                copy.hits = trace.hits;
+                traces.add(copy);
+            }
+        }
+        traces.sort((a, b) -> Long.compare(b.hits, a.hits));
+        out.append("# ").append(String.valueOf(traces.size())).append(" traces\n");
+        for (int index = 0; index < frameTable.length; index++) {
+            if (frameTable[index] != null) {
+                out.append("frame ").append(String.valueOf(index)).append(' ')
+                        .append(frameTable[index].toString()).append('\n');
+            }
+        }
+        for (Trace trace : traces) {
+            out.append("trace ").append(String.valueOf(trace.id)).append(' ').append(String.valueOf(trace.hits));
+            for (int i = 0; i < trace.length; i++) {
+                out.append(' ').append(String.valueOf(trace.frames[i]));
+            }
+            out.append('\n');
+        }
+    }
+
+    public synchronized int getTraceCount() {
+        return byContent.size();
+    }
+
+    public synchronized int getFrameCount() {
+        return frameIndex.size();
+    }
+
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * One-line summary, e.g. for printing at shutdown
+     */
+    public synchronized String report() {
+        return String.format("🧵 Stack traces | Interned: %d | Deduplicated: %d | Traces: %d | Frames: %d | Evicted: %d",
+                internCount, hitCount, byContent.size(), frameIndex.size(), evictedCount);
+    }
+}
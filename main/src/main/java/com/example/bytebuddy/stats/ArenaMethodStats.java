@@ -0,0 +1,145 @@
+package com.example.bytebuddy.stats;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static com.example.bytebuddy.stats.StatsArena.BUCKETS;
+import static com.example.bytebuddy.stats.StatsArena.COUNT;
+import static com.example.bytebuddy.stats.StatsArena.INTERVAL_MAX_NANOS;
+import static com.example.bytebuddy.stats.StatsArena.INTERVAL_MIN_NANOS;
+import static com.example.bytebuddy.stats.StatsArena.MAX_NANOS;
+import static com.example.bytebuddy.stats.StatsArena.MIN_NANOS;
+import static com.example.bytebuddy.stats.StatsArena.NAME;
+import static com.example.bytebuddy.stats.StatsArena.NAME_BYTES;
+import static com.example.bytebuddy.stats.StatsArena.NAME_LENGTH;
+import static com.example.bytebuddy.stats.StatsArena.SELF_NANOS;
+import static com.example.bytebuddy.stats.StatsArena.TIMED_COUNT;
+import static com.example.bytebuddy.stats.StatsArena.TOTAL_NANOS;
+
+/**
+ * Statistics of one method in its {@link StatsArena} slot, written with atomic operations on the slot's address
+ */
+final class ArenaMethodStats extends MethodStats {
+
+    // Keeps the chunk's memory allocated or mapped while the address is in use
+    private final ByteBuffer chunk;
+    private final int offset;
+    private final long address;
+
+    // Statistics at the last interval snapshot, only touched by readers and only once they ask for intervals
+    private Snapshot intervalBaseline;
+
+    ArenaMethodStats(int methodId, ByteBuffer chunk, int offset) {
+        super(methodId);
+        this.chunk = chunk;
+        this.offset = offset;
+        this.address = OffHeapMemory.address(chunk) + offset;
+    }
+
+    @Override
+    public void record(long durationNanos) {
+        OffHeapMemory.getAndAddLong(address + COUNT, 1);
+        OffHeapMemory.getAndAddLong(address + TIMED_COUNT, 1);
+        OffHeapMemory.getAndAddLong(address + TOTAL_NANOS, durationNanos);
+        updateMin(MIN_NANOS, durationNanos);
+        updateMax(MAX_NANOS, durationNanos);
+        updateMin(INTERVAL_MIN_NANOS, durationNanos);
+        updateMax(INTERVAL_MAX_NANOS, durationNanos);
+        OffHeapMemory.getAndAddLong(address + BUCKETS + (long) LatencyHistogram.bucketIndex(durationNanos) * 8, 1);
+    }
+
+    private void updateMin(int field, long durationNanos) {
+        // Stored plus one, so that zero means none yet; only written when the value actually changes
+        long min;
+        while (((min = OffHeapMemory.getLongVolatile(address + field)) == 0 || durationNanos < min - 1)
+                && !OffHeapMemory.compareAndSwapLong(address + field, min, durationNanos + 1)) {
+            // Retry
+        }
+    }
+
+    private void updateMax(int field, long durationNanos) {
+        long max;
+        while (durationNanos > (max = OffHeapMemory.getLongVolatile(address + field))
+                && !OffHeapMemory.compareAndSwapLong(address + field, max, durationNanos)) {
+            // Retry
+        }
+    }
+
+    @Override
+    public void record(long durationNanos, long selfDurationNanos) {
+        record(durationNanos);
+        OffHeapMemory.getAndAddLong(address + SELF_NANOS, selfDurationNanos);
+    }
+
+    @Override
+    public void recordUnsampled() {
+        OffHeapMemory.getAndAddLong(address + COUNT, 1);
+    }
+
+    @Override
+    public long getCount() {
+        return OffHeapMemory.getLongVolatile(address + COUNT);
+    }
+
+    @Override
+    public long getTimedCount() {
+        return OffHeapMemory.getLongVolatile(address + TIMED_COUNT);
+    }
+
+    @Override
+    public long getTotalNanos() {
+        return OffHeapMemory.getLongVolatile(address + TOTAL_NANOS);
+    }
+
+    @Override
+    public long getSelfNanos() {
+        return OffHeapMemory.getLongVolatile(address + SELF_NANOS);
+    }
+
+    @Override
+    public long getBucketCount(int bucket) {
+        return OffHeapMemory.getLongVolatile(address + BUCKETS + (long) bucket * 8);
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        return snapshot(getMethodId(), chunk, offset);
+    }
+
+    @Override
+    public synchronized Snapshot intervalSnapshot() {
+        long min = OffHeapMemory.getAndSetLong(address + INTERVAL_MIN_NANOS, 0);
+        long max = OffHeapMemory.getAndSetLong(address + INTERVAL_MAX_NANOS, 0);
+        Snapshot current = snapshot();
+        Snapshot baseline = intervalBaseline;
+        intervalBaseline = current;
+        return current.since(baseline, min == 0 ? 0 : min - 1,
+                current.histogram.since(baseline == null ? null : baseline.histogram, max));
+    }
+
+    /**
+     * Statistics in the slot at the given offset of a native-order buffer
+     */
+    static Snapshot snapshot(int methodId, ByteBuffer buffer, int offset) {
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] = buffer.getLong(offset + BUCKETS + bucket * 8);
+        }
+        long min = buffer.getLong(offset + MIN_NANOS);
+        long max = buffer.getLong(offset + MAX_NANOS);
+        return new Snapshot(methodId, buffer.getLong(offset + COUNT), buffer.getLong(offset + TIMED_COUNT),
+                buffer.getLong(offset + TOTAL_NANOS), buffer.getLong(offset + SELF_NANOS), min == 0 ? 0 : min - 1,
+                max, new LatencyHistogram.Snapshot(counts, max));
+    }
+
+    /**
+     * Name of the method in the slot at the given offset of a buffer
+     */
+    static String name(ByteBuffer buffer, int offset) {
+        byte[] bytes = new byte[Math.min(Math.max(buffer.getInt(offset + NAME_LENGTH), 0), NAME_BYTES)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + NAME + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.bytebuddy.stats;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-method counters backed by striped cells, so that many threads recording
+ * the same method do not fight over a single cache line
+ */
+class HeapMethodStats extends MethodStats {
+
+    private final LongAdder count = new LongAdder();
+    // Calls whose duration was measured; fewer than count when sampling skips calls
+    private final LongAdder timedCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    // Only maintained by callers that know the time spent in child calls
+    private final LongAdder selfNanos = new LongAdder();
+    // Accumulators only write when the value actually changes, which is rare once warmed up
+    private final LongAccumulator minNanos = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    // Minimum since the last interval snapshot; the histogram keeps the interval maximum
+    private final LongAccumulator intervalMinNanos = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+    // Counters at the last interval snapshot, only touched by readers and only once they ask for intervals
+    private Snapshot intervalBaseline;
+
+    HeapMethodStats(int methodId) {
+        super(methodId);
+    }
+
+    @Override
+    public void record(long durationNanos) {
+        count.increment();
+        timedCount.increment();
+        totalNanos.add(durationNanos);
+        minNanos.accumulate(durationNanos);
+        maxNanos.accumulate(durationNanos);
+        intervalMinNanos.accumulate(durationNanos);
+        histogram.record(durationNanos);
+    }
+
+    @Override
+    public void record(long durationNanos, long selfDurationNanos) {
+        record(durationNanos);
+        selfNanos.add(selfDurationNanos);
+    }
+
+    @Override
+    public void recordUnsampled() {
+        count.increment();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getTimedCount() {
+        return timedCount.sum();
+    }
+
+    @Override
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    @Override
+    public long getSelfNanos() {
+        return selfNanos.sum();
+    }
+
+    @Override
+    public long getBucketCount(int bucket) {
+        return histogram.getCount(bucket);
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        long calls = count.sum();
+        long min = minNanos.get();
+        return new Snapshot(getMethodId(), calls, timedCount.sum(), totalNanos.sum(), selfNanos.sum(),
+                min == Long.MAX_VALUE ? 0 : min, maxNanos.get(), histogram.snapshot());
+    }
+
+    @Override
+    public synchronized Snapshot intervalSnapshot() {
+        long min = intervalMinNanos.getThenReset();
+        LatencyHistogram.Snapshot interval = histogram.intervalSnapshot();
+        // The histogram keeps its own baseline, so the one kept here only needs the counters
+        Snapshot current = new Snapshot(getMethodId(), count.sum(), timedCount.sum(), totalNanos.sum(),
+                selfNanos.sum(), 0, 0, null);
+        Snapshot baseline = intervalBaseline;
+        intervalBaseline = current;
+        return current.since(baseline, min == Long.MAX_VALUE ? 0 : min, interval);
+    }
+}
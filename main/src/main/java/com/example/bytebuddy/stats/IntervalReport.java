@@ -0,0 +1,79 @@
+package com.example.bytebuddy.stats;
+
+import com.example.bytebuddy.capture.ValueFormatter;
+import com.example.bytebuddy.registry.MethodRegistry;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Prints the latency distribution of the methods called during each interval, e.g. every minute, from
+ * {@link MethodStatsStore#intervalSnapshot()}, so that a regression shows up while the process runs instead of
+ * being averaged into the cumulative statistics printed at exit
+ */
+public final class IntervalReport {
+
+    private final MethodStatsStore statistics;
+    private final int limit;
+
+    /**
+     * Report on the given statistics, listing at most limit methods per interval by time spent
+     */
+    public IntervalReport(MethodStatsStore statistics, int limit) {
+        this.statistics = statistics;
+        this.limit = limit;
+    }
+
+    /**
+     * Print the report every interval on a daemon thread
+     */
+    public void start(long intervalMillis) {
+        Thread reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                String report = report(intervalMillis);
+                if (!report.isEmpty()) {
+                    System.out.print(report);
+                }
+            }
+        }, "instrumentation-interval-report");
+        reporter.setDaemon(true);
+        reporter.start();
+        // Start the first interval now rather than at the first report
+        statistics.intervalSnapshot();
+    }
+
+    /**
+     * Take the interval snapshots and format them, or return an empty string if nothing was called
+     */
+    public String report(long intervalMillis) {
+        List<MethodStats.Snapshot> snapshots = statistics.intervalSnapshot();
+        if (snapshots.isEmpty()) {
+            return "";
+        }
+        snapshots.sort(Comparator.comparingLong((MethodStats.Snapshot snapshot) -> snapshot.totalNanos).reversed());
+        StringBuilder out = new StringBuilder();
+        appendDuration(out, "⏱️ Last ", intervalMillis * 1_000_000);
+        out.append(" | Methods called: ").append(snapshots.size()).append('\n');
+        for (MethodStats.Snapshot snapshot : snapshots.subList(0, Math.min(limit, snapshots.size()))) {
+            out.append("   ").append(MethodRegistry.displayName(snapshot.methodId))
+                    .append(" | Calls: ").append(snapshot.count);
+            appendDuration(out, " | p50: ", snapshot.percentile(50));
+            appendDuration(out, " | p90: ", snapshot.percentile(90));
+            appendDuration(out, " | p99: ", snapshot.percentile(99));
+            appendDuration(out, " | p99.9: ", snapshot.percentile(99.9));
+            appendDuration(out, " | Max: ", snapshot.maxNanos);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendDuration(StringBuilder out, String label, long nanos) {
+        out.append(label);
+        ValueFormatter.appendDuration(out, nanos);
+    }
+}
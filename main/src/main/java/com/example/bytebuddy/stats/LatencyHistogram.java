@@ -0,0 +1,221 @@
+package com.example.bytebuddy.stats;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Fixed-size log-linear latency histogram.
+ * Values below 32 ns get exact buckets; above that every power of two is split into
+ * 16 linear sub-buckets, which bounds the relative error to about 6%.
+ * Recording is a single atomic increment, with no allocation and no locking once warmed up:
+ * the buckets start as one array and are striped over more arrays, picked by thread, when
+ * recording threads collide, like the cells of a {@link java.util.concurrent.atomic.LongAdder}.
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+    // Values of 2^38 ns (about 4.5 minutes) and above share the last bucket
+    static final int MAX_EXPONENT = 38;
+    public static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT;
+
+    // Enough stripes for the processors, rounded up to a power of two, but at most 16 (72 KiB per histogram)
+    static final int MAX_STRIPES = Math.min(16, stripesFor(Runtime.getRuntime().availableProcessors()));
+
+    private volatile AtomicLongArray[] stripes;
+    // Accumulators only write when the value actually changes, which is rare once warmed up
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    // Maximum since the last interval snapshot
+    private final LongAccumulator intervalMax = new LongAccumulator(Math::max, 0);
+
+    // Bucket counts at the last interval snapshot, only touched by readers and only once they ask for intervals
+    private long[] intervalBaseline;
+
+    public LatencyHistogram() {
+        this(1);
+    }
+
+    /**
+     * Histogram starting with the given number of stripes, a power of two
+     */
+    LatencyHistogram(int stripeCount) {
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(BUCKET_COUNT);
+        }
+    }
+
+    /**
+     * Record a duration in nanoseconds
+     */
+    public void record(long nanos) {
+        int bucket = bucketIndex(nanos);
+        AtomicLongArray[] current = stripes;
+        AtomicLongArray stripe = current.length == 1 ? current[0] : current[stripeIndex(current.length)];
+        long count = stripe.get(bucket);
+        if (!stripe.compareAndSet(bucket, count, count + 1)) {
+            // Another thread recorded into the same stripe meanwhile
+            if (current.length < MAX_STRIPES) {
+                grow(current);
+            }
+            stripe.getAndIncrement(bucket);
+        }
+        max.accumulate(nanos);
+        intervalMax.accumulate(nanos);
+    }
+
+    private static int stripeIndex(int stripeCount) {
+        // Fibonacci hash, so that consecutive thread ids spread over the stripes
+        return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (stripeCount - 1);
+    }
+
+    private synchronized void grow(AtomicLongArray[] seen) {
+        if (stripes == seen) {
+            AtomicLongArray[] grown = Arrays.copyOf(seen, seen.length * 2);
+            for (int i = seen.length; i < grown.length; i++) {
+                grown[i] = new AtomicLongArray(BUCKET_COUNT);
+            }
+            stripes = grown;
+        }
+    }
+
+    static int stripesFor(int processors) {
+        return processors <= 1 ? 1 : Integer.highestOneBit(processors - 1) << 1;
+    }
+
+    /**
+     * Current count of one bucket, without taking a snapshot
+     */
+    public long getCount(int bucket) {
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            count += stripe.get(bucket);
+        }
+        return count;
+    }
+
+    /**
+     * Cumulative view of everything recorded so far
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(counts(), max.get());
+    }
+
+    private long[] counts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * View of the values recorded since the previous interval snapshot, which is reset by this call.
+     * Cumulative snapshots are not affected.
+     */
+    public synchronized Snapshot intervalSnapshot() {
+        long intervalMaxValue = intervalMax.getThenReset();
+        long[] current = counts();
+        Snapshot interval = new Snapshot(current, intervalMaxValue).since(intervalBaseline, intervalMaxValue);
+        intervalBaseline = current;
+        return interval;
+    }
+
+    /**
+     * Map a duration to its bucket
+     */
+    public static int bucketIndex(long nanos) {
+        if (nanos < LINEAR_LIMIT) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (nanos >>> shift) - SUB_BUCKET_COUNT;
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Highest duration that maps to the given bucket
+     */
+    public static long bucketUpperBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int group = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT;
+        int shift = group + 1;
+        long lower = (long) (subBucket + SUB_BUCKET_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of the bucket counts
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long totalCount;
+        public final long maxNanos;
+
+        Snapshot(long[] counts, long maxNanos) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            this.counts = counts;
+            this.totalCount = total;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        public long getCount(int bucket) {
+            return counts[bucket];
+        }
+
+        /**
+         * Value at the given percentile (0-100), reported as the upper bound of its bucket
+         * and never above the recorded maximum
+         */
+        public long percentile(double percentile) {
+            if (totalCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * totalCount);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        /**
+         * Counts recorded since the given earlier counts of the same histogram, with the maximum of that interval
+         */
+        Snapshot since(long[] baseline, long intervalMaxNanos) {
+            long[] interval = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                interval[i] = baseline == null ? counts[i] : counts[i] - baseline[i];
+            }
+            return new Snapshot(interval, intervalMaxNanos);
+        }
+
+        Snapshot since(Snapshot baseline, long intervalMaxNanos) {
+            return since(baseline == null ? null : baseline.counts, intervalMaxNanos);
+        }
+    }
+}
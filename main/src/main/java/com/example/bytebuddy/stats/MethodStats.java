@@ -0,0 +1,109 @@
+package com.example.bytebuddy.stats;
+
+/**
+ * Per-method counters and latency histogram, kept on the heap or in a {@link StatsArena}
+ */
+public abstract class MethodStats {
+
+    private final int methodId;
+
+    protected MethodStats(int methodId) {
+        this.methodId = methodId;
+    }
+
+    public int getMethodId() {
+        return methodId;
+    }
+
+    /**
+     * Record one completed call
+     */
+    public abstract void record(long durationNanos);
+
+    /**
+     * Record one completed call along with the part of it not spent in instrumented child calls
+     */
+    public abstract void record(long durationNanos, long selfDurationNanos);
+
+    /**
+     * Count one call that was not timed because it was not sampled
+     */
+    public abstract void recordUnsampled();
+
+    // Live reads for renderers that must not allocate a snapshot per method; each is read on its own
+
+    public abstract long getCount();
+
+    public abstract long getTimedCount();
+
+    public abstract long getTotalNanos();
+
+    public abstract long getSelfNanos();
+
+    /**
+     * Calls counted in one {@link LatencyHistogram} bucket
+     */
+    public abstract long getBucketCount(int bucket);
+
+    /**
+     * Read the current values without blocking writers.
+     * Fields are read independently, so a snapshot taken under load may be off by the calls in flight.
+     */
+    public abstract Snapshot snapshot();
+
+    /**
+     * Statistics of the calls recorded since the previous interval snapshot, which is reset by this call.
+     * Cumulative snapshots are not affected; calls in flight may land in either interval.
+     */
+    public abstract Snapshot intervalSnapshot();
+
+    /**
+     * Immutable view of a method's statistics.
+     * Averages and percentiles come from the timed calls, count includes the unsampled ones.
+     */
+    public static class Snapshot {
+        public final int methodId;
+        public final long count;
+        public final long timedCount;
+        public final long totalNanos;
+        public final long selfNanos;
+        public final long minNanos;
+        public final long maxNanos;
+        public final LatencyHistogram.Snapshot histogram;
+
+        public Snapshot(int methodId, long count, long timedCount, long totalNanos, long selfNanos,
+                        long minNanos, long maxNanos, LatencyHistogram.Snapshot histogram) {
+            this.methodId = methodId;
+            this.count = count;
+            this.timedCount = timedCount;
+            this.totalNanos = totalNanos;
+            this.selfNanos = selfNanos;
+            this.minNanos = minNanos;
+            this.maxNanos = maxNanos;
+            this.histogram = histogram;
+        }
+
+        public long getAverageSelfNanos() {
+            return timedCount > 0 ? selfNanos / timedCount : 0;
+        }
+
+        public long percentile(double percentile) {
+            return histogram.percentile(percentile);
+        }
+
+        public long getAverageNanos() {
+            return timedCount > 0 ? totalNanos / timedCount : 0;
+        }
+
+        /**
+         * Counters since the given earlier snapshot of the same method, or since the start without one,
+         * completed with the minimum and histogram of that interval
+         */
+        Snapshot since(Snapshot baseline, long intervalMinNanos, LatencyHistogram.Snapshot intervalHistogram) {
+            Snapshot start = baseline != null ? baseline : new Snapshot(methodId, 0, 0, 0, 0, 0, 0, null);
+            return new Snapshot(methodId, count - start.count, timedCount - start.timedCount,
+                    totalNanos - start.totalNanos, selfNanos - start.selfNanos, intervalMinNanos,
+                    intervalHistogram.maxNanos, intervalHistogram);
+        }
+    }
+}
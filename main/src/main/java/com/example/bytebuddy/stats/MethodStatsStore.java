@@ -0,0 +1,231 @@
+package com.example.bytebuddy.stats;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Statistics store indexed by method ID.
+ * Recording is lock-free once a method's slot exists; the first call for a method
+ * creates the slot under a lock, so no update is ever lost to a racing registration.
+ *
+ * The statistics are kept on the heap, or in a {@link StatsArena} off the heap. The backing of the stores the advice
+ * classes create is read from {@code -Dinstrumentation.stats=heap|direct|mapped}, with the files of mapped stores in
+ * {@code -Dinstrumentation.stats.dir}, or set with {@link #setBacking} before the advice classes initialize.
+ */
+public class MethodStatsStore {
+
+    public enum Backing {
+        HEAP, DIRECT, MAPPED
+    }
+
+    private static volatile Backing backing = Backing.valueOf(
+            System.getProperty("instrumentation.stats", "heap").toUpperCase());
+    private static volatile Path directory = Paths.get(System.getProperty("instrumentation.stats.dir", "."));
+    private static volatile int slotsPerChunk = Integer.getInteger("instrumentation.stats.slotsPerChunk", 1024);
+
+    private final StatsArena arena;
+    // Slots by method ID; only written under the lock, published by the volatile write
+    private volatile MethodStats[] slots = new MethodStats[256];
+
+    public MethodStatsStore() {
+        this(null);
+    }
+
+    /**
+     * Store keeping its statistics in the given arena, or on the heap if null
+     */
+    public MethodStatsStore(StatsArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Set the backing of the stores created afterwards; mapped stores write their files to the given directory
+     */
+    public static void setBacking(Backing statsBacking, Path statsDirectory, int chunkSlots) {
+        if (chunkSlots < 1 || chunkSlots > StatsArena.MAX_SLOTS_PER_CHUNK) {
+            throw new IllegalArgumentException("stats.slotsPerChunk must be from 1 to "
+                    + StatsArena.MAX_SLOTS_PER_CHUNK + ": " + chunkSlots);
+        }
+        backing = statsBacking;
+        directory = statsDirectory;
+        slotsPerChunk = chunkSlots;
+    }
+
+    public static Backing getBacking() {
+        return backing;
+    }
+
+    /**
+     * A store with the current backing; a mapped one is written to name.stats. The statistics are kept on the heap
+     * if the file cannot be created, if the JVM does not give access to raw memory, see {@link OffHeapMemory}, or if
+     * instrumentation.stats.slotsPerChunk is out of range
+     */
+    public static MethodStatsStore create(String name) {
+        try {
+            return create(name, backing);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            System.err.println("⚠️ Statistics kept on the heap: " + e.getMessage());
+            return new MethodStatsStore();
+        }
+    }
+
+    private static MethodStatsStore create(String name, Backing backing) {
+        switch (backing) {
+            case DIRECT:
+                return new MethodStatsStore(StatsArena.allocate(slotsPerChunk));
+            case MAPPED:
+                Path file = directory.resolve(name + ".stats");
+                try {
+                    Files.createDirectories(directory);
+                    StatsArena arena = StatsArena.map(file, slotsPerChunk);
+                    System.out.println("📇 Statistics mapped to " + file.toAbsolutePath());
+                    return new MethodStatsStore(arena);
+                } catch (IOException e) {
+                    System.err.println("⚠️ Statistics not mapped to " + file + ", kept on the heap: " + e);
+                    return new MethodStatsStore();
+                }
+            default:
+                return new MethodStatsStore();
+        }
+    }
+
+    /**
+     * The arena holding the statistics, or null if they are on the heap
+     */
+    public StatsArena getArena() {
+        return arena;
+    }
+
+    /**
+     * Record one completed call of the given method
+     */
+    public void record(int methodId, long durationNanos) {
+        getOrCreate(methodId).record(durationNanos);
+    }
+
+    /**
+     * Record one completed call including its self time, excluding instrumented child calls
+     */
+    public void record(int methodId, long durationNanos, long selfDurationNanos) {
+        getOrCreate(methodId).record(durationNanos, selfDurationNanos);
+    }
+
+    /**
+     * Count one call of the given method that was not timed
+     */
+    public void recordUnsampled(int methodId) {
+        getOrCreate(methodId).recordUnsampled();
+    }
+
+    /**
+     * Get the slot for a method, creating it on first use
+     */
+    public MethodStats getOrCreate(int methodId) {
+        MethodStats[] current = slots;
+        if (methodId < current.length) {
+            MethodStats stats = current[methodId];
+            if (stats != null) {
+                return stats;
+            }
+        }
+        return create(methodId);
+    }
+
+    private synchronized MethodStats create(int methodId) {
+        MethodStats[] current = slots;
+        if (methodId >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, methodId + 1));
+        }
+        MethodStats stats = current[methodId];
+        if (stats == null) {
+            stats = arena != null ? arena.stats(methodId, name(methodId)) : new HeapMethodStats(methodId);
+            current[methodId] = stats;
+        }
+        slots = current;
+        return stats;
+    }
+
+    private static String name(int methodId) {
+        MethodRegistry.MethodInfo info = MethodRegistry.get(methodId);
+        if (info == null) {
+            return null;
+        }
+        String name = info.typeName + "." + info.methodName + info.descriptor;
+        return info.loaderName != null ? name + " [" + info.loaderName + "]" : name;
+    }
+
+    /**
+     * Get the slot for a method, or null if it has never been recorded
+     */
+    public MethodStats get(int methodId) {
+        MethodStats[] current = slots;
+        return methodId >= 0 && methodId < current.length ? current[methodId] : null;
+    }
+
+    /**
+     * Snapshot every recorded method without blocking writers
+     */
+    public List<MethodStats.Snapshot> snapshot() {
+        MethodStats[] current = slots;
+        List<MethodStats.Snapshot> result = new ArrayList<>();
+        for (MethodStats stats : current) {
+            if (stats != null) {
+                result.add(stats.snapshot());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Interval snapshot of every method called since the previous interval snapshot, see
+     * {@link MethodStats#intervalSnapshot()}
+     */
+    public List<MethodStats.Snapshot> intervalSnapshot() {
+        MethodStats[] current = slots;
+        List<MethodStats.Snapshot> result = new ArrayList<>();
+        for (MethodStats stats : current) {
+            if (stats != null) {
+                MethodStats.Snapshot snapshot = stats.intervalSnapshot();
+                if (snapshot.count > 0) {
+                    result.add(snapshot);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drop the statistics of one method, e.g. when its ID is released
+     */
+    public synchronized void remove(int methodId) {
+        MethodStats[] current = slots;
+        if (methodId >= 0 && methodId < current.length) {
+            current[methodId] = null;
+            slots = current;
+            if (arena != null) {
+                arena.clear(methodId);
+            }
+        }
+    }
+
+    /**
+     * Drop all recorded statistics
+     */
+    public synchronized void clear() {
+        if (arena != null) {
+            for (MethodStats stats : slots) {
+                if (stats != null) {
+                    arena.clear(stats.getMethodId());
+                }
+            }
+        }
+        slots = new MethodStats[slots.length];
+    }
+}
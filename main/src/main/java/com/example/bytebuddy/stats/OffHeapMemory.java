@@ -0,0 +1,99 @@
+package com.example.bytebuddy.stats;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * The only user of {@code sun.misc.Unsafe}: atomic and plain accesses to raw memory addresses, for the
+ * {@link StatsArena}. The build passes {@code -XDignore.symbol.file} so that javac does not warn about it.
+ *
+ * Unsafe and the address field of direct buffers are looked up once; a JVM without them (e.g. one without the
+ * jdk.unsupported module) leaves this unavailable, and the statistics are then kept on the heap.
+ */
+@SuppressWarnings("sunapi")
+final class OffHeapMemory {
+
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long ADDRESS_OFFSET;
+    // Why Unsafe could not be used, or null if it can
+    private static final Throwable UNAVAILABLE;
+
+    static {
+        sun.misc.Unsafe unsafe = null;
+        long addressOffset = -1;
+        Throwable unavailable = null;
+        try {
+            Field field = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (sun.misc.Unsafe) field.get(null);
+            addressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (Throwable e) {
+            unsafe = null;
+            unavailable = e;
+        }
+        UNSAFE = unsafe;
+        ADDRESS_OFFSET = addressOffset;
+        UNAVAILABLE = unavailable;
+    }
+
+    private OffHeapMemory() {
+    }
+
+    /**
+     * Fail if raw memory cannot be accessed on this JVM
+     */
+    static void checkAvailable() {
+        if (UNAVAILABLE != null) {
+            throw new UnsupportedOperationException("Off-heap statistics need sun.misc.Unsafe: " + UNAVAILABLE,
+                    UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Address of the memory of a direct or mapped buffer
+     */
+    static long address(ByteBuffer buffer) {
+        return UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+    }
+
+    static long getLongVolatile(long address) {
+        return UNSAFE.getLongVolatile(null, address);
+    }
+
+    static void putLongVolatile(long address, long value) {
+        UNSAFE.putLongVolatile(null, address, value);
+    }
+
+    static long getAndAddLong(long address, long delta) {
+        return UNSAFE.getAndAddLong(null, address, delta);
+    }
+
+    static long getAndSetLong(long address, long value) {
+        return UNSAFE.getAndSetLong(null, address, value);
+    }
+
+    static boolean compareAndSwapLong(long address, long expected, long value) {
+        return UNSAFE.compareAndSwapLong(null, address, expected, value);
+    }
+
+    static int getIntVolatile(long address) {
+        return UNSAFE.getIntVolatile(null, address);
+    }
+
+    static void putIntVolatile(long address, int value) {
+        UNSAFE.putIntVolatile(null, address, value);
+    }
+
+    static void putInt(long address, int value) {
+        UNSAFE.putInt(address, value);
+    }
+
+    static void putByte(long address, byte value) {
+        UNSAFE.putByte(address, value);
+    }
+
+    static void setMemory(long address, long bytes, byte value) {
+        UNSAFE.setMemory(address, bytes, value);
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.bytebuddy.stats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Off-heap memory for method statistics: one fixed-size slot per method ID holding the counters, the method's
+ * name and the {@link LatencyHistogram} buckets, updated with atomic operations on the raw memory. None of it is
+ * on the Java heap, so tens of thousands of instrumented methods cost the garbage collector nothing.
+ *
+ * Slots are allocated in chunks of slotsPerChunk as method IDs grow, either in direct buffers or mapped from a
+ * file; a chunk is one buffer, so it holds at most {@link #MAX_SLOTS_PER_CHUNK} slots. A mapped file lays the chunks out one after the other behind a header, so it holds every method's latest
+ * statistics when the process crashes, and another process can read it meanwhile; {@link #main} prints one.
+ * The file is in the native byte order.
+ *
+ * Each counter is a single atomic cell, so threads recording the same method contend more than with the
+ * striped counters of the heap statistics.
+ */
+public final class StatsArena {
+
+    // "MSTATS01" in ASCII
+    static final long MAGIC = 0x4D53544154533031L;
+    static final int HEADER_BYTES = 4096;
+    // Header fields
+    private static final int SLOT_BYTES_FIELD = 8;
+    private static final int BUCKET_COUNT_FIELD = 12;
+    private static final int CHUNK_COUNT_FIELD = 16;
+    private static final int SLOTS_PER_CHUNK_FIELD = 20;
+
+    // Slot fields, as offsets in the slot
+    static final int COUNT = 0;
+    static final int TIMED_COUNT = 8;
+    static final int TOTAL_NANOS = 16;
+    static final int SELF_NANOS = 24;
+    // Minimum plus one, so that zeroed memory means no call
+    static final int MIN_NANOS = 32;
+    static final int MAX_NANOS = 40;
+    // Method ID plus one, written last, so that zero marks a free slot
+    static final int METHOD = 48;
+    static final int NAME_LENGTH = 52;
+    // Extremes since the last interval snapshot, stored like the cumulative ones
+    static final int INTERVAL_MIN_NANOS = 56;
+    static final int INTERVAL_MAX_NANOS = 64;
+    static final int NAME = 72;
+    static final int NAME_BYTES = 184;
+    static final int BUCKETS = NAME + NAME_BYTES;
+    static final int SLOT_BYTES = BUCKETS + LatencyHistogram.BUCKET_COUNT * 8;
+    // As many as a buffer can hold
+    public static final int MAX_SLOTS_PER_CHUNK = Integer.MAX_VALUE / SLOT_BYTES;
+
+    private final int slotsPerChunk;
+    private final FileChannel channel;
+    private final Path file;
+    private final long header;
+    // Buffers are kept so that their memory stays allocated or mapped
+    private final ByteBuffer headerBuffer;
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+    private StatsArena(int slotsPerChunk, FileChannel channel, Path file, ByteBuffer header) {
+        if (slotsPerChunk < 1 || slotsPerChunk > MAX_SLOTS_PER_CHUNK) {
+            throw new IllegalArgumentException("slotsPerChunk must be from 1 to " + MAX_SLOTS_PER_CHUNK + ": "
+                    + slotsPerChunk);
+        }
+        this.slotsPerChunk = slotsPerChunk;
+        this.channel = channel;
+        this.file = file;
+        this.headerBuffer = header;
+        this.header = OffHeapMemory.address(header);
+        OffHeapMemory.putInt(this.header + SLOT_BYTES_FIELD, SLOT_BYTES);
+        OffHeapMemory.putInt(this.header + BUCKET_COUNT_FIELD, LatencyHistogram.BUCKET_COUNT);
+        OffHeapMemory.putInt(this.header + SLOTS_PER_CHUNK_FIELD, slotsPerChunk);
+        OffHeapMemory.putLongVolatile(this.header, MAGIC);
+    }
+
+    /**
+     * Arena in direct buffers, gone with the process
+     */
+    public static StatsArena allocate(int slotsPerChunk) {
+        OffHeapMemory.checkAvailable();
+        return new StatsArena(slotsPerChunk, null, null, ByteBuffer.allocateDirect(HEADER_BYTES));
+    }
+
+    /**
+     * Arena mapped from a file, created afresh; a file already there, e.g. from a crashed run, is kept with the
+     * suffix ".previous"
+     */
+    public static StatsArena map(Path file, int slotsPerChunk) throws IOException {
+        OffHeapMemory.checkAvailable();
+        if (Files.exists(file)) {
+            Files.move(file, file.resolveSibling(file.getFileName() + ".previous"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new StatsArena(slotsPerChunk, channel, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Statistics of a method kept in its slot, allocating the slot's chunk and naming the slot on first use
+     */
+    MethodStats stats(int methodId, String name) {
+        ByteBuffer[] current = chunks;
+        int chunk = methodId / slotsPerChunk;
+        ByteBuffer buffer = chunk < current.length ? current[chunk] : addChunks(chunk);
+        // Within the chunk's buffer, so it fits in an int
+        int offset = (int) ((long) (methodId % slotsPerChunk) * SLOT_BYTES);
+        long address = OffHeapMemory.address(buffer) + offset;
+        if (OffHeapMemory.getIntVolatile(address + METHOD) == 0) {
+            name(address, methodId, name);
+        }
+        return new ArenaMethodStats(methodId, buffer, offset);
+    }
+
+    private synchronized ByteBuffer addChunks(int chunk) {
+        ByteBuffer[] current = chunks;
+        if (chunk < current.length) {
+            return current[chunk];
+        }
+        ByteBuffer[] grown = Arrays.copyOf(current, chunk + 1);
+        long chunkBytes = (long) slotsPerChunk * SLOT_BYTES;
+        for (int index = current.length; index <= chunk; index++) {
+            ByteBuffer buffer;
+            if (channel != null) {
+                try {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + index * chunkBytes, chunkBytes);
+                } catch (IOException e) {
+                    // Recording must not fail: the rest of the arena lives in memory only
+                    System.err.println("⚠️ Statistics arena " + file + " could not grow: " + e);
+                    buffer = ByteBuffer.allocateDirect((int) chunkBytes);
+                }
+            } else {
+                buffer = ByteBuffer.allocateDirect((int) chunkBytes);
+            }
+            // Read through the buffer as written through its address
+            grown[index] = buffer.order(ByteOrder.nativeOrder());
+        }
+        OffHeapMemory.putIntVolatile(header + CHUNK_COUNT_FIELD, grown.length);
+        chunks = grown;
+        return grown[chunk];
+    }
+
+    private static synchronized void name(long address, int methodId, String name) {
+        byte[] bytes = name != null ? name.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int length = Math.min(bytes.length, NAME_BYTES);
+        for (int i = 0; i < length; i++) {
+            OffHeapMemory.putByte(address + NAME + i, bytes[i]);
+        }
+        OffHeapMemory.putInt(address + NAME_LENGTH, length);
+        OffHeapMemory.putIntVolatile(address + METHOD, methodId + 1);
+    }
+
+    /**
+     * Zero a method's slot, e.g. when its ID is released
+     */
+    void clear(int methodId) {
+        ByteBuffer[] current = chunks;
+        int chunk = methodId / slotsPerChunk;
+        if (chunk < current.length) {
+            long slot = OffHeapMemory.address(current[chunk]) + (long) (methodId % slotsPerChunk) * SLOT_BYTES;
+            OffHeapMemory.setMemory(slot, SLOT_BYTES, (byte) 0);
+        }
+    }
+
+    /**
+     * A method's statistics as read from an arena file
+     */
+    public static final class Method {
+        public final String name;
+        public final MethodStats.Snapshot statistics;
+
+        Method(String name, MethodStats.Snapshot statistics) {
+            this.name = name;
+            this.statistics = statistics;
+        }
+    }
+
+    /**
+     * Print the statistics in an arena file, hottest methods first, e.g. of a process that crashed or is running:
+     * {@code java -cp agent.jar com.example.bytebuddy.stats.StatsArena advanced.stats}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: StatsArena <file.stats>");
+            System.exit(2);
+        }
+        for (Method method : read(Paths.get(args[0]))) {
+            MethodStats.Snapshot snapshot = method.statistics;
+            System.out.printf("%s | Calls: %d | Avg Time: %.2f μs | p50: %.2f μs | p99: %.2f μs | Max: %.2f μs%n",
+                    method.name, snapshot.count, snapshot.getAverageNanos() / 1e3, snapshot.percentile(50) / 1e3,
+                    snapshot.percentile(99) / 1e3, snapshot.maxNanos / 1e3);
+        }
+    }
+
+    /**
+     * Statistics of every method in an arena file, most total time first
+     */
+    public static List<Method> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Not a statistics arena of this version: " + file);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            header.order(ByteOrder.nativeOrder());
+            int slotsPerChunk = header.getInt(SLOTS_PER_CHUNK_FIELD);
+            if (header.getLong(0) != MAGIC || header.getInt(SLOT_BYTES_FIELD) != SLOT_BYTES
+                    || header.getInt(BUCKET_COUNT_FIELD) != LatencyHistogram.BUCKET_COUNT
+                    || slotsPerChunk < 1 || slotsPerChunk > MAX_SLOTS_PER_CHUNK) {
+                throw new IOException("Not a statistics arena of this version: " + file);
+            }
+            long chunkBytes = (long) slotsPerChunk * SLOT_BYTES;
+            int chunkCount = header.getInt(CHUNK_COUNT_FIELD);
+            List<Method> methods = new ArrayList<>();
+            // A chunk at a time, as the whole file may not fit in one buffer
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                long start = HEADER_BYTES + chunk * chunkBytes;
+                // Only what was mapped when the file was opened here can be read
+                int slots = (int) (Math.min(chunkBytes, size - start) / SLOT_BYTES);
+                if (slots <= 0) {
+                    break;
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, (long) slots * SLOT_BYTES);
+                buffer.order(ByteOrder.nativeOrder());
+                for (int slot = 0; slot < slots; slot++) {
+                    int offset = slot * SLOT_BYTES;
+                    int method = buffer.getInt(offset + METHOD);
+                    if (method != 0) {
+                        methods.add(new Method(ArenaMethodStats.name(buffer, offset),
+                                ArenaMethodStats.snapshot(method - 1, buffer, offset)));
+                    }
+                }
+            }
+            methods.sort((a, b) -> Long.compare(b.statistics.totalNanos, a.statistics.totalNanos));
+            return methods;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.bytebuddy.storage;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Per-thread state of the advice, such as a call stack, in one of two modes:
+ * <ul>
+ * <li>{@link Mode#THREAD} keeps each thread's state for the lifetime of the thread. Suits pools of long-lived
+ * platform threads, where the state is created once and reused for every call.</li>
+ * <li>{@link Mode#POOLED} hands the state back to a shared pool as soon as the thread's outermost instrumented
+ * call returns, and takes it from there on the next entry. Memory then follows the number of threads inside
+ * instrumented code rather than the number of threads alive, as needed with many short-lived or virtual threads;
+ * all a thread keeps between calls is an empty ThreadLocal entry.</li>
+ * </ul>
+ * The mode is read from {@code -Dinstrumentation.storage=thread|pooled} or set with {@link #setMode},
+ * and applies to storages created afterwards, i.e. it has to be chosen before the advice classes initialize.
+ */
+public abstract class ContextStorage<T> {
+
+    public enum Mode {
+        THREAD, POOLED
+    }
+
+    private static volatile Mode mode = Mode.valueOf(
+            System.getProperty("instrumentation.storage", "thread").toUpperCase());
+
+    final Supplier<T> factory;
+    private final LongAdder created = new LongAdder();
+
+    ContextStorage(Supplier<T> factory) {
+        this.factory = factory;
+    }
+
+    public static void setMode(Mode storageMode) {
+        mode = storageMode;
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * A storage in the current mode. States the pool has no room for are passed to onDiscard.
+     */
+    public static <T> ContextStorage<T> create(Supplier<T> factory, Consumer<? super T> onDiscard) {
+        if (mode == Mode.POOLED) {
+            return new PooledStorage<>(factory, onDiscard,
+                    Integer.getInteger("instrumentation.storage.maxPooled", 4096));
+        }
+        return new ThreadStorage<>(factory);
+    }
+
+    /**
+     * The state of the current thread, created if it has none
+     */
+    public abstract T get();
+
+    /**
+     * Called when the current thread's outermost instrumented call has returned, leaving its state empty
+     */
+    public abstract void release();
+
+    /**
+     * Whether states move between threads, i.e. must not remember the thread that created them
+     */
+    public abstract boolean isPooled();
+
+    /**
+     * Number of states created so far
+     */
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    T newState() {
+        created.increment();
+        return factory.get();
+    }
+}
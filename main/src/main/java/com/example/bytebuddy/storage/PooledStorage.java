@@ -0,0 +1,94 @@
+package com.example.bytebuddy.storage;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * {@link ContextStorage.Mode#POOLED}: states are parked in a striped pool between a thread's instrumented calls.
+ * Threads pick a stripe by ID, so the stripe locks are rarely contended, and parking or taking a state allocates
+ * nothing; the ThreadLocal is set to null rather than removed, so its entry is reused on the next call.
+ */
+final class PooledStorage<T> extends ContextStorage<T> {
+
+    private static final class Stripe {
+        final Object[] states;
+        int size;
+
+        Stripe(int capacity) {
+            states = new Object[capacity];
+        }
+    }
+
+    private final ThreadLocal<T> local = new ThreadLocal<>();
+    private final Consumer<? super T> onDiscard;
+    private final Stripe[] stripes;
+    private final int mask;
+
+    PooledStorage(Supplier<T> factory, Consumer<? super T> onDiscard, int maxPooled) {
+        super(factory);
+        this.onDiscard = onDiscard;
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxPooled / count));
+        }
+        mask = count - 1;
+    }
+
+    @Override
+    public T get() {
+        T state = local.get();
+        if (state == null) {
+            state = take();
+            if (state == null) {
+                state = newState();
+            }
+            local.set(state);
+        }
+        return state;
+    }
+
+    @Override
+    public void release() {
+        T state = local.get();
+        if (state != null) {
+            local.set(null);
+            if (!offer(state)) {
+                onDiscard.accept(state);
+            }
+        }
+    }
+
+    @Override
+    public boolean isPooled() {
+        return true;
+    }
+
+    private Stripe stripe() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+
+    @SuppressWarnings("unchecked")
+    private T take() {
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            if (stripe.size == 0) {
+                return null;
+            }
+            T state = (T) stripe.states[--stripe.size];
+            stripe.states[stripe.size] = null;
+            return state;
+        }
+    }
+
+    private boolean offer(T state) {
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            if (stripe.size == stripe.states.length) {
+                return false;
+            }
+            stripe.states[stripe.size++] = state;
+            return true;
+        }
+    }
+}
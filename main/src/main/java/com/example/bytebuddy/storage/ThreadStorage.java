@@ -0,0 +1,29 @@
+package com.example.bytebuddy.storage;
+
+import java.util.function.Supplier;
+
+/**
+ * {@link ContextStorage.Mode#THREAD}: a plain ThreadLocal, released together with the thread
+ */
+final class ThreadStorage<T> extends ContextStorage<T> {
+
+    private final ThreadLocal<T> local = ThreadLocal.withInitial(this::newState);
+
+    ThreadStorage(Supplier<T> factory) {
+        super(factory);
+    }
+
+    @Override
+    public T get() {
+        return local.get();
+    }
+
+    @Override
+    public void release() {
+    }
+
+    @Override
+    public boolean isPooled() {
+        return false;
+    }
+}
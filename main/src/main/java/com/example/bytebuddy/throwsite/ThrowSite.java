@@ -0,0 +1,46 @@
+package com.example.bytebuddy.throwsite;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+
+/**
+ * Immutable view of one (exception type, throw-site method) entry of a {@link ThrowSiteTable}
+ */
+public class ThrowSite {
+    public final String exceptionType;
+    public final int methodId;
+    public final long count;
+    // Throws the count may include that happened at sites evicted before this one took over their slot
+    public final long error;
+    // ID of the sampled stack trace in the table's StackTraceStore, StackTraceStore.NONE if none was taken yet
+    public final int traceId;
+    // Stack trace of the sample, null if none was taken yet or it was evicted from the store
+    public final StackTraceElement[] sample;
+
+    public ThrowSite(String exceptionType, int methodId, long count, long error,
+                     int traceId, StackTraceElement[] sample) {
+        this.exceptionType = exceptionType;
+        this.methodId = methodId;
+        this.count = count;
+        this.error = error;
+        this.traceId = traceId;
+        this.sample = sample;
+    }
+
+    /**
+     * Append the site as one line, e.g. "540 | java.lang.IllegalArgumentException ← Orders.validate",
+     * followed by up to maxFrames frames of the sample
+     */
+    public void appendTo(StringBuilder out, int maxFrames) {
+        out.append(error > 0 ? "~" : "").append(count).append(" | ")
+                .append(exceptionType).append(" ← ").append(MethodRegistry.displayName(methodId)).append('\n');
+        if (sample != null) {
+            int frames = Math.min(sample.length, maxFrames);
+            for (int i = 0; i < frames; i++) {
+                out.append("        at ").append(sample[i]).append('\n');
+            }
+            if (frames < sample.length) {
+                out.append("        ... ").append(sample.length - frames).append(" more\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.bytebuddy.throwsite;
+
+import com.example.bytebuddy.registry.MethodId;
+import com.example.bytebuddy.registry.MethodRegistry;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.matcher.ElementMatcher;
+
+/**
+ * Exit-only advice counting the exceptions instrumented methods throw into the installed {@link ThrowSiteTable}.
+ * It can be woven in alongside any of the other advice classes. A normal return only costs the inlined null
+ * check of the thrown exception.
+ */
+public class ThrowSiteAdvice {
+
+    private static volatile ThrowSiteTable table;
+
+    /**
+     * Count throws into the given table from now on, or stop counting with null
+     */
+    public static void install(ThrowSiteTable throwSites) {
+        table = throwSites;
+    }
+
+    public static ThrowSiteTable getTable() {
+        return table;
+    }
+
+    /**
+     * Weave the advice into the matched methods, with method IDs of the loader defining the class
+     */
+    public static <T> DynamicType.Builder<T> visit(DynamicType.Builder<T> builder,
+                                                   ElementMatcher<? super MethodDescription> methods,
+                                                   ClassLoader classLoader) {
+        return builder.visit(MethodRegistry.advice(ThrowSiteAdvice.class, classLoader).on(methods));
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class)
+    public static void onMethodExit(@MethodId int methodId, @Advice.Thrown Throwable thrown) {
+        if (thrown != null) {
+            thrown(methodId, thrown);
+        }
+    }
+
+    /**
+     * Count an exception leaving the given method
+     */
+    public static void thrown(int methodId, Throwable thrown) {
+        ThrowSiteTable throwSites = table;
+        if (throwSites != null) {
+            throwSites.record(methodId, thrown);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.bytebuddy.throwsite;
+
+import com.example.bytebuddy.agent.AgentOptions;
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.stacks.StackTraceStore;
+import com.example.bytebuddy.storage.ContextStorage;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts exceptions per (exception type, throw-site method), where the throw site is the innermost
+ * instrumented method the exception propagates out of.
+ *
+ * Counting a throw is a lookup in the site list of its method ID and an atomic increment; no stack trace is
+ * materialized except for a sampled throw, the first and then every sampleEvery-th of each site. Samples are
+ * interned into a {@link StackTraceStore}, so sites sharing a trace share its frames and a site keeps an int ID.
+ * The table holds at most capacity sites. When a new site arrives at a full table, the site with the fewest
+ * throws makes room and the new one starts from its count (the Space-Saving scheme), so the hottest sites
+ * are kept with an overestimate of at most the evicted count, reported as the site's error.
+ */
+public class ThrowSiteTable implements ThrowSiteTableMXBean {
+
+    /**
+     * Mutable site, linked into the list of its method ID
+     */
+    private static final class Node {
+        final String exceptionType;
+        final int methodId;
+        final long error;
+        final AtomicLong count;
+        volatile int sampleTraceId = StackTraceStore.NONE;
+        volatile Node next;
+
+        Node(String exceptionType, int methodId, long error, Node next) {
+            this.exceptionType = exceptionType;
+            this.methodId = methodId;
+            this.error = error;
+            this.count = new AtomicLong(error);
+            this.next = next;
+        }
+    }
+
+    private final int capacity;
+    private final int sampleEvery;
+    private final int maxFrames;
+    private final StackTraceStore traces;
+
+    // Site lists by method ID; lists and the array are only changed under the lock, published by the volatile write
+    private volatile Node[] heads = new Node[256];
+    private int size;
+
+    private final LongAdder throwCount = new LongAdder();
+    private final LongAdder evictedCount = new LongAdder();
+
+    /**
+     * Identity of the last exception counted on a thread and the methods it has left since, so that the outer
+     * frames it propagates through do not count it again, while the same instance leaving one of those methods
+     * again, e.g. a preallocated exception thrown anew, does count. Only its identity hash is kept, which holds
+     * neither the exception nor its class loader and allocates nothing per throw; another exception with the
+     * same hash thrown right after on the same thread would go uncounted, a one in 2^31 chance. An exception
+     * propagating through direct recursion leaves the same method repeatedly and is counted for each frame.
+     */
+    private static final class LastThrown {
+        boolean counted;
+        int identity;
+        // Methods left since it was counted, the first MAX_LEFT of them
+        final int[] left = new int[MAX_LEFT];
+        int leftCount;
+
+        boolean hasLeft(int methodId) {
+            for (int i = 0; i < leftCount; i++) {
+                if (left[i] == methodId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final int MAX_LEFT = 16;
+
+    // Never released: a throw site cannot tell when the exception it counted stops propagating
+    private final ContextStorage<LastThrown> lastThrown = ContextStorage.create(LastThrown::new, last -> { });
+
+    public ThrowSiteTable(int capacity, int sampleEvery, int maxFrames) {
+        this(capacity, sampleEvery, maxFrames, StackTraceStore.get());
+    }
+
+    public ThrowSiteTable(int capacity, int sampleEvery, int maxFrames, StackTraceStore traces) {
+        if (capacity < 1 || sampleEvery < 1) {
+            throw new IllegalArgumentException("Capacity and sampleEvery must be at least 1");
+        }
+        this.capacity = capacity;
+        this.sampleEvery = sampleEvery;
+        this.maxFrames = maxFrames;
+        this.traces = traces;
+        // A released ID may be handed to another method, which has not thrown anything yet
+        MethodRegistry.addReleaseListener(this::forget);
+    }
+
+    /**
+     * Create a table holding exceptions.capacity sites (default 1024), sampling the stack trace of every
+     * exceptions.sampleEvery-th throw of a site (default 1000) with up to exceptions.maxFrames frames (default 32)
+     */
+    public static ThrowSiteTable fromOptions(AgentOptions options) {
+        return new ThrowSiteTable((int) options.getLong("exceptions.capacity", 1024),
+                (int) options.getLong("exceptions.sampleEvery", 1000),
+                (int) options.getLong("exceptions.maxFrames", 32));
+    }
+
+    /**
+     * Count an exception leaving the given method, unless it was already counted leaving an inner method
+     */
+    public void record(int methodId, Throwable thrown) {
+        LastThrown last = lastThrown.get();
+        int identity = System.identityHashCode(thrown);
+        if (last.counted && last.identity == identity && !last.hasLeft(methodId)) {
+            // Still propagating outward from where it was counted
+            if (last.leftCount < MAX_LEFT) {
+                last.left[last.leftCount++] = methodId;
+            }
+            return;
+        }
+        last.counted = true;
+        last.identity = identity;
+        last.left[0] = methodId;
+        last.leftCount = 1;
+        throwCount.increment();
+
+        String exceptionType = thrown.getClass().getName();
+        Node node = find(methodId, exceptionType);
+        if (node == null) {
+            node = insert(methodId, exceptionType);
+        }
+        long count = node.count.incrementAndGet() - node.error;
+        if (count % sampleEvery == 1 || sampleEvery == 1) {
+            node.sampleTraceId = traces.intern(thrown.getStackTrace(), 0, maxFrames);
+        }
+    }
+
+    private Node find(int methodId, String exceptionType) {
+        Node[] current = heads;
+        if (methodId < 0 || methodId >= current.length) {
+            return null;
+        }
+        for (Node node = current[methodId]; node != null; node = node.next) {
+            if (node.exceptionType.equals(exceptionType)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private synchronized Node insert(int methodId, String exceptionType) {
+        Node node = find(methodId, exceptionType);
+        if (node != null) {
+            return node;
+        }
+        long error = 0;
+        if (size == capacity) {
+            Node coldest = coldest();
+            unlink(coldest);
+            evictedCount.increment();
+            error = coldest.count.get();
+        } else {
+            size++;
+        }
+        Node[] current = heads;
+        if (methodId >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, methodId + 1));
+        }
+        node = new Node(exceptionType, methodId, error, current[methodId]);
+        current[methodId] = node;
+        heads = current;
+        return node;
+    }
+
+    private Node coldest() {
+        Node coldest = null;
+        for (Node head : heads) {
+            for (Node node = head; node != null; node = node.next) {
+                if (coldest == null || node.count.get() < coldest.count.get()) {
+                    coldest = node;
+                }
+            }
+        }
+        return coldest;
+    }
+
+    private void unlink(Node target) {
+        Node[] current = heads;
+        Node node = current[target.methodId];
+        if (node == target) {
+            current[target.methodId] = target.next;
+        } else {
+            while (node.next != target) {
+                node = node.next;
+            }
+            // Readers already past this node still reach the rest of the list
+            node.next = target.next;
+        }
+        heads = current;
+    }
+
+    private synchronized void forget(int methodId) {
+        Node[] current = heads;
+        if (methodId < current.length) {
+            for (Node node = current[methodId]; node != null; node = node.next) {
+                size--;
+            }
+            current[methodId] = null;
+            heads = current;
+        }
+    }
+
+    /**
+     * Snapshot of all sites, most throws first
+     */
+    public List<ThrowSite> getSites() {
+        List<ThrowSite> sites = new ArrayList<>();
+        for (Node head : heads) {
+            for (Node node = head; node != null; node = node.next) {
+                int traceId = node.sampleTraceId;
+                sites.add(new ThrowSite(node.exceptionType, node.methodId, node.count.get(), node.error,
+                        traceId, traceId != StackTraceStore.NONE ? traces.lookup(traceId) : null));
+            }
+        }
+        sites.sort((a, b) -> Long.compare(b.count, a.count));
+        return sites;
+    }
+
+    /**
+     * Append the limit sites with the most throws, each with the top frames of its sample
+     */
+    public void appendReport(StringBuilder out, int limit, int framesPerSite) {
+        List<ThrowSite> sites = getSites();
+        out.append("💥 THROW SITES | Throws: ").append(getThrowCount())
+                .append(" | Sites: ").append(sites.size())
+                .append(" | Evicted: ").append(getEvictedCount()).append('\n');
+        for (int i = 0; i < Math.min(limit, sites.size()); i++) {
+            sites.get(i).appendTo(out, framesPerSite);
+        }
+    }
+
+    public StackTraceStore getTraces() {
+        return traces;
+    }
+
+    /**
+     * Register the MXBean as com.example.bytebuddy:type=ThrowSites
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("com.example.bytebuddy:type=ThrowSites"));
+        } catch (Exception e) {
+            System.err.println("⚠️ Throw site MXBean not registered: " + e);
+        }
+    }
+
+    @Override
+    public long getThrowCount() {
+        return throwCount.sum();
+    }
+
+    @Override
+    public synchronized int getSiteCount() {
+        return size;
+    }
+
+    @Override
+    public long getEvictedCount() {
+        return evictedCount.sum();
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        appendReport(sb, Integer.MAX_VALUE, maxFrames);
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized void clear() {
+        heads = new Node[heads.length];
+        size = 0;
+        throwCount.reset();
+        evictedCount.reset();
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.bytebuddy.throwsite;
+
+/**
+ * Operator view of the {@link ThrowSiteTable}, registered as
+ * {@code com.example.bytebuddy:type=ThrowSites} and reachable from jconsole or any JMX client
+ */
+public interface ThrowSiteTableMXBean {
+
+    /**
+     * Exceptions counted since the start or the last clear, including those at evicted sites
+     */
+    long getThrowCount();
+
+    int getSiteCount();
+
+    /**
+     * Sites dropped from the full table to make room for a new one
+     */
+    long getEvictedCount();
+
+    /**
+     * All sites, most throws first, with their sampled stack traces
+     */
+    String dump();
+
+    void clear();
+}
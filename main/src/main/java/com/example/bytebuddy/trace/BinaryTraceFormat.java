@@ -0,0 +1,95 @@
+package com.example.bytebuddy.trace;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of binary trace segment files.
+ *
+ * <pre>
+ * segment    := MAGIC VERSION block* 0x00*
+ * block      := BLOCK_DICTIONARY varint(count) (varint(id) string(type) string(class) string(method) string(descriptor))*
+ *             | BLOCK_EVENTS varint(threadId) string(threadName) int64(baseNanos) int32(length) record*
+ * record     := (RECORD_ENTRY | RECORD_EXIT | RECORD_EXIT_THROWN) varint(methodId) varint(deltaNanos)
+ * string     := varint(length) utf8-bytes
+ * </pre>
+ *
+ * Timestamps are {@code System.nanoTime()} values, each encoded as the delta to the previous record
+ * of the same thread (the first record of a block is relative to the block's base).
+ * Segments are preallocated, so a zero block type marks the end of the data.
+ */
+public final class BinaryTraceFormat {
+
+    public static final int MAGIC = 0x42425452; // "BBTR"
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 5;
+
+    public static final byte BLOCK_END = 0;
+    public static final byte BLOCK_EVENTS = 1;
+    public static final byte BLOCK_DICTIONARY = 2;
+
+    public static final byte RECORD_ENTRY = 1;
+    public static final byte RECORD_EXIT = 2;
+    public static final byte RECORD_EXIT_THROWN = 3;
+
+    // A record is at most one type byte plus an int and a long as varints
+    public static final int MAX_RECORD_SIZE = 1 + 5 + 10;
+
+    private BinaryTraceFormat() {
+    }
+
+    /**
+     * Write an unsigned LEB128 varint into an array, returning the new position
+     */
+    public static int putVarLong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IllegalStateException("Malformed varint at " + buffer.position());
+            }
+        }
+    }
+
+    public static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarLong(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[(int) getVarLong(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Upper bound for the encoded size of a string
+     */
+    public static int stringSize(String value) {
+        return 5 + value.length() * 3;
+    }
+}
@@ -0,0 +1,322 @@
+package com.example.bytebuddy.trace;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes enter/exit records in the {@link BinaryTraceFormat} to memory-mapped segment files.
+ * Each thread encodes into its own buffer; full buffers are copied into the current segment
+ * as one block, and a new segment is started once the current one is full.
+ * A daemon thread flushes partially filled buffers every second, so idle and finished threads
+ * do not hold back their records.
+ * Writing never throws into the instrumented code: if a block cannot be written, e.g. because the disk is full or
+ * a segment file already exists, the block is dropped and counted and the trace is disabled.
+ */
+public class BinaryTraceWriter implements AutoCloseable {
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int bufferSize;
+    // Oldest segments beyond this count are deleted, 0 keeps all of them
+    private final int maxSegments;
+
+    private final ThreadLocal<ThreadBuffer> buffers = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<ThreadBuffer> allBuffers = new ConcurrentLinkedQueue<>();
+
+    // Segment state, guarded by this
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private int dictionaryWritten;
+    // MethodRegistry.getReleasedCount() when the dictionary was last written
+    private long dictionaryReleased;
+    private boolean closed;
+
+    // Set once a block could not be written; records are then no longer encoded
+    private volatile boolean disabled;
+    private final LongAdder droppedBlocks = new LongAdder();
+
+    /**
+     * Per-thread encoding buffer
+     */
+    static class ThreadBuffer {
+        final Thread thread;
+        final byte[] data;
+        int position;
+        long baseTime;
+        long lastTime;
+
+        ThreadBuffer(Thread thread, int size) {
+            this.thread = thread;
+            this.data = new byte[size];
+        }
+    }
+
+    public BinaryTraceWriter(Path directory, long segmentSize, int bufferSize, int maxSegments) throws IOException {
+        if (segmentSize < 2L * bufferSize || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must hold at least two buffers and fit in one mapping");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.bufferSize = bufferSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        // Continue numbering after segments left by a previous run
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(directory, "trace-*.bin")) {
+            for (Path file : existing) {
+                String name = file.getFileName().toString();
+                segmentIndex = Math.max(segmentIndex, Integer.parseInt(name.substring(6, name.length() - 4)));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected file in trace directory " + directory, e);
+        }
+        openSegment();
+
+        Thread flusher = new Thread(this::flushPeriodically, "instrumentation-trace-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public BinaryTraceWriter(Path directory) throws IOException {
+        this(directory, 64L * 1024 * 1024, 64 * 1024, 0);
+    }
+
+    /**
+     * Record a method entry at the given nanoTime
+     */
+    public void enter(int methodId, long nanoTime) {
+        write(BinaryTraceFormat.RECORD_ENTRY, methodId, nanoTime);
+    }
+
+    /**
+     * Record a method exit at the given nanoTime
+     */
+    public void exit(int methodId, long nanoTime, boolean thrown) {
+        write(thrown ? BinaryTraceFormat.RECORD_EXIT_THROWN : BinaryTraceFormat.RECORD_EXIT, methodId, nanoTime);
+    }
+
+    private void write(byte type, int methodId, long nanoTime) {
+        if (disabled) {
+            return;
+        }
+        ThreadBuffer buffer = buffers.get();
+        if (buffer == null) {
+            buffer = new ThreadBuffer(Thread.currentThread(), bufferSize);
+            buffers.set(buffer);
+            allBuffers.add(buffer);
+        }
+        // Uncontended except while the flusher thread drains this buffer
+        synchronized (buffer) {
+            if (buffer.position + BinaryTraceFormat.MAX_RECORD_SIZE > buffer.data.length) {
+                flush(buffer);
+            }
+            if (buffer.position == 0) {
+                buffer.baseTime = nanoTime;
+                buffer.lastTime = nanoTime;
+            }
+            byte[] data = buffer.data;
+            int position = buffer.position;
+            data[position++] = type;
+            position = BinaryTraceFormat.putVarLong(data, position, methodId);
+            position = BinaryTraceFormat.putVarLong(data, position, Math.max(0, nanoTime - buffer.lastTime));
+            buffer.position = position;
+            buffer.lastTime = nanoTime;
+        }
+    }
+
+    /**
+     * Copy the buffer into the current segment as one block, or drop it if that fails; caller holds the buffer's lock
+     */
+    private void flush(ThreadBuffer buffer) {
+        if (buffer.position == 0) {
+            return;
+        }
+        String threadName = buffer.thread.getName();
+        try {
+            synchronized (this) {
+                if (!closed && !disabled) {
+                    writeDictionary();
+                    int blockSize = 1 + 10 + BinaryTraceFormat.stringSize(threadName) + 8 + 4 + buffer.position;
+                    if (segment.remaining() < blockSize) {
+                        openSegment();
+                        writeDictionary();
+                    }
+                    segment.put(BinaryTraceFormat.BLOCK_EVENTS);
+                    BinaryTraceFormat.putVarLong(segment, buffer.thread.getId());
+                    BinaryTraceFormat.putString(segment, threadName);
+                    segment.putLong(buffer.baseTime);
+                    segment.putInt(buffer.position);
+                    segment.put(buffer.data, 0, buffer.position);
+                }
+            }
+        } catch (IOException | RuntimeException | InternalError e) {
+            // InternalError is how a write to a mapping of a full disk surfaces
+            disable(e);
+        } finally {
+            buffer.position = 0;
+        }
+    }
+
+    private void disable(Throwable cause) {
+        droppedBlocks.increment();
+        if (!disabled) {
+            disabled = true;
+            System.err.println("⚠️ Binary trace disabled, a block could not be written: " + cause);
+        }
+    }
+
+    /**
+     * Whether the trace stopped after a block could not be written
+     */
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    /**
+     * Blocks of records dropped because they could not be written
+     */
+    public long getDroppedBlockCount() {
+        return droppedBlocks.sum();
+    }
+
+    /**
+     * Append dictionary entries for methods registered since the last dictionary block of this segment,
+     * or for all of them again once IDs have been released and may have been handed to other methods
+     */
+    private void writeDictionary() throws IOException {
+        long released = MethodRegistry.getReleasedCount();
+        if (released != dictionaryReleased) {
+            dictionaryReleased = released;
+            dictionaryWritten = 0;
+        }
+        int registered = MethodRegistry.size();
+        if (dictionaryWritten >= registered) {
+            return;
+        }
+        List<MethodRegistry.MethodInfo> pending = registeredMethods(dictionaryWritten, registered);
+        if (dictionarySize(pending) > segment.remaining()) {
+            // Start over in a fresh segment, which then needs the whole dictionary
+            openSegment();
+            pending = registeredMethods(0, registered);
+            if (dictionarySize(pending) > segment.remaining()) {
+                throw new IOException("Trace segment too small for " + registered + " methods");
+            }
+        }
+        segment.put(BinaryTraceFormat.BLOCK_DICTIONARY);
+        BinaryTraceFormat.putVarLong(segment, pending.size());
+        for (MethodRegistry.MethodInfo info : pending) {
+            BinaryTraceFormat.putVarLong(segment, info.id);
+            BinaryTraceFormat.putString(segment, info.typeName);
+            BinaryTraceFormat.putString(segment, info.className);
+            BinaryTraceFormat.putString(segment, info.methodName);
+            BinaryTraceFormat.putString(segment, info.descriptor);
+        }
+        dictionaryWritten = registered;
+    }
+
+    private static List<MethodRegistry.MethodInfo> registeredMethods(int start, int end) {
+        List<MethodRegistry.MethodInfo> result = new ArrayList<>(end - start);
+        for (int id = start; id < end; id++) {
+            MethodRegistry.MethodInfo info = MethodRegistry.get(id);
+            if (info != null) {
+                result.add(info);
+            }
+        }
+        return result;
+    }
+
+    private static long dictionarySize(List<MethodRegistry.MethodInfo> methods) {
+        long size = 1 + 5;
+        for (MethodRegistry.MethodInfo info : methods) {
+            size += 5 + BinaryTraceFormat.stringSize(info.typeName) + BinaryTraceFormat.stringSize(info.className)
+                    + BinaryTraceFormat.stringSize(info.methodName) + BinaryTraceFormat.stringSize(info.descriptor);
+        }
+        return size;
+    }
+
+    static String segmentName(int index) {
+        return String.format("trace-%05d.bin", index);
+    }
+
+    private void openSegment() throws IOException {
+        Path file = directory.resolve(segmentName(++segmentIndex));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            throw new IOException("Cannot create trace segment " + file, e);
+        }
+        segment.putInt(BinaryTraceFormat.MAGIC);
+        segment.put(BinaryTraceFormat.VERSION);
+        dictionaryWritten = 0;
+        if (maxSegments > 0 && segmentIndex > maxSegments) {
+            try {
+                Files.deleteIfExists(directory.resolve(segmentName(segmentIndex - maxSegments)));
+            } catch (IOException e) {
+                // Retention is best effort, the next rotation tries the next segment
+            }
+        }
+    }
+
+    /**
+     * Flush every thread's pending records into the current segment
+     */
+    public void flush() {
+        Iterator<ThreadBuffer> iterator = allBuffers.iterator();
+        while (iterator.hasNext()) {
+            ThreadBuffer buffer = iterator.next();
+            synchronized (buffer) {
+                flush(buffer);
+            }
+            if (!buffer.thread.isAlive()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void flushPeriodically() {
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Flush pending records and force the current segment to disk
+     */
+    @Override
+    public void close() {
+        flush();
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                try {
+                    segment.force();
+                } catch (RuntimeException | InternalError e) {
+                    System.err.println("⚠️ Binary trace not forced to disk: " + e);
+                }
+            }
+        }
+    }
+}
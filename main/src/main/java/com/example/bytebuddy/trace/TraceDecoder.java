@@ -0,0 +1,236 @@
+package com.example.bytebuddy.trace;
+
+import com.example.bytebuddy.StackAwareInstrumentation;
+import com.example.bytebuddy.stats.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads binary trace segments written by {@link BinaryTraceWriter}.
+ *
+ * Usage: {@code TraceDecoder text|stats <segment file or directory>...}
+ * <ul>
+ *   <li>text - replay the records as the indented ENTRY/EXIT view of {@link StackAwareInstrumentation}</li>
+ *   <li>stats - aggregate calls, average and percentile durations per method</li>
+ * </ul>
+ */
+public class TraceDecoder {
+
+    /**
+     * Receives decoded records
+     */
+    public interface Listener {
+        void onEntry(long threadId, String threadName, String method, long nanoTime, int depth);
+
+        void onExit(long threadId, String threadName, String method, long nanoTime, int depth,
+                    long durationNanos, boolean thrown);
+    }
+
+    // Open calls per thread, kept across blocks and segments
+    private final Map<Long, long[]> startTimes = new HashMap<>();
+    private final Map<Long, Integer> depths = new HashMap<>();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !("text".equals(args[0]) || "stats".equals(args[0]))) {
+            System.err.println("Usage: TraceDecoder text|stats <segment file or directory>...");
+            System.exit(1);
+        }
+        List<Path> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            files.addAll(segments(Paths.get(args[i])));
+        }
+        TraceDecoder decoder = new TraceDecoder();
+        if ("text".equals(args[0])) {
+            TextListener listener = new TextListener(System.out);
+            for (Path file : files) {
+                decoder.decode(file, listener);
+            }
+        } else {
+            StatisticsListener listener = new StatisticsListener();
+            for (Path file : files) {
+                decoder.decode(file, listener);
+            }
+            listener.print(System.out);
+        }
+    }
+
+    /**
+     * Segment files of a directory in write order, or the file itself
+     */
+    public static List<Path> segments(Path path) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "trace-*.bin")) {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            }
+            Collections.sort(files);
+        } else {
+            files.add(path);
+        }
+        return files;
+    }
+
+    /**
+     * Decode one segment file
+     */
+    public void decode(Path file, Listener listener) throws IOException {
+        decode(ByteBuffer.wrap(Files.readAllBytes(file)), listener);
+    }
+
+    /**
+     * Decode one segment
+     */
+    public void decode(ByteBuffer segment, Listener listener) {
+        if (segment.remaining() < BinaryTraceFormat.HEADER_SIZE || segment.getInt() != BinaryTraceFormat.MAGIC) {
+            throw new IllegalArgumentException("Not a binary trace segment");
+        }
+        byte version = segment.get();
+        if (version != BinaryTraceFormat.VERSION) {
+            throw new IllegalArgumentException("Unsupported trace version " + version);
+        }
+        // Method IDs are only meaningful within the segment that defines them
+        Map<Integer, String> methods = new HashMap<>();
+        while (segment.hasRemaining()) {
+            byte type = segment.get();
+            if (type == BinaryTraceFormat.BLOCK_END) {
+                return;
+            } else if (type == BinaryTraceFormat.BLOCK_DICTIONARY) {
+                long count = BinaryTraceFormat.getVarLong(segment);
+                for (long i = 0; i < count; i++) {
+                    int id = (int) BinaryTraceFormat.getVarLong(segment);
+                    BinaryTraceFormat.getString(segment); // type name
+                    String className = BinaryTraceFormat.getString(segment);
+                    String methodName = BinaryTraceFormat.getString(segment);
+                    BinaryTraceFormat.getString(segment); // descriptor
+                    methods.put(id, className + "." + methodName);
+                }
+            } else if (type == BinaryTraceFormat.BLOCK_EVENTS) {
+                decodeEvents(segment, methods, listener);
+            } else {
+                throw new IllegalStateException("Unknown block type " + type + " at " + (segment.position() - 1));
+            }
+        }
+    }
+
+    private void decodeEvents(ByteBuffer segment, Map<Integer, String> methods, Listener listener) {
+        long threadId = BinaryTraceFormat.getVarLong(segment);
+        String threadName = BinaryTraceFormat.getString(segment);
+        long time = segment.getLong();
+        int end = segment.getInt() + segment.position();
+
+        long[] starts = startTimes.get(threadId);
+        if (starts == null) {
+            starts = new long[64];
+        }
+        int depth = depths.getOrDefault(threadId, 0);
+        while (segment.position() < end) {
+            byte record = segment.get();
+            int methodId = (int) BinaryTraceFormat.getVarLong(segment);
+            time += BinaryTraceFormat.getVarLong(segment);
+            String method = methods.getOrDefault(methodId, "unknown#" + methodId);
+            if (record == BinaryTraceFormat.RECORD_ENTRY) {
+                if (depth == starts.length) {
+                    starts = Arrays.copyOf(starts, depth * 2);
+                }
+                starts[depth] = time;
+                listener.onEntry(threadId, threadName, method, time, depth);
+                depth++;
+            } else {
+                // An exit without a recorded entry happens when tracing started mid-call
+                depth = Math.max(0, depth - 1);
+                long duration = time - starts[depth];
+                listener.onExit(threadId, threadName, method, time, depth,
+                        starts[depth] != 0 ? duration : 0, record == BinaryTraceFormat.RECORD_EXIT_THROWN);
+                starts[depth] = 0;
+            }
+        }
+        startTimes.put(threadId, starts);
+        depths.put(threadId, depth);
+    }
+
+    /**
+     * Prints records in the layout of the StackAwareInstrumentation console output
+     */
+    public static class TextListener implements Listener {
+        private final PrintStream out;
+
+        public TextListener(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void onEntry(long threadId, String threadName, String method, long nanoTime, int depth) {
+            out.println("🔵 ENTRY | " + threadName + " | " + indentation(depth) + method + " | Depth: " + depth);
+        }
+
+        @Override
+        public void onExit(long threadId, String threadName, String method, long nanoTime, int depth,
+                           long durationNanos, boolean thrown) {
+            out.println("🔴 EXIT  | " + threadName + " | " + indentation(depth) + method +
+                    " | " + (thrown ? "❌ Exception" : "✅ Return") +
+                    " | Duration: " + StackAwareInstrumentation.formatDuration(durationNanos) +
+                    " | Depth: " + depth);
+        }
+
+        private static String indentation(int depth) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                sb.append("  ");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Aggregates calls and durations per method name
+     */
+    public static class StatisticsListener implements Listener {
+        private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        private final Map<String, long[]> totals = new HashMap<>();
+
+        @Override
+        public void onEntry(long threadId, String threadName, String method, long nanoTime, int depth) {
+        }
+
+        @Override
+        public void onExit(long threadId, String threadName, String method, long nanoTime, int depth,
+                           long durationNanos, boolean thrown) {
+            histograms.computeIfAbsent(method, m -> new LatencyHistogram()).record(durationNanos);
+            long[] total = totals.computeIfAbsent(method, m -> new long[2]);
+            total[0]++;
+            total[1] += durationNanos;
+        }
+
+        public void print(PrintStream out) {
+            out.println("\n📊 METHOD STATISTICS FROM TRACE:");
+            out.println("================================");
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot();
+                long[] total = totals.get(entry.getKey());
+                out.printf("%s | Calls: %d | Avg Time: %s | p50: %s | p90: %s | p99: %s | p99.9: %s | Max: %s%n",
+                        entry.getKey(), total[0],
+                        StackAwareInstrumentation.formatDuration(total[1] / total[0]),
+                        StackAwareInstrumentation.formatDuration(snapshot.percentile(50)),
+                        StackAwareInstrumentation.formatDuration(snapshot.percentile(90)),
+                        StackAwareInstrumentation.formatDuration(snapshot.percentile(99)),
+                        StackAwareInstrumentation.formatDuration(snapshot.percentile(99.9)),
+                        StackAwareInstrumentation.formatDuration(snapshot.maxNanos));
+            }
+        }
+    }
+}
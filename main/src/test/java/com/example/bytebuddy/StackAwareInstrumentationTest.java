@@ -0,0 +1,39 @@
+package com.example.bytebuddy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StackAwareInstrumentationTest {
+
+    @Test
+    public void testChildTimeIsCreditedToParent() {
+        StackAwareInstrumentation.CallStack stack = new StackAwareInstrumentation.CallStack();
+        assertEquals(0, stack.push(1, 100));
+        assertEquals(1, stack.push(2, 110));
+        stack.pop(40);
+        assertEquals(1, stack.push(3, 160));
+        stack.pop(20);
+
+        assertEquals(1, stack.methodIdAt(0));
+        assertEquals(60, stack.childNanosAt(0));
+        stack.pop(100);
+        assertTrue(stack.isEmpty());
+    }
+
+    @Test
+    public void testDeepRecursionGrowsAndReusesArrays() {
+        StackAwareInstrumentation.CallStack stack = new StackAwareInstrumentation.CallStack();
+        for (int round = 0; round < 3; round++) {
+            for (int depth = 0; depth < 10_000; depth++) {
+                stack.push(depth, depth);
+            }
+            for (int depth = 9_999; depth >= 0; depth--) {
+                assertEquals(depth, stack.methodIdAt(stack.size() - 1));
+                stack.pop(1);
+            }
+            assertTrue(stack.isEmpty());
+        }
+    }
+}
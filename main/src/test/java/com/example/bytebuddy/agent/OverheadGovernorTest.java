@@ -0,0 +1,59 @@
+package com.example.bytebuddy.agent;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.stats.MethodStatsStore;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OverheadGovernorTest {
+
+    @Test
+    public void testExcludesOnlyHotTrivialMethods() {
+        int hot = MethodRegistry.register("test.Governed", "Governed", "getValue", "()I");
+        int slow = MethodRegistry.register("test.Governed", "Governed", "compute", "()I");
+        int rare = MethodRegistry.register("test.Governed", "Governed", "reset", "()V");
+        MethodStatsStore store = new MethodStatsStore();
+        OverheadGovernor governor = new OverheadGovernor(null, null, store, 500, 100);
+        long start = System.nanoTime();
+        governor.evaluate(store.snapshot(), start);
+
+        for (int i = 0; i < 1000; i++) {
+            store.record(hot, 20);
+            store.record(slow, 50_000);
+        }
+        store.record(rare, 10);
+        List<MethodRegistry.MethodInfo> excluded =
+                governor.evaluate(store.snapshot(), start + TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, excluded.size());
+        assertEquals(hot, excluded.get(0).id);
+        assertArrayEquals(new String[]{"test.Governed.getValue()I"}, governor.getExcludedMethods());
+
+        // Already excluded, so not reported again
+        for (int i = 0; i < 1000; i++) {
+            store.record(hot, 20);
+        }
+        assertTrue(governor.evaluate(store.snapshot(), start + TimeUnit.SECONDS.toNanos(2)).isEmpty());
+    }
+
+    @Test
+    public void testReincludedMethodStaysInstrumented() {
+        int hot = MethodRegistry.register("test.Pinned", "Pinned", "getValue", "()I");
+        MethodStatsStore store = new MethodStatsStore();
+        OverheadGovernor governor = new OverheadGovernor(null, null, store, 500, 100);
+        governor.include("test.Pinned.getValue()I");
+
+        long start = System.nanoTime();
+        governor.evaluate(store.snapshot(), start);
+        for (int i = 0; i < 1000; i++) {
+            store.record(hot, 20);
+        }
+        assertTrue(governor.evaluate(store.snapshot(), start + TimeUnit.SECONDS.toNanos(1)).isEmpty());
+        assertEquals(0, governor.getExcludedMethods().length);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.bytebuddy.agent;
+
+import org.junit.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class PacedRetransformationTest {
+
+    private static final List<Class<?>> TYPES = Arrays.asList(
+            String.class, Integer.class, Long.class, Double.class, Boolean.class, Byte.class, Short.class);
+
+    /**
+     * Take the batches the way ByteBuddy does, each one after the previous was applied, returning their sizes
+     */
+    private static List<Integer> retransform(PacedRetransformation pacing) {
+        List<Integer> sizes = new ArrayList<>();
+        int index = 0;
+        for (List<Class<?>> batch : pacing.batch(TYPES)) {
+            pacing.onBatch(index++, batch, TYPES);
+            sizes.add(batch.size());
+        }
+        pacing.onComplete(TYPES.size(), TYPES, Collections.emptyMap());
+        return sizes;
+    }
+
+    @Test
+    public void testBatchesFittingThePauseKeepTheirSize() {
+        List<Integer> reported = new ArrayList<>();
+        PacedRetransformation pacing = new PacedRetransformation(3, 1, TimeUnit.HOURS, 100,
+                (index, classes, durationNanos) -> reported.add(classes));
+
+        assertEquals(Arrays.asList(3, 3, 1), retransform(pacing));
+        assertEquals(Arrays.asList(3, 3, 1), reported);
+        assertEquals(3, pacing.getBatchCount());
+        assertEquals(7, pacing.getClassCount());
+        assertEquals(0, pacing.getFailedCount());
+    }
+
+    @Test
+    public void testBatchesShrinkWhenTooSlow() {
+        PacedRetransformation pacing = new PacedRetransformation(4, 0, TimeUnit.NANOSECONDS, 100,
+                (index, classes, durationNanos) -> { });
+
+        // No batch fits in no time, so after the first they are down to one class
+        assertEquals(Arrays.asList(4, 1, 1, 1), retransform(pacing));
+        assertEquals(4, pacing.getBatchCount());
+    }
+
+    @Test
+    public void testRetransformsLaterInPacedBatches() {
+        List<Integer> retransformed = new ArrayList<>();
+        // Only retransformClasses is called; the batch with Long cannot be retransformed
+        Instrumentation instrumentation = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Instrumentation.class}, (proxy, method, arguments) -> {
+                    Class<?>[] batch = (Class<?>[]) arguments[0];
+                    if (Arrays.asList(batch).contains(Long.class)) {
+                        throw new UnmodifiableClassException();
+                    }
+                    retransformed.add(batch.length);
+                    return null;
+                });
+        PacedRetransformation pacing = new PacedRetransformation(3, 1, TimeUnit.HOURS, 100,
+                (index, classes, durationNanos) -> { });
+
+        assertEquals(3, pacing.retransform(instrumentation, TYPES));
+        assertEquals(Arrays.asList(3, 1), retransformed);
+        assertEquals(3, pacing.getBatchCount());
+        // Each call starts afresh
+        assertEquals(0, pacing.retransform(instrumentation, TYPES.subList(3, 7)));
+        assertEquals(2, pacing.getBatchCount());
+        assertEquals(4, pacing.getClassCount());
+    }
+}
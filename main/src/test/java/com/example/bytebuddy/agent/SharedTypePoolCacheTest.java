@@ -0,0 +1,94 @@
+package com.example.bytebuddy.agent;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.pool.TypePool;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharedTypePoolCacheTest {
+
+    private static TypePool pool(SharedTypePoolCache cache, ClassLoader loader) {
+        return cache.typePool(ClassFileLocator.ForClassLoader.of(loader), loader);
+    }
+
+    @Test
+    public void testParentTypesAreParsedOnceForAllChildren() {
+        SharedTypePoolCache cache = new SharedTypePoolCache(100);
+        ClassLoader parent = SharedTypePoolCacheTest.class.getClassLoader();
+        ClassLoader plugin1 = new URLClassLoader(new URL[0], parent);
+        ClassLoader plugin2 = new URLClassLoader(new URL[0], parent);
+
+        String name = SharedTypePoolCacheTest.class.getName();
+        assertEquals(name, pool(cache, plugin1).describe(name).resolve().getName());
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+        assertEquals(name, pool(cache, plugin2).describe(name).resolve().getName());
+        assertEquals(misses, cache.getMissCount());
+        assertTrue(cache.getHitCount() > hits);
+        assertTrue(pool(cache, plugin2).describe(ArrayListHolder.class.getName()).resolve()
+                .getDeclaredFields().getOnly().getType().asErasure().represents(java.util.ArrayList.class));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedTypes() {
+        SharedTypePoolCache cache = new SharedTypePoolCache(2);
+        TypePool pool = pool(cache, null);
+        for (String name : new String[]{"java.lang.String", "java.lang.Integer", "java.lang.String", "java.lang.Long"}) {
+            assertTrue(pool.describe(name).isResolved());
+        }
+        assertEquals(3, cache.getMissCount());
+        assertEquals(1, cache.getEvictedCount());
+        assertEquals(2, cache.getTypeCount());
+        // Integer was evicted, String kept
+        long misses = cache.getMissCount();
+        pool.describe("java.lang.String").isResolved();
+        assertEquals(misses, cache.getMissCount());
+        pool.describe("java.lang.Integer").isResolved();
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    @Test
+    public void testChildFirstLoaderSeesItsOwnVersions() {
+        SharedTypePoolCache cache = new SharedTypePoolCache(100);
+        ClassLoader parent = SharedTypePoolCacheTest.class.getClassLoader();
+        String name = ArrayListHolder.class.getName();
+        assertEquals(1, pool(cache, parent).describe(name).resolve().getDeclaredFields().size());
+
+        // Both loaders find their own version of the class, as a plugin bundling another version would
+        byte[] ownVersion = new ByteBuddy().redefine(ArrayListHolder.class).defineField("size", int.class)
+                .make().getBytes();
+        ClassLoader childFirst = new ChildFirstLoader(parent);
+        ClassLoader parentFirst = new URLClassLoader(new URL[0], parent);
+        assertFalse(SharedTypePoolCache.isParentFirst(childFirst));
+        assertTrue(SharedTypePoolCache.isParentFirst(parentFirst));
+        assertEquals(2, cache.typePool(new ClassFileLocator.Compound(ClassFileLocator.Simple.of(name, ownVersion),
+                ClassFileLocator.ForClassLoader.of(childFirst)), childFirst).describe(name).resolve()
+                .getDeclaredFields().size());
+        assertEquals(1, cache.typePool(new ClassFileLocator.Compound(ClassFileLocator.Simple.of(name, ownVersion),
+                ClassFileLocator.ForClassLoader.of(parentFirst)), parentFirst).describe(name).resolve()
+                .getDeclaredFields().size());
+    }
+
+    static class ChildFirstLoader extends URLClassLoader {
+        ChildFirstLoader(ClassLoader parent) {
+            super(new URL[0], parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            // Would look in its own URLs first
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    static class ArrayListHolder {
+        java.util.ArrayList<String> values;
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.bytebuddy.agent;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TransformCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEntrySurvivesReopen() throws Exception {
+        Path root = folder.getRoot().toPath();
+        MethodRegistry.MethodInfo method = new MethodRegistry.MethodInfo(7, "test.Cached", "Cached", "run", "()V");
+        new TransformCache(root, "config", 1 << 20)
+                .store("abc", new TransformCache.Entry(new byte[]{1, 2, 3}, Collections.singletonList(method), 42));
+
+        TransformCache.Entry entry = new TransformCache(root, "config", 1 << 20).load("abc");
+        assertNotNull(entry);
+        assertArrayEquals(new byte[]{1, 2, 3}, entry.bytes);
+        assertEquals(42, entry.transformNanos);
+        assertEquals("test.Cached.run()V", entry.methods.get(0).getKey());
+        assertEquals(7, entry.methods.get(0).id);
+    }
+
+    @Test
+    public void testUnchangedClassesAreCached() throws Exception {
+        TransformCache cache = new TransformCache(folder.getRoot().toPath(), "config", 1 << 20);
+        cache.store("abc", new TransformCache.Entry(null, Collections.emptyList(), 1));
+        assertNull(cache.load("abc").bytes);
+    }
+
+    @Test
+    public void testOtherConfigurationInvalidated() throws Exception {
+        Path root = folder.getRoot().toPath();
+        new TransformCache(root, "old", 1 << 20)
+                .store("abc", new TransformCache.Entry(new byte[1], Collections.emptyList(), 1));
+
+        TransformCache cache = new TransformCache(root, "new", 1 << 20);
+        assertNull(cache.load("abc"));
+        assertNull(new TransformCache(root, "old", 1 << 20).load("abc"));
+    }
+
+    @Test
+    public void testTogglingWeavingOptionsInvalidates() throws Exception {
+        Path root = folder.getRoot().toPath();
+        String plain = TransformCache.configHash(
+                TransformCache.settings(new AgentOptions("advice=advanced"), "[]"), TransformCache.class);
+        new TransformCache(root, plain, 1 << 20)
+                .store("abc", new TransformCache.Entry(new byte[1], Collections.emptyList(), 1));
+        assertNotNull(new TransformCache(root, plain, 1 << 20).load("abc"));
+
+        String withExceptions = TransformCache.configHash(
+                TransformCache.settings(new AgentOptions("advice=advanced,exceptions=true"), "[]"), TransformCache.class);
+        assertNull(new TransformCache(root, withExceptions, 1 << 20).load("abc"));
+        // Options that do not change the woven bytes keep the entries
+        assertEquals(plain, TransformCache.configHash(
+                TransformCache.settings(new AgentOptions("advice=advanced,metrics.port=9464"), "[]"), TransformCache.class));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        TransformCache cache = new TransformCache(folder.getRoot().toPath(), "config", 3000);
+        cache.store("a", new TransformCache.Entry(new byte[1000], Collections.emptyList(), 1));
+        cache.store("b", new TransformCache.Entry(new byte[1000], Collections.emptyList(), 1));
+        cache.load("a");
+        cache.store("c", new TransformCache.Entry(new byte[1000], Collections.emptyList(), 1));
+
+        assertNotNull(cache.load("a"));
+        assertNull(cache.load("b"));
+        assertNotNull(cache.load("c"));
+        assertEquals(1, cache.getEvictionCount());
+    }
+}
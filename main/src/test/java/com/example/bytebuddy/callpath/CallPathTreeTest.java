@@ -0,0 +1,87 @@
+package com.example.bytebuddy.callpath;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CallPathTreeTest {
+
+    private static final int WORKFLOW = MethodRegistry.register("com.example.Paths", "Paths", "workflow", "()V");
+    private static final int VALIDATE = MethodRegistry.register("com.example.Paths", "Paths", "validate", "()V");
+    private static final int SAVE = MethodRegistry.register("com.example.Paths", "Paths", "save", "()V");
+
+    private static void workflow(CallPathTree.ThreadPaths paths) {
+        paths.enter(0, WORKFLOW);
+        paths.enter(1, VALIDATE);
+        paths.exit(1, 30, 30);
+        paths.enter(1, SAVE);
+        paths.enter(2, VALIDATE);
+        paths.exit(2, 10, 10);
+        paths.exit(1, 50, 40);
+        paths.exit(0, 100, 20);
+    }
+
+    private static Set<String> folded(CallPathTree tree) throws IOException {
+        StringBuilder out = new StringBuilder();
+        tree.writeFolded(out);
+        return new HashSet<>(Arrays.asList(out.toString().split("\n")));
+    }
+
+    @Test
+    public void testMergesThreadsByPath() throws Exception {
+        CallPathTree tree = new CallPathTree();
+        workflow(tree.newThreadPaths());
+        Thread other = new Thread(() -> workflow(tree.newThreadPaths()));
+        other.start();
+        other.join();
+
+        assertEquals(new HashSet<>(Arrays.asList(
+                "Paths.workflow 40",
+                "Paths.workflow;Paths.validate 60",
+                "Paths.workflow;Paths.save 80",
+                "Paths.workflow;Paths.save;Paths.validate 20")), folded(tree));
+        assertEquals(4, tree.getPathCount());
+    }
+
+    @Test
+    public void testRepeatedMergesOnlyAddNewCalls() throws Exception {
+        CallPathTree tree = new CallPathTree();
+        CallPathTree.ThreadPaths paths = tree.newThreadPaths();
+        workflow(paths);
+        tree.merge();
+        workflow(paths);
+        assertTrue(folded(tree).contains("Paths.workflow;Paths.save 80"));
+        // Exporting again does not count the calls twice
+        assertTrue(folded(tree).contains("Paths.workflow;Paths.save 80"));
+    }
+
+    @Test
+    public void testCallsEnteredBeforeRecordingAreIgnored() throws Exception {
+        CallPathTree tree = new CallPathTree();
+        CallPathTree.ThreadPaths paths = tree.newThreadPaths();
+        paths.enter(3, SAVE);
+        paths.exit(3, 10, 10);
+        assertEquals(0, tree.getPathCount());
+        tree.merge();
+        assertEquals(0, tree.getPathCount());
+    }
+
+    @Test
+    public void testHtmlHasOneFramePerPath() throws Exception {
+        CallPathTree tree = new CallPathTree();
+        workflow(tree.newThreadPaths());
+        StringBuilder html = new StringBuilder();
+        tree.writeHtml(html, "Workflow <test>");
+        String page = html.toString();
+        assertTrue(page.contains("<title>Workflow &lt;test&gt;</title>"));
+        assertEquals(4, page.split("<rect ").length - 1);
+        assertTrue(page.contains("Paths.save | Calls: 1 | Total: 50 ns | Self: 40 ns"));
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.bytebuddy.capture;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ValueFormatterTest {
+
+    private static final CapturePolicy.Limits LIMITS = new CapturePolicy.Limits(5, 2);
+
+    @After
+    public void resetPolicy() {
+        CapturePolicy.captureAlways();
+    }
+
+    private static String format(Object value) {
+        StringBuilder sb = new StringBuilder();
+        ValueFormatter.appendValue(sb, value, LIMITS);
+        return sb.toString();
+    }
+
+    @Test
+    public void testBoundsStringsAndCollections() {
+        assertEquals("\"short\"", format("short"));
+        assertEquals("\"too l…\" (8 chars)", format("too long"));
+        assertEquals("int[3]{1, 2, …}", format(new int[]{1, 2, 3}));
+        assertEquals("ArrayList[1]{\"a\"}", format(new ArrayList<>(Arrays.asList("a"))));
+    }
+
+    @Test
+    public void testCapturedValuesFormatAsTheyWereWhenCaptured() {
+        List<Object> list = new ArrayList<>(Arrays.asList("a", "bcdefgh"));
+        Map<String, Object> map = new HashMap<>();
+        map.put("k", new int[]{1, 2, 3});
+        StringBuilder text = new StringBuilder("builder");
+        Object[] arguments = {list, map, text, 7, null};
+        String expected = format(list) + format(map) + format(text);
+
+        Object[] captured = ValueFormatter.captureArguments(arguments, LIMITS);
+        list.add("c");
+        list.set(0, "z");
+        map.clear();
+        text.setLength(0);
+
+        assertEquals("ArrayList[2]{\"a\", \"bcdef…\" (7 chars)}", format(captured[0]));
+        assertEquals(expected, format(captured[0]) + format(captured[1]) + format(captured[2]));
+        assertSame(arguments[3], captured[3]);
+        // Nothing to copy, nothing allocated
+        Object[] immutable = {"a", 1, TimeUnit.SECONDS};
+        assertSame(immutable, ValueFormatter.captureArguments(immutable, LIMITS));
+    }
+
+    @Test
+    public void testCaptureOfSelfContainingCollectionIsBounded() {
+        List<Object> list = new ArrayList<>();
+        list.add(list);
+        assertTrue(format(ValueFormatter.capture(list, LIMITS)).startsWith("ArrayList[1]{ArrayList[1]{"));
+    }
+
+    @Test
+    public void testUsesIdentityHashForOtherObjects() {
+        Object value = new Object() {
+            @Override
+            public int hashCode() {
+                throw new AssertionError("hashCode must not be called");
+            }
+        };
+        assertTrue(format(value).endsWith("@" + Integer.toHexString(System.identityHashCode(value))));
+    }
+
+    @Test
+    public void testAppendDuration() {
+        StringBuilder sb = new StringBuilder();
+        ValueFormatter.appendDuration(sb, 999);
+        sb.append(' ');
+        ValueFormatter.appendDuration(sb, 1_250_000);
+        sb.append(' ');
+        ValueFormatter.appendDuration(sb, 1_005);
+        assertEquals("999 ns 1.25 ms 1.01 μs", sb.toString());
+    }
+
+    @Test
+    public void testThresholdGatesReporting() {
+        assertTrue(CapturePolicy.isEager());
+        CapturePolicy.setThreshold(1, TimeUnit.MILLISECONDS);
+        assertFalse(CapturePolicy.shouldReport(TimeUnit.MICROSECONDS.toNanos(10), null));
+        assertTrue(CapturePolicy.shouldReport(TimeUnit.MILLISECONDS.toNanos(2), null));
+        assertTrue(CapturePolicy.shouldReport(0, new IllegalStateException()));
+    }
+
+    @Test
+    public void testCapturedArgumentsNest() {
+        Object[] outer = {1};
+        Object[] inner = {2};
+        CapturedArguments.push(outer);
+        CapturedArguments.push(inner);
+        assertSame(inner, CapturedArguments.pop());
+        assertSame(outer, CapturedArguments.pop());
+        assertNull(CapturedArguments.pop());
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.bytebuddy.clock;
+
+import com.example.bytebuddy.StackAwareInstrumentation;
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.stats.MethodStats;
+import com.example.bytebuddy.storage.ContextStorage;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeSourceTest {
+
+    @After
+    public void restorePreciseClock() {
+        TimeSource.setMode(TimeSource.Mode.PRECISE, 1000);
+    }
+
+    @Test
+    public void testCoarseClockAdvancesWithTicks() throws InterruptedException {
+        TimeSource.setMode(TimeSource.Mode.COARSE, 1000);
+        TimeSource clock = TimeSource.get();
+        assertEquals(TimeSource.Mode.COARSE, clock.getMode());
+        long start = clock.nanoTime();
+        Thread.sleep(20);
+        long elapsed = clock.nanoTime() - start;
+        assertTrue("elapsed " + elapsed, elapsed >= 10_000_000);
+        assertTrue(Math.abs(clock.currentTimeMillis() - System.currentTimeMillis()) < 100);
+    }
+
+    @Test
+    public void testRootOnlyTimesOutermostCall() {
+        TimeSource.setMode(TimeSource.Mode.ROOT, 1000);
+        TimeSource clock = TimeSource.get();
+        assertFalse(clock.timesNestedCalls());
+        assertTrue(clock.enterCall());
+        assertFalse(clock.enterCall());
+        clock.exitCall();
+        clock.exitCall();
+        assertTrue(clock.enterCall());
+        clock.exitCall();
+        // An exit without a matching entry does not take the depth below 0
+        clock.exitCall();
+        assertTrue(clock.enterCall());
+        clock.exitCall();
+    }
+
+    @Test
+    public void testRootOnlyDepthIsReleasedAfterOutermostCall() throws InterruptedException {
+        ContextStorage.setMode(ContextStorage.Mode.POOLED);
+        try {
+            RootOnlyTimeSource clock = new RootOnlyTimeSource();
+            Runnable calls = () -> {
+                assertTrue(clock.enterCall());
+                assertFalse(clock.enterCall());
+                clock.exitCall();
+                clock.exitCall();
+            };
+            // Thread IDs equal modulo a power of two above the stripe count share a stripe of the pool
+            long stripeId = -1;
+            for (int started = 0; started < 3; ) {
+                Thread thread = new Thread(calls);
+                if (stripeId < 0 || thread.getId() % 1024 == stripeId) {
+                    stripeId = thread.getId() % 1024;
+                    thread.start();
+                    thread.join();
+                    started++;
+                }
+            }
+            // Each thread handed the depth back for the next one
+            assertEquals(1, clock.depth.getCreatedCount());
+        } finally {
+            ContextStorage.setMode(ContextStorage.Mode.THREAD);
+        }
+    }
+
+    @Test
+    public void testStackAwareCountsNestedCallsWithoutTiming() {
+        TimeSource.setMode(TimeSource.Mode.ROOT, 1000);
+        int root = MethodRegistry.register("com.example.Clocked", "Clocked", "root", "()V");
+        int nested = MethodRegistry.register("com.example.Clocked", "Clocked", "nested", "()V");
+        StackAwareInstrumentation.enter(root, null);
+        for (int i = 0; i < 3; i++) {
+            StackAwareInstrumentation.enter(nested, null);
+            StackAwareInstrumentation.exit(nested, null, null);
+        }
+        StackAwareInstrumentation.exit(root, null, null);
+
+        MethodStats rootStats = StackAwareInstrumentation.statistics.get(root);
+        assertEquals(1, rootStats.getTimedCount());
+        // Nested calls took no time away from the root
+        assertEquals(rootStats.getTotalNanos(), rootStats.getSelfNanos());
+        MethodStats nestedStats = StackAwareInstrumentation.statistics.get(nested);
+        assertEquals(3, nestedStats.getCount());
+        assertEquals(0, nestedStats.getTimedCount());
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.bytebuddy.context;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RequestContextTest {
+
+    @After
+    public void resetContext() {
+        RequestContext.detach(RequestContext.DEFAULT);
+    }
+
+    @Test
+    public void testDefaultContextIsNotWrapped() {
+        Runnable task = () -> { };
+        Callable<String> callable = () -> "done";
+        assertSame(task, RequestContext.wrap(task));
+        assertSame(callable, RequestContext.wrap(callable));
+    }
+
+    @Test
+    public void testWrappedTaskRunsWithSubmittersContext() throws Exception {
+        RequestContext context = RequestContext.of("user-42", "checkout");
+        RequestContext previous = RequestContext.attach(context);
+        assertSame(RequestContext.DEFAULT, previous);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AtomicReference<RequestContext> seen = new AtomicReference<>();
+            executor.submit(RequestContext.wrap(() -> seen.set(RequestContext.current()))).get();
+            assertSame(context, seen.get());
+            assertSame(context, executor.submit(RequestContext.wrap(RequestContext::current)).get());
+
+            // The worker is back on its own context once the task is done
+            RequestContext.detach(previous);
+            assertSame(RequestContext.DEFAULT, executor.submit(RequestContext::current).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTaskIsWrappedOnce() {
+        RequestContext.attach(RequestContext.of("user-42", "checkout"));
+        Runnable wrapped = RequestContext.wrap(() -> { });
+        assertSame(wrapped, RequestContext.wrap(wrapped));
+    }
+
+    @Test
+    public void testExecutorSeesSubmittedFutureTasksAsTheyAre() throws Exception {
+        RequestContext.attach(RequestContext.of("user-42", "checkout"));
+        // Hands tasks over as the agent's advice on execute does
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>()) {
+            @Override
+            public void execute(Runnable command) {
+                super.execute(RequestContext.wrapSubmitted(command));
+            }
+        };
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Future<?> removed = executor.submit(() -> { });
+        Future<?> queued = executor.submit(() -> { });
+        assertTrue(executor.remove((Runnable) removed));
+
+        List<Runnable> left = executor.shutdownNow();
+        release.countDown();
+        assertEquals(1, left.size());
+        assertSame(queued, left.get(0));
+        ((Future<?>) left.get(0)).cancel(false);
+    }
+
+    @Test
+    public void testForkJoinTaskRunsWithContextItWasSubmittedWith() {
+        RequestContext context = RequestContext.of("user-42", "checkout");
+        RequestContext.attach(context);
+        ForkJoinTask<?> task = ForkJoinTask.adapt(() -> { });
+        assertSame(task, RequestContext.wrapSubmitted((Runnable) task));
+
+        // On the worker, which has no context of its own
+        RequestContext.detach(RequestContext.DEFAULT);
+        RequestContext previous = RequestContext.attachSubmitted(task);
+        assertSame(RequestContext.DEFAULT, previous);
+        assertSame(context, RequestContext.current());
+        RequestContext.detach(previous);
+        // Attached once
+        assertNull(RequestContext.attachSubmitted(task));
+    }
+
+    @Test
+    public void testExecutorGivesBackWrappedTasksAsSubmitted() {
+        RequestContext.attach(RequestContext.of("user-42", "checkout"));
+        // Hands tasks over and back as the agent's advice on execute, remove and shutdownNow does
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>()) {
+            @Override
+            public void execute(Runnable command) {
+                super.execute(RequestContext.wrapSubmitted(command));
+            }
+
+            @Override
+            public boolean remove(Runnable task) {
+                return super.remove(task) || RequestContext.removeWrapped(getQueue(), task);
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                List<Runnable> drained = super.shutdownNow();
+                RequestContext.unwrapAll(drained);
+                return drained;
+            }
+        };
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Runnable removed = () -> { };
+        Runnable queued = () -> { };
+        executor.execute(removed);
+        executor.execute(queued);
+        assertTrue(executor.remove(removed));
+        assertFalse(executor.remove(removed));
+
+        List<Runnable> left = executor.shutdownNow();
+        release.countDown();
+        assertEquals(1, left.size());
+        assertSame(queued, left.get(0));
+    }
+
+    @Test
+    public void testDroppedForkJoinTaskDoesNotKeepItsContext() throws InterruptedException {
+        RequestContext context = RequestContext.of("user-42", "checkout");
+        RequestContext.attach(context);
+        ForkJoinTask<?> task = ForkJoinTask.adapt(() -> { });
+        RequestContext.wrapSubmitted((Runnable) task);
+        WeakReference<ForkJoinTask<?>> reference = new WeakReference<>(task);
+        // Cancelled or never run
+        task = null;
+        for (int i = 0; i < 20 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.bytebuddy.flight;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderTest {
+
+    private static void recordRoot(FlightRecorder recorder, CallTree tree, long rootNanos) {
+        tree.enter(0, 1, 1000);
+        tree.enter(1, 2, 1100);
+        tree.exit(1, 50, false);
+        tree.enter(1, 3, 1200);
+        tree.enter(2, 4, 1210);
+        tree.exit(2, 20, true);
+        tree.exit(1, 40, false);
+        tree.exit(0, rootNanos, false);
+        recorder.rootExit(tree, rootNanos);
+    }
+
+    @Test
+    public void testOnlySlowTreesArePromoted() {
+        FlightRecorder recorder = new FlightRecorder(1, TimeUnit.MILLISECONDS, 4, 100);
+        CallTree tree = recorder.newTree();
+        recordRoot(recorder, tree, TimeUnit.MICROSECONDS.toNanos(10));
+        recordRoot(recorder, tree, TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertEquals(1, recorder.getDiscardedCount());
+        List<SlowTrace> traces = recorder.getTraces();
+        assertEquals(1, traces.size());
+        SlowTrace trace = traces.get(0);
+        assertEquals(4, trace.size());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), trace.getDurationNanos());
+        assertEquals(4, trace.methodIdAt(3));
+        assertEquals(2, trace.depthAt(3));
+        assertEquals(210, trace.offsetNanosAt(3));
+        assertTrue(trace.threwAt(3));
+        assertEquals(0, tree.size());
+    }
+
+    @Test
+    public void testRingKeepsMostRecentTraces() {
+        FlightRecorder recorder = new FlightRecorder(0, TimeUnit.MILLISECONDS, 3, 100);
+        CallTree tree = recorder.newTree();
+        for (int i = 0; i < 10; i++) {
+            recordRoot(recorder, tree, 100);
+        }
+        List<SlowTrace> traces = recorder.getTraces();
+        assertEquals(4, traces.size());
+        assertEquals(7, traces.get(0).sequence);
+        assertEquals(10, traces.get(3).sequence);
+        assertEquals(10, recorder.getPromotedCount());
+    }
+
+    @Test
+    public void testNodeLimitAndRecordingStartedMidTree() {
+        FlightRecorder recorder = new FlightRecorder(0, TimeUnit.MILLISECONDS, 4, 2);
+        CallTree tree = recorder.newTree();
+        // Entered before recording began, so nothing of this tree is kept
+        tree.enter(1, 9, 0);
+        tree.exit(1, 10, false);
+        recorder.rootExit(tree, 10);
+        assertEquals(0, recorder.getPromotedCount());
+
+        recordRoot(recorder, tree, 100);
+        SlowTrace trace = recorder.getTraces().get(0);
+        assertEquals(2, trace.size());
+        assertEquals(2, trace.droppedNodes);
+        assertEquals(50, trace.durationNanosAt(1));
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.bytebuddy.metrics;
+
+import com.example.bytebuddy.agent.AgentOptions;
+import com.example.bytebuddy.stats.MethodStatsStore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class PrometheusEndpointTest {
+
+    @Test
+    public void testBindsToLoopbackByDefault() throws Exception {
+        PrometheusEndpoint endpoint = PrometheusEndpoint.fromOptions(new AgentOptions("metrics.port=0"),
+                new MethodStatsStore());
+        try {
+            assertTrue(endpoint.getAddress().getAddress().isLoopbackAddress());
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    @Test
+    public void testAllInterfacesNeedOptIn() throws Exception {
+        try {
+            PrometheusEndpoint.fromOptions(new AgentOptions("metrics.port=0,metrics.host=0.0.0.0"),
+                    new MethodStatsStore());
+            throw new AssertionError("Bound to all interfaces without metrics.allInterfaces");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("metrics.allInterfaces=true"));
+        }
+        PrometheusEndpoint endpoint = PrometheusEndpoint.fromOptions(
+                new AgentOptions("metrics.port=0,metrics.host=0.0.0.0,metrics.allInterfaces=true"),
+                new MethodStatsStore());
+        try {
+            assertTrue(endpoint.getAddress().getAddress().isAnyLocalAddress());
+        } finally {
+            endpoint.stop();
+        }
+    }
+}
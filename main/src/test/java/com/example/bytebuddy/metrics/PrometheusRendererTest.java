@@ -0,0 +1,80 @@
+package com.example.bytebuddy.metrics;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import com.example.bytebuddy.stats.MethodStatsStore;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrometheusRendererTest {
+
+    private static String render(PrometheusRenderer renderer) {
+        int length = renderer.render();
+        return new String(renderer.buffer(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRendersCountersAndCumulativeBuckets() {
+        int id = MethodRegistry.register("com.example.Scraped", "Scraped", "load", "(Ljava/lang/String;)V");
+        MethodStatsStore statistics = new MethodStatsStore();
+        statistics.record(id, 2_000);
+        statistics.record(id, 3_000_000);
+        statistics.recordUnsampled(id);
+
+        String output = render(new PrometheusRenderer(statistics, 10));
+        String labels = "{class=\"com.example.Scraped\",method=\"load\",descriptor=\"(Ljava/lang/String;)V\"";
+        assertTrue(output.contains("# TYPE instrumentation_method_duration_seconds histogram\n"));
+        assertTrue(output.contains("instrumentation_method_calls_total" + labels + "} 3\n"));
+        assertTrue(output.contains("instrumentation_method_duration_seconds_bucket" + labels + ",le=\"1e-06\"} 0\n"));
+        assertTrue(output.contains("instrumentation_method_duration_seconds_bucket" + labels + ",le=\"5e-06\"} 1\n"));
+        assertTrue(output.contains("instrumentation_method_duration_seconds_bucket" + labels + ",le=\"0.005\"} 2\n"));
+        assertTrue(output.contains("instrumentation_method_duration_seconds_bucket" + labels + ",le=\"+Inf\"} 2\n"));
+        assertTrue(output.contains("instrumentation_method_duration_seconds_sum" + labels + "} 0.003002\n"));
+        assertTrue(output.contains("instrumentation_method_duration_seconds_count" + labels + "} 2\n"));
+        assertTrue(output.endsWith("instrumentation_methods_omitted 0\n"));
+    }
+
+    @Test
+    public void testKeepsOnlyTopMethodsByTotalTime() {
+        MethodStatsStore statistics = new MethodStatsStore();
+        for (int i = 0; i < 100; i++) {
+            int id = MethodRegistry.register("com.example.Many", "Many", "m" + i, "()V");
+            statistics.record(id, 1_000 * (i + 1));
+        }
+        PrometheusRenderer renderer = new PrometheusRenderer(statistics, 3);
+        String output = render(renderer);
+        assertTrue(output.contains("method=\"m99\""));
+        assertTrue(output.contains("method=\"m97\""));
+        assertFalse(output.contains("method=\"m96\""));
+        assertTrue(output.indexOf("method=\"m99\"") < output.indexOf("method=\"m98\""));
+        assertTrue(output.endsWith("instrumentation_methods_omitted 97\n"));
+        // The buffer is reused and the output the same for unchanged statistics
+        assertEquals(output, render(renderer));
+    }
+
+    @Test
+    public void testRanksByTimeEstimatedForAllCalls() {
+        MethodStatsStore statistics = new MethodStatsStore();
+        int sampled = MethodRegistry.register("com.example.Ranked", "Ranked", "sampled", "()V");
+        int timed = MethodRegistry.register("com.example.Ranked", "Ranked", "timed", "()V");
+        // 1 ms timed out of 100 calls is 100 ms in total, more than the 50 ms of the method timed every time
+        statistics.record(sampled, 1_000_000, 1_000_000);
+        for (int i = 0; i < 99; i++) {
+            statistics.recordUnsampled(sampled);
+        }
+        statistics.record(timed, 50_000_000, 50_000_000);
+
+        String output = render(new PrometheusRenderer(statistics, 1));
+        String labels = "{class=\"com.example.Ranked\",method=\"sampled\",descriptor=\"()V\"";
+        assertFalse(output.contains("method=\"timed\""));
+        assertTrue(output.contains("instrumentation_method_self_seconds_total" + labels + "} 0.1\n"));
+        // The histogram still only holds the timed call
+        assertTrue(output.contains("instrumentation_method_duration_seconds_sum" + labels + "} 0.001\n"));
+        // Scaling doesn't overflow where nanos * count would
+        assertTrue(PrometheusRenderer.estimatedNanos(Long.MAX_VALUE / 4, 100, 50) > Long.MAX_VALUE / 4);
+    }
+}
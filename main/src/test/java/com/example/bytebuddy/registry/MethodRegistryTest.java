@@ -0,0 +1,194 @@
+package com.example.bytebuddy.registry;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.matcher.ElementMatchers;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MethodRegistryTest {
+
+    @Test
+    public void testSameMethodGetsSameId() {
+        int first = MethodRegistry.register("com.example.Foo", "Foo", "bar", "()V");
+        int second = MethodRegistry.register("com.example.Foo", "Foo", "bar", "()V");
+        assertEquals(first, second);
+        assertEquals("Foo.bar", MethodRegistry.displayName(first));
+    }
+
+    @Test
+    public void testOverloadsGetDistinctIds() {
+        int noArgs = MethodRegistry.register("com.example.Foo", "Foo", "baz", "()V");
+        int oneArg = MethodRegistry.register("com.example.Foo", "Foo", "baz", "(I)V");
+        assertNotEquals(noArgs, oneArg);
+    }
+
+    @Test
+    public void testRegistryGrowsBeyondInitialCapacity() {
+        int last = -1;
+        for (int i = 0; i < 1000; i++) {
+            last = MethodRegistry.register("com.example.Grow", "Grow", "m" + i, "()V");
+        }
+        assertEquals("Grow.m999", MethodRegistry.get(last).getDisplayName());
+        assertNull(MethodRegistry.get(-1));
+    }
+
+    @Test
+    public void testLoadersGetSeparateIds() {
+        ClassLoader first = new URLClassLoader(new URL[0], null);
+        ClassLoader second = new URLClassLoader(new URL[0], null);
+        int shared = MethodRegistry.register("com.example.Plugin", "Plugin", "run", "()V");
+        int inFirst = MethodRegistry.register(first, "com.example.Plugin", "Plugin", "run", "()V");
+        int inSecond = MethodRegistry.register(second, "com.example.Plugin", "Plugin", "run", "()V");
+        assertNotEquals(shared, inFirst);
+        assertNotEquals(inFirst, inSecond);
+        assertEquals(inFirst, MethodRegistry.register(first, "com.example.Plugin", "Plugin", "run", "()V"));
+        assertEquals("Plugin.run [" + first + "]", MethodRegistry.displayName(inFirst));
+        assertEquals(inSecond, MethodRegistry.methodsOf(second, "com.example.Plugin").get(0).id);
+    }
+
+    @Test
+    public void testAggregatedLoadersShareId() {
+        MethodRegistry.setAggregateLoaders(true);
+        try {
+            int inFirst = MethodRegistry.register(new URLClassLoader(new URL[0], null),
+                    "com.example.Shared", "Shared", "run", "()V");
+            int inSecond = MethodRegistry.register(new URLClassLoader(new URL[0], null),
+                    "com.example.Shared", "Shared", "run", "()V");
+            assertEquals(inFirst, inSecond);
+            assertEquals("Shared.run", MethodRegistry.displayName(inFirst));
+        } finally {
+            MethodRegistry.setAggregateLoaders(false);
+        }
+    }
+
+    @Test
+    public void testCollectedLoaderReleasesIds() throws InterruptedException {
+        List<Integer> released = new CopyOnWriteArrayList<>();
+        MethodRegistry.addReleaseListener(released::add);
+        int id = registerInTemporaryLoader();
+        // Registering expunges loaders collected before, whose released ID may just have been reused
+        released.clear();
+        for (int i = 0; i < 50 && !released.contains(id); i++) {
+            System.gc();
+            Thread.sleep(20);
+            MethodRegistry.expungeCollectedLoaders();
+        }
+        assertTrue(released.contains(id));
+        assertNull(MethodRegistry.get(id));
+        // Released IDs are handed out again before new ones
+        int size = MethodRegistry.size();
+        MethodRegistry.register("com.example.Redeployed", "Redeployed", "run", "()V");
+        assertEquals(size, MethodRegistry.size());
+    }
+
+    public static class Returns {
+        public int count() {
+            return 1000;
+        }
+
+        public short small() {
+            return 7;
+        }
+
+        public double ratio() {
+            return 0.5;
+        }
+
+        public boolean ready() {
+            return true;
+        }
+
+        public long total() {
+            return 1L << 40;
+        }
+
+        public String name() {
+            return "returns";
+        }
+    }
+
+    // Last value seen by one of the exit advice variants below, with the variant's type
+    public static Object lastReturn;
+    public static Class<?> lastVariant;
+
+    public static class ReturnsReference {
+        @Advice.OnMethodExit
+        public static void exit(@Advice.Return(typing = Assigner.Typing.DYNAMIC) Object value) {
+            lastReturn = value;
+            lastVariant = Object.class;
+        }
+    }
+
+    public static class ReturnsInt {
+        @Advice.OnMethodExit
+        public static void exit(@Advice.Return int value) {
+            lastReturn = value;
+            lastVariant = int.class;
+        }
+    }
+
+    public static class ReturnsLong {
+        @Advice.OnMethodExit
+        public static void exit(@Advice.Return long value) {
+            lastReturn = value;
+            lastVariant = long.class;
+        }
+    }
+
+    public static class ReturnsDouble {
+        @Advice.OnMethodExit
+        public static void exit(@Advice.Return double value) {
+            lastReturn = value;
+            lastVariant = double.class;
+        }
+    }
+
+    public static class ReturnsBoolean {
+        @Advice.OnMethodExit
+        public static void exit(@Advice.Return boolean value) {
+            lastReturn = value;
+            lastVariant = boolean.class;
+        }
+    }
+
+    private static void assertReturn(Returns target, String method, Object value, Class<?> variant) throws Exception {
+        Returns.class.getMethod(method).invoke(target);
+        assertEquals(value, lastReturn);
+        assertEquals(variant, lastVariant);
+    }
+
+    @Test
+    public void testAdviceVariantChosenByReturnType() throws Exception {
+        Returns target = MethodRegistry.interceptByReturnType(new ByteBuddy().subclass(Returns.class),
+                        ElementMatchers.isDeclaredBy(Returns.class), null, ReturnsReference.class,
+                        ReturnsInt.class, ReturnsLong.class, ReturnsDouble.class, ReturnsBoolean.class)
+                .make()
+                .load(Returns.class.getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+                .getLoaded()
+                .getDeclaredConstructor()
+                .newInstance();
+
+        assertReturn(target, "count", 1000, int.class);
+        assertReturn(target, "small", 7, int.class);
+        assertReturn(target, "total", 1L << 40, long.class);
+        assertReturn(target, "ratio", 0.5, double.class);
+        assertReturn(target, "ready", true, boolean.class);
+        assertReturn(target, "name", "returns", Object.class);
+    }
+
+    private static int registerInTemporaryLoader() {
+        return MethodRegistry.register(new URLClassLoader(new URL[0], null), "com.example.Undeployed", "Undeployed", "run", "()V");
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.bytebuddy.rules;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InstrumentationRulesTest {
+
+    private static InstrumentationRules rules(String... lines) {
+        return new InstrumentationRules(InstrumentationRules.parse(Arrays.asList(lines)), "com.example.shop.agent.");
+    }
+
+    @Test
+    public void testMostSpecificRuleWins() {
+        InstrumentationRules rules = rules(
+                "# Shop rules",
+                "include com.example.shop.",
+                "exclude com.example.shop.internal.",
+                "include com.example.shop.internal.Audit#record* timing",
+                "include com.example.shop.Cart#add* args",
+                "include com.example.shop.Pricing* timing");
+
+        assertEquals(InstrumentationRules.Mode.TRACE, rules.modeFor("com.example.shop.Orders", "place"));
+        assertEquals(InstrumentationRules.Mode.ARGS, rules.modeFor("com.example.shop.Cart", "addItem"));
+        assertEquals(InstrumentationRules.Mode.TRACE, rules.modeFor("com.example.shop.Cart", "clear"));
+        assertEquals(InstrumentationRules.Mode.TIMING, rules.modeFor("com.example.shop.PricingRules", "apply"));
+        assertNull(rules.modeFor("com.example.shop.internal.Cache", "get"));
+        assertEquals(InstrumentationRules.Mode.TIMING, rules.modeFor("com.example.shop.internal.Audit", "recordSale"));
+        assertNull(rules.modeFor("com.example.shop.internal.Audit", "flush"));
+        assertNull(rules.modeFor("com.example.other.Orders", "place"));
+
+        assertTrue(rules.matchesType("com.example.shop.Orders"));
+        // Only some of its methods are included
+        assertTrue(rules.matchesType("com.example.shop.internal.Audit"));
+        assertFalse(rules.matchesType("com.example.shop.internal.Cache"));
+        assertFalse(rules.matchesType("com.example.shopping.Orders"));
+        assertFalse(rules.matchesType("com.example"));
+        // Blocked whatever the rules
+        assertFalse(rules.matchesType("com.example.shop.agent.Options"));
+        assertNull(rules.modeFor("com.example.shop.agent.Options", "get"));
+    }
+
+    @Test
+    public void testRejectsMalformedRules() {
+        for (String line : new String[]{"include", "exclude com.example.Foo trace", "include com.*.Foo",
+                "include com.example.Foo sample", "instrument com.example.Foo", "include com.example.Foo#"}) {
+            try {
+                InstrumentationRules.parse(Collections.singletonList(line));
+                fail("Parsed " + line);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().startsWith("Rule 1 "));
+            }
+        }
+        InstrumentationRules rules = rules("include com.example.shop.Cart args");
+        try {
+            rules.requireModes(Collections.singleton(InstrumentationRules.Mode.TRACE));
+            fail("Accepted args");
+        } catch (IllegalArgumentException expected) {
+            assertEquals("Mode args is not supported with this advice: include com.example.shop.Cart args",
+                    expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testOnlyTypesWithOtherRulesChange() {
+        InstrumentationRules before = rules("include java.lang.", "exclude java.lang.Integer");
+        InstrumentationRules after = rules("include java.lang.", "include java.lang.Long timing",
+                "exclude java.lang.Integer", "exclude java.util.HashMap");
+
+        List<Class<?>> changed = RulesWatcher.changedTypes(before, after, new Class<?>[]{
+                String.class, Long.class, Integer.class, Long[].class, int.class, java.util.HashMap.class,
+                java.util.ArrayList.class});
+        // HashMap is not instrumented either way and Integer stays excluded
+        assertEquals(Collections.singletonList(Long.class), changed);
+    }
+}
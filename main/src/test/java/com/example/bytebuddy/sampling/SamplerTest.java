@@ -0,0 +1,91 @@
+package com.example.bytebuddy.sampling;
+
+import com.example.bytebuddy.agent.AgentOptions;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SamplerTest {
+
+    @Test
+    public void testDecisionAppliesToWholeTree() {
+        Sampler.Scope scope = new Sampler.Scope();
+        Sampler everyOther = new Sampler(-1) {
+            private int roots;
+
+            @Override
+            protected boolean sampleRoot(int methodId) {
+                return roots++ % 2 == 0;
+            }
+        };
+
+        assertTrue(scope.enter(everyOther, 1));
+        assertTrue(scope.enter(everyOther, 2));
+        assertTrue(scope.exit());
+        assertFalse(scope.isRootExit());
+        assertTrue(scope.exit());
+        assertTrue(scope.isRootExit());
+
+        assertFalse(scope.enter(everyOther, 1));
+        assertFalse(scope.enter(everyOther, 2));
+        assertFalse(scope.exit());
+        assertFalse(scope.exit());
+        assertTrue(scope.isRootExit());
+    }
+
+    @Test
+    public void testRateLimitPerMethod() {
+        Sampler sampler = new Sampler.RateLimited(3, -1);
+        int first = 0;
+        int second = 0;
+        for (int i = 0; i < 100; i++) {
+            first += sampler.sampleRoot(5) ? 1 : 0;
+            second += sampler.sampleRoot(5000) ? 1 : 0;
+        }
+        // Allows for the loop crossing a second boundary
+        assertTrue(first >= 3 && first <= 6);
+        assertTrue(second >= 3 && second <= 6);
+    }
+
+    @Test
+    public void testRateLimitWithNegativeClock() {
+        Sampler.RateLimited sampler = new Sampler.RateLimited(3, -1);
+        long start = -5_400_000_000L;
+        int taken = 0;
+        for (int i = 0; i < 100; i++) {
+            taken += sampler.sampleRootAt(7, start + i * 1000) ? 1 : 0;
+        }
+        assertEquals(3, taken);
+        // The next second, still negative, gets a fresh budget
+        assertTrue(sampler.sampleRootAt(7, start + 1_000_000_000L));
+        // Across zero as well
+        assertTrue(sampler.sampleRootAt(7, -1));
+        assertTrue(sampler.sampleRootAt(7, 0));
+    }
+
+    @Test
+    public void testSlowOnlyTimesUnsampledRoots() {
+        Sampler sampler = Sampler.fromOptions(new AgentOptions("sampling=slow,sampling.slowMillis=5"));
+        assertTrue(sampler.keepsSlowCalls());
+        assertEquals(5_000_000, sampler.getSlowThresholdNanos());
+
+        Sampler.Scope scope = new Sampler.Scope();
+        long before = System.nanoTime();
+        assertFalse(scope.enter(sampler, 1));
+        assertTrue(scope.getRootStart() >= before);
+    }
+
+    @Test
+    public void testDefaultCapturesEverything() {
+        assertNull(Sampler.fromOptions(new AgentOptions(null)));
+        assertFalse(new Sampler.OneInN(10, -1).keepsSlowCalls());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSlowModeNeedsThreshold() {
+        Sampler.fromOptions(new AgentOptions("sampling=slow"));
+    }
+}
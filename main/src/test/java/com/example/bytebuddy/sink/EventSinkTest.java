@@ -0,0 +1,144 @@
+package com.example.bytebuddy.sink;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventSinkTest {
+
+    @Test
+    public void testEventsAreFormattedInOrder() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventSink sink = new EventSink(8, EventSink.OverflowPolicy.BLOCK, new PrintStream(bytes, true));
+        EventSink.Formatter formatter = (event, out) -> out.append(event.methodId);
+        for (int i = 0; i < 100; i++) {
+            TraceEvent event = sink.claim();
+            event.formatter = formatter;
+            event.methodId = i;
+            sink.publish(event);
+        }
+        sink.flush();
+
+        String[] lines = bytes.toString().trim().split("\\R");
+        assertEquals(100, lines.length);
+        assertEquals("99", lines[99]);
+        assertEquals(0, sink.getDroppedCount());
+    }
+
+    @Test
+    public void testDropPolicyCountsDroppedEvents() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventSink sink = new EventSink(4, EventSink.OverflowPolicy.DROP, new PrintStream(bytes, true));
+        CountDownLatch release = new CountDownLatch(1);
+        // Holds the sink thread on the first event so the ring fills up
+        EventSink.Formatter formatter = (event, out) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.append(event.methodId);
+        };
+        for (int i = 0; i < 10; i++) {
+            TraceEvent event = sink.claim();
+            if (event != null) {
+                event.formatter = formatter;
+                event.methodId = i;
+                sink.publish(event);
+            }
+        }
+        assertEquals(6, sink.getDroppedCount());
+        assertEquals(4, sink.getPublishedCount());
+
+        release.countDown();
+        sink.flush();
+        assertEquals(4, bytes.toString().trim().split("\\R").length);
+    }
+
+    @Test(timeout = 10_000)
+    public void testSinkThreadNeverBlocksOnItsOwnEvents() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventSink sink = new EventSink(2, EventSink.OverflowPolicy.BLOCK, new PrintStream(bytes, true));
+        CountDownLatch release = new CountDownLatch(1);
+        EventSink.Formatter quiet = (event, out) -> out.append(event.methodId);
+        // Formatting calls instrumented code, which publishes to the same, full, ring
+        EventSink.Formatter reentrant = (event, out) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int i = 0; i < 4; i++) {
+                TraceEvent nested = sink.claim();
+                if (nested != null) {
+                    nested.formatter = quiet;
+                    nested.methodId = -1;
+                    sink.publish(nested);
+                }
+            }
+            out.append(event.methodId);
+        };
+        for (int i = 0; i < 2; i++) {
+            TraceEvent event = sink.claim();
+            event.formatter = reentrant;
+            event.methodId = i;
+            sink.publish(event);
+        }
+        release.countDown();
+        sink.flush();
+
+        assertTrue(sink.getDroppedCount() > 0);
+        assertTrue(bytes.toString().contains("1"));
+    }
+
+    @Test(timeout = 10_000)
+    public void testErrorInFormatterDoesNotStopTheSink() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventSink sink = new EventSink(4, EventSink.OverflowPolicy.BLOCK, new PrintStream(bytes, true));
+        EventSink.Formatter formatter = (event, out) -> {
+            if (event.methodId % 2 == 0) {
+                throw new StackOverflowError();
+            }
+            out.append(event.methodId);
+        };
+        // More events than the ring holds, so the producer needs the sink thread to survive
+        for (int i = 0; i < 20; i++) {
+            TraceEvent event = sink.claim();
+            event.formatter = formatter;
+            event.methodId = i;
+            sink.publish(event);
+        }
+        sink.flush();
+
+        String output = bytes.toString();
+        assertTrue(output.contains("Failed to format event: java.lang.StackOverflowError"));
+        assertTrue(output.contains("19"));
+    }
+
+    @Test(timeout = 10_000)
+    public void testUnpublishedSlotIsAbandoned() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EventSink sink = new EventSink(4, EventSink.OverflowPolicy.BLOCK, new PrintStream(bytes, true), 50);
+        EventSink.Formatter formatter = (event, out) -> out.append(event.methodId);
+        // A producer that died between claim and publish
+        sink.claim();
+        // More events than the ring holds, so these producers need the dead slot to be skipped
+        for (int i = 0; i < 10; i++) {
+            TraceEvent event = sink.claim();
+            event.formatter = formatter;
+            event.methodId = i;
+            sink.publish(event);
+        }
+        sink.flush();
+
+        String output = bytes.toString();
+        assertTrue(output.contains("never published"));
+        assertTrue(output.contains("9"));
+        assertEquals(1, sink.getAbandonedCount());
+    }
+}
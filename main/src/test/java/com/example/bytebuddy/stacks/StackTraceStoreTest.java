@@ -0,0 +1,78 @@
+package com.example.bytebuddy.stacks;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StackTraceStoreTest {
+
+    private static StackTraceElement frame(String method, int line) {
+        return new StackTraceElement("com.example.Orders", method, "Orders.java", line);
+    }
+
+    private static final StackTraceElement[] VALIDATE = {frame("validate", 10), frame("place", 20), frame("main", 30)};
+    private static final StackTraceElement[] SAVE = {frame("save", 40), frame("place", 21), frame("main", 30)};
+
+    @Test
+    public void testInternsEqualTracesOnce() {
+        StackTraceStore store = new StackTraceStore(16);
+        int first = store.intern(VALIDATE);
+        assertEquals(first, store.intern(VALIDATE.clone()));
+        int other = store.intern(SAVE);
+        assertNotEquals(first, other);
+        // A prefix is a trace of its own
+        assertNotEquals(first, store.intern(VALIDATE, 0, 2));
+
+        assertEquals(3, store.getTraceCount());
+        // main:30 is shared by both full traces
+        assertEquals(5, store.getFrameCount());
+        assertEquals(2, store.getHitCount(first));
+        assertArrayEquals(VALIDATE, store.lookup(first));
+        assertArrayEquals(SAVE, store.lookup(other));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyInternedTrace() {
+        StackTraceStore store = new StackTraceStore(2);
+        int validate = store.intern(VALIDATE);
+        int save = store.intern(SAVE);
+        store.intern(VALIDATE);
+        int single = store.intern(new StackTraceElement[]{frame("audit", 50)});
+
+        assertEquals(1, store.getEvictedCount());
+        assertNull(store.lookup(save));
+        assertArrayEquals(VALIDATE, store.lookup(validate));
+        // save:40 and place:21 went with the evicted trace, main:30 is still used
+        assertEquals(4, store.getFrameCount());
+        // IDs are not reused, and validate is now the least recent
+        assertNotEquals(save, store.intern(SAVE));
+        assertNull(store.lookup(validate));
+        assertEquals(1, store.lookup(single).length);
+    }
+
+    @Test
+    public void testExportsFrameTableAndTraces() throws IOException {
+        StackTraceStore store = new StackTraceStore(16);
+        store.intern(SAVE);
+        int validate = store.intern(VALIDATE);
+        store.intern(VALIDATE);
+
+        StringBuilder out = new StringBuilder();
+        store.export(out);
+        String export = out.toString();
+        assertTrue(export.startsWith("# 2 traces\nframe 0 com.example.Orders.save(Orders.java:40)\n"));
+        // Most interned first, referring to the frame table
+        assertTrue(export.endsWith("trace " + validate + " 2 3 4 2\ntrace 0 1 0 1 2\n"));
+
+        StringBuilder lines = new StringBuilder();
+        store.appendTo(lines, validate, 2, "  ");
+        assertEquals("  at com.example.Orders.validate(Orders.java:10)\n"
+                + "  at com.example.Orders.place(Orders.java:20)\n  ... 1 more\n", lines.toString());
+    }
+}
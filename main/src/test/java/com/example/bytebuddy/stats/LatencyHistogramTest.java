@@ -0,0 +1,77 @@
+package com.example.bytebuddy.stats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverValuesWithBoundedError() {
+        for (long value = 1; value < (1L << 37); value = value * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.bucketIndex(value);
+            long upper = LatencyHistogram.bucketUpperBound(bucket);
+            assertTrue(value + " above bucket bound " + upper, value <= upper);
+            assertTrue(value + " too far below bound " + upper, upper - value <= value / 16 + 1);
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getTotalCount());
+        assertWithin(500_000, snapshot.percentile(50));
+        assertWithin(990_000, snapshot.percentile(99));
+        assertEquals(1_000_000, snapshot.percentile(100));
+        assertEquals(1_000_000, snapshot.maxNanos);
+    }
+
+    @Test
+    public void testIntervalSnapshotResets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5_000_000);
+        assertEquals(1, histogram.intervalSnapshot().getTotalCount());
+
+        histogram.record(100);
+        LatencyHistogram.Snapshot interval = histogram.intervalSnapshot();
+        assertEquals(1, interval.getTotalCount());
+        assertEquals(100, interval.maxNanos);
+        assertEquals(2, histogram.snapshot().getTotalCount());
+    }
+
+    @Test
+    public void testConcurrentRecordsAreAllCounted() throws Exception {
+        // Striped from the start, as it would be after threads collided on a multi-core machine
+        LatencyHistogram histogram = new LatencyHistogram(4);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            long value = 1000 + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(value);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(800_000, snapshot.getTotalCount());
+        assertEquals(1007, snapshot.maxNanos);
+        assertEquals(800_000, histogram.getCount(LatencyHistogram.bucketIndex(1000)));
+        assertEquals(800_000, histogram.intervalSnapshot().getTotalCount());
+        assertEquals(1, LatencyHistogram.stripesFor(1));
+        assertEquals(8, LatencyHistogram.stripesFor(6));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 16);
+    }
+}
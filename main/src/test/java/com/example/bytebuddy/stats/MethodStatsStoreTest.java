@@ -0,0 +1,75 @@
+package com.example.bytebuddy.stats;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class MethodStatsStoreTest {
+
+    @Test
+    public void testRecordsMinMaxAndAverage() {
+        MethodStatsStore store = new MethodStatsStore();
+        store.record(3, 10);
+        store.record(3, 30);
+
+        MethodStats.Snapshot snapshot = store.get(3).snapshot();
+        assertEquals(2, snapshot.count);
+        assertEquals(40, snapshot.totalNanos);
+        assertEquals(10, snapshot.minNanos);
+        assertEquals(30, snapshot.maxNanos);
+        assertEquals(20, snapshot.getAverageNanos());
+    }
+
+    @Test
+    public void testUnsampledCallsOnlyCounted() {
+        MethodStatsStore store = new MethodStatsStore();
+        store.record(1, 10);
+        store.recordUnsampled(1);
+        store.recordUnsampled(1);
+
+        MethodStats.Snapshot snapshot = store.get(1).snapshot();
+        assertEquals(3, snapshot.count);
+        assertEquals(1, snapshot.timedCount);
+        assertEquals(10, snapshot.getAverageNanos());
+    }
+
+    @Test
+    public void testNoUpdateLostOnConcurrentFirstRegistration() throws InterruptedException {
+        MethodStatsStore store = new MethodStatsStore();
+        int threads = 32;
+        int callsPerThread = 10_000;
+        // A method ID beyond the initial capacity forces growth while the threads race
+        int methodId = 1000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < callsPerThread; i++) {
+                    store.record(methodId, 1);
+                    store.record(i % 300, 1);
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals((long) threads * callsPerThread, store.get(methodId).snapshot().count);
+        List<MethodStats.Snapshot> snapshots = store.snapshot();
+        long total = 0;
+        for (MethodStats.Snapshot snapshot : snapshots) {
+            total += snapshot.count;
+        }
+        assertEquals(2L * threads * callsPerThread, total);
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.bytebuddy.stats;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatsArenaTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsLikeTheHeapStatistics() {
+        MethodStatsStore heap = new MethodStatsStore();
+        // Two slots per chunk, so that method 5 lands in a later chunk
+        MethodStatsStore arena = new MethodStatsStore(StatsArena.allocate(2));
+        for (MethodStatsStore store : new MethodStatsStore[]{heap, arena}) {
+            store.record(5, 30, 20);
+            store.record(5, 10, 10);
+            store.record(5, 2_000_000, 5);
+            store.recordUnsampled(5);
+        }
+
+        MethodStats.Snapshot expected = heap.get(5).snapshot();
+        MethodStats.Snapshot actual = arena.get(5).snapshot();
+        assertEquals(4, actual.count);
+        assertEquals(expected.timedCount, actual.timedCount);
+        assertEquals(expected.totalNanos, actual.totalNanos);
+        assertEquals(expected.selfNanos, actual.selfNanos);
+        assertEquals(10, actual.minNanos);
+        assertEquals(2_000_000, actual.maxNanos);
+        for (double percentile : new double[]{10, 50, 99, 100}) {
+            assertEquals(expected.percentile(percentile), actual.percentile(percentile));
+        }
+        int bucket = LatencyHistogram.bucketIndex(2_000_000);
+        assertEquals(1, arena.get(5).getBucketCount(bucket));
+        assertEquals(0, arena.getOrCreate(4).snapshot().minNanos);
+
+        arena.remove(5);
+        assertEquals(0, arena.getOrCreate(5).snapshot().count);
+    }
+
+    @Test
+    public void testIntervalSnapshotsLikeTheHeapStatistics() {
+        int method = MethodRegistry.register("com.example.shop.Cart", "Cart", "total", "()J");
+        for (MethodStatsStore store : new MethodStatsStore[]{new MethodStatsStore(),
+                new MethodStatsStore(StatsArena.allocate(4))}) {
+            store.record(method, 5_000_000, 1_000);
+            store.record(method, 3_000_000, 1_000);
+            MethodStats.Snapshot first = store.intervalSnapshot().get(0);
+            assertEquals(2, first.count);
+            assertEquals(3_000_000, first.minNanos);
+            assertEquals(5_000_000, first.maxNanos);
+
+            store.record(method, 100, 50);
+            store.recordUnsampled(method);
+            MethodStats.Snapshot second = store.intervalSnapshot().get(0);
+            assertEquals(2, second.count);
+            assertEquals(1, second.timedCount);
+            assertEquals(100, second.totalNanos);
+            assertEquals(50, second.selfNanos);
+            assertEquals(100, second.minNanos);
+            assertEquals(100, second.maxNanos);
+            assertEquals(1, second.histogram.getTotalCount());
+            assertEquals(100, second.percentile(99));
+
+            assertTrue(store.intervalSnapshot().isEmpty());
+            assertTrue(new IntervalReport(store, 5).report(60_000).isEmpty());
+            store.record(method, 2_000);
+            String report = new IntervalReport(store, 5).report(60_000);
+            assertTrue(report, report.startsWith("⏱️ Last 60.00 s | Methods called: 1\n"));
+            assertTrue(report, report.contains("Cart.total | Calls: 1 | p50: 2.00 μs"));
+            // Cumulative statistics are not affected
+            assertEquals(5, store.get(method).snapshot().count);
+            assertEquals(5_000_000, store.get(method).snapshot().maxNanos);
+        }
+    }
+
+    @Test
+    public void testMappedFileReadableByAnotherReader() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("advanced.stats");
+        Files.write(file, new byte[]{1, 2, 3});
+        int hot = MethodRegistry.register("com.example.shop.Cart", "Cart", "add", "(I)V");
+        int cold = MethodRegistry.register("com.example.shop.Cart", "Cart", "clear", "()V");
+        int dropped = MethodRegistry.register("com.example.shop.Cart", "Cart", "drop", "()V");
+        MethodStatsStore store = new MethodStatsStore(StatsArena.map(file, 4));
+        store.record(cold, 100);
+        store.record(hot, 5_000);
+        store.record(hot, 7_000);
+        store.record(dropped, 1_000_000);
+        store.remove(dropped);
+
+        // A file already there is kept aside
+        assertEquals(3, Files.size(file.resolveSibling("advanced.stats.previous")));
+        List<StatsArena.Method> methods = StatsArena.read(file);
+        assertEquals(2, methods.size());
+        assertEquals("com.example.shop.Cart.add(I)V", methods.get(0).name);
+        assertEquals(hot, methods.get(0).statistics.methodId);
+        assertEquals(2, methods.get(0).statistics.count);
+        assertEquals(12_000, methods.get(0).statistics.totalNanos);
+        assertEquals("com.example.shop.Cart.clear()V", methods.get(1).name);
+        assertTrue(methods.get(1).statistics.percentile(50) >= 100);
+
+        try {
+            StatsArena.read(file.resolveSibling("advanced.stats.previous"));
+            throw new AssertionError("Read a file that is not an arena");
+        } catch (java.io.IOException expected) {
+            assertTrue(expected.getMessage().startsWith("Not a statistics arena"));
+        }
+    }
+
+    @Test
+    public void testChunkMustFitInABuffer() {
+        assertEquals(Integer.MAX_VALUE / StatsArena.SLOT_BYTES, StatsArena.MAX_SLOTS_PER_CHUNK);
+        try {
+            StatsArena.allocate(StatsArena.MAX_SLOTS_PER_CHUNK + 1);
+            throw new AssertionError("Allocated chunks larger than a buffer");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().startsWith("slotsPerChunk must be from 1"));
+        }
+    }
+}
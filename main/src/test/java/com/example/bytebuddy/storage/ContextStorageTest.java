@@ -0,0 +1,52 @@
+package com.example.bytebuddy.storage;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ContextStorageTest {
+
+    @Test
+    public void testThreadStorageKeepsStateAcrossRelease() {
+        ThreadStorage<int[]> storage = new ThreadStorage<>(() -> new int[1]);
+        int[] state = storage.get();
+        storage.release();
+        assertSame(state, storage.get());
+        assertFalse(storage.isPooled());
+    }
+
+    @Test
+    public void testPooledStateIsReusedByLaterThreads() throws Exception {
+        PooledStorage<int[]> storage = new PooledStorage<>(() -> new int[1], state -> { }, 4096);
+        // Many short-lived threads, one at a time, need only as many states as there are stripes
+        for (int i = 0; i < 200; i++) {
+            Thread thread = new Thread(() -> {
+                storage.get()[0]++;
+                storage.release();
+            });
+            thread.start();
+            thread.join();
+        }
+        assertTrue(storage.getCreatedCount() <= 64);
+        assertTrue(storage.isPooled());
+    }
+
+    @Test
+    public void testReleasedStateLeavesTheThread() throws Exception {
+        PooledStorage<int[]> storage = new PooledStorage<>(() -> new int[1], state -> { }, 4096);
+        int[] state = storage.get();
+        storage.release();
+        // Taken back from the pool rather than still attached to this thread
+        assertSame(state, storage.get());
+        AtomicReference<int[]> other = new AtomicReference<>();
+        Thread thread = new Thread(() -> other.set(storage.get()));
+        thread.start();
+        thread.join();
+        assertNotSame(state, other.get());
+    }
+}
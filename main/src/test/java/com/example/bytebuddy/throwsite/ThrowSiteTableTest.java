@@ -0,0 +1,114 @@
+package com.example.bytebuddy.throwsite;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThrowSiteTableTest {
+
+    private static final int INNER = MethodRegistry.register("com.example.Throws", "Throws", "inner", "()V");
+    private static final int OUTER = MethodRegistry.register("com.example.Throws", "Throws", "outer", "()V");
+
+    @Test
+    public void testCountsOnlyTheInnermostSite() {
+        ThrowSiteTable table = new ThrowSiteTable(16, 1000, 32);
+        for (int i = 0; i < 3; i++) {
+            IllegalStateException thrown = new IllegalStateException();
+            // Propagates out of inner and then outer
+            table.record(INNER, thrown);
+            table.record(OUTER, thrown);
+        }
+        // Wrapped in outer
+        table.record(OUTER, new RuntimeException());
+
+        List<ThrowSite> sites = table.getSites();
+        assertEquals(2, sites.size());
+        assertEquals("java.lang.IllegalStateException", sites.get(0).exceptionType);
+        assertEquals(INNER, sites.get(0).methodId);
+        assertEquals(3, sites.get(0).count);
+        assertEquals(OUTER, sites.get(1).methodId);
+        assertEquals(4, table.getThrowCount());
+    }
+
+    @Test
+    public void testPreallocatedExceptionIsCountedForEachThrow() {
+        ThrowSiteTable table = new ThrowSiteTable(16, 1000, 32);
+        IllegalStateException preallocated = new IllegalStateException();
+        for (int i = 0; i < 3; i++) {
+            table.record(INNER, preallocated);
+            table.record(OUTER, preallocated);
+        }
+        // Caught in outer this time
+        table.record(INNER, preallocated);
+
+        List<ThrowSite> sites = table.getSites();
+        assertEquals(1, sites.size());
+        assertEquals(INNER, sites.get(0).methodId);
+        assertEquals(4, sites.get(0).count);
+    }
+
+    @Test
+    public void testCountedExceptionIsNotKeptAlive() throws InterruptedException {
+        ThrowSiteTable table = new ThrowSiteTable(16, 1000, 32);
+        IllegalStateException thrown = new IllegalStateException();
+        table.record(INNER, thrown);
+        WeakReference<Throwable> reference = new WeakReference<>(thrown);
+        thrown = null;
+        for (int i = 0; i < 20 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+        // The next exception is counted again
+        table.record(INNER, new IllegalStateException());
+        assertEquals(2, table.getThrowCount());
+    }
+
+    @Test
+    public void testFullTableKeepsHottestSites() {
+        ThrowSiteTable table = new ThrowSiteTable(2, 1000, 32);
+        for (int i = 0; i < 5; i++) {
+            table.record(INNER, new IllegalStateException());
+        }
+        for (int i = 0; i < 3; i++) {
+            table.record(INNER, new IllegalArgumentException());
+        }
+        table.record(OUTER, new UnsupportedOperationException());
+
+        List<ThrowSite> sites = table.getSites();
+        assertEquals(2, sites.size());
+        assertEquals("java.lang.IllegalStateException", sites.get(0).exceptionType);
+        // Took over the coldest site's count
+        assertEquals("java.lang.UnsupportedOperationException", sites.get(1).exceptionType);
+        assertEquals(4, sites.get(1).count);
+        assertEquals(3, sites.get(1).error);
+        assertEquals(1, table.getEvictedCount());
+    }
+
+    @Test
+    public void testSamplesStackTraces() {
+        ThrowSiteTable table = new ThrowSiteTable(16, 2, 4);
+        table.record(INNER, new IllegalStateException("first"));
+        ThrowSite site = table.getSites().get(0);
+        assertNotNull(site.sample);
+        assertTrue(site.sample.length <= 4);
+        table.record(INNER, new IllegalStateException("second"));
+        assertEquals(site.traceId, table.getSites().get(0).traceId);
+        // Thrown from another line, so a different trace
+        table.record(INNER, new IllegalStateException("third"));
+        assertNotEquals(site.traceId, table.getSites().get(0).traceId);
+
+        table.clear();
+        assertEquals(0, table.getSiteCount());
+        table.record(OUTER, new IllegalStateException());
+        assertEquals(1, table.getSiteCount());
+    }
+}
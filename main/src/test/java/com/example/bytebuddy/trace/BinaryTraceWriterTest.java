@@ -0,0 +1,87 @@
+package com.example.bytebuddy.trace;
+
+import com.example.bytebuddy.registry.MethodRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryTraceWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTripAcrossRotatedSegments() throws Exception {
+        int outer = MethodRegistry.register("com.example.Trace", "Trace", "outer", "()V");
+        int inner = MethodRegistry.register("com.example.Trace", "Trace", "inner", "()V");
+        Path directory = folder.getRoot().toPath();
+
+        // Small segments and buffers so that the trace rotates several times
+        BinaryTraceWriter writer = new BinaryTraceWriter(directory, 16 * 1024, 1024, 0);
+        long time = 1_000_000;
+        for (int i = 0; i < 5000; i++) {
+            writer.enter(outer, time);
+            writer.enter(inner, time + 10);
+            writer.exit(inner, time + 30, i % 2 == 0);
+            writer.exit(outer, time + 100, false);
+            time += 1000;
+        }
+        writer.close();
+
+        List<Path> segments = TraceDecoder.segments(directory);
+        assertTrue("expected rotation, got " + segments.size(), segments.size() > 1);
+
+        List<String> exits = new ArrayList<>();
+        long[] durations = new long[2];
+        TraceDecoder decoder = new TraceDecoder();
+        TraceDecoder.Listener listener = new TraceDecoder.Listener() {
+            @Override
+            public void onEntry(long threadId, String threadName, String method, long nanoTime, int depth) {
+            }
+
+            @Override
+            public void onExit(long threadId, String threadName, String method, long nanoTime, int depth,
+                               long durationNanos, boolean thrown) {
+                exits.add(method + "@" + depth + (thrown ? "!" : ""));
+                durations[depth] += durationNanos;
+            }
+        };
+        for (Path segment : segments) {
+            decoder.decode(segment, listener);
+        }
+
+        assertEquals(10_000, exits.size());
+        assertEquals("Trace.inner@1!", exits.get(0));
+        assertEquals("Trace.outer@0", exits.get(1));
+        assertEquals("Trace.inner@1", exits.get(2));
+        assertEquals(5000L * 100, durations[0]);
+        assertEquals(5000L * 20, durations[1]);
+    }
+
+    @Test
+    public void testFailedRotationDisablesTraceWithoutThrowing() throws Exception {
+        int method = MethodRegistry.register("com.example.Trace", "Trace", "failing", "()V");
+        Path directory = folder.getRoot().toPath();
+        BinaryTraceWriter writer = new BinaryTraceWriter(directory, 16 * 1024, 1024, 0);
+        // The next segment cannot be created
+        Files.createFile(directory.resolve(BinaryTraceWriter.segmentName(2)));
+        assertFalse(writer.isDisabled());
+
+        for (int i = 0; i < 5000; i++) {
+            writer.enter(method, i * 10L);
+            writer.exit(method, i * 10L + 5, false);
+        }
+        assertTrue(writer.isDisabled());
+        assertEquals(1, writer.getDroppedBlockCount());
+        writer.close();
+    }
+}